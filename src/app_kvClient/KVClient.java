@@ -11,6 +11,7 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import common.messages.KVMessage;
+import common.messages.KVMessage.Consistency;
 import common.messages.KVMessage.StatusType;
 import common.messages.TextMessage;
 import client.ClientSocketListener;
@@ -26,6 +27,7 @@ public class KVClient implements ClientSocketListener{
 
 	private String serverAddress;
 	private int serverPort;
+	private Consistency consistency;
 
 	public void run() {
 		while(!stop) {
@@ -90,6 +92,8 @@ public class KVClient implements ClientSocketListener{
 								handleNewMessage("PUT_UPDATE : Updated key-value pair on KVServer");
 							} else if(kvMsg.getStatus()==StatusType.PUT_ERROR){
 								handleNewMessage("PUT_ERROR : Unable to add Key-value pair on KVServer");
+							} else if(kvMsg.getStatus()==StatusType.WRITE_UNCONFIRMED){
+								handleNewMessage("WRITE_UNCONFIRMED : Key-value pair stored, but not confirmed by enough replicas");
 							}else{
 								printError("Unable to add Key-value pair on KVServer with status="+kvMsg.getStatus().toString());
 							}
@@ -103,6 +107,8 @@ public class KVClient implements ClientSocketListener{
 								handleNewMessage("DELETE_SUCCESS : Key deleted from server.");
 							} else if (kvMsg.getStatus()==StatusType.DELETE_ERROR){
 								handleNewMessage("DELETE_ERROR : Key not found on server.");
+							} else if(kvMsg.getStatus()==StatusType.WRITE_UNCONFIRMED){
+								handleNewMessage("WRITE_UNCONFIRMED : Key deleted, but not confirmed by enough replicas");
 							}else{
 								printError("Unable to delete Key from KVServer with status="+kvMsg.getStatus().toString());
 							}
@@ -162,6 +168,27 @@ public class KVClient implements ClientSocketListener{
 					printError("Invalid number of parameters!");
 				}
 
+			} else if(tokens[0].equals("consistency")) {
+				if(tokens.length == 2) {
+					if(tokens[1].equals("DEFAULT")) {
+						consistency = null;
+					} else {
+						try {
+							consistency = Consistency.valueOf(tokens[1]);
+						} catch (IllegalArgumentException e) {
+							printError("No valid consistency level!");
+							return;
+						}
+					}
+					if(mKVStore != null) {
+						mKVStore.setConsistency(consistency);
+					}
+					System.out.println(PROMPT + 
+							"Consistency level changed to " + tokens[1]);
+				} else {
+					printError("Invalid number of parameters!");
+				}
+
 			} else if(tokens[0].equals("help")) {
 				printHelp();
 			} else {
@@ -175,6 +202,7 @@ public class KVClient implements ClientSocketListener{
 			throws UnknownHostException, IOException {
 		mKVStore = new KVStore(address, port);
 		mKVStore.addListener(this);
+		mKVStore.setConsistency(consistency);
 		try {
 			mKVStore.connect();
 			handleNewMessage("Connection to MSRG KV server established: "
@@ -215,6 +243,11 @@ public class KVClient implements ClientSocketListener{
 		sb.append(PROMPT).append("\t\t\t\t ");
 		sb.append("ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF \n");
 
+		sb.append(PROMPT).append("consistency");
+		sb.append("\t\t\t copies a put or get has to reach \n");
+		sb.append(PROMPT).append("\t\t\t\t ");
+		sb.append("ONE | QUORUM | ALL | DEFAULT \n");
+
 		sb.append(PROMPT).append("quit ");
 		sb.append("\t\t\t exits the program");
 		System.out.println(sb.toString());
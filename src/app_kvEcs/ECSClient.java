@@ -78,12 +78,18 @@ public class ECSClient {
 				System.out.println(PROMPT + "Application exit!");
 
 			} else if (tokens[0].equals("initService")){
-				if(tokens.length == 2) {
+				if(tokens.length == 2 || tokens.length == 3) {
 					try{
 
 						mNodeCount = Integer.parseInt(tokens[1]);
-						if(!mStorageServiceInitiated && mECSServer.getMaxAvailableNodeCount() >= mNodeCount) {
-							boolean result = mECSServer.initService(mNodeCount);
+						int replicationFactor = ECServer.DEFAULT_REPLICATION_FACTOR;
+						if(tokens.length == 3) {
+							replicationFactor = Integer.parseInt(tokens[2]);
+						}
+						if(replicationFactor < 1) {
+							printError("Invalid argument! Replication factor should be at least 1.");
+						} else if(!mStorageServiceInitiated && mECSServer.getMaxAvailableNodeCount() >= mNodeCount) {
+							boolean result = mECSServer.initService(mNodeCount, replicationFactor);
 							if(result) {
 								printNewMessage("Storage service is initiated.");
 								mStorageServiceInitiated=true;
@@ -98,7 +104,7 @@ public class ECSClient {
 							printError("Unable to initialize storage service since given number of nodes : "+mNodeCount+" is more than total available nodes : "+ mECSServer.getMaxAvailableNodeCount());
 						}
 					} catch(NumberFormatException nfe) {
-						printError("Invalid argument! Number of nodes should be between 1 to 8.");
+						printError("Invalid argument! Number of nodes should be between 1 to 8 and the replication factor a number.");
 						logger.info("Unable to parse argument <port>", nfe);
 					} 
 				} else {
@@ -248,8 +254,9 @@ public class ECSClient {
 		sb.append("ECS CLIENT HELP (Available Commands):\n");
 		sb.append("::::::::::::::::::::::::::::::::");
 		sb.append("::::::::::::::::::::::::::::::::\n");
-		sb.append("\ninitService <number of Nodes>\n");
-		sb.append("Initializes KV Service with given number of nodes.\n");
+		sb.append("\ninitService <number of Nodes> [<replication factor>]\n");
+		sb.append("Initializes KV Service with given number of nodes, each pair is stored on\n");
+		sb.append("as many nodes as the replication factor (default 3) once there are enough.\n");
 		sb.append("\nstart\n");
 		sb.append("Start KV Service for client nodes.\n");
 		sb.append("\nstop\n");
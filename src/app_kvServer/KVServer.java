@@ -1,14 +1,19 @@
 package app_kvServer;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import logger.LogSetup;
 import metadata.MetaData;
@@ -17,15 +22,26 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import server.ClientConnection;
+import server.ConnectionThreads;
 import server.ECServerListener;
 import server.KVServerListener;
+import server.LoadLimit;
+import server.NioServer;
 import server.PerformanceListener;
+import server.ReplicationChannel;
+import server.ReplicationLog;
 import server.Server;
+import server.storage.ChunkManifest;
+import server.storage.MemoryBudget;
+import server.storage.RangeCursor;
 import server.storage.Storage;
+import common.communication.CommunicationConfig;
+import common.communication.CommunicationConfig.Link;
 import common.communication.SocketCommunication;
-import common.messages.JSONSerializer;
 import common.messages.KVMessage;
 import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageImpl;
+import common.messages.MessageCodec;
 import common.messages.TextMessage;
 
 /**
@@ -43,11 +59,36 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 	private ServerSocket serverSocket;
 	private boolean running;
 
+	//pending connections the operating system queues for accept()
+	private static final int ACCEPT_BACKLOG = 1024;
+
+	//creates the thread running each ClientConnection
+	private ThreadFactory connectionThreads = ConnectionThreads.platform();
+
+	//selector based connection handling, used if ioThreads > 0
+	private NioServer nioServer;
+	private int ioThreads;
+	private int workerThreads;
+
 	private Storage storage;
-	private Socket mReplica1Socket;
-	private Socket mReplica2Socket;
+	//client connections and requests in flight admitted at the same time
+	private LoadLimit loadLimit = LoadLimit.unlimited();
+	//shared by all connections, the writes they replicate are multiplexed on them
+	private volatile List<ReplicationChannel> mReplicaChannels = Collections.emptyList();
+	//writes shipped to the replicas in the background, null to replicate synchronously
+	private boolean asyncReplication;
+	private long replicationLogLimit = ReplicationLog.DEFAULT_MAX_SIZE;
+	private volatile ReplicationLog replicationLog;
 	private Server mServerData;
 
+	/*
+	 * Data is moved to other servers in batches of at most this many 
+	 * pairs or chars, so a range is never copied into memory at once and
+	 * a batch fits into a text message as well as under the frame limit.
+	 */
+	private static final int MOVE_BATCH_SIZE = 1000;
+	private static final long MOVE_BATCH_CHARS = 64 * 1024;
+
 	//used for Performance testing
 	private static final long TIME_INTERV = 10000;
 	private long time;
@@ -59,6 +100,9 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 
 	private SocketCommunication securedsSocketCommunication;
 
+	//encoding of the data sent to other KVServers
+	private MessageCodec codec = CommunicationConfig.getCodec();
+
 	/**
 	 * Constructs a KV Server object which listens to connection attempts 
 	 * at the given port.
@@ -71,7 +115,21 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 		KVServer.port = port;
 		storage = Storage.init();
 		mServerData = Server.getInstance();
-		securedsSocketCommunication = new SocketCommunication();
+		securedsSocketCommunication = new SocketCommunication(Link.REPLICATION);
+	}
+
+	/**
+	 * Constructs a KV Server object which handles its connections with 
+	 * selectors instead of a thread per connection.
+	 * 
+	 * @param port a port number which the Server is listening to.
+	 * @param ioThreads number of threads reading and writing the sockets.
+	 * @param workerThreads number of threads handling the messages.
+	 */
+	public KVServer(int port, int ioThreads, int workerThreads) {
+		this(port);
+		this.ioThreads = ioThreads;
+		this.workerThreads = workerThreads;
 	}
 
 	/**
@@ -80,6 +138,10 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 	 */
 	@Override
 	public void run() {
+		if(ioThreads > 0) {
+			runNio();
+			return;
+		}
 		running = initializeServer();
 		if(serverSocket != null) {
 			while(isRunning()){
@@ -94,7 +156,7 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 					connection.addKVServerListener(this);
 					connection.addECServerListener(this);
 					connection.addPerformanceListener(this);
-					new Thread(connection).start();
+					connectionThreads.newThread(connection).start();
 
 				} catch (IOException e) {
 					logger.error("Error! " +
@@ -105,10 +167,77 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 		logger.info("Server stopped.");
 	}
 	
+	/**
+	 * Starts the selector based server, whose I/O threads keep running
+	 * until the server is stopped.
+	 */
+	private void runNio() {
+		logger.info("Initialize server with "+ioThreads+" I/O and "+workerThreads+" worker threads ...");
+		nioServer = new NioServer(port, ioThreads, workerThreads, this, this, this);
+		try {
+			nioServer.start();
+			running = true;
+			System.out.println("Server listening on port: " + nioServer.getLocalPort());
+		} catch (IOException e) {
+			logger.error("Error! Cannot open server socket on port " + port + ": " + e);
+		}
+	}
+
 	private boolean isRunning() {
 		return this.running;
 	}
 
+	/**
+	 * Sets the factory creating the thread of each connection, for example
+	 * ConnectionThreads.virtual(). Used by the thread per connection mode.
+	 */
+	public void setConnectionThreads(ThreadFactory connectionThreads) {
+		this.connectionThreads = connectionThreads;
+	}
+
+	/**
+	 * Limits the client connections and requests in flight, the requests
+	 * over a limit are answered with SERVER_BUSY.
+	 */
+	public void setLoadLimit(LoadLimit loadLimit) {
+		this.loadLimit = loadLimit;
+	}
+
+	@Override
+	public LoadLimit getLoadLimit() {
+		return loadLimit;
+	}
+
+	/**
+	 * Replicates the writes asynchronously: their clients are answered once
+	 * they are stored here and a ReplicationLog ships them to the replicas
+	 * in batches. Writes at consistency level QUORUM or ALL still wait for
+	 * the replicas. The log is set up with the replicas once the ECServer
+	 * sent the metadata.
+	 */
+	public void setAsyncReplication() {
+		asyncReplication = true;
+	}
+
+	/**
+	 * Limits the estimated bytes of the writes the ReplicationLog holds, a 
+	 * replica falling further behind misses the oldest ones.
+	 * 
+	 * @throws IllegalArgumentException
+	 * 			if the limit is not positive.
+	 */
+	public void setReplicationLogLimit(long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("Replication log limit must be positive");
+		}
+		replicationLogLimit = bytes;
+	}
+
+	@Override
+	public ReplicationLog getReplicationLog() {
+		return replicationLog;
+	}
+
 	@Override
 	public boolean isActiveForClients() {
 		return mServerData.isActiveForClients();
@@ -124,6 +253,15 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 	 */
 	public void stopServer(){
 		running = false;
+		if (replicationLog != null) {
+			replicationLog.close();
+		}
+		closeReplicaChannels();
+		if(nioServer != null) {
+			nioServer.stop();
+			logger.info("stopServer()-->Successfully stopped the KVServer");
+			return;
+		}
 		try {
 			serverSocket.close();
 			logger.info("stopServer()-->Successfully stopped the KVServer");
@@ -141,7 +279,7 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 	private boolean initializeServer() {
 		logger.info("Initialize server ...");
 		try {
-			serverSocket = new ServerSocket(port);
+			serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
 			System.out.println("Server listening on port: " 
 					+ serverSocket.getLocalPort());
 			logger.info("Server listening on port: " 
@@ -157,16 +295,6 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 		}
 	}
 
-	/**
-	 * Method to delete Moved Data from the KVServer storage.
-	 * @param movedData
-	 * 		Data to be removed from this server.
-	 * @return
-	 * 		Returns true if delete operation was successful else false.
-	 */
-	private boolean deleteMovedData(HashMap<String, String> movedData) {
-		return storage.deleteDataBetweenRange(movedData);
-	}
 
 	@Override
 	public void initKVServer(List<MetaData> metaDatas){
@@ -185,54 +313,22 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 			i++;
 		}
 
-		if(mMetaDatas.size()>2){
-			try {
-				// Setting up meta data for nodes which will act as REPLICA'S for this server
-				if(i+2  <=  mMetaDatas.size()-1) {
-					//Generic Case: here new Node is somewhere between
-					logger.info("initKVServer()--setMyReplicaMetaData--1");
-					mServerData.setMyReplica1MetaData(mMetaDatas.get(i+1));
-					mServerData.setMyReplica2MetaData(mMetaDatas.get(i+2));
-				} else if (i+1 == mMetaDatas.size()-1) {
-					//here new Node is second last
-					logger.info("initKVServer()--setMyReplicaMetaData--2");
-					mServerData.setMyReplica1MetaData(mMetaDatas.get(i+1));
-					mServerData.setMyReplica2MetaData(mMetaDatas.get(0));
-				} else {
-					//here new Node is last
-					logger.info("initKVServer()--setMyReplicaMetaData--3");
-					mServerData.setMyReplica1MetaData(mMetaDatas.get(0));
-					mServerData.setMyReplica2MetaData(mMetaDatas.get(1));
-				}
-
-				// Setting up meta data for nodes for which this server acts as REPLICA
-				if(i-2 >= 0) {
-					//Generic Case
-					logger.info("initKVServer()--setReplicaMetaData--1");
-					mServerData.setReplica1MetaData(mMetaDatas.get(i-1));
-					mServerData.setReplica2MetaData(mMetaDatas.get(i-2));
-				} else if (i-1 == 0) {
-					//Second Node
-					logger.info("initKVServer()--setReplicaMetaData--2");
-					mServerData.setReplica1MetaData(mMetaDatas.get(i-1));
-					mServerData.setReplica2MetaData(mMetaDatas.get(mMetaDatas.size()-1));
-				} else {
-					//First Node
-					logger.info("initKVServer()--setReplicaMetaData--3");
-					mServerData.setReplica1MetaData(mMetaDatas.get(mMetaDatas.size()-1));
-					mServerData.setReplica2MetaData(mMetaDatas.get(mMetaDatas.size()-2));
-				}
-
-				setMyReplica1Socket(new Socket(getMyReplica1MetaData().getIP(),
-						Integer.parseInt(getMyReplica1MetaData().getPort())));
-
-				setMyReplica2Socket(new Socket(getMyReplica2MetaData().getIP(),
-						Integer.parseInt(getMyReplica2MetaData().getPort())));
-
-			} catch(Exception e){
-				logger.error("Exception while setting replica meta data."+e);
+		// Setting up meta data for nodes which will act as REPLICA'S for this server,
+		// its successors, and for nodes for which this server acts as REPLICA, its predecessors
+		List<MetaData> myReplicas = new ArrayList<MetaData>();
+		List<MetaData> replicas = new ArrayList<MetaData>();
+		if(isReplicating()){
+			int size = mMetaDatas.size();
+			for(int r=1; r<mServerData.getReplicationFactor(); r++){
+				myReplicas.add(mMetaDatas.get((i+r)%size));
+				replicas.add(mMetaDatas.get((i-r+size)%size));
 			}
+		}
+		mServerData.setMyReplicasMetaData(myReplicas);
+		mServerData.setReplicasMetaData(replicas);
+		openReplicaChannels();
 
+		if(isReplicating()){
 			MetaData mMetaData = mServerData.getNodeMetaData();
 			try {
 				logger.info("Storing MetaData corresponding to this Server: "
@@ -240,27 +336,20 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 						+":"+mMetaData.getPort()
 						+" "+mMetaData.getRangeStart()
 						+" "+mMetaData.getRangeEnd());
-				logger.info("Storing MetaData corresponding to Replica 1 for this Server: "
-						+getMyReplica1MetaData().getIP()
-						+":"+getMyReplica1MetaData().getPort()
-						+" "+getMyReplica1MetaData().getRangeStart()
-						+" "+getMyReplica1MetaData().getRangeEnd());
-				logger.info("Storing MetaData corresponding to Replica 1 for this Server: "
-						+getMyReplica2MetaData().getIP()
-						+":"+getMyReplica2MetaData().getPort()
-						+" "+getMyReplica2MetaData().getRangeStart()
-						+" "+getMyReplica2MetaData().getRangeEnd());
-
-				logger.info("Storing MetaData corresponding to replica 1 at this server: "
-						+getReplica1MetaData().getIP()
-						+":"+getReplica1MetaData().getPort()
-						+" "+getReplica1MetaData().getRangeStart()
-						+" "+getReplica1MetaData().getRangeEnd());
-				logger.info("Storing MetaData corresponding to replica 2 at this Server: "
-						+getReplica2MetaData().getIP()
-						+":"+getReplica2MetaData().getPort()
-						+" "+getReplica2MetaData().getRangeStart()
-						+" "+getReplica2MetaData().getRangeEnd());
+				for(int r=0; r<myReplicas.size(); r++){
+					logger.info("Storing MetaData corresponding to Replica "+(r+1)+" for this Server: "
+							+myReplicas.get(r).getIP()
+							+":"+myReplicas.get(r).getPort()
+							+" "+myReplicas.get(r).getRangeStart()
+							+" "+myReplicas.get(r).getRangeEnd());
+				}
+				for(int r=0; r<replicas.size(); r++){
+					logger.info("Storing MetaData corresponding to replica "+(r+1)+" at this Server: "
+							+replicas.get(r).getIP()
+							+":"+replicas.get(r).getPort()
+							+" "+replicas.get(r).getRangeStart()
+							+" "+replicas.get(r).getRangeEnd());
+				}
 			}catch(Exception e){
 				logger.error("Exception while printing replica meta data."+e);
 			}
@@ -293,23 +382,31 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 	}
 
 	@Override
-	public MetaData getReplica1MetaData() {
-		return mServerData.getReplica1MetaData();
+	public void setReplicationFactor(int replicationFactor) {
+		logger.info("setReplicationFactor() + "+replicationFactor);
+		mServerData.setReplicationFactor(replicationFactor);
 	}
 
 	@Override
-	public MetaData getMyReplica1MetaData() {
-		return mServerData.getMyReplica1MetaData();
+	public int getReplicationFactor() {
+		return mServerData.getReplicationFactor();
 	}
 
 	@Override
-	public MetaData getReplica2MetaData() {
-		return mServerData.getReplica2MetaData();
+	public boolean isReplicating() {
+		List<MetaData> metaDatas = mServerData.getServiceMetaData();
+		int replicationFactor = mServerData.getReplicationFactor();
+		return replicationFactor > 1 && metaDatas != null && metaDatas.size() >= replicationFactor;
 	}
 
 	@Override
-	public MetaData getMyReplica2MetaData() {
-		return mServerData.getMyReplica2MetaData();
+	public List<MetaData> getReplicasMetaData() {
+		return mServerData.getReplicasMetaData();
+	}
+
+	@Override
+	public List<MetaData> getMyReplicasMetaData() {
+		return mServerData.getMyReplicasMetaData();
 	}
 
 	@Override
@@ -318,24 +415,54 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 	}	
 
 	@Override
-	public Socket getMyReplica1Socket(){
-		return mReplica1Socket;
-
+	public List<ReplicationChannel> getMyReplicaChannels(){
+		return mReplicaChannels;
 	}
 
-	@Override
-	public void setMyReplica1Socket(Socket s) {
-		mReplica1Socket = s;
+	private synchronized void closeReplicaChannels() {
+		for (ReplicationChannel channel : mReplicaChannels) {
+			channel.close();
+		}
 	}
 
-	@Override
-	public Socket getMyReplica2Socket() {
-		return mReplica2Socket;
+	/**
+	 * Sets the channels to the replicas of this server after the metadata
+	 * changed. A channel to a server which still is a replica is kept, the
+	 * others are closed. With asynchronous replication a new ReplicationLog
+	 * takes over the writes not shipped yet if the replicas changed, none
+	 * is needed without replicas.
+	 */
+	private synchronized void openReplicaChannels() {
+		List<ReplicationChannel> old = mReplicaChannels;
+		List<ReplicationChannel> channels = new ArrayList<ReplicationChannel>();
+		for (MetaData replica : getMyReplicasMetaData()) {
+			channels.add(channelTo(replica, old));
+		}
+		mReplicaChannels = Collections.unmodifiableList(channels);
+		for (ReplicationChannel channel : old) {
+			if (!channels.contains(channel)) {
+				channel.close();
+			}
+		}
+
+		if (!asyncReplication || (replicationLog != null && channels.equals(old))) {
+			return;
+		}
+		if (!channels.isEmpty()) {
+			replicationLog = new ReplicationLog(channels, replicationLog, replicationLogLimit);
+		} else if (replicationLog != null) {
+			replicationLog.close();
+			replicationLog = null;
+		}
 	}
 
-	@Override
-	public void setMyReplica2Socket(Socket s) {
-		mReplica2Socket = s;
+	private static ReplicationChannel channelTo(MetaData replica, List<ReplicationChannel> channels) {
+		for (ReplicationChannel channel : channels) {
+			if (channel != null && channel.isTo(replica)) {
+				return channel;
+			}
+		}
+		return new ReplicationChannel(replica);
 	}
 
 	@Override
@@ -343,8 +470,15 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 		String ipPort[] = server.split(":");
 		logger.info("KVServer::moveData() + Starting moveData process to new Server="+ipPort[1]);
 
-		HashMap<String, String> dataToBeMoved = storage.getDataBetweenRange(range);
-		if(dataToBeMoved.isEmpty()){
+		RangeCursor cursor = storage.openRange(range);
+		List<Entry<String, String>> batch;
+		try {
+			batch = cursor.nextBatch(MOVE_BATCH_SIZE, MOVE_BATCH_CHARS);
+		} catch (IOException e) {
+			logger.error("KVServer::moveData() + Error while reading range "+range+": "+e);
+			return false;
+		}
+		if(batch.isEmpty()){
 			logger.info("KVServer::moveData() + Nothing to be Moved!");
 			return true;
 		}
@@ -359,95 +493,116 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 			return false;
 		}
 
-		for(Iterator<Entry<String, String>>it=dataToBeMoved.entrySet().iterator();it.hasNext();){
-			Entry<String, String> entry = it.next();
-			TextMessage txtMsg = JSONSerializer.marshal(entry.getKey(), entry.getValue(), 
-					StatusType.PUT);
-			TextMessage deletefromR2 = JSONSerializer.marshal(entry.getKey(), "", 
-					StatusType.REPLICA_PUT);
-
-			logger.debug("KVServer::moveData() + Sending data to KVserver="+entry.getKey()+","+entry.getValue());
+		//the last replica of this server does not keep the moved pairs, the others 
+		//drop the data of their farthest coordinator instead
+		List<ReplicationChannel> replicaChannels = getMyReplicaChannels();
+		ReplicationChannel lastReplicaChannel = replicaChannels.isEmpty() ? null 
+				: replicaChannels.get(replicaChannels.size()-1);
+
+		long moved = 0;
+		Set<String> failedKeys = new HashSet<String>();
+		while(!batch.isEmpty()){
+			for(Entry<String, String> entry : batch){
+				//MOVE_PUT stores chunk records and manifests, which clients cannot PUT
+				TextMessage txtMsg = codec.marshal(entry.getKey(), entry.getValue(), 
+						StatusType.MOVE_PUT);
+				KVMessageImpl deleteFromReplica = new KVMessageImpl(entry.getKey(), "", 
+						StatusType.REPLICA_PUT);
+
+				logger.debug("KVServer::moveData() + Sending data to KVserver="+entry.getKey()+","+entry.getValue());
+
+				try {				
+					securedsSocketCommunication.sendMessage(moveDataServer, txtMsg);			
+					//Respone has to be PUT_SUCCESS, or PUT_UPDATE if the server had a copy
+					TextMessage responseTxtMsg = securedsSocketCommunication.receiveMessage(moveDataServer);
+					KVMessage responseKVMsg = MessageCodec.unMarshal(responseTxtMsg);
+
+					if(responseKVMsg.getStatus()!=StatusType.PUT_SUCCESS 
+							&& responseKVMsg.getStatus()!=StatusType.PUT_UPDATE){
+						logger.info("KVServer::moveData() + Couldn't move Data to new Server!");
+						failedKeys.add(entry.getKey());
+						continue;
+					}
 
-			try {				
-				securedsSocketCommunication.sendMessage(moveDataServer, txtMsg);			
-				//Respone has to be PUT_SUCCESS
-				TextMessage responseTxtMsg = securedsSocketCommunication.receiveMessage(moveDataServer);
-				KVMessage responseKVMsg = JSONSerializer.unMarshal(responseTxtMsg);
-
-				if(responseKVMsg.getStatus()!=StatusType.PUT_SUCCESS ){
-					logger.info("KVServer::moveData() + Couldn't move Data to new Server!");
+				} catch (IOException e) {
+					logger.error("KVServer::moveData() + Error while sending data to new Server : "+e);
+					failedKeys.add(entry.getKey());
 					continue;
 				}
 
-			} catch (IOException e) {
-				logger.error("KVServer::moveData() + Error while sending data to new Server : "+e);
-				continue;
-			}
-
-			//Send message to myR2 to delete these datas
-			try {
-				if(getServiceMetaData().size()>2 && mReplica2Socket!=null){
-					securedsSocketCommunication.sendMessage(mReplica2Socket, deletefromR2);
+				//Send message to the last of myReplicas to delete these datas
+				if(lastReplicaChannel!=null){
+					lastReplicaChannel.send(deleteFromReplica);
 				}
-			} catch (IOException e) {
-				logger.error("KVServer::moveData() + Error while sending data to mReplica2Socket: "+mReplica2Socket+"="+e);
-				return false;
+				moved++;
 			}
-		}
 
-		//Tell myReplica1 to delete his R2
-		if(getServiceMetaData().size()>2 && mReplica1Socket!=null){
-			try { 
-				TextMessage txtMsg = JSONSerializer.marshal(StatusType.DELETE_TOPOLOGICAL);
-				logger.debug("KVServer::moveData() + Sending DELETE_TOPOLOGICAL to mReplica1Socket:"+mReplica1Socket);
-				securedsSocketCommunication.sendMessage(mReplica1Socket, txtMsg);
+			try {
+				batch = cursor.nextBatch(MOVE_BATCH_SIZE, MOVE_BATCH_CHARS);
 			} catch (IOException e) {
-				logger.error("KVServer::moveData() + Error while sending data to mReplica1Socket:"+mReplica1Socket+" = "+e);
+				logger.error("KVServer::moveData() + Error while reading range "+range+": "+e);
 				return false;
 			}
 		}
 
 		//if replicaCondition exists lets not delete from successor, need it for replica!
+		//keys which could not be moved stay here, the rest of the range is dropped.
 		if(!replication){
-			deleteMovedData(dataToBeMoved);
+			storage.deleteDataBetweenRange(range, failedKeys);
 		}
 
-		logger.info("KVServer::moveData() + Successfully moved Data to New Server!");
+		//Tell the other myReplicas to delete the data of their farthest coordinator
+		for(ReplicationChannel channel : replicaChannels){
+			if(channel!=lastReplicaChannel){
+				logger.debug("KVServer::moveData() + Sending DELETE_TOPOLOGICAL to "+channel);
+				channel.send(new KVMessageImpl("", "", StatusType.DELETE_TOPOLOGICAL));
+			}
+		}
+
+		logger.info("KVServer::moveData() + Successfully moved "+moved+" keys to New Server, failed keys="+failedKeys.size());
 		return true;
 	}
 
 	@Override
 	public boolean deleteDataBetween(MetaData mdata) {
 		String range = mdata.getRangeStart()+":" + mdata.getRangeEnd();
-		HashMap<String, String> dataToBeDeleted= storage.getDataBetweenRange(range);
-
-		return deleteMovedData(dataToBeDeleted);
+		return storage.deleteDataBetweenRange(range);
 	}
 
 	@Override
-	public void replicateDataToServer(Socket socket, String range) {
-		HashMap<String, String> dataToBeMoved = storage.getDataBetweenRange(range);
-		if(dataToBeMoved.isEmpty()){
-			logger.info("KVServer::replicateDataToServer() + Nothing to be Moved!");
-			return;
-		}
-		logger.debug("KVServer::replicateDataToServer()-->KVserver="+socket);
-		for(Iterator<Entry<String, String>>i=dataToBeMoved.entrySet().iterator(); i.hasNext();){
-			Entry<String, String> entry = i.next();
-
-			TextMessage txtMsg = JSONSerializer.marshal(entry.getKey(), entry.getValue(),StatusType.REPLICA_PUT);
-
-			logger.debug("KVServer::replicateDataToServer() + Sending data:="+entry.getKey()+","+entry.getValue());
-
+	public void replicateDataToServer(ReplicationChannel channel, String range) {
+		RangeCursor cursor = storage.openRange(range);
+		logger.debug("KVServer::replicateDataToServer()-->KVserver="+channel);
+		while(true){
+			List<Entry<String, String>> batch;
 			try {
-				securedsSocketCommunication.sendMessage(socket, txtMsg);
+				batch = cursor.nextBatch(MOVE_BATCH_SIZE, MOVE_BATCH_CHARS);
 			} catch (IOException e) {
-				logger.error("KVServer::replicateDataToServer()-->IOException while sending to socket="+socket);
-				continue;//do not try to receiveMessage if you were not able to send it will result in deadlock
+				logger.error("KVServer::replicateDataToServer() + Error while reading range "+range+": "+e);
+				return;
 			}
+			if(batch.isEmpty()){
+				break;
+			}
+			replicateBatch(channel, batch);
+		}
+	}
+
+	/**
+	 * Sends a batch of key value pairs to a replica, one REPLICA_PUT each.
+	 * All of them are sent before the replies are awaited.
+	 */
+	private void replicateBatch(ReplicationChannel channel, List<Entry<String, String>> batch) {
+		List<Future<KVMessageImpl>> replies = new ArrayList<Future<KVMessageImpl>>(batch.size());
+		for(Entry<String, String> entry : batch){
+			logger.debug("KVServer::replicateDataToServer() + Sending data:="+entry.getKey()+","+entry.getValue());
+			replies.add(channel.send(new KVMessageImpl(entry.getKey(), entry.getValue(), StatusType.REPLICA_PUT)));
+		}
+		for(int i = 0; i < batch.size(); i++){
+			Entry<String, String> entry = batch.get(i);
 			KVMessage kvMsgReply = null;
 			try {
-				kvMsgReply = JSONSerializer.unMarshal(securedsSocketCommunication.receiveMessage(socket));
+				kvMsgReply = ReplicationChannel.await(replies.get(i));
 				if(kvMsgReply.getStatus().equals(StatusType.REPLICA_PUT_SUCCESS)
 						||kvMsgReply.getStatus().equals(StatusType.REPLICA_PUT_UPDATE)){
 					//Replication success
@@ -456,7 +611,7 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 					logger.error("KVServer::replicateDataToServer()-->Error="+entry.getKey()+","+entry.getValue());
 				}
 			} catch (IOException e) {
-				logger.error("KVServer::replicateDataToServer()-->IOException while receiving from socket="+socket);
+				logger.error("KVServer::replicateDataToServer()-->IOException while replicating to "+channel+": "+e);
 			}
 		}
 	}
@@ -471,16 +626,56 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 		return storage.put(key, value);
 	}
 
+	@Override
+	public String put(String key, String value, Runnable written){
+		return storage.put(key, value, written);
+	}
+
+	@Override
+	public List<String> putAll(List<Entry<String, String>> entries){
+		return storage.putAll(entries);
+	}
+
+	@Override
+	public List<String> putAll(List<Entry<String, String>> entries, Runnable written){
+		return storage.putAll(entries, written);
+	}
+
+	@Override
+	public boolean admitPut(String key, String value){
+		return storage.admit(key, value);
+	}
+
+	@Override
+	public Map<String, Long> getStorageStats(){
+		Map<String, Long> stats = storage.getStats();
+		stats.putAll(loadLimit.getStats());
+		if (replicationLog != null) {
+			stats.putAll(replicationLog.getStats());
+		}
+		return stats;
+	}
+
 	@Override
 	public String delete(String key){	
 		return storage.delete(key);
 	}
 
+	@Override
+	public String delete(String key, Runnable written){
+		return storage.delete(key, written);
+	}
+
 	@Override
 	public String get(String key){
 		return storage.get(key);
 	}
 
+	@Override
+	public void deleteChunks(String key, ChunkManifest upload){
+		storage.deleteChunks(key, upload);
+	}
+
 	/**
 	 * Method to set logLevel for KVServer.
 	 * @param levelString
@@ -519,44 +714,155 @@ public class KVServer extends Thread implements KVServerListener, ECServerListen
 	/**
 	 * Main entry point for KVServer application. 
 	 * @param args 
-	 * 		contains the port number at args[0] and logLevel at args[1]
+	 * 		contains the port number at args[0], logLevel at args[1] and 
+	 * 		storage options after that.
 	 */
 	public static void main(String[] args) {
 		try {
 			new LogSetup("logs/server/server.log", Level.ALL);
-			if(args.length < 1 && args.length>2) {
+			if(args.length < 1) {
 				System.out.println("Error! Invalid number of arguments!");
-				System.out.println("Usage: KVServer <port> <logLevel>!");
-				System.out.println("Usage: <logLevel> is optional. Possible levels <ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF>");
+				printUsage();
 				System.exit(1);
 			} else {
-				if(args.length==1) {
-					port = Integer.parseInt(args[0]);
-					new KVServer(port).start();
-				} else if(LogSetup.isValidLevel(args[1])) {
-					port = Integer.parseInt(args[0]);
-					setLevel(args[1]); 
-					new KVServer(port).start(); 
-				} else {
-					System.out.println("Error! Invalid logLevel");
-					System.out.println("Possible levels <ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF>");
-					System.exit(1);
+				port = Integer.parseInt(args[0]);
+				int i = 1;
+				if(args.length > 1 && !args[1].startsWith("-")) {
+					if(!LogSetup.isValidLevel(args[1])) {
+						System.out.println("Error! Invalid logLevel");
+						System.out.println("Possible levels <ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF>");
+						System.exit(1);
+					}
+					setLevel(args[1]);
+					i = 2;
 				}
 
+				String dataDir = null;
+				String engine = null;
+				boolean syncWrites = false;
+				long memoryLimit = 0;
+				int ioThreads = 0;
+				int workerThreads = NioServer.DEFAULT_WORKER_THREADS;
+				boolean virtualThreads = false;
+				int maxConnections = 0;
+				int maxRequests = 0;
+				boolean asyncReplication = false;
+				long replicationLogLimit = 0;
+				MemoryBudget.Policy memoryPolicy = MemoryBudget.Policy.REJECT;
+				for(; i < args.length; i++) {
+					if(args[i].equals("-dataDir") && i+1 < args.length) {
+						dataDir = args[++i];
+					} else if(args[i].equals("-engine") && i+1 < args.length) {
+						engine = args[++i];
+					} else if(args[i].equals("-fsync")) {
+						syncWrites = true;
+					} else if(args[i].equals("-virtualThreads")) {
+						virtualThreads = true;
+					} else if(args[i].equals("-nio")) {
+						ioThreads = Math.max(ioThreads, NioServer.DEFAULT_IO_THREADS);
+					} else if(args[i].equals("-ioThreads") && i+1 < args.length) {
+						ioThreads = Integer.parseInt(args[++i]);
+					} else if(args[i].equals("-workers") && i+1 < args.length) {
+						workerThreads = Integer.parseInt(args[++i]);
+					} else if(args[i].equals("-maxConnections") && i+1 < args.length) {
+						maxConnections = Integer.parseInt(args[++i]);
+					} else if(args[i].equals("-maxRequests") && i+1 < args.length) {
+						maxRequests = Integer.parseInt(args[++i]);
+					} else if(args[i].equals("-asyncReplication")) {
+						asyncReplication = true;
+					} else if(args[i].equals("-replicationLogLimit") && i+1 < args.length) {
+						replicationLogLimit = Long.parseLong(args[++i]) * 1024 * 1024;
+					} else if(args[i].equals("-memoryLimit") && i+1 < args.length) {
+						memoryLimit = Long.parseLong(args[++i]) * 1024 * 1024;
+					} else if(args[i].equals("-memoryPolicy") && i+1 < args.length) {
+						String policy = args[++i];
+						if(policy.equals("reject")) {
+							memoryPolicy = MemoryBudget.Policy.REJECT;
+						} else if(policy.equals("evict")) {
+							memoryPolicy = MemoryBudget.Policy.EVICT;
+						} else {
+							System.out.println("Error! Invalid memory policy "+policy);
+							printUsage();
+							System.exit(1);
+						}
+					} else {
+						System.out.println("Error! Invalid option "+args[i]);
+						printUsage();
+						System.exit(1);
+					}
+				}
 
+				if(engine == null) {
+					// a data directory alone keeps the heap storage durable
+					engine = dataDir != null ? "durable" : "memory";
+				}
+				try {
+					Storage storage = Storage.init(Storage.createEngine(engine, dataDir != null ? new File(dataDir) : null, syncWrites));
+					if(memoryLimit > 0) {
+						storage.setMemoryBudget(new MemoryBudget(memoryLimit, memoryPolicy));
+					}
+				} catch (IllegalArgumentException e) {
+					System.out.println("Error! "+e.getMessage());
+					printUsage();
+					System.exit(1);
+				} catch (IOException e) {
+					System.out.println("Error! Unable to recover storage from "+dataDir+": "+e.getMessage());
+					System.exit(1);
+				}
+				KVServer server = new KVServer(port, ioThreads, workerThreads);
+				try {
+					server.setLoadLimit(new LoadLimit(maxConnections, maxRequests));
+				} catch (IllegalArgumentException e) {
+					System.out.println("Error! "+e.getMessage());
+					printUsage();
+					System.exit(1);
+				}
+				if(asyncReplication) {
+					server.setAsyncReplication();
+				}
+				if(replicationLogLimit != 0) {
+					try {
+						server.setReplicationLogLimit(replicationLogLimit);
+					} catch (IllegalArgumentException e) {
+						System.out.println("Error! "+e.getMessage());
+						printUsage();
+						System.exit(1);
+					}
+				}
+				if(virtualThreads) {
+					ThreadFactory factory = ConnectionThreads.virtual();
+					if(factory != null) {
+						server.setConnectionThreads(factory);
+					} else {
+						System.out.println("Warning! Virtual threads need Java 21, using a platform thread per connection.");
+					}
+				}
+				server.start();
 			}
 		} catch (IOException e) {
 			System.out.println("Error! Unable to initialize logger!");
 			System.exit(1);
 		} catch (NumberFormatException nfe) {
-			System.out.println("Error! Invalid argument <port>! Not a number!");
-			System.out.println("Usage: KVServer <port> <logLevel>!");
-			System.out.println("Usage: KVServer <port> <logLevel>!");
-			System.out.println("Usage: <logLevel> is optional. Possible levels <ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF>");
+			System.out.println("Error! Invalid argument <port> or option value! Not a number!");
+			printUsage();
 			System.exit(1);
 		}
 	}
 
+	private static void printUsage() {
+		System.out.println("Usage: KVServer <port> <logLevel> [-engine <memory | durable | lsm | offheap>] [-dataDir <dir>] [-fsync] [-memoryLimit <MB>] [-memoryPolicy <reject | evict>] [-virtualThreads] [-nio] [-ioThreads <n>] [-workers <n>] [-maxConnections <n>] [-maxRequests <n>] [-asyncReplication] [-replicationLogLimit <MB>]");
+		System.out.println("Usage: <logLevel> is optional. Possible levels <ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF>");
+		System.out.println("Usage: -engine memory keeps all data on the heap (default), durable adds a write-ahead log in -dataDir (default with -dataDir), lsm keeps it in sorted segment files in -dataDir, offheap keeps the values in direct buffers outside the heap.");
+		System.out.println("Usage: -dataDir keeps a write-ahead log and snapshots in <dir> and recovers them on startup.");
+		System.out.println("Usage: -fsync forces every logged write to disk before it is acknowledged.");
+		System.out.println("Usage: -memoryLimit limits the estimated size of the stored keys and values, -memoryPolicy reject answers puts over it with SERVER_MEMORY_FULL (default), evict deletes other keys to make room.");
+		System.out.println("Usage: -virtualThreads runs each connection on a virtual thread (Java 21 and later) instead of a platform thread.");
+		System.out.println("Usage: -nio handles the connections with selectors on -ioThreads threads (default "+NioServer.DEFAULT_IO_THREADS+") and the requests on -workers threads (default "+NioServer.DEFAULT_WORKER_THREADS+") instead of a thread per connection.");
+		System.out.println("Usage: -maxConnections limits the client connections served and -maxRequests the requests handled or queued at the same time (default no limit), requests over them are answered with SERVER_BUSY.");
+		System.out.println("Usage: -asyncReplication answers writes once they are stored on this server and ships them to the replicas in batches, writes at consistency level QUORUM or ALL still wait for the replicas.");
+		System.out.println("Usage: -replicationLogLimit limits the writes kept for replicas falling behind with -asyncReplication (default "+(ReplicationLog.DEFAULT_MAX_SIZE / 1024 / 1024)+" MB), a replica further behind misses the oldest ones.");
+	}
+
 	@Override
 	public void calculateThroughput(int receivedBytes) {
 
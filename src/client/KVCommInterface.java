@@ -1,6 +1,13 @@
 package client;
 
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Future;
+
 import common.messages.KVMessage;
+import common.messages.KVMessage.Consistency;
 
 public interface KVCommInterface {
 
@@ -17,6 +24,27 @@ public interface KVCommInterface {
 	 */
 	public void disconnect();
 
+	/**
+	 * Sets the number of copies of a pair the following requests have to 
+	 * reach before they are answered. ONE is served by any server holding
+	 * a copy and acknowledges a put once it is stored there, QUORUM and ALL
+	 * wait for the majority of the copies or for all of them. A put which
+	 * reaches too few is answered with WRITE_UNCONFIRMED, it is not undone
+	 * and may still be read from the copies which stored it, and a get 
+	 * fails with GET_ERROR. The gets of a batch are served like ONE.
+	 * 
+	 * @param consistency
+	 *            the level, null for the default of the servers, which wait
+	 *            for all replicas on a put but only log their failures.
+	 */
+	public void setConsistency(Consistency consistency);
+
+	/**
+	 * @return the consistency level of the requests, null for the default
+	 *         of the servers.
+	 */
+	public Consistency getConsistency();
+
 	/**
 	 * Inserts a key-value pair into the KVServer.
 	 * 
@@ -24,7 +52,8 @@ public interface KVCommInterface {
 	 *            the key that identifies the given value.
 	 * @param value
 	 *            the value that is indexed by the given key.
-	 * @return a message that confirms the insertion of the tuple or an error.
+	 * @return a message that confirms the insertion of the tuple or an error,
+	 *         SERVER_BUSY if the server stayed overloaded while retrying.
 	 * @throws Exception
 	 *             if put command cannot be executed (e.g. not connected to any
 	 *             KV server).
@@ -36,10 +65,97 @@ public interface KVCommInterface {
 	 * 
 	 * @param key
 	 *            the key that identifies the value.
-	 * @return the value, which is indexed by the given key.
+	 * @return the value, which is indexed by the given key, or an error,
+	 *         SERVER_BUSY if the server stayed overloaded while retrying.
 	 * @throws Exception
 	 *             if put command cannot be executed (e.g. not connected to any
 	 *             KV server).
 	 */
 	public KVMessage get(String key) throws Exception;
+
+	/**
+	 * Sends a put without waiting for its reply, so many requests can be in
+	 * flight on the connection.
+	 * 
+	 * @param key
+	 *            the key that identifies the given value.
+	 * @param value
+	 *            the value that is indexed by the given key.
+	 * @return the reply once it has arrived.
+	 * @throws Exception
+	 *             if put command cannot be sent (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Future<KVMessage> putAsync(String key, String value) throws Exception;
+
+	/**
+	 * Sends a get without waiting for its reply, so many requests can be in
+	 * flight on the connection.
+	 * 
+	 * @param key
+	 *            the key that identifies the value.
+	 * @return the reply once it has arrived.
+	 * @throws Exception
+	 *             if get command cannot be sent (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Future<KVMessage> getAsync(String key) throws Exception;
+
+	/**
+	 * Inserts, updates or deletes many key-value pairs with one request per
+	 * responsible KVServer.
+	 * 
+	 * @param pairs
+	 *            the pairs to be written, an empty or null value deletes 
+	 *            the key.
+	 * @return the reply of every key, with its own status.
+	 * @throws Exception
+	 *             if the batch cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Map<String, KVMessage> putAll(Map<String, String> pairs) throws Exception;
+
+	/**
+	 * Retrieves the values of many keys with one request per responsible
+	 * KVServer.
+	 * 
+	 * @param keys
+	 *            the keys that identify the values.
+	 * @return the reply of every key, with its own status.
+	 * @throws Exception
+	 *             if the batch cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Map<String, KVMessage> getAll(Collection<String> keys) throws Exception;
+
+	/**
+	 * Inserts or updates a large value, which is read and sent in chunks so
+	 * it never has to be held as a whole.
+	 * 
+	 * @param key
+	 *            the key that identifies the value.
+	 * @param value
+	 *            the value, an empty stream deletes the key.
+	 * @return the reply of the last request sent, PUT_SUCCESS or PUT_UPDATE
+	 *         if the value was stored.
+	 * @throws Exception
+	 *             if the value cannot be read or sent (e.g. not connected to
+	 *             any KV server).
+	 */
+	public KVMessage putStream(String key, Reader value) throws Exception;
+
+	/**
+	 * Retrieves a value and writes it chunk by chunk, so a large value never
+	 * has to be held as a whole.
+	 * 
+	 * @param key
+	 *            the key that identifies the value.
+	 * @param value
+	 *            where the value is written to.
+	 * @return GET_SUCCESS once the value is written, the error otherwise.
+	 * @throws Exception
+	 *             if the value cannot be retrieved or written (e.g. not
+	 *             connected to any KV server).
+	 */
+	public KVMessage getStream(String key, Writer value) throws Exception;
 }
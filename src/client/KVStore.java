@@ -3,23 +3,39 @@ package client;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
-import java.math.BigInteger;
 import java.net.Socket;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import metadata.MetaData;
 
 import org.apache.log4j.Logger;
 
+import common.communication.CommunicationConfig;
 import common.communication.SocketCommunication;
-import common.messages.JSONSerializer;
+import common.hashing.RingPosition;
 import common.messages.KVMessage;
 import common.messages.KVMessageImpl;
+import common.messages.MessageCodec;
 import common.messages.TextMessage;
+import common.messages.KVMessage.Consistency;
 import common.messages.KVMessage.StatusType;
 
 /**
@@ -46,6 +62,36 @@ public class KVStore extends Thread implements KVCommInterface {
 	
 	//for sending and receiving socket messages
 	private SocketCommunication securedsSocketCommunication;
+
+	//encoding of the requests, JSON or binary
+	private MessageCodec codec = CommunicationConfig.getCodec();
+	//copies a request has to reach, null for the default of the servers
+	private volatile Consistency consistency;
+
+	//requests in flight waiting for their reply, by id in the order sent
+	private final Map<Long, PendingRequest> pending = new LinkedHashMap<Long, PendingRequest>();
+	private final AtomicLong nextId = new AtomicLong();
+	private final Object sendLock = new Object();
+	//reads the replies once a request was sent with putAsync or getAsync
+	private Thread replyReader;
+
+	//chars of a batch request, including the JSON around each entry, which
+	//stays below the size at which servers drop a text framed message once
+	//encrypted
+	private static final int MAX_BATCH_CHARS = 64 * 1024;
+	private static final int BATCH_ENTRY_OVERHEAD = 40;
+
+	//chars of a chunk of a large value, which stays below that size as well
+	//if every char takes three bytes. Larger values are sent and received in
+	//chunks, so neither side needs a buffer for the whole value.
+	static final int CHUNK_SIZE = 16 * 1024;
+
+	//a request answered with SERVER_BUSY is sent again up to this many times,
+	//after a random delay of up to BUSY_BACKOFF ms, doubled on every retry
+	private static final int BUSY_RETRIES = 6;
+	private static final long BUSY_BACKOFF = 20;
+	private static final Random backOffRandom = new Random();
+
 	/**
 	 * Initialize KVStore with address and port of KVServer
 	 * 
@@ -113,6 +159,7 @@ public class KVStore extends Thread implements KVCommInterface {
 	 */
 	private void tearDownConnection() throws IOException {
 		setRunning(false);
+		failPending(new IOException("Connection closed"));
 		logger.info("tearing down the connection ...");
 		if (clientSocket != null) {
 			if (input != null) {
@@ -158,24 +205,50 @@ public class KVStore extends Thread implements KVCommInterface {
 		listeners.add(listener);
 	}
 
+	@Override
+	public void setConsistency(Consistency consistency) {
+		this.consistency = consistency;
+	}
+
+	@Override
+	public Consistency getConsistency() {
+		return consistency;
+	}
+
 	@Override
 	public KVMessage put(String key, String value) throws Exception {
+		KVMessage reply = putOnce(key, value);
+		for (int attempt = 0; isBusy(reply) && attempt < BUSY_RETRIES; attempt++) {
+			backOff(attempt);
+			reply = putOnce(key, value);
+		}
+		return reply;
+	}
+
+	private KVMessage putOnce(String key, String value) throws Exception {
 
 		if (isRunning()) {
+			if (value != null && value.length() > CHUNK_SIZE) {
+				return putStream(key, new StringReader(value));
+			}
+			if (isPipelining()) {
+				// the replies are read by the replyReader
+				return await(putAsync(key, value));
+			}
 			if (isResponsible(key, value, StatusType.PUT)) {
 				long start = 0;
 				try {
 					if (value!=null && !value.equalsIgnoreCase("null")){
 
-						TextMessage txtMsg = JSONSerializer.marshal(key, value,//error
-								StatusType.PUT);
+						TextMessage txtMsg = marshal(new KVMessageImpl(key, value,//error
+								StatusType.PUT));
 						logger.info("Sending : " + txtMsg.getMsg());
 						start = System.nanoTime();
 						securedsSocketCommunication.sendMessage(clientSocket,txtMsg);
 
 					} else {
-						TextMessage txtMsg = JSONSerializer.marshal(key, "",
-								StatusType.PUT);
+						TextMessage txtMsg = marshal(new KVMessageImpl(key, "",
+								StatusType.PUT));
 						logger.info("Sending : " + txtMsg.getMsg());
 						start = System.nanoTime();
 
@@ -227,7 +300,7 @@ public class KVStore extends Thread implements KVCommInterface {
 					logger.info("Client redirect: connecting to "
 							+ meta.getIP() + ":"
 							+ Integer.parseInt(meta.getPort()));
-					KVStore responsibleServerConn = new KVStore(meta.getIP(),
+					KVStore responsibleServerConn = redirectStore(meta.getIP(),
 							Integer.parseInt(meta.getPort()));
 
 					/*System.out.print("Client redirect: connecting to "
@@ -279,7 +352,7 @@ public class KVStore extends Thread implements KVCommInterface {
 								+ meta.getIP() + ":"
 								+ Integer.parseInt(meta.getPort()));
 
-						KVStore retryDefaultServer = new KVStore("localhost",
+						KVStore retryDefaultServer = redirectStore("localhost",
 								50000);
 						try {
 							retryDefaultServer.connect();
@@ -312,16 +385,29 @@ public class KVStore extends Thread implements KVCommInterface {
 	 * @param reply
 	 * @return
 	 */
-	private synchronized KVMessage processReply(TextMessage reply,
+	private KVMessage processReply(TextMessage reply,
+			StatusType reqStatus) {
+		logger.info("KVStore:: Server response: " + reply.getMsg());
+		return processReply(MessageCodec.unMarshal(reply), reqStatus);
+	}
+
+	/**
+	 * Processes the decoded servers reply and transparently handles Client's
+	 * response to Storage Service
+	 * 
+	 * @param replyMsg
+	 * @return
+	 */
+	private synchronized KVMessage processReply(KVMessageImpl replyMsg,
 			StatusType reqStatus) {
-		KVMessageImpl replyMsg = JSONSerializer.unMarshal(reply);
 		String key = replyMsg.getKey();
 		StatusType status = replyMsg.getStatus();
-		logger.info("KVStore:: Server response: " + reply.getMsg()+", status="+status.toString());
+		logger.info("KVStore:: Server response status="+status.toString());
 		/**
 		 * In this case, server sends a message
 		 */
-		if (status.equals(StatusType.SERVER_NOT_RESPONSIBLE)) {
+		if (status.equals(StatusType.SERVER_NOT_RESPONSIBLE)
+				&& (reqStatus.equals(StatusType.PUT) || reqStatus.equals(StatusType.GET))) {
 			// store metadata
 			this.metadata = replyMsg.getMetaData();
 			if (firstTime) {
@@ -339,7 +425,7 @@ public class KVStore extends Thread implements KVCommInterface {
 					logger.info("Client redirect: connecting to "
 							+ meta.getIP() + ":"
 							+ Integer.parseInt(meta.getPort()));
-					KVStore responsibleServerConn = new KVStore(meta.getIP(),
+					KVStore responsibleServerConn = redirectStore(meta.getIP(),
 							Integer.parseInt(meta.getPort()));
 					try {
 						responsibleServerConn.connect();
@@ -391,6 +477,12 @@ public class KVStore extends Thread implements KVCommInterface {
 		} else if (status.equals(StatusType.SERVER_WRITE_LOCK)) {
 			//System.out.println("Server locked for put, only get possible");
 			logger.info("Server locked for out, only get possible");
+		} else if (status.equals(StatusType.SERVER_MEMORY_FULL)) {
+			logger.info("Server memory budget used up, the put was rejected");
+		} else if (status.equals(StatusType.SERVER_BUSY)) {
+			logger.info("Server busy, the request was rejected");
+		} else if (status.equals(StatusType.WRITE_UNCONFIRMED)) {
+			logger.info("Too few replicas confirmed the write, it may still be read");
 		}
 
 		logger.info("Server reply to client query:"+replyMsg.getStatus().toString());
@@ -418,74 +510,31 @@ public class KVStore extends Thread implements KVCommInterface {
 	 * @return true if the server is not in charge of the particular request
 	 */
 	private boolean serverNotResponsible(MetaData node, String key_) {
-
-		// Corrected Logic
-
-		BigInteger key = new BigInteger(getMD5(key_), 16);
-
-		BigInteger startServer = new BigInteger(node.getRangeStart(), 16);
-		BigInteger endServer = new BigInteger(node.getRangeEnd(), 16);
-
-		BigInteger maximum = new BigInteger("ffffffffffffffffffffffffffffffff",
-				16);
-
-		BigInteger minimum = new BigInteger("00000000000000000000000000000000",
-				16);
-
-		logger.info("ClientConnection::serverNotResponsible() + key=" + key
-				+ ", Server's start=" + startServer + ", Server's end="
-				+ endServer + ", Maximum =" + maximum + ", Minimum =" + minimum);
-
-		if (startServer.compareTo(endServer) < 0) {
-			if (key.compareTo(startServer) > 0 && key.compareTo(endServer) <= 0) {
-
-				logger.info("ClientConnection::serverNotResponsible(start<end) + return false");
-				return false;
-			}
-		} else {
-			// startServer > endServer
-			// keycheck1 = startServer to Maximum && keycheck2 = 0 to end
-			if ((key.compareTo(startServer) > 0 && key.compareTo(maximum) <= 0)
-					|| (key.compareTo(minimum) >= 0 && key.compareTo(endServer) <= 0)) {
-
-				logger.info("ClientConnection::serverNotResponsible(start > end) + return false");
-				return false;
-			}
-
-		}
-		logger.info("ClientConnection::serverNotResponsible() + return true");
-		return true;
+		return !node.isResponsible(RingPosition.of(key_));
 	}
 
-	private String getMD5(String msg){
-		MessageDigest messageDigest = null;
-		try {
-			messageDigest = MessageDigest.getInstance("MD5");
-		} catch(NoSuchAlgorithmException ex){
-			logger.debug("not able to cypher key");
-			return null;
-		}
-
-		messageDigest.reset();
-		messageDigest.update(msg.getBytes());
-		byte[] hashValue = messageDigest.digest();
-		BigInteger bigInt = new BigInteger(1,hashValue);
-		String hashHex = bigInt.toString(16);
-		// Now we need to zero pad it if you actually want the full 32 chars.
-		while(hashHex.length() < 32 ){
-			hashHex = "0"+hashHex;
-		}
-		return hashHex;
-	}
 	@Override
 	public KVMessage get(String key) throws Exception {
+		KVMessage reply = getOnce(key);
+		for (int attempt = 0; isBusy(reply) && attempt < BUSY_RETRIES; attempt++) {
+			backOff(attempt);
+			reply = getOnce(key);
+		}
+		return reply;
+	}
+
+	private KVMessage getOnce(String key) throws Exception {
 		if (isRunning()) {
+			if (isPipelining()) {
+				// the replies are read by the replyReader
+				return readChunks(await(getAsync(key)));
+			}
 
 			if (isResponsible(key, "", StatusType.GET)) {
 				try {
 
-					TextMessage txtMsg = JSONSerializer.marshal(key, "",
-							StatusType.GET);
+					TextMessage txtMsg = marshal(new KVMessageImpl(key, "",
+							StatusType.GET));
 					logger.info("Sending(GET) : " + txtMsg.getMsg());
 					
 					long start = System.nanoTime();
@@ -501,7 +550,7 @@ public class KVStore extends Thread implements KVCommInterface {
 					double seconds = time/1000000000.0;
 
 					statistics = statistics +" "+ String.valueOf(seconds);
-					return kvmsg;
+					return readChunks(kvmsg);
 
 				} catch (IOException ioe) {
 					logger.error("Unable to get value from KV server");
@@ -515,6 +564,632 @@ public class KVStore extends Thread implements KVCommInterface {
 		}
 	}
 
+	@Override
+	public Future<KVMessage> putAsync(String key, String value) throws Exception {
+		if (!isRunning()) {
+			logger.error("Not connected to KV Server!");
+			throw new Exception("Not connected to KV Server!");
+		}
+		if (!isResponsible(key, value, StatusType.PUT)) {
+			return CompletableFuture.completedFuture(this.redirected);
+		}
+		if (value == null || value.equalsIgnoreCase("null")) {
+			value = "";
+		}
+		KVMessageImpl request = new KVMessageImpl(key, value, StatusType.PUT);
+		return new AsyncReply(request, sendAsync(request));
+	}
+
+	@Override
+	public Future<KVMessage> getAsync(String key) throws Exception {
+		if (!isRunning()) {
+			logger.error("Not connected to KV Server!");
+			throw new Exception("Not connected to KV Server!");
+		}
+		if (!isResponsible(key, "", StatusType.GET)) {
+			return CompletableFuture.completedFuture(this.redirected);
+		}
+		KVMessageImpl request = new KVMessageImpl(key, "", StatusType.GET);
+		return new AsyncReply(request, sendAsync(request));
+	}
+
+	@Override
+	public Map<String, KVMessage> putAll(Map<String, String> pairs) throws Exception {
+		Map<String, String> batch = new LinkedHashMap<String, String>();
+		Map<String, String> large = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+			String value = pair.getValue();
+			if (value != null && value.length() > CHUNK_SIZE) {
+				large.put(pair.getKey(), value);
+			} else {
+				batch.put(pair.getKey(), value == null || value.equalsIgnoreCase("null") ? "" : value);
+			}
+		}
+		Map<String, KVMessage> results = sendBatch(StatusType.BATCH_PUT, batch);
+		for (Map.Entry<String, String> pair : large.entrySet()) {
+			results.put(pair.getKey(), put(pair.getKey(), pair.getValue()));
+		}
+		return results;
+	}
+
+	@Override
+	public Map<String, KVMessage> getAll(Collection<String> keys) throws Exception {
+		Map<String, String> batch = new LinkedHashMap<String, String>();
+		for (String key : keys) {
+			batch.put(key, "");
+		}
+		Map<String, KVMessage> results = sendBatch(StatusType.BATCH_GET, batch);
+		for (Map.Entry<String, KVMessage> result : results.entrySet()) {
+			if (result.getValue().getStatus() == StatusType.GET_CHUNKED) {
+				result.setValue(get(result.getKey()));
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public KVMessage putStream(String key, Reader value) throws Exception {
+		if (!isRunning()) {
+			logger.error("Not connected to KV Server!");
+			throw new Exception("Not connected to KV Server!");
+		}
+		ChunkReader chunks = new ChunkReader(value);
+		String chunk = chunks.next();
+		if (chunk == null) {
+			// like an empty value
+			return put(key, "");
+		}
+		return putChunks(key, chunk, chunks);
+	}
+
+	/**
+	 * Sends the chunks of a value, starting with the one already read, and
+	 * then stores the value with PUT_COMMIT. If the server is not responsible
+	 * for the key the chunks are sent to the responsible one instead.
+	 */
+	private KVMessage putChunks(String key, String chunk, ChunkReader chunks) throws Exception {
+		boolean first = true;
+		while (chunk != null) {
+			KVMessageImpl reply = exchangeRequest(new KVMessageImpl(key, chunk, StatusType.PUT_CHUNK));
+			if (first && reply.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+				MetaData server = redirectTarget(reply, key);
+				if (server == null) {
+					return reply;
+				}
+				KVStore serverConn = redirectStore(server.getIP(), Integer.parseInt(server.getPort()));
+				try {
+					serverConn.connect();
+					return serverConn.putChunks(key, chunk, chunks);
+				} finally {
+					serverConn.disconnect();
+				}
+			}
+			if (reply.getStatus() != StatusType.PUT_CHUNK) {
+				logger.info("KVStore:: Upload of key " + key + " ended with " + reply.getStatus());
+				return reply;
+			}
+			first = false;
+			chunk = chunks.next();
+		}
+		return exchangeRequest(new KVMessageImpl(key, "", StatusType.PUT_COMMIT));
+	}
+
+	@Override
+	public KVMessage getStream(String key, Writer value) throws Exception {
+		if (!isRunning()) {
+			logger.error("Not connected to KV Server!");
+			throw new Exception("Not connected to KV Server!");
+		}
+		KVMessageImpl reply = exchangeRequest(new KVMessageImpl(key, "", StatusType.GET));
+		if (reply.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+			MetaData server = redirectTarget(reply, key);
+			if (server == null) {
+				return reply;
+			}
+			KVStore serverConn = redirectStore(server.getIP(), Integer.parseInt(server.getPort()));
+			try {
+				serverConn.connect();
+				return serverConn.getStream(key, value);
+			} finally {
+				serverConn.disconnect();
+			}
+		}
+		if (reply.getStatus() == StatusType.GET_SUCCESS) {
+			value.write(reply.getValue());
+			return reply;
+		}
+		return reply.getStatus() == StatusType.GET_CHUNKED ? readChunks(reply, value) : reply;
+	}
+
+	/**
+	 * Reads the chunks of a large value into one String, for get.
+	 * 
+	 * @return GET_SUCCESS with the value, the reply itself if the value is 
+	 *         not chunked, or the error.
+	 */
+	private KVMessage readChunks(KVMessage reply) throws Exception {
+		if (reply.getStatus() != StatusType.GET_CHUNKED) {
+			return reply;
+		}
+		StringWriter value = new StringWriter();
+		KVMessage result = readChunks(reply, value);
+		if (result.getStatus() != StatusType.GET_SUCCESS) {
+			return result;
+		}
+		return new KVMessageImpl(reply.getKey(), value.toString(), StatusType.GET_SUCCESS);
+	}
+
+	/**
+	 * Reads the chunks of a large value one after the other.
+	 * 
+	 * @param reply
+	 *            GET_CHUNKED reply with upload:chunks:length as value.
+	 * @return GET_SUCCESS without value, or GET_ERROR if the value was 
+	 *         replaced while it was read.
+	 */
+	private KVMessage readChunks(KVMessage reply, Writer value) throws Exception {
+		String[] descriptor = reply.getValue().split(":");
+		int count = Integer.parseInt(descriptor[1]);
+		for (int i = 0; i < count; i++) {
+			KVMessageImpl chunk = exchangeRequest(
+					new KVMessageImpl(reply.getKey(), descriptor[0] + ":" + i, StatusType.GET_CHUNK));
+			if (chunk.getStatus() != StatusType.GET_CHUNK) {
+				logger.info("KVStore:: Reading key " + reply.getKey() + " ended with " + chunk.getStatus());
+				return chunk;
+			}
+			value.write(chunk.getValue());
+		}
+		return new KVMessageImpl(reply.getKey(), "", StatusType.GET_SUCCESS);
+	}
+
+	/**
+	 * Stores the metadata of a SERVER_NOT_RESPONSIBLE reply.
+	 * 
+	 * @return the server responsible for the key, null if it is this one 
+	 *         or not known.
+	 */
+	private MetaData redirectTarget(KVMessageImpl reply, String key) {
+		if (reply.getMetaData() != null && !reply.getMetaData().isEmpty()) {
+			updateMetaData(reply.getMetaData());
+		}
+		MetaData server = serverFor(key);
+		return server == currentMetaData ? null : server;
+	}
+
+	/**
+	 * Sends a batch to the servers responsible for its keys, one request per
+	 * server. Keys a server is not responsible for are sent again once with
+	 * the metadata it returns.
+	 */
+	private Map<String, KVMessage> sendBatch(StatusType status, Map<String, String> batch) throws Exception {
+		if (!isRunning()) {
+			logger.error("Not connected to KV Server!");
+			throw new Exception("Not connected to KV Server!");
+		}
+		Map<String, KVMessage> results = new LinkedHashMap<String, KVMessage>();
+		Map<String, String> remaining = batch;
+		for (int attempt = 0; attempt < 2 && !remaining.isEmpty(); attempt++) {
+			Map<String, String> retry = new LinkedHashMap<String, String>();
+			for (Map.Entry<MetaData, Map<String, String>> group : groupByServer(remaining).entrySet()) {
+				MetaData server = group.getKey();
+				KVMessageImpl reply;
+				if (server == currentMetaData) {
+					reply = exchangeBatch(status, group.getValue());
+				} else {
+					KVStore serverConn = redirectStore(server.getIP(), Integer.parseInt(server.getPort()));
+					try {
+						serverConn.connect();
+						reply = serverConn.exchangeBatch(status, group.getValue());
+					} catch (Exception e) {
+						logger.error("Unable to send batch to KVServer " + server.getIP() + ":" + server.getPort() + ": " + e);
+						reply = null;
+					} finally {
+						serverConn.disconnect();
+					}
+				}
+				if (reply == null || reply.getBatch() == null) {
+					StatusType error = status == StatusType.BATCH_PUT ? StatusType.PUT_ERROR : StatusType.GET_ERROR;
+					for (Map.Entry<String, String> pair : group.getValue().entrySet()) {
+						results.put(pair.getKey(), new KVMessageImpl(pair.getKey(), pair.getValue(), error));
+					}
+					continue;
+				}
+				if (reply.getMetaData() != null && !reply.getMetaData().isEmpty()) {
+					updateMetaData(reply.getMetaData());
+				}
+				for (KVMessage entry : reply.getBatch()) {
+					if (entry.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE && attempt == 0) {
+						retry.put(entry.getKey(), batch.get(entry.getKey()));
+					} else {
+						results.put(entry.getKey(), entry);
+					}
+				}
+			}
+			remaining = retry;
+		}
+		logger.info("KVStore:: Batch of " + batch.size() + " keys done");
+		return results;
+	}
+
+	/**
+	 * Groups the keys by the server responsible for them, as far as the
+	 * metadata is known. Keys without a known server go to this one.
+	 */
+	private Map<MetaData, Map<String, String>> groupByServer(Map<String, String> batch) {
+		Map<MetaData, Map<String, String>> groups = new LinkedHashMap<MetaData, Map<String, String>>();
+		for (Map.Entry<String, String> pair : batch.entrySet()) {
+			MetaData server = serverFor(pair.getKey());
+			Map<String, String> group = groups.get(server);
+			if (group == null) {
+				group = new LinkedHashMap<String, String>();
+				groups.put(server, group);
+			}
+			group.put(pair.getKey(), pair.getValue());
+		}
+		return groups;
+	}
+
+	private static boolean isBusy(KVMessage reply) {
+		return reply != null && reply.getStatus() == StatusType.SERVER_BUSY;
+	}
+
+	/**
+	 * Waits before a request rejected with SERVER_BUSY is sent again, a 
+	 * random time so the clients do not retry all at once.
+	 * 
+	 * @param attempt
+	 *            retries made already.
+	 */
+	private void backOff(int attempt) throws InterruptedException {
+		long delay = BUSY_BACKOFF << attempt;
+		synchronized (backOffRandom) {
+			delay = delay / 2 + (long) (backOffRandom.nextDouble() * delay / 2);
+		}
+		logger.info("KVStore:: Server busy, retrying in " + delay + " ms");
+		Thread.sleep(delay);
+	}
+
+	/**
+	 * @return the server responsible for the key as far as the metadata is
+	 *         known, currentMetaData if it is this one or not known.
+	 */
+	private MetaData serverFor(String key) {
+		if (metadata != null && !currentMetaData.getRangeStart().equals("")) {
+			for (MetaData meta : metadata) {
+				if (!serverNotResponsible(meta, key)) {
+					return meta.equals(currentMetaData) ? currentMetaData : meta;
+				}
+			}
+		}
+		return currentMetaData;
+	}
+
+	/**
+	 * Sends a batch to the connected server, in requests of up to 
+	 * MAX_BATCH_CHARS.
+	 * 
+	 * @return the BATCH_RESULT replies merged into one.
+	 */
+	private KVMessageImpl exchangeBatch(StatusType status, Map<String, String> pairs) throws Exception {
+		StatusType entryStatus = status == StatusType.BATCH_PUT ? StatusType.PUT : StatusType.GET;
+		KVMessageImpl result = new KVMessageImpl("", "", StatusType.BATCH_RESULT);
+		result.setBatch(new ArrayList<KVMessage>(pairs.size()));
+		List<KVMessage> entries = new ArrayList<KVMessage>();
+		long chars = 0;
+		Iterator<Map.Entry<String, String>> it = pairs.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, String> pair = it.next();
+			entries.add(new KVMessageImpl(pair.getKey(), pair.getValue(), entryStatus));
+			chars += pair.getKey().length() + pair.getValue().length() + BATCH_ENTRY_OVERHEAD;
+			if (chars >= MAX_BATCH_CHARS || !it.hasNext()) {
+				KVMessageImpl reply = exchangeBatchRequest(status, entries);
+				if (reply.getBatch() == null) {
+					return reply;
+				}
+				result.getBatch().addAll(reply.getBatch());
+				if (reply.getMetaData() != null && !reply.getMetaData().isEmpty()) {
+					result.setMetadata(reply.getMetaData());
+				}
+				entries = new ArrayList<KVMessage>();
+				chars = 0;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Sends one batch request to the connected server.
+	 * 
+	 * @return the BATCH_RESULT reply.
+	 */
+	private KVMessageImpl exchangeBatchRequest(StatusType status, List<KVMessage> entries) throws Exception {
+		KVMessageImpl request = new KVMessageImpl("", "", status);
+		request.setBatch(entries);
+		return exchangeRequest(request);
+	}
+
+	/**
+	 * Sends a request to the connected server and waits for its reply, 
+	 * which is returned as it is.
+	 */
+	private KVMessageImpl exchangeRequest(KVMessageImpl request) throws Exception {
+		KVMessageImpl reply = exchangeOnce(request);
+		for (int attempt = 0; isBusy(reply) && attempt < BUSY_RETRIES; attempt++) {
+			backOff(attempt);
+			reply = exchangeOnce(request);
+		}
+		return reply;
+	}
+
+	private KVMessageImpl exchangeOnce(KVMessageImpl request) throws Exception {
+		if (isPipelining()) {
+			return (KVMessageImpl) await(sendAsync(request));
+		}
+		try {
+			TextMessage txtMsg = marshal(request);
+			logger.info("Sending(" + request.getStatus() + ") : " + txtMsg.getMsg());
+			synchronized (sendLock) {
+				securedsSocketCommunication.sendMessage(clientSocket, txtMsg);
+			}
+			return MessageCodec.unMarshal(securedsSocketCommunication.receiveMessage(clientSocket));
+		} catch (IOException ioe) {
+			tearDownConnection();
+			logger.error("IOException! Unable to send " + request.getStatus() + " to KV server");
+			throw new Exception("Unable to send request to KV server");
+		}
+	}
+
+	/**
+	 * Stores the metadata sent by a server.
+	 */
+	private synchronized void updateMetaData(List<MetaData> metadata) {
+		this.metadata = metadata;
+		if (firstTime) {
+			updateCurrentServerRange();
+			firstTime = false;
+		}
+	}
+
+	/**
+	 * Sends a request with a new id, the reply is handed to the returned
+	 * future as it is by the replyReader.
+	 */
+	private Future<KVMessage> sendAsync(KVMessageImpl request) throws Exception {
+		request.setId(nextId.incrementAndGet());
+		PendingRequest pendingRequest = new PendingRequest();
+		synchronized (pending) {
+			if (replyReader == null) {
+				replyReader = new Thread(new ReplyReader(clientSocket), "KVStore-replies-" + mPort);
+				replyReader.setDaemon(true);
+				replyReader.start();
+			}
+			pending.put(request.getId(), pendingRequest);
+		}
+		try {
+			TextMessage txtMsg = marshal(request);
+			logger.info("Sending(async) : " + txtMsg.getMsg());
+			synchronized (sendLock) {
+				securedsSocketCommunication.sendMessage(clientSocket, txtMsg);
+			}
+		} catch (IOException ioe) {
+			logger.error("IOException! Unable to send request to KV server");
+			tearDownConnection();
+			throw new Exception("Unable to send request to KV server");
+		}
+		return pendingRequest.reply;
+	}
+
+	/**
+	 * Encodes a request with the consistency level of this KVStore.
+	 */
+	private TextMessage marshal(KVMessageImpl request) {
+		request.setConsistency(consistency);
+		return codec.marshal(request);
+	}
+
+	/**
+	 * Opens a KVStore to another server for a redirected request, with the
+	 * consistency level of this one.
+	 */
+	private KVStore redirectStore(String address, int port) {
+		KVStore store = new KVStore(address, port);
+		store.setConsistency(consistency);
+		return store;
+	}
+
+	private boolean isPipelining() {
+		synchronized (pending) {
+			return replyReader != null;
+		}
+	}
+
+	/**
+	 * Waits for the reply of a request sent asynchronously.
+	 */
+	private KVMessage await(Future<KVMessage> reply) throws Exception {
+		try {
+			return reply.get();
+		} catch (ExecutionException e) {
+			logger.error("Request to KV server failed: " + e.getCause());
+			throw new Exception("Request to KV server failed: " + e.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * Fails the requests still waiting for a reply and stops reading replies.
+	 */
+	private void failPending(Exception cause) {
+		synchronized (pending) {
+			for (PendingRequest pendingRequest : pending.values()) {
+				pendingRequest.reply.completeExceptionally(cause);
+			}
+			pending.clear();
+			replyReader = null;
+		}
+	}
+
+	/**
+	 * Reads a value in chunks of up to CHUNK_SIZE chars, never splitting a
+	 * surrogate pair.
+	 */
+	private static class ChunkReader {
+		private final Reader reader;
+		private final char[] buffer = new char[CHUNK_SIZE];
+		private int carried;
+
+		ChunkReader(Reader reader) {
+			this.reader = reader;
+		}
+
+		/**
+		 * @return the next chunk, null at the end of the value.
+		 */
+		String next() throws IOException {
+			int filled = carried;
+			int read;
+			while (filled < buffer.length && (read = reader.read(buffer, filled, buffer.length - filled)) >= 0) {
+				filled += read;
+			}
+			carried = 0;
+			if (filled == buffer.length && Character.isHighSurrogate(buffer[filled - 1])) {
+				filled--;
+				carried = 1;
+			}
+			String chunk = filled > 0 ? new String(buffer, 0, filled) : null;
+			if (carried > 0) {
+				buffer[0] = buffer[filled];
+			}
+			return chunk;
+		}
+	}
+
+	/**
+	 * A request in flight waiting for its reply.
+	 */
+	private static class PendingRequest {
+		private final CompletableFuture<KVMessage> reply = new CompletableFuture<KVMessage>();
+	}
+
+	/**
+	 * The reply of a request sent with putAsync or getAsync. A request the
+	 * server is not responsible for is sent again to the responsible one by
+	 * the thread waiting for the reply, the replyReader keeps reading the 
+	 * replies of the other requests in the meantime.
+	 */
+	private class AsyncReply implements Future<KVMessage> {
+		private final KVMessageImpl request;
+		private final Future<KVMessage> reply;
+		private KVMessage result;
+
+		AsyncReply(KVMessageImpl request, Future<KVMessage> reply) {
+			this.request = request;
+			this.reply = reply;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return reply.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return reply.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return reply.isDone();
+		}
+
+		@Override
+		public synchronized KVMessage get() throws InterruptedException, ExecutionException {
+			if (result == null) {
+				result = redirect((KVMessageImpl) reply.get());
+			}
+			return result;
+		}
+
+		@Override
+		public synchronized KVMessage get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			if (result == null) {
+				result = redirect((KVMessageImpl) reply.get(timeout, unit));
+			}
+			return result;
+		}
+
+		private KVMessage redirect(KVMessageImpl replyMsg) throws ExecutionException {
+			if (replyMsg.getStatus() != StatusType.SERVER_NOT_RESPONSIBLE) {
+				logger.info("KVStore:: Server response status=" + replyMsg.getStatus());
+				return replyMsg;
+			}
+			MetaData server = redirectTarget(replyMsg, request.getKey());
+			if (server == null) {
+				return replyMsg;
+			}
+			logger.info("Client redirect: connecting to " + server.getIP() + ":" + server.getPort());
+			KVStore serverConn = redirectStore(server.getIP(), Integer.parseInt(server.getPort()));
+			try {
+				serverConn.connect();
+				return request.getStatus() == StatusType.PUT
+						? serverConn.put(request.getKey(), request.getValue())
+						: serverConn.get(request.getKey());
+			} catch (Exception e) {
+				logger.error("Client unable to redirect " + request.getStatus() + " to "
+						+ server.getIP() + ":" + server.getPort() + ": " + e);
+				throw new ExecutionException(e);
+			} finally {
+				serverConn.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Reads the replies of the requests in flight and completes them in the
+	 * order they arrive, matched by id. A server not sending ids answers in
+	 * order, so such a reply belongs to the oldest request.
+	 */
+	private class ReplyReader implements Runnable {
+		private final Socket socket;
+
+		ReplyReader(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				KVMessageImpl replyMsg;
+				try {
+					TextMessage reply = securedsSocketCommunication.receiveMessage(socket);
+					logger.info("KVStore:: Server response: " + reply.getMsg());
+					replyMsg = MessageCodec.unMarshal(reply);
+				} catch (Exception e) {
+					if (socket == clientSocket && isRunning()) {
+						logger.error("Connection lost while reading replies: " + e);
+						disconnect();
+					}
+					return;
+				}
+				PendingRequest pendingRequest;
+				synchronized (pending) {
+					pendingRequest = pending.remove(replyMsg.getId());
+					if (pendingRequest == null && replyMsg.getId() == 0 && !pending.isEmpty()) {
+						Iterator<PendingRequest> oldest = pending.values().iterator();
+						pendingRequest = oldest.next();
+						oldest.remove();
+					}
+				}
+				if (pendingRequest == null) {
+					logger.error("KVStore:: Reply for unknown request id=" + replyMsg.getId());
+					continue;
+				}
+				// a redirect is left to the thread waiting for the reply
+				pendingRequest.reply.complete(replyMsg);
+			}
+		}
+	}
+
 	public void displayLatencyStatistics(String string) {
 		System.out.println(string+" Latency >>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>");
 		System.out.println(statistics);
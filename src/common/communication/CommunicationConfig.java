@@ -0,0 +1,155 @@
+package common.communication;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import common.messages.MessageCodec;
+
+/**
+ * Settings of the communication between clients, servers and the ECS,
+ * which have to match across a deployment. They are read from the file
+ * communication.properties in the working directory, like secret_key,
+ * and a system property "communication.<name>" overrides an entry.
+ */
+public final class CommunicationConfig {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	public static final String FILE = "communication.properties";
+
+	/**
+	 * Framing of the messages sent: "text" ends a message with a carriage
+	 * return, "length" puts a length header in front of it.
+	 */
+	public static final String FRAMING = "framing";
+
+	/**
+	 * Encoding of the messages sent by clients and between servers: "json"
+	 * or "binary". Replies use the encoding of the request.
+	 */
+	public static final String CODEC = "codec";
+
+	/**
+	 * Encryption of the messages sent: "shared" encrypts them with the
+	 * secret key itself, "session" with AES-GCM session keys derived from
+	 * it and "none" not at all. "encryption.<link>" overrides it for a link,
+	 * like "encryption.replication=none" on a trusted network. Replies are
+	 * encrypted like the request.
+	 */
+	public static final String ENCRYPTION = "encryption";
+
+	/**
+	 * Largest content of a length framed message a receiver takes, in 
+	 * bytes. A peer announcing a larger one is disconnected before its 
+	 * content is read. Large values are sent in chunks and batches stay 
+	 * far below the default.
+	 */
+	public static final String FRAME_LIMIT = "frameLimit";
+	public static final int DEFAULT_FRAME_LIMIT = 1024 * 1024;
+
+	/**
+	 * Classes of links, which may be encrypted differently.
+	 */
+	public enum Link {
+		/** between clients and servers */
+		CLIENT,
+		/** commands from the ECS to servers */
+		ADMIN,
+		/** pings from the ECS to servers */
+		HEARTBEAT,
+		/** replication and data transfer between servers */
+		REPLICATION
+	}
+
+	public enum Encryption {
+		NONE, SHARED, SESSION
+	}
+
+	private static final Properties properties = load();
+
+	private CommunicationConfig() {
+	}
+
+	/**
+	 * @return the setting, defaultValue if it is not configured.
+	 */
+	public static String get(String name, String defaultValue) {
+		String value = System.getProperty("communication." + name);
+		if (value == null) {
+			value = properties.getProperty(name, defaultValue);
+		}
+		return value.trim();
+	}
+
+	/**
+	 * @return true if messages are sent with a length header.
+	 */
+	public static boolean isLengthFramed() {
+		return get(FRAMING, "text").equals("length");
+	}
+
+	/**
+	 * @return the encoding of the messages sent.
+	 */
+	public static MessageCodec getCodec() {
+		return get(CODEC, "json").equals("binary") ? MessageCodec.BINARY : MessageCodec.JSON;
+	}
+
+	/**
+	 * @return the encryption of the messages sent on a link.
+	 */
+	public static Encryption getEncryption(Link link) {
+		String value = get(ENCRYPTION + "." + link.name().toLowerCase(), get(ENCRYPTION, "shared"));
+		if (value.equals("none")) {
+			return Encryption.NONE;
+		}
+		return value.equals("session") ? Encryption.SESSION : Encryption.SHARED;
+	}
+
+	/**
+	 * @return the largest content of a length framed message received.
+	 */
+	public static int getFrameLimit() {
+		String value = get(FRAME_LIMIT, String.valueOf(DEFAULT_FRAME_LIMIT));
+		try {
+			int limit = Integer.parseInt(value);
+			if (limit > 0) {
+				return Math.min(limit, SocketCommunication.MAX_FRAME_SIZE);
+			}
+		} catch (NumberFormatException e) {
+			// logged below
+		}
+		logger.error("CommunicationConfig::getFrameLimit() + Invalid " + FRAME_LIMIT + " " + value 
+				+ ", using " + DEFAULT_FRAME_LIMIT);
+		return DEFAULT_FRAME_LIMIT;
+	}
+
+	private static Properties load() {
+		Properties loaded = new Properties();
+		File file = new File(FILE);
+		if (file.isFile()) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				loaded.load(in);
+				logger.info("CommunicationConfig::load() + Loaded " + file.getAbsolutePath() + ": " + loaded);
+			} catch (IOException e) {
+				logger.error("CommunicationConfig::load() + Unable to read " + file.getAbsolutePath() + ": " + e);
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						logger.error("CommunicationConfig::load() + Unable to close " + FILE + ": " + e);
+					}
+				}
+			}
+		}
+		return loaded;
+	}
+}
@@ -1,15 +1,26 @@
 package common.communication;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
+import common.communication.CommunicationConfig.Encryption;
+import common.communication.CommunicationConfig.Link;
+import common.messages.BinarySerializer;
 import common.messages.TextMessage;
-import common.security.cipher.Cipher;
 import common.security.cipher.aes.AES;
+import common.security.cipher.aes.AESSession;
 
 /**
  * This Class is used for Secure Socket communication between nodes.
@@ -18,19 +29,118 @@ import common.security.cipher.aes.AES;
 public class SocketCommunication {
 
 	private static final int BUFFER_SIZE = 1024;
-	private static final int DROP_SIZE = 128 * BUFFER_SIZE;
 
-	private Cipher mCipher;
-	private boolean encryption = false;
+	/**
+	 * Messages are cut off at this many bytes.
+	 */
+	public static final int DROP_SIZE = 128 * BUFFER_SIZE;
+
+	/**
+	 * A length framed message starts with a zero byte, or with 
+	 * BinarySerializer.MAGIC if it is binary or one of the bytes below, 
+	 * followed by the length of its content in three bytes. A text message
+	 * never does.
+	 */
+	public static final int HEADER_SIZE = 4;
+	public static final int MAX_FRAME_SIZE = (1 << 24) - 1;
+	//the content of a frame is read in steps growing from this size
+	private static final int CONTENT_CHUNK_SIZE = 64 * BUFFER_SIZE;
+
+	/**
+	 * Header starts of messages encrypted with session keys, text or binary,
+	 * and of the message carrying the salt of the session key of the sender,
+	 * which precedes its first encrypted message.
+	 */
+	public static final byte SEALED_TEXT = (byte) 0xB2;
+	public static final byte SEALED_BINARY = (byte) 0xB3;
+	public static final byte SESSION_START = (byte) 0xB4;
+
+	/**
+	 * Header start of a binary message which is not encrypted. A text message
+	 * which is not encrypted is told apart by its JSON, which Base64 cannot 
+	 * start with.
+	 */
+	public static final byte PLAIN_BINARY = (byte) 0xB5;
 
+	/*
+	 * Sessions by socket, shared by all instances as a socket may be used by
+	 * several of them, like the sockets to the replicas.
+	 */
+	private static final Map<Socket, AESSession> sessions = new WeakHashMap<Socket, AESSession>();
+
+	/*
+	 * Locks held while a message is read from a socket, by socket. A thread
+	 * starting a session reads the start of the peer itself unless another
+	 * thread is reading the socket, which then receives it.
+	 */
+	private static final Map<Socket, Lock> readers = new WeakHashMap<Socket, Lock>();
+
+	//time the peer may take to send the start of its session in reply
+	private static final long SESSION_START_TIMEOUT = 10000;
+
+	private AES mCipher;
+
+	/*
+	 * Encryption of the messages sent: configured for the link, or that of
+	 * the last message received from the peer so replies are encrypted like
+	 * requests. Received messages encrypted less than required are 
+	 * rejected, null accepts all of them.
+	 */
+	private Encryption encryption;
+	private final Encryption required;
+
+	/*
+	 * Framing of the messages sent: configured, or that of the last
+	 * message received from the peer so replies match what it understands.
+	 */
+	private boolean lengthFramed;
+
+	//largest content of a length framed message received
+	private final int frameLimit = CommunicationConfig.getFrameLimit();
+
+	/*
+	 * What the peers sent last, by socket, as an instance may talk to
+	 * several peers, like the ECS to all servers. Messages decoded and 
+	 * encoded without their socket use the unbound peer, a NioServer has an
+	 * instance per connection.
+	 */
+	private final Map<Socket, Peer> peers = new WeakHashMap<Socket, Peer>();
+	private final Peer unbound = new Peer();
+
+	/**
+	 * Creates the communication of a link to or from a client.
+	 */
 	public SocketCommunication() {
+		this(Link.CLIENT);
+	}
 
-		this.encryption = true;
+	/**
+	 * Creates the communication of a link, which sends its messages 
+	 * encrypted as configured for the link and rejects received messages 
+	 * encrypted less.
+	 */
+	public SocketCommunication(Link link) {
+		this(CommunicationConfig.getEncryption(link), CommunicationConfig.getEncryption(link));
+	}
 
-		if(encryption){
-			mCipher = new AES();
-		}
+	private SocketCommunication(Encryption encryption, Encryption required) {
+
+		this.encryption = encryption;
+		this.required = required;
+		this.lengthFramed = CommunicationConfig.isLengthFramed();
+
+		mCipher = new AES();
+
+	}
 
+	/**
+	 * Creates the communication of the connections of a server, which 
+	 * receive the messages of all links. Received messages are decrypted 
+	 * as needed, the server checks each against the encryption of its link
+	 * with getReceivedEncryption.
+	 */
+	public static SocketCommunication forServer() {
+		return new SocketCommunication(CommunicationConfig.getEncryption(Link.CLIENT), null);
 	}
 
 	private static Logger logger = Logger.getRootLogger();
@@ -49,23 +159,21 @@ public class SocketCommunication {
 		if(socket!=null){
 
 			OutputStream output = socket.getOutputStream();
-			byte[] msgBytes;
-
-			if(encryption){
-				String plaintext = msg.getMsg();
-				String encryptedText = mCipher.encrypt(plaintext);
-
-				TextMessage encryptedTextMsg = new TextMessage(encryptedText);
-
-				msgBytes = encryptedTextMsg.getMsgBytes();
-
-			}else{
-
-				msgBytes = msg.getMsgBytes();
-
+			Peer peer = peerOf(socket);
+			Encryption sending = sending(peer);
+			AESSession session = sending == Encryption.SESSION ? sessionFor(socket) : null;
+			if (session != null) {
+				// messages have to be written in the order they are encrypted
+				synchronized (session) {
+					startSession(socket, session);
+					output.write(encode(msg, framing(peer), session, sending));
+					output.flush();
+				}
+			} else {
+				byte[] msgBytes = encode(msg, framing(peer), sending);
+				output.write(msgBytes);
+				output.flush();
 			}
-			output.write(msgBytes);
-			output.flush();
 			logger.info("sendMessage() ="+msg.getMsg());
 			logger.info("SEND \t<" + socket.getInetAddress().getHostAddress()
 					+ ":" + socket.getPort() + ">: '" + msg.getMsg() + "'");
@@ -73,29 +181,319 @@ public class SocketCommunication {
 	}
 
 	/**
-	 * Method for receiving a TextMessage using the socket.
+	 * Method for receiving a TextMessage using the socket. Both framings 
+	 * are accepted: a message starting with a zero byte has a length header,
+	 * any other message ends with a carriage return.
 	 * 
 	 * @param socket 
 	 * 				the socket that is to be used to receive message.
 	 * @return TextMessage
 	 * 				the message that is received.
 	 * @throws IOException
-	 * 				some I/O error regarding the output stream
+	 * 				some I/O error regarding the output stream, or a message
+	 * 				which cannot be decrypted or is encrypted less than the
+	 * 				link requires.
 	 */
 	public TextMessage receiveMessage(Socket socket) throws IOException {
 
-
 		InputStream input = socket.getInputStream();
+		Peer peer = peerOf(socket);
+
+		logger.info("receiveMessage() for:"+socket);
+		TextMessage msg = null;
+		Lock reading = readerOf(socket);
+		reading.lock();
+		try {
+			while (msg == null) {
+				/* read first char from stream */
+				int first = input.read();
+				if (first < 0) {
+					throw new EOFException("Connection closed by " + socket.getRemoteSocketAddress());
+				}
+
+				try {
+					if (isFrameStart((byte) first)) {
+						peer.lengthFramed = Boolean.TRUE;
+						AESSession session = isSessionFrame((byte) first) ? sessionFor(socket) : null;
+						msg = readFrame(input, (byte) first, session, peer);
+						if (msg == null) {
+							// the peer started its session, it gets the start of this side in reply
+							synchronized (session) {
+								byte[] start = acceptSession(session);
+								if (start != null) {
+									socket.getOutputStream().write(start);
+									socket.getOutputStream().flush();
+								}
+							}
+						}
+					} else {
+						peer.lengthFramed = Boolean.FALSE;
+						msg = decode(new String(readText(input, first), StandardCharsets.US_ASCII), peer);
+					}
+				} catch (IllegalArgumentException e) {
+					throw new IOException(e.getMessage(), e);
+				}
+			}
+		} finally {
+			reading.unlock();
+		}
+		logger.info("RECEIVE \t<"
+				+ socket.getInetAddress().getHostAddress() + ":"
+				+ socket.getPort() + ">: '" + msg.getMsg()+ "'");
+
+		return msg;
+
+	}
+
+	/**
+	 * @return true if a message starting with this byte has a length header.
+	 */
+	public static boolean isFrameStart(byte first) {
+		return first == 0 || first == BinarySerializer.MAGIC || first == PLAIN_BINARY || isSessionFrame(first);
+	}
+
+	private static boolean isSessionFrame(byte first) {
+		return first == SEALED_TEXT || first == SEALED_BINARY || first == SESSION_START;
+	}
+
+	/**
+	 * @return a new session for the encryption of a connection, null if it
+	 *         cannot be created.
+	 */
+	public AESSession newSession() {
+		return mCipher.newSession();
+	}
+
+	/**
+	 * @return encryption of the last message received on the socket, null 
+	 *         if none was.
+	 */
+	public Encryption getReceivedEncryption(Socket socket) {
+		return peerOf(socket).encryption;
+	}
+
+	/**
+	 * @return encryption of the last message decoded without its socket, 
+	 *         null if none was.
+	 */
+	public Encryption getReceivedEncryption() {
+		return unbound.encryption;
+	}
+
+	private Peer peerOf(Socket socket) {
+		synchronized (peers) {
+			Peer peer = peers.get(socket);
+			if (peer == null) {
+				peer = new Peer();
+				peers.put(socket, peer);
+			}
+			return peer;
+		}
+	}
+
+	private Encryption sending(Peer peer) {
+		Encryption received = peer.encryption;
+		return received != null ? received : encryption;
+	}
+
+	private boolean framing(Peer peer) {
+		Boolean received = peer.lengthFramed;
+		return received != null ? received.booleanValue() : lengthFramed;
+	}
+
+	/**
+	 * Records the encryption of a message received from the peer, unless 
+	 * it is less than the link requires.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the message is encrypted less than required.
+	 */
+	private void received(Peer peer, Encryption received) {
+		if (required != null && received.compareTo(required) < 0) {
+			throw new IllegalArgumentException("Message encrypted " + received 
+					+ " on a link requiring " + required);
+		}
+		peer.encryption = received;
+	}
+
+	/**
+	 * @return the session of the encryption of a socket, shared by all 
+	 *         instances using the socket, null if it cannot be created.
+	 */
+	public AESSession getSession(Socket socket) {
+		return sessionFor(socket);
+	}
+
+	/**
+	 * Starts the session of a socket on which messages are sent with 
+	 * session keys: sends the salt of this side, if not done yet, and waits
+	 * for the salt of the peer. Done by sendMessage on its first message, a
+	 * sender which writes the messages encoded with encode(TextMessage, 
+	 * AESSession) itself has to do it before.
+	 *
+	 * @throws IOException
+	 *             if the peer does not send its salt in time.
+	 */
+	public void startSession(Socket socket) throws IOException {
+		AESSession session = sending(peerOf(socket)) == Encryption.SESSION ? sessionFor(socket) : null;
+		if (session != null) {
+			synchronized (session) {
+				startSession(socket, session);
+			}
+		}
+	}
+
+	private void startSession(Socket socket, AESSession session) throws IOException {
+		byte[] start = acceptSession(session);
+		if (start != null) {
+			socket.getOutputStream().write(start);
+			socket.getOutputStream().flush();
+		}
+		long deadline = System.currentTimeMillis() + SESSION_START_TIMEOUT;
+		Lock reading = readerOf(socket);
+		while (!session.isOpening()) {
+			if (reading.tryLock()) {
+				// nobody else reads the socket, the start of the peer is the next frame
+				try {
+					if (!session.isOpening()) {
+						InputStream input = socket.getInputStream();
+						int first = input.read();
+						if (first < 0) {
+							throw new EOFException("Connection closed by " + socket.getRemoteSocketAddress());
+						}
+						if ((byte) first != SESSION_START) {
+							throw new IOException("Message instead of the session start of the peer");
+						}
+						readFrame(input, (byte) first, session, peerOf(socket));
+					}
+				} catch (IllegalArgumentException e) {
+					throw new IOException(e.getMessage(), e);
+				} finally {
+					reading.unlock();
+				}
+			} else {
+				long remaining = deadline - System.currentTimeMillis();
+				try {
+					if (remaining <= 0 || !session.awaitOpening(Math.min(remaining, 100))
+							&& System.currentTimeMillis() >= deadline) {
+						throw new IOException("No session start from " + socket.getRemoteSocketAddress());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while starting the session");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the salt of this side of a session, once the peer started
+	 * it or before the first message sent.
+	 *
+	 * @return the start of the session to be sent to the peer, null if it
+	 *         was sent already.
+	 */
+	public byte[] acceptSession(AESSession session) {
+		try {
+			byte[] salt = session.startSealing();
+			return salt != null ? frame(null, SESSION_START, salt) : null;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to start session", e);
+		}
+	}
+
+	private static Lock readerOf(Socket socket) {
+		synchronized (readers) {
+			Lock reader = readers.get(socket);
+			if (reader == null) {
+				reader = new ReentrantLock();
+				readers.put(socket, reader);
+			}
+			return reader;
+		}
+	}
+
+	private AESSession sessionFor(Socket socket) {
+		synchronized (sessions) {
+			AESSession session = sessions.get(socket);
+			if (session == null) {
+				session = newSession();
+				if (session != null) {
+					sessions.put(socket, session);
+				}
+			}
+			return session;
+		}
+	}
+
+	/**
+	 * Reads the rest of the header and the content of a length framed 
+	 * message in bulk. The content is read into a buffer of its exact 
+	 * length, which a binary message keeps, so no buffer is held by an idle
+	 * connection or its thread.
+	 * 
+	 * @return the message, null if it was the start of a session.
+	 */
+	private TextMessage readFrame(InputStream input, byte first, AESSession session, Peer peer) throws IOException {
+		byte[] header = new byte[HEADER_SIZE - 1];
+		readFully(input, header, header.length);
+		int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+		if (length > frameLimit) {
+			throw new IOException("Frame of " + length + " bytes exceeds the limit of " + frameLimit);
+		}
+
+		byte[] buffer = readContent(input, length);
+		return decodeFrame(first, buffer, length, session, peer);
+	}
+
+	/**
+	 * Reads the content of a frame into a buffer which grows with the bytes
+	 * arriving, so a header alone does not make the receiver allocate the 
+	 * length it announces.
+	 */
+	private static byte[] readContent(InputStream input, int length) throws IOException {
+		byte[] buffer = new byte[Math.min(length, CONTENT_CHUNK_SIZE)];
+		int offset = 0;
+		while (offset < length) {
+			if (offset == buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.min(length, 2 * buffer.length));
+			}
+			int read = input.read(buffer, offset, buffer.length - offset);
+			if (read < 0) {
+				throw new EOFException("Connection closed within a message");
+			}
+			offset += read;
+		}
+		return buffer;
+	}
+
+	private static void readFully(InputStream input, byte[] buffer, int length) throws IOException {
+		int offset = 0;
+		while (offset < length) {
+			int read = input.read(buffer, offset, length - offset);
+			if (read < 0) {
+				throw new EOFException("Connection closed within a message");
+			}
+			offset += read;
+		}
+	}
+
+	/**
+	 * Reads a message up to the carriage return one byte at a time, as the
+	 * stream must not be read past the end of the message.
+	 */
+	private byte[] readText(InputStream input, int first) throws IOException {
 		int index = 0;
 		byte[] msgBytes = null, tmp = null;
 		byte[] bufferBytes = new byte[BUFFER_SIZE];
 
-		/* read first char from stream */
-		logger.info("receiveMessage() for:"+socket);
-		byte read = (byte) input.read();
+		int read = first;
 		boolean reading = true;
 
 		while (read != 13 && reading) {/* carriage return */
+			if (read < 0) {
+				throw new EOFException("Connection closed within a message");
+			}
 			/* if buffer filled, copy to msg array */
 			if (index == BUFFER_SIZE) {
 				logger.info("receiveMessage-->index == BUFFER SIZE");
@@ -110,12 +508,11 @@ public class SocketCommunication {
 				}
 
 				msgBytes = tmp;
-				bufferBytes = new byte[BUFFER_SIZE];
 				index = 0;
 			}
 
 			if ((read > 31 && read < 127)) {
-				bufferBytes[index] = read;
+				bufferBytes[index] = (byte) read;
 				index++;
 			}
 			/* stop reading if DROP_SIZE is reached */
@@ -125,7 +522,7 @@ public class SocketCommunication {
 			}
 
 			/* read next char from stream */
-			read = (byte) input.read();
+			read = input.read();
 		}
 
 		if (msgBytes == null) {
@@ -137,39 +534,231 @@ public class SocketCommunication {
 			System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
 		}
 
-		msgBytes = tmp;
+		return tmp;
+	}
+
+	/**
+	 * Method to encode a TextMessage into the bytes sent on the socket, in 
+	 * the framing of the last message received or else the configured one.
+	 *
+	 * @param msg
+	 *            the message that is to be sent.
+	 * @return bytes of the (encrypted) message.
+	 */
+	public byte[] encode(TextMessage msg) {
+		return encode(msg, framing(unbound), sending(unbound));
+	}
+
+	/**
+	 * Method to encode a TextMessage into the bytes sent on the socket.
+	 *
+	 * @param msg
+	 *            the message that is to be sent.
+	 * @param withLength
+	 *            true for a length header, false to end the message with 
+	 *            the control chars.
+	 * @return bytes of the (encrypted) message.
+	 */
+	public byte[] encode(TextMessage msg, boolean withLength) {
+		return encode(msg, withLength, sending(unbound));
+	}
+
+	private byte[] encode(TextMessage msg, boolean withLength, Encryption sending) {
+		boolean encrypting = sending != Encryption.NONE;
+		if (!withLength && !msg.isBinary()) {
+			return new TextMessage(encrypting ? mCipher.encrypt(msg.getMsg()) : msg.getMsg()).getMsgBytes();
+		}
+		// binary messages can only be sent with a length header
+		if (msg.isBinary()) {
+			return encrypting ? frame(null, BinarySerializer.MAGIC, mCipher.encrypt(msg.getMsgBytes()))
+					: frame(null, PLAIN_BINARY, msg.getMsgBytes());
+		}
+		String text = encrypting ? mCipher.encrypt(msg.getMsg()) : msg.getMsg();
+		return frame(null, (byte) 0, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Method to encode a TextMessage into the bytes sent on a connection 
+	 * with an encryption session. The message is encrypted with the session
+	 * key if configured or if the peer does so, always with a length header,
+	 * otherwise like encode(TextMessage, boolean).
+	 * Messages encoded this way have to be sent in the order they are encoded,
+	 * after the start of the session by both sides.
+	 *
+	 * @param msg
+	 *            the message that is to be sent.
+	 * @param withLength
+	 *            the framing if the message is not encrypted with the 
+	 *            session key.
+	 * @param session
+	 *            the session of the connection, may be null.
+	 * @return bytes of the encrypted message.
+	 * @throws IllegalStateException
+	 *             if the session is not started by both sides.
+	 */
+	public byte[] encode(TextMessage msg, boolean withLength, AESSession session) {
+		return encode(msg, withLength, session, sending(unbound));
+	}
 
-		TextMessage  msg = null;
+	private byte[] encode(TextMessage msg, boolean withLength, AESSession session, Encryption sending) {
+		if (session == null || sending != Encryption.SESSION) {
+			return encode(msg, withLength, sending);
+		}
+		try {
+			byte[] plain = msg.isBinary() ? msg.getMsgBytes() : msg.getMsg().getBytes(StandardCharsets.UTF_8);
+			return frame(null, msg.isBinary() ? SEALED_BINARY : SEALED_TEXT, session.seal(plain));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to encrypt message", e);
+		}
+	}
 
-		if(encryption){
+	/**
+	 * Method to encode a TextMessage like encode(TextMessage, AESSession) in
+	 * the framing of the last message received or else the configured one.
+	 */
+	public byte[] encode(TextMessage msg, AESSession session) {
+		return encode(msg, framing(unbound), session, sending(unbound));
+	}
+
+	/**
+	 * Puts a length header in front of the content.
+	 * 
+	 * @param next
+	 *            bytes following the message, may be null.
+	 */
+	private static byte[] frame(byte[] next, byte first, byte[] content) {
+		if (content.length > MAX_FRAME_SIZE) {
+			throw new IllegalArgumentException("Message of " + content.length + " bytes is too large");
+		}
+		int nextLength = next != null ? next.length : 0;
+		byte[] frame = new byte[HEADER_SIZE + content.length + nextLength];
+		frame[0] = first;
+		frame[1] = (byte) (content.length >>> 16);
+		frame[2] = (byte) (content.length >>> 8);
+		frame[3] = (byte) content.length;
+		System.arraycopy(content, 0, frame, HEADER_SIZE, content.length);
+		if (next != null) {
+			System.arraycopy(next, 0, frame, HEADER_SIZE + content.length, nextLength);
+		}
+		return frame;
+	}
+
+	/**
+	 * Method to decode the bytes of a message received on the socket, 
+	 * read up to the terminating carriage return.
+	 *
+	 * @param msgBytes
+	 *            printable bytes of the message without control chars.
+	 * @return the (decrypted) message.
+	 */
+	public TextMessage decode(byte[] msgBytes) {
+		return decode(new String(msgBytes, StandardCharsets.US_ASCII), unbound);
+	}
 
-			//decrypting text
-			msg = new TextMessage(msgBytes);
-			String encryptedText = msg.getMsg();
-			logger.info("RECEIVE \t<"
-					+ socket.getInetAddress().getHostAddress() + ":"
-					+ socket.getPort() + ">: '" + msg.getMsg()+ "'"
-					+ "=" + msgBytes + ",");
+	/**
+	 * Method to decode the content of a length framed message.
+	 *
+	 * @param first
+	 *            the first byte of its header.
+	 * @param content
+	 *            buffer holding the content, which is kept by a binary 
+	 *            message if it has the length of the content, else copied.
+	 * @param length
+	 *            length of the content.
+	 * @return the (decrypted) message.
+	 */
+	public TextMessage decodeFrame(byte first, byte[] content, int length) {
+		return decodeFrame(first, content, length, null, unbound);
+	}
 
+	private TextMessage decodePlainFrame(byte first, byte[] content, int length, Peer peer) {
+		if (first == PLAIN_BINARY) {
+			received(peer, Encryption.NONE);
+			return TextMessage.ofBinary(exactly(content, length));
+		}
+		if (first != BinarySerializer.MAGIC) {
+			return decode(new String(content, 0, length, StandardCharsets.UTF_8), peer);
+		}
+		received(peer, Encryption.SHARED);
+		byte[] bytes = mCipher.decrypt(exactly(content, length));
+		if (bytes == null) {
+			throw new IllegalArgumentException("Unable to decrypt binary message");
+		}
+		return TextMessage.ofBinary(bytes);
+	}
 
-			String plainText = mCipher.decrypt(encryptedText);
-			msg = new TextMessage(plainText);
-			logger.info("(Decrypted)RECEIVE \t<"
-					+ socket.getInetAddress().getHostAddress() + ":"
-					+ socket.getPort() + ">: '" + msg.getMsg()+ "'"
-					+ "=" + msgBytes + ",");
-		}else{
-			//decrypting text
+	private static byte[] exactly(byte[] content, int length) {
+		return content.length == length ? content : Arrays.copyOf(content, length);
+	}
 
-			msg = new TextMessage(msgBytes);
-			logger.info("RECEIVE \t<"
-					+ socket.getInetAddress().getHostAddress() + ":"
-					+ socket.getPort() + ">: '" + msg.getMsg()+ "'"
-					+ "=" + msgBytes + ",");
+	/**
+	 * Method to decode the content of a length framed message, which may be
+	 * encrypted with the session key of the peer.
+	 *
+	 * @param first
+	 *            the first byte of its header.
+	 * @param content
+	 *            buffer holding the content, which is copied if needed.
+	 * @param length
+	 *            length of the content.
+	 * @param session
+	 *            the session of the connection, may be null if the peer
+	 *            does not use session keys.
+	 * @return the (decrypted) message, null if the frame started the 
+	 *         session of the peer.
+	 */
+	public TextMessage decodeFrame(byte first, byte[] content, int length, AESSession session) {
+		return decodeFrame(first, content, length, session, unbound);
+	}
 
+	private TextMessage decodeFrame(byte first, byte[] content, int length, AESSession session, Peer peer) {
+		if (!isSessionFrame(first)) {
+			return decodePlainFrame(first, content, length, peer);
+		}
+		if (session == null) {
+			throw new IllegalArgumentException("Session encrypted message without session");
 		}
+		try {
+			if (first == SESSION_START) {
+				session.startOpening(Arrays.copyOf(content, length));
+				return null;
+			}
+			byte[] plain = session.open(content, 0, length);
+			received(peer, Encryption.SESSION);
+			return first == SEALED_BINARY ? TextMessage.ofBinary(plain)
+					: new TextMessage(new String(plain, StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException("Unable to decrypt session message: " + e, e);
+		}
+	}
 
-		return msg;
+	/**
+	 * Method to decode the content of a length framed text message.
+	 *
+	 * @param text
+	 *            the content of the message.
+	 * @return the (decrypted) message.
+	 */
+	public TextMessage decode(String text) {
+		return decode(text, unbound);
+	}
+
+	private TextMessage decode(String text, Peer peer) {
+		if (text.startsWith("{")) {
+			received(peer, Encryption.NONE);
+			return new TextMessage(text);
+		}
+		received(peer, Encryption.SHARED);
+		logger.debug("decode() + encrypted message='" + text + "'");
+		return new TextMessage(mCipher.decrypt(text));
+	}
 
+	/**
+	 * Encryption and framing of the last message received from a peer,
+	 * null before the first one.
+	 */
+	private static class Peer {
+		private volatile Encryption encryption;
+		private volatile Boolean lengthFramed;
 	}
 }
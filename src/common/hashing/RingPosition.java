@@ -0,0 +1,235 @@
+package common.hashing;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Position of a key or a server on the hash ring: the 128 bit MD5 hash
+ * of its name, stored as two longs and compared as an unsigned number.
+ *
+ * Used instead of zero padded hex Strings and BigIntegers, so that hashing
+ * a key and checking it against a range needs no parsing and no garbage
+ * apart from the position itself.
+ */
+public final class RingPosition implements Comparable<RingPosition> {
+
+	/**
+	 * Smallest position on the ring.
+	 */
+	public static final RingPosition MIN = new RingPosition(0L, 0L);
+
+	/**
+	 * Largest position on the ring.
+	 */
+	public static final RingPosition MAX = new RingPosition(-1L, -1L);
+
+	/**
+	 * A key containing this char lies at the position of the part before it,
+	 * so records belonging to a key stay with it on the ring.
+	 */
+	public static final char SUFFIX_SEPARATOR = '\u0000';
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/*
+	 * MessageDigest is not thread-safe and expensive to look up, so each
+	 * thread keeps its own together with its scratch buffers.
+	 */
+	private static final ThreadLocal<Hasher> hasher = new ThreadLocal<Hasher>() {
+		@Override
+		protected Hasher initialValue() {
+			return new Hasher();
+		}
+	};
+
+	private final long high;
+	private final long low;
+
+	public RingPosition(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * Computes the position of a key on the ring.
+	 *
+	 * @param key
+	 * 		key or server name "ip:port" to be hashed.
+	 * @return
+	 * 		MD5 hash of the key, up to a SUFFIX_SEPARATOR.
+	 */
+	public static RingPosition of(String key) {
+		int separator = key.indexOf(SUFFIX_SEPARATOR);
+		return hasher.get().hash(separator < 0 ? key : key.substring(0, separator));
+	}
+
+	/**
+	 * Creates a position from the 16 bytes of a MD5 hash.
+	 */
+	public static RingPosition fromBytes(byte[] hash, int offset) {
+		long high = 0;
+		long low = 0;
+		for (int i = 0; i < 8; i++) {
+			high = (high << 8) | (hash[offset + i] & 0xff);
+			low = (low << 8) | (hash[offset + 8 + i] & 0xff);
+		}
+		return new RingPosition(high, low);
+	}
+
+	/**
+	 * Parses a hex position as sent in the metadata. Leading zeros may be missing.
+	 *
+	 * @param hex
+	 * 		up to 32 hex digits.
+	 * @return
+	 * 		the position.
+	 * @throws NumberFormatException
+	 * 		if hex is not a valid position.
+	 */
+	public static RingPosition fromHex(String hex) {
+		int length = hex.length();
+		if (length == 0 || length > 32) {
+			throw new NumberFormatException("Invalid ring position: " + hex);
+		}
+		long high = 0;
+		long low = 0;
+		for (int i = 0; i < length; i++) {
+			int digit = Character.digit(hex.charAt(i), 16);
+			if (digit < 0) {
+				throw new NumberFormatException("Invalid ring position: " + hex);
+			}
+			high = (high << 4) | (low >>> 60);
+			low = (low << 4) | digit;
+		}
+		return new RingPosition(high, low);
+	}
+
+	/**
+	 * @return the position as 32 hex digits.
+	 */
+	public String toHex() {
+		char[] chars = new char[32];
+		for (int i = 0; i < 16; i++) {
+			chars[i] = HEX[(int) (high >>> (60 - 4 * i)) & 0xf];
+			chars[16 + i] = HEX[(int) (low >>> (60 - 4 * i)) & 0xf];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @return the position following this one, wrapping around after MAX.
+	 */
+	public RingPosition next() {
+		long nextLow = low + 1;
+		return new RingPosition(nextLow == 0 ? high + 1 : high, nextLow);
+	}
+
+	/**
+	 * @return the position preceding this one, wrapping around before MIN.
+	 */
+	public RingPosition previous() {
+		return new RingPosition(low == 0 ? high - 1 : high, low - 1);
+	}
+
+	/**
+	 * Checks whether the position lies in the range (start, end]. A range
+	 * with start >= end wraps around the end of the ring.
+	 */
+	public boolean inRange(RingPosition start, RingPosition end) {
+		if (start.compareTo(end) < 0) {
+			return compareTo(start) > 0 && compareTo(end) <= 0;
+		}
+		return compareTo(start) > 0 || compareTo(end) <= 0;
+	}
+
+	public long getHigh() {
+		return high;
+	}
+
+	public long getLow() {
+		return low;
+	}
+
+	@Override
+	public int compareTo(RingPosition other) {
+		if (high != other.high) {
+			return unsignedLess(high, other.high) ? -1 : 1;
+		}
+		if (low != other.low) {
+			return unsignedLess(low, other.low) ? -1 : 1;
+		}
+		return 0;
+	}
+
+	private static boolean unsignedLess(long a, long b) {
+		return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof RingPosition)) {
+			return false;
+		}
+		RingPosition other = (RingPosition) obj;
+		return high == other.high && low == other.low;
+	}
+
+	@Override
+	public int hashCode() {
+		long h = high ^ low;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return toHex();
+	}
+
+	/**
+	 * MD5 digest with reusable buffers for one thread.
+	 */
+	private static class Hasher {
+		private final MessageDigest digest;
+		private final byte[] hash = new byte[16];
+		private byte[] keyBytes = new byte[64];
+
+		Hasher() {
+			try {
+				digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("MD5 is not available", e);
+			}
+		}
+
+		RingPosition hash(String key) {
+			int length = key.length();
+			if (keyBytes.length < length) {
+				keyBytes = new byte[Math.max(length, 2 * keyBytes.length)];
+			}
+			// ASCII keys are copied into the scratch buffer, which gives the
+			// same bytes as key.getBytes() without allocating.
+			boolean ascii = true;
+			for (int i = 0; i < length; i++) {
+				char c = key.charAt(i);
+				if (c >= 0x80) {
+					ascii = false;
+					break;
+				}
+				keyBytes[i] = (byte) c;
+			}
+			digest.reset();
+			if (ascii) {
+				digest.update(keyBytes, 0, length);
+			} else {
+				digest.update(key.getBytes());
+			}
+			try {
+				digest.digest(hash, 0, hash.length);
+			} catch (DigestException e) {
+				throw new IllegalStateException("MD5 digest failed", e);
+			}
+			return fromBytes(hash, 0);
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package common.messages;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import metadata.MetaData;
+import common.messages.KVAdminMessage.Commands;
+import common.messages.KVMessage.Consistency;
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Class for binary Marshaling and Unmarshaling of messages, an alternative
+ * to the JSONSerializer without building and parsing JSON text.
+ *
+ * A message is a type byte followed by the status or command ordinal and
+ * its fields, for a key-value message first its correlation id as varint
+ * and its consistency level as ordinal plus one, 0 standing for none, and
+ * last the entries of a batch. Strings are written as a varint of their UTF-8 length plus
+ * one followed by the raw bytes, 0 standing for null, and lists and maps
+ * the same way with their number of entries. Binary messages are sent with
+ * a length header starting with MAGIC, which tells them apart from JSON.
+ */
+public class BinarySerializer {
+
+	/**
+	 * First byte of the length header of a binary message.
+	 */
+	public static final byte MAGIC = (byte) 0xB1;
+
+	private static final byte KV_MSG = 1;
+	private static final byte ADMIN_MSG = 2;
+
+	/**
+	 * Method for marshaling key-value message.
+	 *
+	 * @param msg
+	 * 		Message to be marshaled, with its metadata if present.
+	 * @return
+	 * 		Returns Marshaled TextMessage.
+	 */
+	public static TextMessage marshal(KVMessage msg) {
+		int capacity = 16 + length(msg.getKey()) + length(msg.getValue());
+		if (msg.getBatch() != null) {
+			for (KVMessage entry : msg.getBatch()) {
+				capacity += 4 + length(entry.getKey()) + length(entry.getValue());
+			}
+		}
+		Writer writer = new Writer(capacity);
+		writer.write(KV_MSG);
+		writer.write((byte) msg.getStatus().ordinal());
+		writer.writeVarint(msg.getId());
+		writer.write((byte) (msg.getConsistency() != null ? msg.getConsistency().ordinal() + 1 : 0));
+		writer.writeString(msg.getKey());
+		writer.writeString(msg.getValue());
+		writer.writeMetaData(msg.getMetaData());
+		writer.writeBatch(msg.getBatch());
+		return TextMessage.ofBinary(writer.toByteArray());
+	}
+
+	/**
+	 * Method for unmarshaling binary TextMessage.
+	 *
+	 * @param txtMsg
+	 * 		Message to be unmarshaled.
+	 * @return
+	 * 		UnMarshalled KVMessage.
+	 */
+	public static KVMessageImpl unMarshal(TextMessage txtMsg) {
+		Reader reader = new Reader(txtMsg.getMsgBytes());
+		reader.expect(KV_MSG);
+		StatusType status = KVMessageImpl.getStatusType(reader.read());
+		long id = reader.readVarint();
+		int consistency = reader.read();
+		String key = reader.readString();
+		String value = reader.readString();
+		List<MetaData> metaDatas = reader.readMetaData();
+		KVMessageImpl kvmsg = new KVMessageImpl(key, value, status,
+				metaDatas != null ? metaDatas : new ArrayList<MetaData>());
+		kvmsg.setId(id);
+		if (consistency != 0) {
+			kvmsg.setConsistency(Consistency.values()[consistency - 1]);
+		}
+		kvmsg.setBatch(reader.readBatch());
+		return kvmsg;
+	}
+
+	/**
+	 * Method to marshal KVAdmin Messages.
+	 *
+	 * @param msg
+	 * 		KVAdminMessage to be marshaled.
+	 * @return
+	 * 		Returns Marshaled TextMessage.
+	 */
+	public static TextMessage marshalKVAdminMsg(KVAdminMessage msg) {
+		Writer writer = new Writer(64);
+		writer.write(ADMIN_MSG);
+		writer.write((byte) msg.getCommand().ordinal());
+		writer.writeString(msg.getRange());
+		writer.writeString(msg.getDestinationAddress());
+		writer.writeMetaData(msg.getMetaDatas());
+		Map<String, Long> stats = msg.getStats();
+		if (stats == null) {
+			writer.writeVarint(0);
+		} else {
+			writer.writeVarint(stats.size() + 1);
+			for (Entry<String, Long> stat : stats.entrySet()) {
+				writer.writeString(stat.getKey());
+				writer.writeVarint(stat.getValue());
+			}
+		}
+		writer.writeVarint(msg.getReplicationFactor());
+		return TextMessage.ofBinary(writer.toByteArray());
+	}
+
+	/**
+	 * Method for unmarshaling binary KVAdminMessage.
+	 *
+	 * @param txtMsg
+	 * 		TextMessage to be unmarshaled.
+	 * @return
+	 * 		UnMarshaled KVAdminMessage.
+	 */
+	public static KVAdminMessageImpl unmarshalKVAdminMsg(TextMessage txtMsg) {
+		Reader reader = new Reader(txtMsg.getMsgBytes());
+		reader.expect(ADMIN_MSG);
+		Commands command = KVAdminMessageImpl.getCommandType(reader.read());
+		String range = reader.readString();
+		String destination = reader.readString();
+		List<MetaData> metaDatas = reader.readMetaData();
+		KVAdminMessageImpl kvAdminMessage = new KVAdminMessageImpl(
+				metaDatas != null ? metaDatas : new ArrayList<MetaData>(), command, range, destination);
+
+		int count = (int) reader.readVarint() - 1;
+		if (count >= 0) {
+			Map<String, Long> stats = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < count; i++) {
+				stats.put(reader.readString(), reader.readVarint());
+			}
+			kvAdminMessage.setStats(stats);
+		}
+		kvAdminMessage.setReplicationFactor((int) reader.readVarint());
+		return kvAdminMessage;
+	}
+
+	/**
+	 * @return true if the binary message is a KVAdminMessage.
+	 */
+	public static boolean isAdminMsg(TextMessage txtMsg) {
+		byte[] bytes = txtMsg.getMsgBytes();
+		return bytes.length > 0 && bytes[0] == ADMIN_MSG;
+	}
+
+	private static int length(String s) {
+		return s == null ? 0 : s.length();
+	}
+
+	/**
+	 * Appends to a byte array growing as needed.
+	 */
+	private static class Writer {
+		private byte[] bytes;
+		private int size;
+
+		Writer(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		void write(byte b) {
+			ensure(1);
+			bytes[size++] = b;
+		}
+
+		void writeVarint(long value) {
+			ensure(10);
+			while ((value & ~0x7fL) != 0) {
+				bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			bytes[size++] = (byte) value;
+		}
+
+		void writeString(String s) {
+			if (s == null) {
+				writeVarint(0);
+				return;
+			}
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			writeVarint(utf8.length + 1);
+			ensure(utf8.length);
+			System.arraycopy(utf8, 0, bytes, size, utf8.length);
+			size += utf8.length;
+		}
+
+		void writeMetaData(List<MetaData> metaDatas) {
+			if (metaDatas == null) {
+				writeVarint(0);
+				return;
+			}
+			writeVarint(metaDatas.size() + 1);
+			for (MetaData item : metaDatas) {
+				writeString(item.getIP());
+				writeString(item.getPort());
+				writeString(item.getRangeStart());
+				writeString(item.getRangeEnd());
+			}
+		}
+
+		void writeBatch(List<KVMessage> batch) {
+			if (batch == null) {
+				writeVarint(0);
+				return;
+			}
+			writeVarint(batch.size() + 1);
+			for (KVMessage entry : batch) {
+				write((byte) entry.getStatus().ordinal());
+				writeString(entry.getKey());
+				writeString(entry.getValue());
+			}
+		}
+
+		private void ensure(int count) {
+			if (size + count > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + count));
+			}
+		}
+
+		byte[] toByteArray() {
+			return size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+		}
+	}
+
+	/**
+	 * Reads the fields of a message, throwing an IllegalArgumentException
+	 * if it is malformed.
+	 */
+	private static class Reader {
+		private final byte[] bytes;
+		private int position;
+
+		Reader(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		void expect(byte type) {
+			if (read() != type) {
+				throw new IllegalArgumentException("Not a binary message of type " + type);
+			}
+		}
+
+		int read() {
+			if (position >= bytes.length) {
+				throw new IllegalArgumentException("Binary message ends after " + position + " bytes");
+			}
+			return bytes[position++] & 0xff;
+		}
+
+		long readVarint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				value |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint at " + position);
+		}
+
+		String readString() {
+			long length = readVarint() - 1;
+			if (length < 0) {
+				return null;
+			}
+			if (length > bytes.length - position) {
+				throw new IllegalArgumentException("String of " + length + " bytes exceeds the message");
+			}
+			String s = new String(bytes, position, (int) length, StandardCharsets.UTF_8);
+			position += (int) length;
+			return s;
+		}
+
+		List<MetaData> readMetaData() {
+			long count = readVarint() - 1;
+			if (count < 0) {
+				return null;
+			}
+			List<MetaData> metaDatas = new ArrayList<MetaData>();
+			for (long i = 0; i < count; i++) {
+				metaDatas.add(new MetaData(readString(), readString(), readString(), readString()));
+			}
+			return metaDatas;
+		}
+
+		List<KVMessage> readBatch() {
+			long count = readVarint() - 1;
+			if (count < 0) {
+				return null;
+			}
+			List<KVMessage> batch = new ArrayList<KVMessage>();
+			for (long i = 0; i < count; i++) {
+				StatusType status = KVMessageImpl.getStatusType(read());
+				batch.add(new KVMessageImpl(readString(), readString(), status));
+			}
+			return batch;
+		}
+	}
+}
@@ -2,7 +2,10 @@ package common.messages;
 
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 
 
@@ -14,6 +17,7 @@ import javax.json.JsonObjectBuilder;
 
 import metadata.MetaData;
 import common.messages.KVAdminMessage.Commands;
+import common.messages.KVMessage.Consistency;
 import common.messages.KVMessage.StatusType;
 
 /**
@@ -78,6 +82,14 @@ public class JSONSerializer {
 				.add("value", msg.getValue())
 				.add("status", msg.getStatus().ordinal());
 
+		if (msg.getId() != 0) {
+			objectBuilder.add("id", msg.getId());
+		}
+
+		if (msg.getConsistency() != null) {
+			objectBuilder.add("consistency", msg.getConsistency().ordinal());
+		}
+
 		if (msg.getMetaData() != null) {
 			JsonArrayBuilder array = Json.createArrayBuilder();
 			List<MetaData> list = msg.getMetaData();
@@ -91,6 +103,17 @@ public class JSONSerializer {
 			objectBuilder.add("metadata", array);
 		}
 
+		if (msg.getBatch() != null) {
+			JsonArrayBuilder array = Json.createArrayBuilder();
+			for (KVMessage entry : msg.getBatch()) {
+				array.add(Json.createObjectBuilder()
+						.add("key", entry.getKey())
+						.add("value", entry.getValue())
+						.add("status", entry.getStatus().ordinal()));
+			}
+			objectBuilder.add("batch", array);
+		}
+
 		JsonObject value = objectBuilder.build();
 		return new TextMessage(value.toString());
 	}
@@ -108,6 +131,18 @@ public class JSONSerializer {
 		JsonObject jsonObject = Json.createReader(new StringReader(strMsg))
 				.readObject();
 
+		return unMarshal(jsonObject);
+	}
+
+	/**
+	 * Method for unmarshaling a message already parsed.
+	 * 
+	 * @param jsonObject
+	 * 		Message to be unmarshaled.
+	 * @return
+	 * 		UnMarshalled KVMessage.
+	 */
+	public static KVMessageImpl unMarshal(JsonObject jsonObject) {
 		List<MetaData> metaDatas = new ArrayList<MetaData>();
 		JsonArray jarray = jsonObject.getJsonArray("metadata");	
 
@@ -123,10 +158,28 @@ public class JSONSerializer {
 			}
 		}
 
-		return new KVMessageImpl(jsonObject.getString("key"),
+		KVMessageImpl kvmsg = new KVMessageImpl(jsonObject.getString("key"),
 				jsonObject.getString("value"),
 				KVMessageImpl.getStatusType(jsonObject.getInt("status")),
 				metaDatas);
+		if (jsonObject.containsKey("id")) {
+			kvmsg.setId(jsonObject.getJsonNumber("id").longValue());
+		}
+		if (jsonObject.containsKey("consistency")) {
+			kvmsg.setConsistency(Consistency.values()[jsonObject.getInt("consistency")]);
+		}
+
+		JsonArray batchArray = jsonObject.getJsonArray("batch");
+		if (batchArray != null) {
+			List<KVMessage> batch = new ArrayList<KVMessage>(batchArray.size());
+			for (int i = 0; i < batchArray.size(); i++) {
+				JsonObject entry = batchArray.getJsonObject(i);
+				batch.add(new KVMessageImpl(entry.getString("key"), entry.getString("value"),
+						KVMessageImpl.getStatusType(entry.getInt("status"))));
+			}
+			kvmsg.setBatch(batch);
+		}
+		return kvmsg;
 	}
 
 	/**
@@ -176,6 +229,31 @@ public class JSONSerializer {
 		return new TextMessage(value.toString());
 	}
 
+	/**
+	 * Method to marshal KVAdmin Messages with storage counters.
+	 * 
+	 * @param command
+	 * 		Command to be associated with KVAdmin message.
+	 * @param stats
+	 * 		Counters by name, may be null.
+	 * @return
+	 * 		Returns Marshaled TextMessage.	
+	 */
+	public static TextMessage marshalKVAdminMsg(Commands command, Map<String, Long> stats){
+		JsonObjectBuilder builder = Json.createObjectBuilder()
+				.add("command", command.ordinal());
+		if(stats!=null){
+			JsonObjectBuilder statsBuilder = Json.createObjectBuilder();
+			for(Entry<String, Long> stat : stats.entrySet()){
+				statsBuilder.add(stat.getKey(), stat.getValue());
+			}
+			builder.add("stats", statsBuilder);
+		}
+		JsonObject value = builder.build();
+
+		return new TextMessage(value.toString());
+	}
+
 	/**
 	 * Method to unmarshal KVAdmin Messages specified with Command param.
 	 * @param txtMsg
@@ -191,6 +269,15 @@ public class JSONSerializer {
 		KVAdminMessageImpl kvAdminMessage= new KVAdminMessageImpl();
 		kvAdminMessage.setCommand(KVAdminMessageImpl.getCommandType(jsonObject.getInt("command")));
 
+		JsonObject statsObject = jsonObject.getJsonObject("stats");
+		if(statsObject!=null){
+			Map<String, Long> stats = new LinkedHashMap<String, Long>();
+			for(String name : statsObject.keySet()){
+				stats.put(name, statsObject.getJsonNumber(name).longValue());
+			}
+			kvAdminMessage.setStats(stats);
+		}
+
 		return kvAdminMessage;
 	}
 
@@ -208,6 +295,27 @@ public class JSONSerializer {
 	 * 		Marshaled TextMessage.
 	 */
 	public static TextMessage marshalKVAdminMsg(List<MetaData> list, Commands command, String destination, String range ){
+		return marshalKVAdminMsg(list, command, destination, range, 0);
+	}
+
+	/**
+	 * Method to marshal KVAdminMessage with the replication factor of the
+	 * cluster.
+	 * @param list
+	 * 		MetaData list of all Nodes.
+	 * @param command
+	 * 		Command associated with this message.
+	 * @param destination
+	 * 		Destination Node ip:port information.
+	 * @param range
+	 * 		Range in the ring, corresponding to Data that is to be moved.
+	 * @param replicationFactor
+	 * 		Number of copies of every pair, 0 to leave it out.
+	 * @return
+	 * 		Marshaled TextMessage.
+	 */
+	public static TextMessage marshalKVAdminMsg(List<MetaData> list, Commands command, String destination, String range, 
+			int replicationFactor){
 		JsonObjectBuilder builder = Json.createObjectBuilder()
 				.add("adminMsg", true)
 				.add("command", command.ordinal())
@@ -225,6 +333,9 @@ public class JSONSerializer {
 			}
 			builder.add("metadata", array);
 		}
+		if(replicationFactor>0){
+			builder.add("replicationFactor", replicationFactor);
+		}
 
 		JsonObject value = builder.build();
 		return new TextMessage(value.toString());
@@ -242,6 +353,17 @@ public class JSONSerializer {
 		JsonObject jsonObject = Json.createReader(new StringReader(strMsg))
 				.readObject();		
 
+		return unmarshalKVAdminMsg(jsonObject);
+	}
+
+	/**
+	 * Method for unmarshaling KVAdminMessage already parsed.
+	 * @param jsonObject
+	 * 		Message to be unmarshaled.
+	 * @return
+	 * 		UnMarshaled KVAdminMessage.
+	 */
+	public static KVAdminMessageImpl unmarshalKVAdminMsg(JsonObject jsonObject){
 		List<MetaData> metaDatas = new ArrayList<MetaData>();
 		JsonArray jarray = jsonObject.getJsonArray("metadata");	
 
@@ -258,8 +380,12 @@ public class JSONSerializer {
 			}
 		}
 
-		return new KVAdminMessageImpl(metaDatas
+		KVAdminMessageImpl kvAdminMessage = new KVAdminMessageImpl(metaDatas
 				,KVAdminMessageImpl.getCommandType(jsonObject.getInt("command"))
 				,jsonObject.getString("range"),jsonObject.getString("destination"));
+		if(jsonObject.containsKey("replicationFactor")){
+			kvAdminMessage.setReplicationFactor(jsonObject.getInt("replicationFactor"));
+		}
+		return kvAdminMessage;
 	}
 }
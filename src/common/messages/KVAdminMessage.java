@@ -1,6 +1,7 @@
 package common.messages;
 
 import java.util.List;
+import java.util.Map;
 
 import metadata.MetaData;
 
@@ -69,6 +70,21 @@ public interface KVAdminMessage {
 	 * 		Destination KVServer Address.
 	 */
 	public String getDestinationAddress();
+
+	/**
+	 * Method to get storage counters of the KVServer, sent with ECHO.
+	 * @return 
+	 * 		Counters by name, null if not present.
+	 */
+	public Map<String, Long> getStats();
+
+	/**
+	 * Method to get the replication factor of the cluster, sent with INIT
+	 * and UPDATE.
+	 * @return 
+	 * 		Number of copies of every pair, 0 if not present.
+	 */
+	public int getReplicationFactor();
 	
 	
 }
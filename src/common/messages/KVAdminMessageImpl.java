@@ -1,6 +1,8 @@
 package common.messages;
 
 import java.util.List;
+import java.util.Map;
+
 import metadata.MetaData;
 
 public class KVAdminMessageImpl implements KVAdminMessage {
@@ -10,6 +12,8 @@ public class KVAdminMessageImpl implements KVAdminMessage {
 	private Commands command;
 	private String range;
 	private String destinationAddress;
+	private Map<String, Long> stats;
+	private int replicationFactor;
 	
 	public KVAdminMessageImpl(List<MetaData> metaDatas, Commands commands, String range, String destinationAddress) {
 		this.metaDatas = metaDatas;
@@ -47,6 +51,22 @@ public class KVAdminMessageImpl implements KVAdminMessage {
 	}
 
 	
+	public Map<String, Long> getStats() {
+		return stats;
+	}
+
+	public void setStats(Map<String, Long> stats) {
+		this.stats = stats;
+	}
+
+	public int getReplicationFactor() {
+		return replicationFactor;
+	}
+
+	public void setReplicationFactor(int replicationFactor) {
+		this.replicationFactor = replicationFactor;
+	}
+
 	public List<MetaData> getMetaDatas() {
 		return metaDatas;
 	}
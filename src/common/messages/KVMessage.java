@@ -30,9 +30,46 @@ public interface KVMessage {
 		REPLICA_DELETE_SUCCESS, /* Replica Delete - request successful */
 		REPLICA_DELETE_ERROR, 	/* Replica Delete - request not successful */
 		DELETE_TOPOLOGICAL,		/* Delete message from Successor Node to its 2nd successor*/
+		SERVER_MEMORY_FULL,		/* Put - request rejected, memory budget of the server used up */
+		BATCH_GET,				/* Get of all keys of the batch - request */
+		BATCH_PUT,				/* Put of all pairs of the batch, empty values delete - request */
+		BATCH_RESULT,			/* Reply to a batch, with the status of every key */
+		REPLICA_BATCH_PUT,		/* Replica Put of all pairs of the batch - request */
+		PUT_CHUNK,				/* Next part of a large value - request, and its acknowledgement */
+		PUT_COMMIT,				/* End of a large value sent in parts, stores it - request */
+		GET_CHUNKED,			/* Get - value is large, value is upload:chunks:length to read it with GET_CHUNK */
+		GET_CHUNK,				/* Part of a large value, value is upload:index - request, the part - reply */
+		SERVER_BUSY,			/* Request rejected, the server is overloaded, retry later */
+		REPLICA_GET,			/* Get of the stored value from a replica - request, answered with GET_SUCCESS or GET_ERROR */
+		MOVE_PUT,				/* Put of a pair moved here by another server, as stored there - request, answered like PUT */
+		WRITE_UNCONFIRMED,		/* Put or delete stored by the server, but confirmed by fewer replicas than the consistency level requires, it may still be read */
 		UNKNOWN          /*Unknown command*/
 	}
 
+	/**
+	 * Number of copies of a pair, on the coordinator and its replicas, which 
+	 * have to confirm a PUT or be read for a GET before the client gets its 
+	 * reply.
+	 */
+	public enum Consistency {
+		ONE,		/* the server receiving the request */
+		QUORUM,		/* the majority of the copies */
+		ALL;		/* every copy */
+
+		/**
+		 * @param copies
+		 * 		number of copies of a pair.
+		 * @return the number of them which have to confirm a request.
+		 */
+		public int required(int copies) {
+			switch (this) {
+			case ONE: return 1;
+			case QUORUM: return copies / 2 + 1;
+			default: return copies;
+			}
+		}
+	}
+
 	/**
 	 * Method to retrieve key associated with this KVMessage.
 	 * @return 
@@ -61,6 +98,29 @@ public interface KVMessage {
 	 * 		List of MetaData.
 	 */
 	public List<MetaData> getMetaData();
+
+	/**
+	 * Method to retrieve the correlation id of this KVMessage, copied from a
+	 * request to its reply so requests can be pipelined on one connection.
+	 * @return
+	 * 		The id, 0 if the message has none.
+	 */
+	public long getId();
+
+	/**
+	 * Method to retrieve the entries of a batch request or reply, each with
+	 * its key, value and status.
+	 * @return
+	 * 		List of entries, null if the message is no batch.
+	 */
+	public List<KVMessage> getBatch();
+
+	/**
+	 * Method to retrieve the consistency level the client asked for.
+	 * @return
+	 * 		The level, null if the server applies its default.
+	 */
+	public Consistency getConsistency();
 	
 }
 
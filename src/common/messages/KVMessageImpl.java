@@ -7,6 +7,9 @@ public class KVMessageImpl implements KVMessage {
 	private String mValue;
 	private StatusType mStatusType;
 	private List<MetaData> metadata;
+	private long mId;
+	private List<KVMessage> batch;
+	private Consistency consistency;
 	
 	public KVMessageImpl() {
 	}
@@ -44,6 +47,33 @@ public class KVMessageImpl implements KVMessage {
 		return mStatusType;
 	}
 
+	@Override
+	public long getId() {
+		return mId;
+	}
+
+	public void setId(long id){
+		mId=id;
+	}
+
+	@Override
+	public List<KVMessage> getBatch() {
+		return batch;
+	}
+
+	public void setBatch(List<KVMessage> batch){
+		this.batch=batch;
+	}
+
+	@Override
+	public Consistency getConsistency() {
+		return consistency;
+	}
+
+	public void setConsistency(Consistency consistency){
+		this.consistency=consistency;
+	}
+
 	public void setKey(String key){
 		mKey=key;
 	}
@@ -82,6 +112,19 @@ public class KVMessageImpl implements KVMessage {
 			case 16: return StatusType.REPLICA_DELETE_SUCCESS;
 			case 17: return StatusType.REPLICA_DELETE_ERROR;
 			case 18: return StatusType.DELETE_TOPOLOGICAL;
+			case 19: return StatusType.SERVER_MEMORY_FULL;
+			case 20: return StatusType.BATCH_GET;
+			case 21: return StatusType.BATCH_PUT;
+			case 22: return StatusType.BATCH_RESULT;
+			case 23: return StatusType.REPLICA_BATCH_PUT;
+			case 24: return StatusType.PUT_CHUNK;
+			case 25: return StatusType.PUT_COMMIT;
+			case 26: return StatusType.GET_CHUNKED;
+			case 27: return StatusType.GET_CHUNK;
+			case 28: return StatusType.SERVER_BUSY;
+			case 29: return StatusType.REPLICA_GET;
+			case 30: return StatusType.MOVE_PUT;
+			case 31: return StatusType.WRITE_UNCONFIRMED;
 			default:
 				return StatusType.UNKNOWN;
 		}
@@ -0,0 +1,73 @@
+package common.messages;
+
+import java.util.Map;
+
+import common.messages.KVAdminMessage.Commands;
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Encoding of the messages: JSON, which every peer understands, or the
+ * compact binary encoding of the BinarySerializer. A received message is
+ * decoded by the encoding it arrived in, so both can be used side by side.
+ */
+public enum MessageCodec {
+
+	JSON {
+		@Override
+		public TextMessage marshal(KVMessage msg) {
+			return JSONSerializer.marshal(msg);
+		}
+
+		@Override
+		public TextMessage marshalKVAdminMsg(Commands command, Map<String, Long> stats) {
+			return JSONSerializer.marshalKVAdminMsg(command, stats);
+		}
+	},
+
+	BINARY {
+		@Override
+		public TextMessage marshal(KVMessage msg) {
+			return BinarySerializer.marshal(msg);
+		}
+
+		@Override
+		public TextMessage marshalKVAdminMsg(Commands command, Map<String, Long> stats) {
+			KVAdminMessageImpl msg = new KVAdminMessageImpl();
+			msg.setCommand(command);
+			msg.setStats(stats);
+			return BinarySerializer.marshalKVAdminMsg(msg);
+		}
+	};
+
+	/**
+	 * Method for marshaling key-value message, with its metadata if present.
+	 */
+	public abstract TextMessage marshal(KVMessage msg);
+
+	/**
+	 * Method to marshal a KVAdmin reply with storage counters, which may be
+	 * null.
+	 */
+	public abstract TextMessage marshalKVAdminMsg(Commands command, Map<String, Long> stats);
+
+	/**
+	 * Method for marshaling key-value message.
+	 */
+	public TextMessage marshal(String key, String value, StatusType status) {
+		return marshal(new KVMessageImpl(key, value, status));
+	}
+
+	/**
+	 * @return the encoding of a received message.
+	 */
+	public static MessageCodec of(TextMessage txtMsg) {
+		return txtMsg.isBinary() ? BINARY : JSON;
+	}
+
+	/**
+	 * Method for unmarshaling a key-value message in either encoding.
+	 */
+	public static KVMessageImpl unMarshal(TextMessage txtMsg) {
+		return txtMsg.isBinary() ? BinarySerializer.unMarshal(txtMsg) : JSONSerializer.unMarshal(txtMsg);
+	}
+}
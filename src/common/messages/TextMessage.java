@@ -11,6 +11,7 @@ public class TextMessage implements Serializable {
 	private static final long serialVersionUID = 5549512212003782618L;
 	private String msg;
 	private byte[] msgBytes;
+	private boolean binary;
 	private static final char LINE_FEED = 0x0A;
 	private static final char RETURN = 0x0D;
 	
@@ -36,9 +37,27 @@ public class TextMessage implements Serializable {
 		this.msgBytes = toByteArray(msg);
 	}
 
+	private TextMessage() {
+	}
+
+	/**
+	 * Constructs a TextMessage holding a message encoded by the 
+	 * BinarySerializer, which has no text form.
+	 * 
+	 * @param content the encoded message.
+	 * @return the message, to be sent with a length header.
+	 */
+	public static TextMessage ofBinary(byte[] content) {
+		TextMessage message = new TextMessage();
+		message.msg = "binary message of " + content.length + " bytes";
+		message.msgBytes = content;
+		message.binary = true;
+		return message;
+	}
 
 	/**
 	 * Returns the content of this TextMessage as a String.
+	 * For a binary message only a description for the logs.
 	 * 
 	 * @return the content of this message in String format.
 	 */
@@ -50,11 +69,18 @@ public class TextMessage implements Serializable {
 	 * Returns an array of bytes that represent the ASCII coded message content.
 	 * 
 	 * @return the content of this message as an array of bytes 
-	 * 		in ASCII coding.
+	 * 		in ASCII coding, the encoded message if it is binary.
 	 */
 	public byte[] getMsgBytes() {
 		return msgBytes;
 	}
+
+	/**
+	 * @return true if the message was encoded by the BinarySerializer.
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
 	
 	private byte[] addCtrChars(byte[] bytes) {
 		byte[] ctrBytes = new byte[]{LINE_FEED, RETURN};
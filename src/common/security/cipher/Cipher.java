@@ -30,4 +30,22 @@ public interface Cipher {
 	 */
 	public String decrypt(String encryptedMsg);
 
+	/**
+	 * Method used for encrypting a binary message.
+	 * @param msg
+	 * 		Message to be encrypted.
+	 * @return
+	 * 		Returns encrypted bytes, not Base64 encoded.
+	 */
+	public byte[] encrypt(byte[] msg);
+
+	/**
+	 * Method used for decrypting a binary message.
+	 * @param encryptedMsg
+	 * 		Bytes to be decrypted.
+	 * @return
+	 * 		Returns decrypted message.
+	 */
+	public byte[] decrypt(byte[] encryptedMsg);
+
 }
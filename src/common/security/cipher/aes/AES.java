@@ -7,6 +7,7 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -27,8 +28,10 @@ import org.apache.log4j.Logger;
  */
 public class AES implements common.security.cipher.Cipher {
 
-	private Cipher mAESCipher;
+	private Cipher mEncryptCipher;
+	private Cipher mDecryptCipher;
 	private static SecretKey mKey;
+	private static byte[] mSecret;
 	private String mKeyString;
 
 	private static Logger logger = Logger.getRootLogger();
@@ -58,12 +61,18 @@ public class AES implements common.security.cipher.Cipher {
 
 		}
 
+		// the key never changes, so the ciphers are initialized once
 		try {
-			mAESCipher = Cipher.getInstance("AES");
+			mEncryptCipher = Cipher.getInstance("AES");
+			mEncryptCipher.init(Cipher.ENCRYPT_MODE, mKey);
+			mDecryptCipher = Cipher.getInstance("AES");
+			mDecryptCipher.init(Cipher.DECRYPT_MODE, mKey);
 		} catch (NoSuchAlgorithmException e) {
 			logger.error("AES::AES() + NoSuchAlgorithmException while creating Cipher");
 		} catch (NoSuchPaddingException e) {
 			logger.error("AES::AES() + NoSuchPaddingException while creating Cipher");
+		} catch (InvalidKeyException e) {
+			logger.error("AES::AES() + InvalidKeyException while creating Cipher");
 		}
 
 	}
@@ -72,6 +81,7 @@ public class AES implements common.security.cipher.Cipher {
 		byte[] keyByte;
 		try {
 			keyByte = key.getBytes("UTF-8");
+			mSecret = keyByte;
 			MessageDigest md5 = null;
 			try {
 				md5 = MessageDigest.getInstance("MD5");
@@ -91,14 +101,39 @@ public class AES implements common.security.cipher.Cipher {
 		return mKeyString;
 	}
 
+	/**
+	 * Method to start the AES-GCM encryption of a connection with session
+	 * keys derived from the secret key.
+	 * @return
+	 * 		Returns the new session, null if it cannot be created.
+	 */
+	public AESSession newSession() {
+		try {
+			return new AESSession(mSecret);
+		} catch (GeneralSecurityException e) {
+			logger.error("AES::newSession() + GeneralSecurityException while creating session: " + e);
+		}
+		return null;
+	}
+
 	@Override
 	public String encrypt(String msg) {
+		byte[] encrypted = encrypt(msg.getBytes());
+		return encrypted != null ? Base64.encodeBase64String(encrypted) : null;
+	}
+
+	@Override
+	public String decrypt(String encryptedMsg) {
+		byte[] decrypted = decrypt(Base64.decodeBase64(encryptedMsg));
+		return decrypted != null ? new String(decrypted) : null;
+	}
+
+	@Override
+	public byte[] encrypt(byte[] msg) {
 		try {
-			mAESCipher.init(Cipher.ENCRYPT_MODE, mKey);
-			byte[] encrypted = mAESCipher.doFinal(msg.getBytes());
-			return Base64.encodeBase64String(encrypted);
-		} catch (InvalidKeyException e) {
-			logger.error("AES::encrypt() + InvalidKeyException while encryption");
+			synchronized (mEncryptCipher) {
+				return mEncryptCipher.doFinal(msg);
+			}
 		} catch (IllegalBlockSizeException e) {
 			logger.error("AES::encrypt() + IllegalBlockSizeException while encryption");
 		} catch (BadPaddingException e) {
@@ -108,13 +143,11 @@ public class AES implements common.security.cipher.Cipher {
 	}
 
 	@Override
-	public String decrypt(String encryptedMsg) {
+	public byte[] decrypt(byte[] encryptedMsg) {
 		try {
-			mAESCipher.init(Cipher.DECRYPT_MODE, mKey);
-			byte[] decrypted = mAESCipher.doFinal(Base64.decodeBase64(encryptedMsg));
-			return new String(decrypted);
-		} catch (InvalidKeyException e) {
-			logger.error("AES::decrypt() + InvalidKeyException while decryption");
+			synchronized (mDecryptCipher) {
+				return mDecryptCipher.doFinal(encryptedMsg);
+			}
 		} catch (IllegalBlockSizeException e) {
 			logger.error("AES::decrypt() + IllegalBlockSizeException while decryption");
 		} catch (BadPaddingException e) {
@@ -0,0 +1,197 @@
+package common.security.cipher.aes;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM encryption of the messages of one connection with session keys.
+ *
+ * Each side sends a random salt once, the side starting the session first
+ * and the other one in reply. The key of each direction is derived from
+ * the shared secret and both salts, so a side seals its first message once
+ * it has the salt of the peer. Messages recorded on another connection do
+ * not open on a new one, as the salt of the receiver is a new one, and a
+ * peer starting its session a second time is rejected. The nonce of a
+ * message is the number of messages sent before it in that direction, so
+ * it is never sent and messages have to be opened in the order they were
+ * sealed. GCM authenticates the messages, a message which was changed or
+ * is out of order does not open.
+ */
+public class AESSession {
+
+	public static final int SALT_SIZE = 16;
+	private static final int KEY_SIZE = 16;
+	private static final int NONCE_SIZE = 12;
+	private static final int TAG_BITS = 128;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final byte[] secret;
+
+	// a lock instead of a monitor, a virtual thread waiting for the salt
+	// of the peer does not pin its carrier thread
+	private final Lock keyLock = new ReentrantLock();
+	private final Condition peerStarted = keyLock.newCondition();
+	private byte[] ownSalt;
+	private volatile byte[] peerSalt;
+
+	private final Cipher sealCipher;
+	private volatile SecretKeySpec sealKey;
+	private long sealCounter;
+
+	private final Object openLock = new Object();
+	private final Cipher openCipher;
+	private volatile SecretKeySpec openKey;
+	private long openCounter;
+
+	/**
+	 * @param secret
+	 * 			the secret shared by all nodes, the session keys are derived from.
+	 */
+	AESSession(byte[] secret) throws GeneralSecurityException {
+		this.secret = secret;
+		this.sealCipher = Cipher.getInstance("AES/GCM/NoPadding");
+		this.openCipher = Cipher.getInstance("AES/GCM/NoPadding");
+	}
+
+	/**
+	 * Creates the salt of this side, if not done yet.
+	 *
+	 * @return the salt which has to be sent to the peer before the first
+	 *         message, null if it was created already.
+	 */
+	public byte[] startSealing() throws GeneralSecurityException {
+		keyLock.lock();
+		try {
+			if (ownSalt != null) {
+				return null;
+			}
+			byte[] salt = new byte[SALT_SIZE];
+			random.nextBytes(salt);
+			ownSalt = salt;
+			deriveKeys();
+			return salt.clone();
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the salt sent by the peer.
+	 *
+	 * @throws GeneralSecurityException
+	 *             if the salt is invalid or the peer sent one before.
+	 */
+	public void startOpening(byte[] salt) throws GeneralSecurityException {
+		if (salt.length != SALT_SIZE) {
+			throw new GeneralSecurityException("Session salt of " + salt.length + " bytes");
+		}
+		keyLock.lock();
+		try {
+			if (peerSalt != null) {
+				throw new GeneralSecurityException("Session started twice by the peer");
+			}
+			peerSalt = salt.clone();
+			deriveKeys();
+			peerStarted.signalAll();
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	/**
+	 * @return true once the peer sent its salt.
+	 */
+	public boolean isOpening() {
+		return peerSalt != null;
+	}
+
+	/**
+	 * Waits until the peer sent its salt, which another thread reading the
+	 * connection receives.
+	 *
+	 * @return true if it did within the timeout.
+	 */
+	public boolean awaitOpening(long timeout) throws InterruptedException {
+		keyLock.lock();
+		try {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+			while (peerSalt == null && remaining > 0) {
+				remaining = peerStarted.awaitNanos(remaining);
+			}
+			return peerSalt != null;
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	/**
+	 * Encrypts the next message sent.
+	 *
+	 * @return the ciphertext followed by the authentication tag.
+	 * @throws GeneralSecurityException
+	 *             if the salts of both sides are not there yet.
+	 */
+	public synchronized byte[] seal(byte[] plain) throws GeneralSecurityException {
+		if (sealKey == null) {
+			throw new GeneralSecurityException("Session not started by both sides");
+		}
+		sealCipher.init(Cipher.ENCRYPT_MODE, sealKey, new GCMParameterSpec(TAG_BITS, nonce(sealCounter++)));
+		return sealCipher.doFinal(plain);
+	}
+
+	/**
+	 * Decrypts and authenticates the next message received.
+	 *
+	 * @throws GeneralSecurityException
+	 *             if there is no key yet or the message does not open.
+	 */
+	public byte[] open(byte[] sealed, int offset, int length) throws GeneralSecurityException {
+		synchronized (openLock) {
+			if (openKey == null) {
+				throw new GeneralSecurityException("Session not started by both sides");
+			}
+			openCipher.init(Cipher.DECRYPT_MODE, openKey, new GCMParameterSpec(TAG_BITS, nonce(openCounter++)));
+			return openCipher.doFinal(sealed, offset, length);
+		}
+	}
+
+	/**
+	 * Derives the keys once both salts are there, each from the salt of
+	 * the side sealing with it first.
+	 */
+	private void deriveKeys() throws GeneralSecurityException {
+		if (ownSalt != null && peerSalt != null) {
+			sealKey = deriveKey(ownSalt, peerSalt);
+			openKey = deriveKey(peerSalt, ownSalt);
+		}
+	}
+
+	private SecretKeySpec deriveKey(byte[] senderSalt, byte[] receiverSalt) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+		mac.update("session".getBytes(StandardCharsets.US_ASCII));
+		mac.update(senderSalt);
+		byte[] key = mac.doFinal(receiverSalt);
+		return new SecretKeySpec(Arrays.copyOf(key, KEY_SIZE), "AES");
+	}
+
+	private static byte[] nonce(long counter) {
+		byte[] nonce = new byte[NONCE_SIZE];
+		for (int i = 0; i < 8; i++) {
+			nonce[NONCE_SIZE - 1 - i] = (byte) (counter >>> (8 * i));
+		}
+		return nonce;
+	}
+}
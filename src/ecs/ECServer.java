@@ -7,8 +7,6 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.Socket;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -22,7 +20,9 @@ import javax.json.JsonObjectBuilder;
 
 import org.apache.log4j.Logger;
 
+import common.communication.CommunicationConfig.Link;
 import common.communication.SocketCommunication;
+import common.hashing.RingPosition;
 import common.messages.JSONSerializer;
 import common.messages.KVAdminMessage;
 import common.messages.KVAdminMessage.Commands;
@@ -41,18 +41,25 @@ public class ECServer {
 
 	private HashMap <String,Socket> mEcsClientSocketMap;
 	JsonObjectBuilder objectBuilder = Json.createObjectBuilder();
-	private HashMap<String, BigInteger> hashMap;
-	private TreeMap<String, BigInteger> sorted;
+	private HashMap<String, RingPosition> hashMap;
+	private TreeMap<String, RingPosition> sorted;
 	private FaultDetecter mFaultDetector;
 	private SocketCommunication securedSocketCommunication;
 	private int mDeadNodeCount = 0;
+	//copies of every pair the KVServers keep, sent with the metadata
+	private int mReplicationFactor = DEFAULT_REPLICATION_FACTOR;
+
+	public static final int DEFAULT_REPLICATION_FACTOR = 3;
+
+	//memory usage of a KVServer from which on it is reported
+	private static final long MEMORY_WARN_PERCENT = 90;
 
 
 	private static Logger logger = Logger.getRootLogger();
 
 
 	public ECServer(String string) {
-		securedSocketCommunication = new SocketCommunication();
+		securedSocketCommunication = new SocketCommunication(Link.ADMIN);
 		File cmdLineConfig = null;
 		if(string!=null){
 			cmdLineConfig = new File(string);
@@ -108,7 +115,20 @@ public class ECServer {
 
 
 	public boolean initService(int numberOfNodes) {
+		return initService(numberOfNodes, DEFAULT_REPLICATION_FACTOR);
+	}
+
+	/**
+	 * Starts the KVServers and sends them the metadata.
+	 * @param numberOfNodes
+	 * 			number of KVServers to start.
+	 * @param replicationFactor
+	 * 			copies of every pair, on its coordinator and as many successors
+	 * 			less one. The KVServers replicate once there are this many of them.
+	 */
+	public boolean initService(int numberOfNodes, int replicationFactor) {
 		boolean result = true;
+		mReplicationFactor = replicationFactor;
 		initMetaData(numberOfNodes);
 		mEcsClientSockets = new ArrayList<Socket>();
 		mEcsClientSocketMap = new HashMap<String, Socket>();
@@ -306,7 +326,7 @@ public class ECServer {
 		boolean result = true;
 		for(Socket socket : mEcsClientSockets) {
 			try {
-				TextMessage txtMsg = JSONSerializer.marshalKVAdminMsg(mMetaData, Commands.INIT, "","");
+				TextMessage txtMsg = JSONSerializer.marshalKVAdminMsg(mMetaData, Commands.INIT, "","", mReplicationFactor);
 				securedSocketCommunication.sendMessage(socket, txtMsg);
 				TextMessage responseTxtMsg = securedSocketCommunication.receiveMessage(socket);
 				KVAdminMessage responseKVAdminMsg = JSONSerializer.unmarshalKVAdminMsgForCommand(responseTxtMsg);
@@ -335,7 +355,7 @@ public class ECServer {
 		boolean result = true;
 		for(Socket socket : mEcsClientSockets) {
 			try {
-				TextMessage txtMsg = JSONSerializer.marshalKVAdminMsg(mMetaData, Commands.UPDATE, "","");
+				TextMessage txtMsg = JSONSerializer.marshalKVAdminMsg(mMetaData, Commands.UPDATE, "","", mReplicationFactor);
 				securedSocketCommunication.sendMessage(socket, txtMsg);
 				TextMessage responseTxtMsg = securedSocketCommunication.receiveMessage(socket);
 				KVAdminMessage responseKVAdminMsg = JSONSerializer.unmarshalKVAdminMsgForCommand(responseTxtMsg);
@@ -361,7 +381,7 @@ public class ECServer {
 
 		Socket socket = mEcsClientSocketMap.get(ip+":"+Integer.toString(port));
 		try {
-			TextMessage txtMsg = JSONSerializer.marshalKVAdminMsg(mMetaData, Commands.UPDATE, "","");
+			TextMessage txtMsg = JSONSerializer.marshalKVAdminMsg(mMetaData, Commands.UPDATE, "","", mReplicationFactor);
 			securedSocketCommunication.sendMessage(socket, txtMsg);
 			TextMessage responseTxtMsg = securedSocketCommunication.receiveMessage(socket);
 			KVAdminMessage responseKVAdminMsg = JSONSerializer.unmarshalKVAdminMsgForCommand(responseTxtMsg);
@@ -386,7 +406,7 @@ public class ECServer {
 	private boolean initNewNodeMetaData(String ip, int port) {
 		Socket socket = mEcsClientSocketMap.get(ip+":"+Integer.toString(port));
 		try {
-			TextMessage txtMsg = JSONSerializer.marshalKVAdminMsg(mMetaData, Commands.INIT, "","");
+			TextMessage txtMsg = JSONSerializer.marshalKVAdminMsg(mMetaData, Commands.INIT, "","", mReplicationFactor);
 			securedSocketCommunication.sendMessage(socket, txtMsg);
 			TextMessage responseTxtMsg = securedSocketCommunication.receiveMessage(socket);
 			KVAdminMessage responseKVAdminMsg = JSONSerializer.unmarshalKVAdminMsgForCommand(responseTxtMsg);
@@ -616,10 +636,7 @@ public class ECServer {
 			}
 			
 		}
-		boolean replicationProcess=false;
-		if(mMetaData.size()>2){
-			replicationProcess = true;
-		}
+		boolean replicationProcess=isReplicating();
 		
 		boolean result=false;
 		result = initNewNodeMetaData(newNodeMetaData.getIP(), Integer.parseInt(newNodeMetaData.getPort()));
@@ -681,20 +698,15 @@ public class ECServer {
 			MetaData targetNode=null;
 			i=0;
 			boolean replicaCase = false;
-			if(mMetaData.size()>2){
+			if(isReplicating()){
 				for(MetaData metaData: mMetaData) {
 					if(metaData.equals(successorNodeMetaData)){
 						break;
 					}
 					i++;
 				}
-				if(i+2<=mMetaData.size()-1) {
-					targetNode = mMetaData.get(i+2);
-				} else if (i+1 == mMetaData.size()-1) {
-					targetNode = mMetaData.get(0);
-				} else {
-					targetNode = mMetaData.get(1);
-				}
+				//the last replica of the successor is the only one without the data of the removed node
+				targetNode = mMetaData.get((i+mReplicationFactor-1)%mMetaData.size());
 				replicaCase = true;
 			}
 			
@@ -735,44 +747,23 @@ public class ECServer {
 	}
 
 
-	private String getMD5(String msg){
-		MessageDigest messageDigest = null;
-		try {
-			messageDigest = MessageDigest.getInstance("MD5");
-		} catch(NoSuchAlgorithmException ex){
-			logger.error("Storage::getMD5() + Error while computing MD5 for msg.");
-			return null;
-		}
-		messageDigest.reset();
-		messageDigest.update(msg.getBytes());
-		byte[] hashValue = messageDigest.digest();
-		BigInteger bigInt = new BigInteger(1,hashValue);
-		String hashHex = bigInt.toString(16);
-		// Now we need to zero pad it if you actually want the full 32 chars.
-		while(hashHex.length() < 32 ){
-			hashHex = "0"+hashHex;
-		}
-		return hashHex;
-	}
-
 	private void initMetaData(int nodeCount){
 		
 		mMetaData = new ArrayList<MetaData>();
 		MetaData tempMetaData = null;
-		hashMap = new HashMap<String, BigInteger>();
+		hashMap = new HashMap<String, RingPosition>();
 		
 		for(int i=0;i<mServerConfig.size() && hashMap.size() < nodeCount; i++){
 			
 			if( mServerConfig.get(i).isAlive()) {
 				String ipPort = mServerConfig.get(i).getIPAddress()+":"+mServerConfig.get(i).getPort();
-				BigInteger prevRangeBi = new BigInteger(getMD5(ipPort),16);
-				hashMap.put(ipPort, prevRangeBi);
+				hashMap.put(ipPort, RingPosition.of(ipPort));
 			}
 		}
 		
 		//Sort the meta data so that we can find adjacent node based on their hash values
 		ValueComparator vc = new ValueComparator(hashMap);
-		sorted = new TreeMap<String, BigInteger>(vc);
+		sorted = new TreeMap<String, RingPosition>(vc);
 		sorted.putAll(hashMap);
 
 		int i = 1;
@@ -782,20 +773,16 @@ public class ECServer {
 			String tokens[] = key.split(":");
 			tempMetaData.setIP(tokens[0]);
 			tempMetaData.setPort(tokens[1]);
-			tempMetaData.setRangeEnd(sorted.get(key).toString(16));
+			tempMetaData.setRangeEnd(sorted.get(key).toHex());
 			if(i>1){
-				BigInteger prevRangeBi = new BigInteger(previous.getRangeEnd(),16);
-				BigInteger nextRangeBi = prevRangeBi.add(new BigInteger("1"));
-				tempMetaData.setRangeStart(nextRangeBi.toString(16));
+				tempMetaData.setRangeStart(previous.getRangeEndPosition().next().toHex());
 			}
 			mMetaData.add(tempMetaData);
 			previous = tempMetaData;
 			i++;
 
 		}
-		BigInteger prevRangeBi = new BigInteger(mMetaData.get(mMetaData.size()-1).getRangeEnd(),16);
-		BigInteger nextRangeBi = prevRangeBi.add(new BigInteger("1"));
-		mMetaData.get(0).setRangeStart(nextRangeBi.toString(16));
+		mMetaData.get(0).setRangeStart(mMetaData.get(mMetaData.size()-1).getRangeEndPosition().next().toHex());
 		for(MetaData md:mMetaData){
 			logger.debug("New MetaData = "+md.getPort()
 					+", start="+new BigInteger(md.getRangeStart(),16)
@@ -817,22 +804,55 @@ public class ECServer {
 
 	//This class is used to sort the metadata using end-range value
 	static class ValueComparator implements Comparator<String> {
-		Map<String, BigInteger> base;
-		ValueComparator(Map<String, BigInteger> base) {
+		Map<String, RingPosition> base;
+		ValueComparator(Map<String, RingPosition> base) {
 			this.base = base;
 		}
 
 		@Override
 		public int compare(String a, String b) {
-			BigInteger x = base.get(a);
-			BigInteger y = base.get(b);
+			RingPosition x = base.get(a);
+			RingPosition y = base.get(b);
 			return x.compareTo(y);
 		}
 	}
 
+	public int getReplicationFactor() {
+		return mReplicationFactor;
+	}
+
+	/**
+	 * @return true if the KVServers replicate, which needs a replication 
+	 * 		factor above 1 and at least as many of them.
+	 */
+	private boolean isReplicating() {
+		return mReplicationFactor > 1 && mMetaData.size() >= mReplicationFactor;
+	}
+
 	public List<Socket> getECSServerSockets() {
 		return mEcsClientSockets;
 	}
+
+	/**
+	 * Records the storage counters a KVServer sent with its ECHO and warns
+	 * when its memory budget is almost used up.
+	 */
+	public void updateNodeStats(Socket socket, Map<String, Long> stats) {
+		if(stats == null) {
+			return;
+		}
+		for(ServerNodeData node : mServerConfig) {
+			if(socket.getPort() == Integer.parseInt(node.getPort())) {
+				node.setStats(stats);
+				Long used = stats.get("memoryUsed");
+				Long limit = stats.get("memoryLimit");
+				if(used != null && limit != null && used >= limit * MEMORY_WARN_PERCENT / 100) {
+					logger.warn("KVServer "+node.getIPAddress()+":"+node.getPort()
+							+" uses "+used+" of its "+limit+" bytes memory budget");
+				}
+			}
+		}
+	}
 	
 	
 
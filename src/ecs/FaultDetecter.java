@@ -6,6 +6,7 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import common.communication.CommunicationConfig.Link;
 import common.communication.SocketCommunication;
 import common.messages.JSONSerializer;
 import common.messages.KVAdminMessage;
@@ -31,7 +32,7 @@ public class FaultDetecter extends Thread {
 
 	public FaultDetecter(ECServer ecServer) {
 		mECServer = ecServer;
-		socketCommunication = new SocketCommunication();
+		socketCommunication = new SocketCommunication(Link.HEARTBEAT);
 		stop = false;
 	}
 
@@ -61,7 +62,9 @@ public class FaultDetecter extends Thread {
 						logger.debug("FaultDetecter-->UnMarshaled response from KVServer:"
 								+socket.getInetAddress().getHostAddress()
 								+":"+socket.getPort()
-								+" is "+responseKVAdminMsg.getCommand().toString());
+								+" is "+responseKVAdminMsg.getCommand().toString()
+								+", stats="+responseKVAdminMsg.getStats());
+						mECServer.updateNodeStats(socket, responseKVAdminMsg.getStats());
 
 					} catch (IOException e) {
 						logger.error("FaultDetecter-->IOException while sending start command to KVServer:"
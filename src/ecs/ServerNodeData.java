@@ -1,5 +1,7 @@
 package ecs;
 
+import java.util.Map;
+
 /**
  * Meta class associated with each server node used by ECServer.
  *
@@ -11,6 +13,9 @@ public class ServerNodeData {
 	
 	//for failure detection
 	private boolean alive;
+
+	//storage counters reported with the last ECHO
+	private Map<String, Long> stats;
 	
 	public ServerNodeData(String nodeName, String ipAddress, String port, boolean alive){
 		this.nodeName=nodeName;
@@ -27,6 +32,14 @@ public class ServerNodeData {
 		this.alive = alive;
 	}
 
+	public Map<String, Long> getStats() {
+		return stats;
+	}
+
+	public void setStats(Map<String, Long> stats) {
+		this.stats = stats;
+	}
+
 	public String getNodeName() {
 		return nodeName;
 	}
@@ -1,4 +1,7 @@
 package metadata;
+
+import common.hashing.RingPosition;
+
 /**
  * Meta Data class for server node used for communication between Client and Server. 
  *
@@ -11,6 +14,12 @@ public class MetaData {
 	String rangeStart;
 	String rangeEnd;
 
+	/*
+	 * Parsed range, computed on first use.
+	 */
+	private RingPosition startPosition;
+	private RingPosition endPosition;
+
 	public MetaData(String ip, String port, String rangeStart, String rangeEnd) {
 		this.ip = ip;
 		this.port = port;
@@ -44,6 +53,7 @@ public class MetaData {
 
 	public void setRangeStart(String rangeStart) {
 		this.rangeStart = rangeStart;
+		this.startPosition = null;
 	}
 
 	public String getRangeEnd() {
@@ -52,6 +62,34 @@ public class MetaData {
 
 	public void setRangeEnd(String rangeEnd) {
 		this.rangeEnd = rangeEnd;
+		this.endPosition = null;
+	}
+
+	public RingPosition getRangeStartPosition() {
+		if (startPosition == null) {
+			startPosition = RingPosition.fromHex(rangeStart);
+		}
+		return startPosition;
+	}
+
+	public RingPosition getRangeEndPosition() {
+		if (endPosition == null) {
+			endPosition = RingPosition.fromHex(rangeEnd);
+		}
+		return endPosition;
+	}
+
+	/**
+	 * Checks whether a position on the ring is in the range (start, end] 
+	 * of this node.
+	 * 
+	 * @param position
+	 * 		position of a key.
+	 * @return
+	 * 		true if this node is in charge of the position.
+	 */
+	public boolean isResponsible(RingPosition position) {
+		return position.inRange(getRangeStartPosition(), getRangeEndPosition());
 	}
 
 	public boolean equals(MetaData metadata){
@@ -7,9 +7,18 @@ import java.io.StringReader;
 import java.math.BigInteger;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -18,15 +27,24 @@ import metadata.MetaData;
 
 import org.apache.log4j.Logger;
 
+import common.communication.CommunicationConfig;
+import common.communication.CommunicationConfig.Encryption;
+import common.communication.CommunicationConfig.Link;
 import common.communication.SocketCommunication;
+import common.hashing.RingPosition;
+import common.messages.BinarySerializer;
 import common.messages.JSONSerializer;
 import common.messages.KVAdminMessage;
 import common.messages.KVAdminMessage.Commands;
 import common.messages.KVAdminMessageImpl;
 import common.messages.KVMessage;
+import common.messages.KVMessage.Consistency;
 import common.messages.KVMessage.StatusType;
 import common.messages.KVMessageImpl;
+import common.messages.MessageCodec;
 import common.messages.TextMessage;
+import server.storage.ChunkManifest;
+import server.storage.StorageException;
 
 /**
  * Represents a connection end point for a particular client that is connected
@@ -52,6 +70,26 @@ public class ClientConnection implements Runnable {
 	//socket communication for sending and receiving socket messages
 	private SocketCommunication securedSocketCommunication;
 
+	//uploads of large values in progress on this connection, by key
+	private final Map<String, ChunkManifest> uploads = new ConcurrentHashMap<String, ChunkManifest>();
+
+	//true once the connection counts against the connection limit
+	private boolean admitted;
+	private boolean refused;
+	//true once another KVServer sent a message on the connection
+	private volatile boolean serverPeer;
+
+	//a connection not admitted is closed if its client does not retry within this time
+	static final int REFUSED_IDLE_TIMEOUT = 10000;
+
+	//messages less encrypted than configured for their link are rejected
+	private static final Map<Link, Encryption> requiredEncryption = new EnumMap<Link, Encryption>(Link.class);
+	static {
+		for (Link link : Link.values()) {
+			requiredEncryption.put(link, CommunicationConfig.getEncryption(link));
+		}
+	}
+
 	/**
 	 * Constructs a new CientConnection object for a given TCP socket.
 	 * 
@@ -61,7 +99,7 @@ public class ClientConnection implements Runnable {
 	public ClientConnection(Socket clientSocket) {
 		this.clientSocket = clientSocket;
 		this.isOpen = true;
-		securedSocketCommunication = new SocketCommunication();
+		securedSocketCommunication = SocketCommunication.forServer();
 	}
 
 	/**
@@ -83,62 +121,12 @@ public class ClientConnection implements Runnable {
 						break;
 					}
 
-					JsonObject jsonObject = null;
-					try {
-						jsonObject = Json.createReader(new StringReader(latestMsg.getMsg()))
-								.readObject();
-					} catch (Exception e) {
-						logger.error("ClientConnection:: Exception while converting txtMsg to jsonObject");
-					}
-
-					if (jsonObject == null) {
-						logger.error("ClientConnection:: run()-->jsonObject == null");
+					TextMessage reply = handleMessage(latestMsg,
+							securedSocketCommunication.getReceivedEncryption(clientSocket));
+					if (reply == null) {
 						break;
 					}
-
-					if (jsonObject.get("adminMsg")!=null) {						
-						logger.info("ClientConnection:: AdminMessage Received");
-						KVAdminMessage msg = processKVAdminMessage(latestMsg);
-						if(msg!=null){
-							logger.info("ClientConnection:: Sending Message to Admin with command:"+msg.getCommand().toString());
-							try{
-								TextMessage message = JSONSerializer.marshalKVAdminMsg(msg.getCommand());
-								logger.info("ClientConnection:: Sending from KVServer:"+message.getMsg().toString());
-								securedSocketCommunication.sendMessage(clientSocket,message);
-							}catch(Exception e){
-								logger.info("ClientConnection:: Could not send from KVServer:"+e);
-							}
-						}else{
-							break;
-						}
-					}else if(mECServerListener.isActiveForClients()) {
-						logger.info("ClientConnection:: KVClient message Received.");	
-						KVMessage msg = processKVMessage(latestMsg);	
-						if (msg != null) {
-							mPerfListener.calculateThroughput(latestMsg.getMsgBytes().length);//evaluation
-							if (msg.getStatus().equals(StatusType.SERVER_NOT_RESPONSIBLE)){
-								logger.info("ClientConnection::Sending SERVER_NOT_RESPONSIBLE back to KVClient");								
-								securedSocketCommunication.sendMessage(clientSocket, new TextMessage(JSONSerializer
-										.Marshal(msg)));
-							}else{
-								logger.info("ClientConnection::Message was handled: "
-										+msg.getKey()+","+msg.getValue()+","+msg.getStatus().ordinal());
-								securedSocketCommunication.sendMessage(clientSocket, JSONSerializer.marshal(msg));
-							}
-						} else {
-							logger.error("ClientConnection:: msg = null");
-							break;
-						}
-
-
-					}else{
-						KVMessageImpl kvmessage = JSONSerializer
-								.unMarshal(latestMsg);
-						securedSocketCommunication.sendMessage(clientSocket,JSONSerializer
-								.marshal(kvmessage.getKey(),
-										kvmessage.getValue(),
-										StatusType.SERVER_STOPPED));
-					}
+					securedSocketCommunication.sendMessage(clientSocket, reply);
 
 					/*
 					 * connection either terminated by the client or lost due to
@@ -155,6 +143,8 @@ public class ClientConnection implements Runnable {
 
 		} finally {
 			logger.debug("run()-->finally: Closing socket and streams");
+			releaseConnection();
+			abortUploads();
 			try {
 				if (clientSocket != null) {
 					input.close();
@@ -168,28 +158,168 @@ public class ClientConnection implements Runnable {
 
 	}
 
+	/**
+	 * Handles a message received from a KVClient, another KVServer or the 
+	 * ECServer. Used by run() and by the NioServer, which reads the messages 
+	 * itself. The message is decoded once, as JSON or binary, and the reply
+	 * is encoded the same way.
+	 * 
+	 * @param latestMsg
+	 * 			the (decrypted) message received.
+	 * @param encryption
+	 * 			how the message was encrypted, it is rejected if that is 
+	 * 			less than configured for its link.
+	 * @return the reply to be sent back, null if the connection has to be closed.
+	 */
+	public TextMessage handleMessage(TextMessage latestMsg, Encryption encryption) {
+		return handleMessage(latestMsg, encryption, false, false);
+	}
+
+	/**
+	 * Handles a message like handleMessage(latestMsg, encryption) for a 
+	 * caller which counted it as a request in flight already, like the 
+	 * NioServer does while it waits for a worker.
+	 * 
+	 * @param busy
+	 * 			true if the request is over the limit of requests in flight.
+	 */
+	public TextMessage handleMessage(TextMessage latestMsg, Encryption encryption, boolean busy) {
+		return handleMessage(latestMsg, encryption, true, busy);
+	}
+
+	/**
+	 * Client requests count as requests in flight while they are handled 
+	 * and are answered with SERVER_BUSY if the server is busy or the 
+	 * connection is over the connection limit. Messages of the ECServer 
+	 * and the other KVServers are always handled and not counted.
+	 * 
+	 * @param counted
+	 * 			true if the caller counted the message already.
+	 */
+	private TextMessage handleMessage(TextMessage latestMsg, Encryption encryption, boolean counted, boolean busy) {
+		MessageCodec codec = MessageCodec.of(latestMsg);
+		KVAdminMessageImpl adminMsg = null;
+		KVMessageImpl kvmessage = null;
+		try {
+			if (latestMsg.isBinary()) {
+				if (BinarySerializer.isAdminMsg(latestMsg)) {
+					adminMsg = BinarySerializer.unmarshalKVAdminMsg(latestMsg);
+				} else {
+					kvmessage = BinarySerializer.unMarshal(latestMsg);
+				}
+			} else {
+				JsonObject jsonObject = Json.createReader(new StringReader(latestMsg.getMsg()))
+						.readObject();
+				if (jsonObject.get("adminMsg")!=null) {
+					adminMsg = JSONSerializer.unmarshalKVAdminMsg(jsonObject);
+				} else {
+					kvmessage = JSONSerializer.unMarshal(jsonObject);
+				}
+			}
+		} catch (Exception e) {
+			logger.error("ClientConnection:: Exception while decoding message: " + e);
+			return null;
+		}
+
+		Link link = linkOf(adminMsg, kvmessage);
+		if (encryption == null || encryption.compareTo(requiredEncryption.get(link)) < 0) {
+			logger.error("ClientConnection:: Rejecting message encrypted " + encryption 
+					+ " on the " + link + " link, which requires " + requiredEncryption.get(link));
+			return null;
+		}
+
+		if (adminMsg != null) {						
+			logger.info("ClientConnection:: AdminMessage Received");
+			KVAdminMessage msg = processKVAdminMessage(adminMsg);
+			if(msg==null){
+				return null;
+			}
+			logger.info("ClientConnection:: Sending Message to Admin with command:"+msg.getCommand().toString());
+			TextMessage message = codec.marshalKVAdminMsg(msg.getCommand(), msg.getStats());
+			logger.info("ClientConnection:: Sending from KVServer:"+message.getMsg().toString());
+			return message;
+
+		}else if(mECServerListener.isActiveForClients()) {
+			logger.info("ClientConnection:: KVClient message Received.");	
+			boolean clientRequest = isClientRequest(kvmessage.getStatus());
+			if (!clientRequest) {
+				serverPeer = true;
+			}
+			LoadLimit load = mKVServerListener.getLoadLimit();
+			boolean started = false;
+			if (clientRequest && !counted) {
+				started = load.startRequest();
+				busy = !started;
+			}
+			try {
+				if (clientRequest && (busy || !admitConnection())) {
+					load.shed();
+					logger.info("ClientConnection:: Server busy, rejecting " + kvmessage.getStatus());
+					KVMessageImpl msg = new KVMessageImpl(kvmessage.getKey(), "", StatusType.SERVER_BUSY);
+					msg.setId(kvmessage.getId());
+					return codec.marshal(msg);
+				}
+				KVMessageImpl msg = processKVMessage(kvmessage);	
+				if (msg == null) {
+					logger.error("ClientConnection:: msg = null");
+					return null;
+				}
+				//the client matches the reply to its request by the id
+				msg.setId(kvmessage.getId());
+				mPerfListener.calculateThroughput(latestMsg.getMsgBytes().length);//evaluation
+				if (msg.getStatus().equals(StatusType.SERVER_NOT_RESPONSIBLE)){
+					logger.info("ClientConnection::Sending SERVER_NOT_RESPONSIBLE back to KVClient");								
+				}else{
+					logger.info("ClientConnection::Message was handled: "
+							+msg.getKey()+","+msg.getValue()+","+msg.getStatus().ordinal());
+				}
+				return codec.marshal(msg);
+			} finally {
+				if (started) {
+					load.finishRequest();
+				}
+			}
+
+		}else{
+			KVMessageImpl msg = new KVMessageImpl(kvmessage.getKey(),
+					kvmessage.getValue(),
+					StatusType.SERVER_STOPPED);
+			msg.setId(kvmessage.getId());
+			return codec.marshal(msg);
+		}
+	}
+
 	/**
 	 * Processes the client requests and returns the corresponding server's reply
 	 * @param request the client request
 	 * @return server's reply accordingly to client's request
 	 */
 	public KVMessageImpl processKVMessage(TextMessage request) {
+		return processKVMessage(MessageCodec.unMarshal(request));
+	}
 
-		KVMessageImpl kvmessage = JSONSerializer.unMarshal(request);
+	/**
+	 * Processes the decoded client requests and returns the corresponding server's reply
+	 * @param kvmessage the client request
+	 * @return server's reply accordingly to client's request
+	 */
+	private KVMessageImpl processKVMessage(KVMessageImpl kvmessage) {
 
 		logger.info("ClientConnection::processKVMessage()+ isLockWrite="+mECServerListener.isLockWrite());
 
-		boolean replicaEnvironment = false;
-
-		//if replica environment exists (should be atleast 3 nodes)
-		if(mECServerListener.getServiceMetaData().size()>2){
-			replicaEnvironment = true;
-		}
+		//if replica environment exists (should be atleast as many nodes as the replication factor)
+		boolean replicaEnvironment = mECServerListener.isReplicating();
 		logger.info("ClientConnection::processKVMessage()+ replicaEnvironment="+replicaEnvironment);
 
 
 		if(kvmessage.getStatus().equals(StatusType.GET)){
-			//if replica environment exists (should be atleast 3 nodes)
+			//a read of more than one copy is done by the coordinator
+			if (replicaEnvironment && kvmessage.getConsistency() != null
+					&& kvmessage.getConsistency() != Consistency.ONE) {
+				return processConsistentGet(kvmessage);
+			}
+
+			//if replica environment exists (should be atleast as many nodes as the replication factor)
 			if(!replicaEnvironment){
 
 				if (serverNotResponsibleForWrite(kvmessage)){
@@ -210,23 +340,10 @@ public class ClientConnection implements Runnable {
 			}			
 
 			String value = mKVServerListener.get(kvmessage.getKey());
+			kvmessage = getReply(kvmessage.getKey(), value);
 
-			if (value != null) {
-				// GET_SUCCESS
-				kvmessage = new KVMessageImpl(kvmessage.getKey(), value,
-						StatusType.GET_SUCCESS);
-				logger.info("GET SUCCESS! Found key=" + kvmessage.getKey()
-						+ " on Server with value=" + kvmessage.getValue());
-
-			} else {
-				// GET_ERROR
-				kvmessage = new KVMessageImpl(kvmessage.getKey(), "",
-						StatusType.GET_ERROR);
-				logger.info("GET ERROR! Cannot find key=" + kvmessage.getKey()
-						+ " on Server");
-			}
-
-		} else if (!mECServerListener.isLockWrite() && kvmessage.getStatus().equals(StatusType.PUT)) {
+		} else if (!mECServerListener.isLockWrite() && (kvmessage.getStatus().equals(StatusType.PUT)
+				|| kvmessage.getStatus().equals(StatusType.MOVE_PUT))) {
 			//We first check whether this KVServer has been locked for writing by Admin (ECSServer).
 			
 			if(!replicaEnvironment){
@@ -247,69 +364,33 @@ public class ClientConnection implements Runnable {
 						StatusType.SERVER_NOT_RESPONSIBLE, mECServerListener.getServiceMetaData());
 			}
 			
+			//moved pairs include the chunk records and manifests of large values
+			if (kvmessage.getStatus().equals(StatusType.PUT)
+					&& ChunkManifest.isReserved(kvmessage.getKey(), kvmessage.getValue())) {
+				logger.info("PUT ERROR! Reserved key or value for key="+kvmessage.getKey());
+				return new KVMessageImpl(kvmessage.getKey(),
+						kvmessage.getValue(), StatusType.PUT_ERROR);
+			}
+
 			//Client message to delete this key
 			if (kvmessage.getValue().isEmpty()) {
-				String previous_value = mKVServerListener.delete(kvmessage
-						.getKey());
-				if(replicaEnvironment){
-					try {
-
-						logger.debug("Replica 1 info "+mECServerListener.getMyReplica1MetaData().getIP()+":"+
-								mECServerListener.getMyReplica1MetaData().getPort());
-						logger.debug("Replica 1 socket "+mECServerListener.getMyReplica1Socket());
-						if(replicaEnvironment){
-							//Message to be deleted from Replicas
-							KVMessageImpl myReplicaMsg = new KVMessageImpl(kvmessage.getKey(), "", StatusType.REPLICA_PUT);
-
-							//Deleting from replica 1
-							securedSocketCommunication.sendMessage(mECServerListener.getMyReplica1Socket(), JSONSerializer.marshal(myReplicaMsg));
-
-							TextMessage txtMsgReply = securedSocketCommunication.receiveMessage(mECServerListener.getMyReplica1Socket());
-
-							KVMessageImpl myReplica1MsgReply = JSONSerializer.unMarshal(txtMsgReply);
-
-							logger.debug("Replica 1 deletion reply:"+txtMsgReply);
-							if(myReplica1MsgReply.getStatus().equals(StatusType.REPLICA_DELETE_SUCCESS)) {
-								//Replication success
-								logger.info("Replication 1 deletion success");
-							} else {
-								//Replication failure
-								logger.error("Replication 1 deletion error");
-							}
-
-
-							logger.debug("Replica 2 info "+mECServerListener.getMyReplica2MetaData().getIP()+":"+
-									mECServerListener.getMyReplica2MetaData().getPort());
-							logger.debug("Replica 2 socket "+mECServerListener.getMyReplica2Socket());
-
-							//Deleting from replica 2
-							securedSocketCommunication.sendMessage(mECServerListener.getMyReplica2Socket(), JSONSerializer.marshal(myReplicaMsg));
-
-							TextMessage txtMsgReply2 = securedSocketCommunication.receiveMessage(mECServerListener.getMyReplica2Socket());
-
-							KVMessageImpl myReplica2MsgReply = JSONSerializer.unMarshal(txtMsgReply2);
-
-
-							logger.debug("Replica 2 deletion reply:"+txtMsgReply2);
-							if(myReplica2MsgReply.getStatus().equals(StatusType.REPLICA_DELETE_SUCCESS)) {
-								//Replication success
-								logger.info("Replication 2 deletion success");
-							} else {
-								//Replication failure
-								logger.error("Replication 2 deletion error");
-							}
-						}
-
-
-					} catch (NumberFormatException e) {
-						logger.error("NumberFormatException while replicating delete"+Arrays.toString(e.getStackTrace()));
-					} catch (UnknownHostException e) {
-						logger.error("UnknownHostException while replicating delete"+Arrays.toString(e.getStackTrace()));
-					} catch (IOException e) {
-						logger.error("IOException while replicating delete"+Arrays.toString(e.getStackTrace()));
-					} catch (Exception e) {
-						logger.error("Exception while replicating delete"+Arrays.toString(e.getStackTrace()));
-					}
+				String previous_value;
+				KVMessageImpl replicaMsg = new KVMessageImpl(kvmessage.getKey(), "", StatusType.REPLICA_PUT);
+				LogAppend appended = replicaEnvironment ? logAppend(replicaMsg) : null;
+				try {
+					previous_value = mKVServerListener.delete(kvmessage.getKey(), appended);
+				} catch (StorageException e) {
+					logger.error("DELETE ERROR! Storage failed for key=" + kvmessage.getKey() + ": " + e);
+					return new KVMessageImpl(kvmessage.getKey(),
+							kvmessage.getValue(), StatusType.DELETE_ERROR);
+				}
+				//Deleting from the replicas
+				if(replicaEnvironment && !replicate(replicaMsg, kvmessage.getConsistency(), appended)){
+					// the delete is not undone, the replicas which confirmed it have it too
+					logger.info("DELETE UNCONFIRMED! Too few replicas confirmed the delete of key="
+							+ kvmessage.getKey());
+					return new KVMessageImpl(kvmessage.getKey(),
+							kvmessage.getValue(), StatusType.WRITE_UNCONFIRMED);
 				}
 
 				if (previous_value != null) {
@@ -325,69 +406,31 @@ public class ClientConnection implements Runnable {
 				}
 
 			} else {
+				if (!mKVServerListener.admitPut(kvmessage.getKey(), kvmessage.getValue())) {
+					logger.info("PUT REJECTED! Memory budget used up for key="+kvmessage.getKey());
+					return new KVMessageImpl(kvmessage.getKey(),
+							kvmessage.getValue(), StatusType.SERVER_MEMORY_FULL);
+				}
+
 				//Client request to put the key value pair on server
-				String previous_value = mKVServerListener.put(
-						kvmessage.getKey(), kvmessage.getValue());
+				String previous_value;
+				KVMessageImpl replicaMsg = new KVMessageImpl(kvmessage.getKey(), kvmessage.getValue(), StatusType.REPLICA_PUT);
+				LogAppend appended = replicaEnvironment ? logAppend(replicaMsg) : null;
+				try {
+					previous_value = mKVServerListener.put(kvmessage.getKey(), kvmessage.getValue(), appended);
+				} catch (StorageException e) {
+					logger.error("PUT ERROR! Storage failed for key=" + kvmessage.getKey() + ": " + e);
+					return new KVMessageImpl(kvmessage.getKey(),
+							kvmessage.getValue(), StatusType.PUT_ERROR);
+				}
 
 				//Replicating the PUT to replicas
-				if(replicaEnvironment){
-					try {
-						logger.debug("Replica 1 info "+mECServerListener.getMyReplica1MetaData().getIP()+":"+
-								mECServerListener.getMyReplica1MetaData().getPort());
-						logger.debug("Replica 1 socket "+mECServerListener.getMyReplica1Socket());
-
-						//message to be replicated
-						KVMessageImpl myReplicaMsg = new KVMessageImpl(kvmessage.getKey(), kvmessage.getValue(), StatusType.REPLICA_PUT);
-
-						//Copying to replica 1
-						securedSocketCommunication.sendMessage(mECServerListener.getMyReplica1Socket(), JSONSerializer.marshal(myReplicaMsg));
-
-						TextMessage txtMsgReply = securedSocketCommunication.receiveMessage(mECServerListener.getMyReplica1Socket());
-
-						KVMessageImpl myReplica1MsgReply = JSONSerializer.unMarshal(txtMsgReply);
-
-						logger.debug("Replica 1 put reply:"+txtMsgReply);
-						if(myReplica1MsgReply.getStatus().equals(StatusType.REPLICA_PUT_SUCCESS)
-								||myReplica1MsgReply.getStatus().equals(StatusType.REPLICA_PUT_UPDATE)) {
-							//Replication success
-							logger.info("Replication 1 put success");
-						} else {
-							//Replication failure
-							logger.error("Replication 1 put error");
-						}
-
-						logger.debug("Replica 2 info "+mECServerListener.getMyReplica2MetaData().getIP()+":"+
-								mECServerListener.getMyReplica2MetaData().getPort());
-						logger.debug("Replica 2 socket "+mECServerListener.getMyReplica2Socket());
-
-						//Copying to replica 2	
-						securedSocketCommunication.sendMessage(mECServerListener.getMyReplica2Socket(), JSONSerializer.marshal(myReplicaMsg));
-
-						TextMessage txtMsgReply2 = securedSocketCommunication.receiveMessage(mECServerListener.getMyReplica2Socket());
-
-						KVMessageImpl myReplica2MsgReply = JSONSerializer.unMarshal(txtMsgReply2);
-
-						logger.debug("Replica 2 put reply:"+txtMsgReply2);
-
-						if(myReplica2MsgReply.getStatus().equals(StatusType.REPLICA_PUT_SUCCESS)
-								||myReplica2MsgReply.getStatus().equals(StatusType.REPLICA_PUT_UPDATE)) {
-							//Replication success
-							logger.info("Replication 2 put success");
-						} else {
-							//Replication failure
-							logger.error("Replication 2 put error");
-						}
-
-
-					} catch (NumberFormatException e) {
-						logger.error("NumberFormatException while replicating PUT"+Arrays.toString(e.getStackTrace()));
-					} catch (UnknownHostException e) {
-						logger.error("UnknownHostException while replicating PUT"+Arrays.toString(e.getStackTrace()));
-					} catch (IOException e) {
-						logger.error("IOException while replicating PUT"+Arrays.toString(e.getStackTrace()));
-					} catch (Exception e) {
-						logger.error("Exception while replicating PUT"+Arrays.toString(e.getStackTrace()));
-					}
+				if(replicaEnvironment && !replicate(replicaMsg, kvmessage.getConsistency(), appended)){
+					// the put is not undone, the replicas which confirmed it have it too
+					logger.info("PUT UNCONFIRMED! Too few replicas confirmed the put of key="
+							+ kvmessage.getKey());
+					return new KVMessageImpl(kvmessage.getKey(),
+							kvmessage.getValue(), StatusType.WRITE_UNCONFIRMED);
 				}
 				if (previous_value != null) {
 					// PUT_UPDATE
@@ -413,8 +456,15 @@ public class ClientConnection implements Runnable {
 		} else if (kvmessage.getStatus().equals(StatusType.REPLICA_PUT)) {
 			//Coordinator node request to put key-value pair on this replica server
 			if (kvmessage.getValue().isEmpty()) {
-				String previous_value = mKVServerListener.delete(kvmessage
-						.getKey());
+				String previous_value;
+				try {
+					previous_value = mKVServerListener.delete(kvmessage.getKey());
+				} catch (StorageException e) {
+					// REPLICA_DELETE_ERROR means the key is gone here, which it may not be
+					logger.error("Replica DELETE ERROR! Storage failed for key=" + kvmessage.getKey() + ": " + e);
+					return new KVMessageImpl(kvmessage.getKey(),
+							kvmessage.getValue(), StatusType.REPLICA_PUT_ERROR);
+				}
 
 				if (previous_value != null) {
 					logger.info("Replica DELETE SUCCESS! Deleted key="
@@ -428,10 +478,21 @@ public class ClientConnection implements Runnable {
 							kvmessage.getValue(), StatusType.REPLICA_DELETE_ERROR);
 				}
 
+			} else if (!mKVServerListener.admitPut(kvmessage.getKey(), kvmessage.getValue())) {
+				logger.info("Replica PUT REJECTED! Memory budget used up for key="+kvmessage.getKey());
+				kvmessage = new KVMessageImpl(kvmessage.getKey(),
+						kvmessage.getValue(), StatusType.REPLICA_PUT_ERROR);
+
 			} else {
 				//Coordinator request to put the key value pair on this replica server
-				String previous_value = mKVServerListener.put(
-						kvmessage.getKey(), kvmessage.getValue());
+				String previous_value;
+				try {
+					previous_value = mKVServerListener.put(kvmessage.getKey(), kvmessage.getValue());
+				} catch (StorageException e) {
+					logger.error("Replica PUT ERROR! Storage failed for key=" + kvmessage.getKey() + ": " + e);
+					return new KVMessageImpl(kvmessage.getKey(),
+							kvmessage.getValue(), StatusType.REPLICA_PUT_ERROR);
+				}
 
 				if (previous_value != null) {
 					// PUT_UPDATE
@@ -453,213 +514,723 @@ public class ClientConnection implements Runnable {
 				}
 
 			}
+		}else if (kvmessage.getStatus().equals(StatusType.REPLICA_GET)){
+			//Coordinator request for the copy of this replica server, as stored
+			String value = mKVServerListener.get(kvmessage.getKey());
+			kvmessage = new KVMessageImpl(kvmessage.getKey(), value != null ? value : "",
+					value != null ? StatusType.GET_SUCCESS : StatusType.GET_ERROR);
+
 		}else if (kvmessage.getStatus().equals(StatusType.DELETE_TOPOLOGICAL)){
-			//delete replica2's data
-			
-			logger.info("processKVMessage() + DELETE_TOPOLOGICAL --> deleting replica2's Data from this server.");
-			mECServerListener.deleteDataBetween(mECServerListener.getReplica2MetaData());
+			//delete the data of the farthest node replicated here
+			List<MetaData> replicas = mECServerListener.getReplicasMetaData();
+			if(!replicas.isEmpty()){
+				logger.info("processKVMessage() + DELETE_TOPOLOGICAL --> deleting replica"+replicas.size()+"'s Data from this server.");
+				mECServerListener.deleteDataBetween(replicas.get(replicas.size()-1));
+			}
+
+		}else if (kvmessage.getStatus().equals(StatusType.BATCH_GET)){
+			kvmessage = processBatchGet(kvmessage, replicaEnvironment);
+
+		}else if (kvmessage.getStatus().equals(StatusType.BATCH_PUT)){
+			kvmessage = processBatchPut(kvmessage, replicaEnvironment);
+
+		}else if (kvmessage.getStatus().equals(StatusType.REPLICA_BATCH_PUT)){
+			kvmessage = processReplicaBatchPut(kvmessage);
 
+		}else if (kvmessage.getStatus().equals(StatusType.PUT_CHUNK)
+				|| kvmessage.getStatus().equals(StatusType.PUT_COMMIT)){
+			kvmessage = processPutChunk(kvmessage, replicaEnvironment);
+
+		}else if (kvmessage.getStatus().equals(StatusType.GET_CHUNK)){
+			kvmessage = processGetChunk(kvmessage, replicaEnvironment);
 		}
 		return kvmessage;
 
 	}
 
 	/**
-	 * Checks whether the KVServer is Coordinator node for 
-	 * key value pair associated with this KVMessage.
+	 * Reads the keys of a batch this server is responsible for. The other 
+	 * keys are answered with SERVER_NOT_RESPONSIBLE and the metadata is sent
+	 * along, so the client can send them to the right server.
 	 * 
-	 * @param kvmessage
-	 * 		KVMessage received for write operation
-	 * @return 
-	 * 		Returns true if the server is not in charge of the particular request
+	 * @param request the batch of keys
+	 * @param replicaEnvironment true if the replicas can serve reads
+	 * @return BATCH_RESULT with a GET_SUCCESS, GET_ERROR or 
+	 * 		SERVER_NOT_RESPONSIBLE entry per key
 	 */
-	private boolean serverNotResponsibleForWrite(KVMessage kvmessage) {
+	private KVMessageImpl processBatchGet(KVMessageImpl request, boolean replicaEnvironment) {
+		List<KVMessage> results = new ArrayList<KVMessage>(request.getBatch().size());
+		boolean notResponsible = false;
+		for (KVMessage entry : request.getBatch()) {
+			if (replicaEnvironment ? serverNotResponsibleForRead(entry) : serverNotResponsibleForWrite(entry)) {
+				results.add(new KVMessageImpl(entry.getKey(), "", StatusType.SERVER_NOT_RESPONSIBLE));
+				notResponsible = true;
+				continue;
+			}
+			String value = mKVServerListener.get(entry.getKey());
+			if (ChunkManifest.isManifest(value)) {
+				results.add(new KVMessageImpl(entry.getKey(), 
+						ChunkManifest.parse(value).getDescriptor(), StatusType.GET_CHUNKED));
+			} else if (value != null) {
+				results.add(new KVMessageImpl(entry.getKey(), value, StatusType.GET_SUCCESS));
+			} else {
+				results.add(new KVMessageImpl(entry.getKey(), "", StatusType.GET_ERROR));
+			}
+		}
+		logger.info("ClientConnection::processBatchGet() + Read batch of " + results.size() + " keys");
+		return batchResult(results, notResponsible);
+	}
 
-		BigInteger key = new BigInteger(getMD5(kvmessage.getKey()),16);
+	/**
+	 * Writes the pairs of a batch this server is responsible for to the 
+	 * storage as one unit, and sends them to each replica in one 
+	 * REPLICA_BATCH_PUT.
+	 * 
+	 * @param request the batch of pairs, an empty value deletes the key
+	 * @param replicaEnvironment true if the writes have to be replicated
+	 * @return BATCH_RESULT with a status per key
+	 */
+	private KVMessageImpl processBatchPut(KVMessageImpl request, boolean replicaEnvironment) {
+		List<KVMessage> entries = request.getBatch();
+		KVMessage[] results = new KVMessage[entries.size()];
+		List<Entry<String, String>> writes = new ArrayList<Entry<String, String>>();
+		List<Integer> written = new ArrayList<Integer>();
+		List<KVMessage> replicated = new ArrayList<KVMessage>();
+		boolean notResponsible = false;
+
+		for (int i = 0; i < entries.size(); i++) {
+			KVMessage entry = entries.get(i);
+			if (mECServerListener.isLockWrite()) {
+				results[i] = new KVMessageImpl(entry.getKey(), entry.getValue(), StatusType.SERVER_WRITE_LOCK);
+			} else if (serverNotResponsibleForWrite(entry)) {
+				results[i] = new KVMessageImpl(entry.getKey(), entry.getValue(), StatusType.SERVER_NOT_RESPONSIBLE);
+				notResponsible = true;
+			} else if (ChunkManifest.isReserved(entry.getKey(), entry.getValue())) {
+				results[i] = new KVMessageImpl(entry.getKey(), entry.getValue(), StatusType.PUT_ERROR);
+			} else if (!entry.getValue().isEmpty() && !mKVServerListener.admitPut(entry.getKey(), entry.getValue())) {
+				results[i] = new KVMessageImpl(entry.getKey(), entry.getValue(), StatusType.SERVER_MEMORY_FULL);
+			} else {
+				writes.add(new SimpleImmutableEntry<String, String>(entry.getKey(),
+						entry.getValue().isEmpty() ? null : entry.getValue()));
+				written.add(i);
+				replicated.add(new KVMessageImpl(entry.getKey(), entry.getValue(), StatusType.REPLICA_PUT));
+			}
+		}
 
-		BigInteger startServer = new BigInteger(mECServerListener.getNodeMetaData().getRangeStart(),16);
-		BigInteger endServer = new BigInteger(mECServerListener.getNodeMetaData().getRangeEnd(),16);
+		KVMessageImpl replicaMsg = new KVMessageImpl("", "", StatusType.REPLICA_BATCH_PUT);
+		replicaMsg.setBatch(replicated);
+		LogAppend appended = replicaEnvironment && !replicated.isEmpty() ? logAppend(replicaMsg) : null;
+		List<String> previous;
+		try {
+			previous = mKVServerListener.putAll(writes, appended);
+		} catch (StorageException e) {
+			logger.error("ClientConnection::processBatchPut() + Storage failed: " + e);
+			for (int j : written) {
+				KVMessage entry = entries.get(j);
+				results[j] = new KVMessageImpl(entry.getKey(), entry.getValue(),
+						entry.getValue().isEmpty() ? StatusType.DELETE_ERROR : StatusType.PUT_ERROR);
+			}
+			return batchResult(Arrays.asList(results), notResponsible);
+		}
+		for (int j = 0; j < written.size(); j++) {
+			KVMessage entry = entries.get(written.get(j));
+			String previousValue = previous.get(j);
+			if (entry.getValue().isEmpty()) {
+				results[written.get(j)] = previousValue != null
+						? new KVMessageImpl(entry.getKey(), previousValue, StatusType.DELETE_SUCCESS)
+						: new KVMessageImpl(entry.getKey(), "", StatusType.DELETE_ERROR);
+			} else {
+				results[written.get(j)] = new KVMessageImpl(entry.getKey(), entry.getValue(),
+						previousValue != null ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS);
+			}
+		}
+		logger.info("ClientConnection::processBatchPut() + Wrote " + writes.size() + " of " + entries.size() + " pairs");
+
+		if (replicaEnvironment && !replicated.isEmpty()) {
+			if (!replicate(replicaMsg, request.getConsistency(), appended)) {
+				logger.info("ClientConnection::processBatchPut() + Too few replicas confirmed the batch");
+				for (int j : written) {
+					KVMessage entry = entries.get(j);
+					results[j] = new KVMessageImpl(entry.getKey(), entry.getValue(), StatusType.WRITE_UNCONFIRMED);
+				}
+			}
+		}
+		return batchResult(Arrays.asList(results), notResponsible);
+	}
 
+	/**
+	 * Writes a batch replicated by its coordinator as one unit.
+	 * 
+	 * @param request the batch of pairs, an empty value deletes the key
+	 * @return BATCH_RESULT with a REPLICA status per key
+	 */
+	private KVMessageImpl processReplicaBatchPut(KVMessageImpl request) {
+		List<KVMessage> entries = request.getBatch();
+		KVMessage[] results = new KVMessage[entries.size()];
+		List<Entry<String, String>> writes = new ArrayList<Entry<String, String>>();
+		List<Integer> written = new ArrayList<Integer>();
+
+		for (int i = 0; i < entries.size(); i++) {
+			KVMessage entry = entries.get(i);
+			if (!entry.getValue().isEmpty() && !mKVServerListener.admitPut(entry.getKey(), entry.getValue())) {
+				results[i] = new KVMessageImpl(entry.getKey(), entry.getValue(), StatusType.REPLICA_PUT_ERROR);
+			} else {
+				writes.add(new SimpleImmutableEntry<String, String>(entry.getKey(),
+						entry.getValue().isEmpty() ? null : entry.getValue()));
+				written.add(i);
+			}
+		}
 
-		BigInteger maximum = new BigInteger("ffffffffffffffffffffffffffffffff",16);
+		List<String> previous;
+		try {
+			previous = mKVServerListener.putAll(writes);
+		} catch (StorageException e) {
+			logger.error("ClientConnection::processReplicaBatchPut() + Storage failed: " + e);
+			for (int j : written) {
+				KVMessage entry = entries.get(j);
+				results[j] = new KVMessageImpl(entry.getKey(), entry.getValue(), StatusType.REPLICA_PUT_ERROR);
+			}
+			return batchResult(Arrays.asList(results), false);
+		}
+		for (int j = 0; j < written.size(); j++) {
+			KVMessage entry = entries.get(written.get(j));
+			String previousValue = previous.get(j);
+			StatusType status;
+			if (entry.getValue().isEmpty()) {
+				status = previousValue != null ? StatusType.REPLICA_DELETE_SUCCESS : StatusType.REPLICA_DELETE_ERROR;
+			} else {
+				status = previousValue != null ? StatusType.REPLICA_PUT_UPDATE : StatusType.REPLICA_PUT_SUCCESS;
+			}
+			results[written.get(j)] = new KVMessageImpl(entry.getKey(), entry.getValue(), status);
+		}
+		logger.info("ClientConnection::processReplicaBatchPut() + Wrote " + writes.size() + " of " + entries.size() + " replicated pairs");
+		return batchResult(Arrays.asList(results), false);
+	}
 
-		BigInteger minimum = new BigInteger("00000000000000000000000000000000",16);
+	/**
+	 * Adds the next chunk of a large value to the upload of its key on this
+	 * connection, and stores the value on PUT_COMMIT. Each chunk is stored
+	 * as a record of its own, so the value is never held as a whole. The 
+	 * replicas get the chunks once the upload is complete, so they never
+	 * hold a partial upload.
+	 * 
+	 * @param request the chunk, which may be empty for PUT_COMMIT
+	 * @param replicaEnvironment true if the value has to be replicated
+	 * @return PUT_CHUNK for a chunk stored, PUT_SUCCESS or PUT_UPDATE when the 
+	 * 		value is stored, otherwise the error, which ends the upload
+	 */
+	private KVMessageImpl processPutChunk(KVMessageImpl request, boolean replicaEnvironment) {
+		String key = request.getKey();
+		String chunk = request.getValue();
+		ChunkManifest upload = uploads.remove(key);
+
+		StatusType error = null;
+		if (mECServerListener.isLockWrite()) {
+			error = StatusType.SERVER_WRITE_LOCK;
+		} else if (serverNotResponsibleForWrite(request)) {
+			error = StatusType.SERVER_NOT_RESPONSIBLE;
+		} else if (ChunkManifest.isReserved(key, chunk)) {
+			error = StatusType.PUT_ERROR;
+		} else if (!chunk.isEmpty()) {
+			if (upload == null) {
+				upload = ChunkManifest.start();
+			}
+			String chunkKey = upload.chunkKey(key, upload.getCount());
+			if (!mKVServerListener.admitPut(chunkKey, chunk)) {
+				error = StatusType.SERVER_MEMORY_FULL;
+			} else {
+				try {
+					mKVServerListener.put(chunkKey, chunk);
+					upload = upload.append(chunk.length());
+				} catch (StorageException e) {
+					logger.error("ClientConnection::processPutChunk() + Storage failed for key=" + key + ": " + e);
+					error = StatusType.PUT_ERROR;
+				}
+			}
+		} else if (upload == null) {
+			// an empty value is a delete, which is no upload
+			error = StatusType.PUT_ERROR;
+		}
+		if (error != null) {
+			logger.info("ClientConnection::processPutChunk() + Upload of key=" + key + " ended with " + error);
+			if (upload != null) {
+				mKVServerListener.deleteChunks(key, upload);
+			}
+			return new KVMessageImpl(key, "", error, 
+					error == StatusType.SERVER_NOT_RESPONSIBLE ? mECServerListener.getServiceMetaData() : null);
+		}
 
-		logger.info("ClientConnection::serverNotResponsible() + key="+key
-				+", Server's start="+startServer
-				+", Server's end="+endServer
-				+", Maximum ="+maximum
-				+", Minimum ="+minimum);
+		if (request.getStatus().equals(StatusType.PUT_CHUNK)) {
+			uploads.put(key, upload);
+			return new KVMessageImpl(key, "", StatusType.PUT_CHUNK);
+		}
 
-		if(startServer.compareTo(endServer)<0){
-			if (key.compareTo(startServer) > 0 && 
-					key.compareTo(endServer) <= 0){
+		boolean replicated = true;
+		if (replicaEnvironment) {
+			for (int i = 0; i < upload.getCount(); i++) {
+				String chunkKey = upload.chunkKey(key, i);
+				replicated &= replicatePut(chunkKey, mKVServerListener.get(chunkKey), request.getConsistency());
+			}
+		}
+		String previous;
+		KVMessageImpl replicaMsg = new KVMessageImpl(key, upload.toValue(), StatusType.REPLICA_PUT);
+		LogAppend appended = replicaEnvironment ? logAppend(replicaMsg) : null;
+		try {
+			previous = mKVServerListener.put(key, upload.toValue(), appended);
+		} catch (StorageException e) {
+			logger.error("PUT ERROR! Storage failed for key=" + key + ": " + e);
+			mKVServerListener.deleteChunks(key, upload);
+			return new KVMessageImpl(key, "", StatusType.PUT_ERROR);
+		}
+		if (replicaEnvironment) {
+			replicated &= replicate(replicaMsg, request.getConsistency(), appended);
+		}
+		if (!replicated) {
+			logger.info("PUT UNCONFIRMED! Too few replicas confirmed the chunks of key=" + key);
+			return new KVMessageImpl(key, "", StatusType.WRITE_UNCONFIRMED);
+		}
+		logger.info("PUT SUCCESS! Stored key=" + key + " in " + upload.getCount() 
+				+ " chunks of " + upload.getLength() + " chars");
+		return new KVMessageImpl(key, "", previous != null ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS);
+	}
 
-				logger.info("ClientConnection::serverNotResponsible(start<end) + return false");
-				return false;
+	/**
+	 * Reads a chunk of a large value.
+	 * 
+	 * @param request the key, with upload:index as value
+	 * @param replicaEnvironment true if the replicas can serve reads
+	 * @return GET_CHUNK with the chunk, GET_ERROR if the value was replaced 
+	 * 		in the meantime
+	 */
+	private KVMessageImpl processGetChunk(KVMessageImpl request, boolean replicaEnvironment) {
+		String key = request.getKey();
+		if (replicaEnvironment ? serverNotResponsibleForRead(request) : serverNotResponsibleForWrite(request)) {
+			return new KVMessageImpl(key, request.getValue(), 
+					StatusType.SERVER_NOT_RESPONSIBLE, mECServerListener.getServiceMetaData());
+		}
+		String value = mKVServerListener.get(key);
+		String[] uploadIndex = request.getValue().split(":");
+		String chunk = null;
+		if (ChunkManifest.isManifest(value) && uploadIndex.length == 2) {
+			ChunkManifest manifest = ChunkManifest.parse(value);
+			try {
+				int index = Integer.parseInt(uploadIndex[1]);
+				if (manifest.getUpload().equals(uploadIndex[0]) && index >= 0 && index < manifest.getCount()) {
+					chunk = mKVServerListener.get(manifest.chunkKey(key, index));
+				}
+			} catch (NumberFormatException e) {
+				logger.error("ClientConnection::processGetChunk() + Malformed chunk " + request.getValue());
 			}
-		}else{
-			//startServer > endServer
-			//keycheck1 = startServer to Maximum && keycheck2 = 0 to end 
-			if((key.compareTo(startServer) > 0 && key.compareTo(maximum) <= 0 )
-					|| (key.compareTo(minimum) >= 0 && key.compareTo(endServer) <= 0 )){
+		}
+		if (chunk == null) {
+			logger.info("GET ERROR! No chunk " + request.getValue() + " of key=" + key);
+			return new KVMessageImpl(key, "", StatusType.GET_ERROR);
+		}
+		return new KVMessageImpl(key, chunk, StatusType.GET_CHUNK);
+	}
 
-				logger.info("ClientConnection::serverNotResponsible(start > end) + return false");
-				return false;
+	/**
+	 * Deletes the chunks of the uploads not completed on this connection,
+	 * once it is closed.
+	 */
+	public void abortUploads() {
+		for (String key : uploads.keySet()) {
+			ChunkManifest upload = uploads.remove(key);
+			if (upload != null) {
+				logger.info("ClientConnection::abortUploads() + Aborting upload of key=" + key);
+				mKVServerListener.deleteChunks(key, upload);
 			}
+		}
+	}
 
+	/**
+	 * @return the link a message is sent on, which sets its encryption.
+	 */
+	private static Link linkOf(KVAdminMessageImpl adminMsg, KVMessageImpl kvmessage) {
+		if (adminMsg != null) {
+			return adminMsg.getCommand() == Commands.PING ? Link.HEARTBEAT : Link.ADMIN;
 		}
-		logger.info("ClientConnection::serverNotResponsible() + return true");
-		return true;
+		return isClientRequest(kvmessage.getStatus()) ? Link.CLIENT : Link.REPLICATION;
 	}
 
 	/**
-	 * Checks whether the KVServer is Replica node for 
-	 * key value pair associated with this KVMessage.
-	 * 
-	 * @param kvmessage
-	 * 		KVMessage received for read operation
-	 * @return 
-	 * 		Returns true if the server is not in charge of the particular request
+	 * @return true for the requests of clients, which are rejected when the 
+	 * 			server is busy, false for those of other KVServers, which 
+	 * 			replicate or move data and must not be shed.
 	 */
-	private boolean serverNotResponsibleForRead(KVMessage kvmessage) {
+	private static boolean isClientRequest(StatusType status) {
+		return !status.equals(StatusType.REPLICA_PUT)
+				&& !status.equals(StatusType.REPLICA_BATCH_PUT)
+				&& !status.equals(StatusType.REPLICA_GET)
+				&& !status.equals(StatusType.DELETE_TOPOLOGICAL)
+				&& !status.equals(StatusType.MOVE_PUT);
+	}
 
-		BigInteger key = new BigInteger(getMD5(kvmessage.getKey()),16);
+	/**
+	 * Admits the connection against the connection limit on its first
+	 * client request, and again on each request while it is not admitted.
+	 * 
+	 * @return true if the connection is admitted.
+	 */
+	private synchronized boolean admitConnection() {
+		if (!admitted) {
+			admitted = mKVServerListener.getLoadLimit().openConnection();
+			refused = !admitted;
+			// the socket of a NioServer channel ignores it, the NioServer closes the connection itself
+			try {
+				clientSocket.setSoTimeout(admitted ? 0 : REFUSED_IDLE_TIMEOUT);
+			} catch (IOException e) {
+				logger.error("ClientConnection::admitConnection() + Unable to set timeout: " + e);
+			}
+		}
+		return admitted;
+	}
 
-		BigInteger startServer = new BigInteger(mECServerListener.getNodeMetaData().getRangeStart(),16);
-		BigInteger endServer = new BigInteger(mECServerListener.getNodeMetaData().getRangeEnd(),16);
+	/**
+	 * Releases the place of the connection under the connection limit,
+	 * once it is closed.
+	 */
+	public synchronized void releaseConnection() {
+		if (admitted) {
+			admitted = false;
+			mKVServerListener.getLoadLimit().closeConnection();
+		}
+	}
 
-		BigInteger startServerReplica1 = new BigInteger(mECServerListener.getReplica1MetaData().getRangeStart(),16);
-		BigInteger endServerReplica1 = new BigInteger(mECServerListener.getReplica1MetaData().getRangeEnd(),16);
+	/**
+	 * @return true if the connection was refused under the connection limit
+	 * 			and not admitted since, its client has REFUSED_IDLE_TIMEOUT
+	 * 			to retry before it is closed.
+	 */
+	public synchronized boolean isRefused() {
+		return refused;
+	}
 
-		BigInteger startServerReplica2 = new BigInteger(mECServerListener.getReplica2MetaData().getRangeStart(),16);
-		BigInteger endServerReplica2 = new BigInteger(mECServerListener.getReplica2MetaData().getRangeEnd(),16);
+	/**
+	 * @return true if another KVServer uses the connection, its messages 
+	 * 			do not count as client load.
+	 */
+	public boolean isServerPeer() {
+		return serverPeer;
+	}
 
-		BigInteger maximum = new BigInteger("ffffffffffffffffffffffffffffffff",16);
+	/**
+	 * @return true if uploads of large values are in progress on this connection.
+	 */
+	public boolean hasUploads() {
+		return !uploads.isEmpty();
+	}
 
-		BigInteger minimum = new BigInteger("00000000000000000000000000000000",16);
+	/**
+	 * Sends a REPLICA_PUT to the replicas.
+	 * 
+	 * @return true if enough replicas acknowledged it.
+	 */
+	private boolean replicatePut(String key, String value, Consistency level) {
+		return replicate(new KVMessageImpl(key, value, StatusType.REPLICA_PUT), level);
+	}
 
-		logger.info("ClientConnection::serverNotResponsibleForRead()-->Coordinator data + key="+key
-				+", Server's start="+startServer
-				+", Server's end="+endServer
-				+", Maximum ="+maximum
-				+", Minimum ="+minimum);
+	/**
+	 * Sends a write to all replicas at once and waits until as many of 
+	 * them acknowledged it as the consistency level requires, the copy on 
+	 * this server being one of the copies. So it takes as long as the slowest
+	 * replica at most instead of as long as all of them in turn. Replies 
+	 * coming in later are still checked.
+	 * 
+	 * With asynchronous replication the write is appended to the 
+	 * ReplicationLog instead, and only QUORUM and ALL wait for the replicas.
+	 * 
+	 * @param replicaMsg a REPLICA_PUT or REPLICA_BATCH_PUT
+	 * @param level the consistency level of the client request, without one
+	 * 		all replicas are awaited but their failures are only logged
+	 * @return true if enough replicas acknowledged the write
+	 */
+	private boolean replicate(final KVMessageImpl replicaMsg, Consistency level) {
+		return replicate(replicaMsg, level, null);
+	}
 
-		if(startServer.compareTo(endServer)<0){
-			if (key.compareTo(startServer) > 0 && 
-					key.compareTo(endServer) <= 0){
+	/**
+	 * Creates the append of a write to the ReplicationLog, which the storage
+	 * runs while it holds the lock of the key. So the writes to a key are
+	 * in the log in the order they were stored, and the last one stored is
+	 * the one a batch sends.
+	 * 
+	 * @return null if the writes are not replicated asynchronously
+	 */
+	private LogAppend logAppend(KVMessageImpl replicaMsg) {
+		ReplicationLog log = mECServerListener.getReplicationLog();
+		return log != null ? new LogAppend(log, replicaMsg) : null;
+	}
 
-				logger.info("ClientConnection::serverNotResponsibleForRead(start<end) + return false");
-				return false;
+	/**
+	 * Replicates a write like replicate(KVMessageImpl, Consistency), which
+	 * the storage may have appended to the ReplicationLog already.
+	 * 
+	 * @param appended the append of the write run by the storage, null if
+	 * 		there was none
+	 */
+	private boolean replicate(final KVMessageImpl replicaMsg, Consistency level, LogAppend appended) {
+		if (appended == null) {
+			appended = logAppend(replicaMsg);
+			if (appended != null) {
+				appended.run();
 			}
-		}else{
-			//startServer > endServer
-			//keycheck1 = startServer to Maximum && keycheck2 = 0 to end 
-			if((key.compareTo(startServer) > 0 && key.compareTo(maximum) <= 0 )
-					|| (key.compareTo(minimum) >= 0 && key.compareTo(endServer) <= 0 )){
+		}
+		if (appended != null) {
+			ReplicationLog log = appended.log;
+			return level == null || log.await(appended.offset, level.required(log.getReplicas() + 1) - 1);
+		}
 
-				logger.info("ClientConnection::serverNotResponsibleForRead(start > end) + return false");
-				return false;
-			}
+		List<ReplicationChannel> channels = mECServerListener.getMyReplicaChannels();
+		final Acknowledgements acks = new Acknowledgements(channels.size());
+		for (int i = 0; i < channels.size(); i++) {
+			final String replica = String.valueOf(i + 1);
+			channels.get(i).send(replicaMsg).whenComplete(new BiConsumer<KVMessageImpl, Throwable>() {
+				@Override
+				public void accept(KVMessageImpl reply, Throwable cause) {
+					if (cause != null) {
+						logger.error("Exception while replicating " + replicaMsg.getStatus() 
+								+ " to replica " + replica + ": " + cause);
+						acks.add(false);
+					} else {
+						acks.add(isAcknowledged(replicaMsg, reply, replica));
+					}
+				}
+			});
+		}
+
+		if (level == null) {
+			acks.await(channels.size());
+			return true;
 		}
+		return acks.await(level.required(channels.size() + 1) - 1);
+	}
 
+	/**
+	 * Reads a pair on its coordinator and compares the copies of as many
+	 * replicas as the consistency level requires. All writes reach the 
+	 * coordinator first, so its copy is the latest one and a replica with
+	 * another copy is repaired with it, also when its reply comes in after
+	 * the client got its reply.
+	 * 
+	 * @param request GET with consistency level QUORUM or ALL
+	 * @return the reply like for any GET, GET_ERROR if too few replicas 
+	 * 		replied
+	 */
+	private KVMessageImpl processConsistentGet(KVMessageImpl request) {
+		final String key = request.getKey();
+		if (serverNotResponsibleForWrite(request)) {
+			logger.info("ClientConnection::processConsistentGet() + SERVER_NOT_RESPONSIBLE for key=" + key);
+			return new KVMessageImpl(key, request.getValue(), 
+					StatusType.SERVER_NOT_RESPONSIBLE, mECServerListener.getServiceMetaData());
+		}
+		List<ReplicationChannel> channels = mECServerListener.getMyReplicaChannels();
+		int required = request.getConsistency().required(channels.size() + 1) - 1;
+		ReplicationLog log = mECServerListener.getReplicationLog();
+		if (log != null && !log.await(log.end(), required)) {
+			// the replicas have to have the writes done before the read
+			logger.info("GET ERROR! Too few replicas caught up for key=" + key);
+			return new KVMessageImpl(key, "", StatusType.GET_ERROR);
+		}
+		String value = mKVServerListener.get(key);
+
+		final Acknowledgements acks = new Acknowledgements(channels.size());
+		KVMessageImpl replicaMsg = new KVMessageImpl(key, "", StatusType.REPLICA_GET);
+		for (int i = 0; i < channels.size(); i++) {
+			final String replica = String.valueOf(i + 1);
+			final ReplicationChannel channel = channels.get(i);
+			channel.send(replicaMsg).whenComplete(new BiConsumer<KVMessageImpl, Throwable>() {
+				@Override
+				public void accept(KVMessageImpl reply, Throwable cause) {
+					if (cause != null || !(reply.getStatus().equals(StatusType.GET_SUCCESS) 
+							|| reply.getStatus().equals(StatusType.GET_ERROR))) {
+						logger.error("Replica " + replica + " read error for key=" + key + ": " 
+								+ (cause != null ? cause : reply.getStatus()));
+						acks.add(false);
+						return;
+					}
+					acks.add(true);
+					repair(channel, key, reply, replica);
+				}
+			});
+		}
 
-		logger.info("ClientConnection::serverNotResponsibleForRead()-->Replica1 + key="+key
-				+", Server's start="+startServerReplica1
-				+", Server's end="+endServerReplica1
-				+", Maximum ="+maximum
-				+", Minimum ="+minimum);
+		if (!acks.await(required)) {
+			logger.info("GET ERROR! Too few replicas replied for key=" + key);
+			return new KVMessageImpl(key, "", StatusType.GET_ERROR);
+		}
+		return getReply(key, value);
+	}
 
-		//Check for replica 1
-		if(startServerReplica1.compareTo(endServerReplica1)<0){
-			if (key.compareTo(startServerReplica1) > 0 && 
-					key.compareTo(endServerReplica1) <= 0){
+	/**
+	 * Sends the copy of this server to a replica which has another one.
+	 */
+	private void repair(ReplicationChannel channel, String key, KVMessageImpl reply, String replica) {
+		// read again, a write in the meantime is on its way to the replica already
+		String value = mKVServerListener.get(key);
+		String replicaValue = reply.getStatus().equals(StatusType.GET_SUCCESS) ? reply.getValue() : null;
+		if (value == null ? replicaValue == null : value.equals(replicaValue)) {
+			return;
+		}
+		logger.info("Read repair of key=" + key + " on replica " + replica);
+		channel.send(new KVMessageImpl(key, value != null ? value : "", StatusType.REPLICA_PUT));
+	}
 
-				logger.info("ClientConnection::serverNotResponsibleForRead(start<end) + return false");
-				return false;
+	/**
+	 * Builds the reply to a GET from the value stored for the key.
+	 * 
+	 * @param value the stored value, null if there is none
+	 * @return GET_SUCCESS, GET_CHUNKED for a large value or GET_ERROR
+	 */
+	private KVMessageImpl getReply(String key, String value) {
+		KVMessageImpl kvmessage;
+		if (ChunkManifest.isManifest(value)) {
+			// the client reads the value in chunks
+			kvmessage = new KVMessageImpl(key, 
+					ChunkManifest.parse(value).getDescriptor(), StatusType.GET_CHUNKED);
+			logger.info("GET CHUNKED! Found key=" + key
+					+ " on Server with chunks=" + kvmessage.getValue());
+
+		} else if (value != null) {
+			// GET_SUCCESS
+			kvmessage = new KVMessageImpl(key, value,
+					StatusType.GET_SUCCESS);
+			logger.info("GET SUCCESS! Found key=" + key
+					+ " on Server with value=" + kvmessage.getValue());
+
+		} else {
+			// GET_ERROR
+			kvmessage = new KVMessageImpl(key, "",
+					StatusType.GET_ERROR);
+			logger.info("GET ERROR! Cannot find key=" + key
+					+ " on Server");
+		}
+		return kvmessage;
+	}
+
+	/**
+	 * @return true if the reply of a replica confirms the write.
+	 */
+	private boolean isAcknowledged(KVMessageImpl replicaMsg, KVMessageImpl reply, String replica) {
+		if (replicaMsg.getStatus().equals(StatusType.REPLICA_BATCH_PUT)) {
+			int failed = 0;
+			if (reply.getBatch() == null) {
+				failed = replicaMsg.getBatch().size();
+			} else {
+				for (KVMessage entry : reply.getBatch()) {
+					if (entry.getStatus().equals(StatusType.REPLICA_PUT_ERROR)) {
+						failed++;
+					}
+				}
 			}
-		}else{
-			//startServer > endServer
-			//keycheck1 = startServer to Maximum && keycheck2 = 0 to end 
-			if((key.compareTo(startServerReplica1) > 0 && key.compareTo(maximum) <= 0 )
-					|| (key.compareTo(minimum) >= 0 && key.compareTo(endServerReplica1) <= 0 )){
+			if (failed == 0) {
+				logger.info("Replication " + replica + " batch success");
+				return true;
+			}
+			logger.error("Replication " + replica + " batch error for " + failed + " keys");
+			return false;
+		}
 
-				logger.info("ClientConnection::serverNotResponsibleForRead(start > end) + return false");
-				return false;
+		StatusType status = reply.getStatus();
+		if (replicaMsg.getValue().isEmpty()) {
+			// a replica without the key has nothing to delete, it is gone there too
+			if (status.equals(StatusType.REPLICA_DELETE_SUCCESS)
+					|| status.equals(StatusType.REPLICA_DELETE_ERROR)) {
+				logger.debug("Replication " + replica + " deletion success");
+				return true;
 			}
+			logger.error("Replication " + replica + " deletion error");
+			return false;
+		}
+		if (status.equals(StatusType.REPLICA_PUT_SUCCESS)
+				|| status.equals(StatusType.REPLICA_PUT_UPDATE)) {
+			logger.debug("Replication " + replica + " put success");
+			return true;
 		}
+		logger.error("Replication " + replica + " put error");
+		return false;
+	}
 
-		logger.info("ClientConnection::serverNotResponsibleForRead()-->Replica2 + key="+key
-				+", Server's start="+startServerReplica2
-				+", Server's end="+endServerReplica2
-				+", Maximum ="+maximum
-				+", Minimum ="+minimum);
+	private KVMessageImpl batchResult(List<KVMessage> results, boolean withMetaData) {
+		KVMessageImpl reply = new KVMessageImpl("", "", StatusType.BATCH_RESULT,
+				withMetaData ? mECServerListener.getServiceMetaData() : null);
+		reply.setBatch(results);
+		return reply;
+	}
 
-		// Check for replica 2
-		if(startServerReplica2.compareTo(endServerReplica2)<0){
-			if (key.compareTo(startServerReplica2) > 0 && 
-					key.compareTo(endServerReplica2) <= 0){
+	/**
+	 * Checks whether the KVServer is Coordinator node for 
+	 * key value pair associated with this KVMessage.
+	 * 
+	 * @param kvmessage
+	 * 		KVMessage received for write operation
+	 * @return 
+	 * 		Returns true if the server is not in charge of the particular request
+	 */
+	private boolean serverNotResponsibleForWrite(KVMessage kvmessage) {
 
-				logger.info("ClientConnection::serverNotResponsibleForRead(startServerReplica2<endServerReplica2) + return false");
-				return false;
-			}
-		}else{
-			//startServer > endServer
-			//keycheck1 = startServer to Maximum && keycheck2 = 0 to end 
-			if((key.compareTo(startServerReplica2) > 0 && key.compareTo(maximum) <= 0 )
-					|| (key.compareTo(minimum) >= 0 && key.compareTo(endServerReplica2) <= 0 )){
+		RingPosition key = RingPosition.of(kvmessage.getKey());
 
-				logger.info("ClientConnection::serverNotResponsible(startServerReplica2 > endServerReplica2) + return false");
-				return false;
-			}
+		if(mECServerListener.getNodeMetaData().isResponsible(key)){
+			return false;
 		}
-
-		logger.info("ClientConnection::serverNotResponsible() + return true");
+		logger.info("ClientConnection::serverNotResponsible() + key="+key+", return true");
 		return true;
 	}
 
 	/**
-	 * Method to compute MD5.
-	 * @param msg
-	 * 		Message whose MD5 is to be computed.
-	 * @return
-	 * 		Returns MD5 for the message.
+	 * Checks whether the KVServer is Replica node for 
+	 * key value pair associated with this KVMessage.
+	 * 
+	 * @param kvmessage
+	 * 		KVMessage received for read operation
+	 * @return 
+	 * 		Returns true if the server is not in charge of the particular request
 	 */
-	private String getMD5(String msg){
-		MessageDigest messageDigest = null;
-		try {
-			messageDigest = MessageDigest.getInstance("MD5");
-		} catch(NoSuchAlgorithmException ex){
-			logger.info("Exception occurred in MD5: e="+ex);
-			return null;
+	private boolean serverNotResponsibleForRead(KVMessage kvmessage) {
+
+		RingPosition key = RingPosition.of(kvmessage.getKey());
+
+		//Check for coordinator and the nodes replicated here
+		if(mECServerListener.getNodeMetaData().isResponsible(key)){
+			return false;
+		}
+		for(MetaData replica : mECServerListener.getReplicasMetaData()){
+			if(replica.isResponsible(key)){
+				return false;
+			}
 		}
+		logger.info("ClientConnection::serverNotResponsibleForRead() + key="+key+", return true");
+		return true;
+	}
 
-		messageDigest.reset();
-		messageDigest.update(msg.getBytes());
-		byte[] hashValue = messageDigest.digest();
-		BigInteger bigInt = new BigInteger(1,hashValue);
-		String hashHex = bigInt.toString(16);
-		// Now we need to zero pad it if you actually want the full 32 chars.
-		while(hashHex.length() < 32 ){
-			hashHex = "0"+hashHex;
+	/**
+	 * @return true if one of the metaDatas is of the same server, whichever
+	 * 		its range.
+	 */
+	private static boolean containsServer(List<MetaData> metaDatas, MetaData server) {
+		for(MetaData metaData : metaDatas){
+			if(metaData.getIP().equals(server.getIP()) && metaData.getPort().equals(server.getPort())){
+				return true;
+			}
 		}
-		return hashHex;
+		return false;
 	}
 
 	/**
 	 * Method to process message communication with ECServer.
-	 * @param replyMsg
+	 * @param kvAdminMessage
 	 * 		Message received from ECServer.
 	 * @return
 	 * 		Returns KVAdminMessage response after processing the received message. 
 	 */
-	private KVAdminMessageImpl processKVAdminMessage(TextMessage replyMsg) {
-
-		KVAdminMessageImpl kvAdminMessage = JSONSerializer
-				.unmarshalKVAdminMsg(replyMsg);
+	private KVAdminMessageImpl processKVAdminMessage(KVAdminMessageImpl kvAdminMessage) {
 
 		if(kvAdminMessage.getCommand().equals(Commands.INIT)){
 			logger.info("Executing INIT Command for("+clientSocket.getLocalPort()+")");			
+			if(kvAdminMessage.getReplicationFactor()>0){
+				mECServerListener.setReplicationFactor(kvAdminMessage.getReplicationFactor());
+			}
 			mECServerListener.initKVServer(kvAdminMessage.getMetaDatas());
 
 			kvAdminMessage = new KVAdminMessageImpl();
@@ -668,29 +1239,30 @@ public class ClientConnection implements Runnable {
 		}else if(kvAdminMessage.getCommand().equals(Commands.UPDATE)){
 			logger.info("Executing UPDATE Command for("+clientSocket.getLocalPort()+")");			
 
-			MetaData tempOldMyReplica1 = mECServerListener.getMyReplica1MetaData();
-			MetaData tempOldMyReplica2 = mECServerListener.getMyReplica2MetaData();
+			List<MetaData> tempOldMyReplicas = mECServerListener.getMyReplicasMetaData();
+			MetaData tempOldNode = mECServerListener.getNodeMetaData();
 
+			if(kvAdminMessage.getReplicationFactor()>0){
+				mECServerListener.setReplicationFactor(kvAdminMessage.getReplicationFactor());
+			}
 			mECServerListener.initKVServer(kvAdminMessage.getMetaDatas());
 
 			//Check if myReplicas have changed or not
-			if(mECServerListener.getServiceMetaData().size()>2 && tempOldMyReplica1!=null && tempOldMyReplica2!=null){
-				
-				MetaData tempNewMyReplica1 = mECServerListener.getMyReplica1MetaData();
-				MetaData tempNewMyReplica2 = mECServerListener.getMyReplica2MetaData();
-
-				String range = mECServerListener.getNodeMetaData().getRangeStart()+":"+mECServerListener.getNodeMetaData().getRangeEnd();
-				if(!tempNewMyReplica1.equals(tempOldMyReplica1) || !tempNewMyReplica1.equals(tempOldMyReplica2)){
-					//Checking if 1st successor is new
-					logger.info("Successor1 has changed, so Replicating server's data");
-					mECServerListener.replicateDataToServer(mECServerListener.getMyReplica1Socket(), range);
-
-				}
-
-				if(!tempNewMyReplica2.equals(tempOldMyReplica1) || !tempNewMyReplica2.equals(tempOldMyReplica2)){
-					//Checking if 2nd successor is new
-					logger.info("Successor2 has changed, so Replicating server's data");
-					mECServerListener.replicateDataToServer(mECServerListener.getMyReplica2Socket(), range);
+			if(mECServerListener.isReplicating() && !tempOldMyReplicas.isEmpty()){
+
+				List<MetaData> tempNewMyReplicas = mECServerListener.getMyReplicasMetaData();
+				List<ReplicationChannel> channels = mECServerListener.getMyReplicaChannels();
+				MetaData node = mECServerListener.getNodeMetaData();
+				//a node which took over the range of a removed one gives it to all its successors
+				boolean rangeChanged = tempOldNode == null || !node.getRangeStart().equals(tempOldNode.getRangeStart());
+
+				String range = node.getRangeStart()+":"+node.getRangeEnd();
+				for(int r=0; r<tempNewMyReplicas.size(); r++){
+					if(rangeChanged || !containsServer(tempOldMyReplicas, tempNewMyReplicas.get(r))){
+						//Checking if successor is new
+						logger.info("Successor"+(r+1)+" has changed, so Replicating server's data");
+						mECServerListener.replicateDataToServer(channels.get(r), range);
+					}
 				}
 			}
 
@@ -800,10 +1372,11 @@ public class ClientConnection implements Runnable {
 			+", rangeend="+new BigInteger(range.split(":")[1],16));
 
 
-			Socket socket;
+			ReplicationChannel channel = null;
 			try {
-				socket = new Socket(ipPort[0],Integer.parseInt(ipPort[1]));
-				mECServerListener.replicateDataToServer(socket, range);
+				channel = new ReplicationChannel(ipPort[0],Integer.parseInt(ipPort[1]));
+				channel.connect();
+				mECServerListener.replicateDataToServer(channel, range);
 				kvAdminMessage = new KVAdminMessageImpl();
 				kvAdminMessage.setCommand(Commands.REPLICATE_SUCCESS);
 
@@ -813,6 +1386,10 @@ public class ClientConnection implements Runnable {
 				logger.error("UnknownHostException while Executing REPLICATE Command "+e.getStackTrace().toString());
 			} catch (IOException e) {
 				logger.error("IOException while Executing REPLICATE Command "+e.getStackTrace().toString());
+			} finally {
+				if (channel != null) {
+					channel.close();
+				}
 			}
 
 		}else if(kvAdminMessage.getCommand().equals(Commands.PING)){
@@ -820,6 +1397,7 @@ public class ClientConnection implements Runnable {
 
 			kvAdminMessage = new KVAdminMessageImpl();
 			kvAdminMessage.setCommand(Commands.ECHO);
+			kvAdminMessage.setStats(mECServerListener.getStorageStats());
 
 		}else{
 			logger.info("UNKNOWN command received for("+clientSocket.getLocalPort()+")");
@@ -840,4 +1418,76 @@ public class ClientConnection implements Runnable {
 	public void addPerformanceListener(PerformanceListener listener) {
 		mPerfListener = listener;
 	}
+
+	/**
+	 * Append of a write to the ReplicationLog, with the offset it got.
+	 */
+	private static class LogAppend implements Runnable {
+		private final ReplicationLog log;
+		private final KVMessageImpl replicaMsg;
+		private long offset;
+
+		LogAppend(ReplicationLog log, KVMessageImpl replicaMsg) {
+			this.log = log;
+			this.replicaMsg = replicaMsg;
+		}
+
+		@Override
+		public void run() {
+			offset = log.append(replicaMsg);
+		}
+	}
+
+	/**
+	 * Counts the replies of the replicas to a request sent to all of them.
+	 */
+	private static class Acknowledgements {
+		private final int replicas;
+		// a lock instead of a monitor, a virtual thread waiting on it 
+		// does not pin its carrier thread
+		private final Lock lock = new ReentrantLock();
+		private final Condition replied = lock.newCondition();
+		private int acks;
+		private int failures;
+
+		Acknowledgements(int replicas) {
+			this.replicas = replicas;
+		}
+
+		void add(boolean acknowledged) {
+			lock.lock();
+			try {
+				if (acknowledged) {
+					acks++;
+				} else {
+					failures++;
+				}
+				replied.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Waits until the given number of replicas acknowledged the request
+		 * or too many failed. Every reply comes in or fails within the reply
+		 * timeout of the ReplicationChannel.
+		 * 
+		 * @return true if the replicas acknowledged it.
+		 */
+		boolean await(int required) {
+			lock.lock();
+			try {
+				while (acks < required && acks + failures < replicas) {
+					replied.await();
+				}
+				return acks >= required;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return acks >= required;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
 }
\ No newline at end of file
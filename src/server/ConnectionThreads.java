@@ -0,0 +1,55 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates the threads running the ClientConnections of a KVServer: a
+ * platform thread per connection, or a virtual thread per connection on
+ * Java 21 and later.
+ *
+ * Virtual threads are created through reflection, so the server still
+ * builds and runs on older Java versions.
+ */
+public final class ConnectionThreads {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private ConnectionThreads() {
+	}
+
+	/**
+	 * @return factory creating a platform thread per connection.
+	 */
+	public static ThreadFactory platform() {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "connection-" + count.incrementAndGet());
+			}
+		};
+	}
+
+	/**
+	 * @return factory creating a virtual thread per connection, null if
+	 *         the Java runtime has no virtual threads.
+	 */
+	public static ThreadFactory virtual() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "connection-", 1L);
+			Method factory = builderClass.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			logger.warn("ConnectionThreads::virtual() + Virtual threads not available on Java "
+					+ System.getProperty("java.version") + ": " + e);
+			return null;
+		}
+	}
+}
@@ -1,7 +1,8 @@
 package server;
 
-import java.net.Socket;
 import java.util.List;
+import java.util.Map;
+
 import metadata.MetaData;
 
 /**
@@ -94,67 +95,75 @@ public interface ECServerListener {
 	public boolean deleteDataBetween(MetaData mdata);
 	
 	/**
-	 * Method to retrieve metaData of 1st Replica of this KVServer.
-	 * @return 
-	 * 		metaData of 1st Replica Server.
+	 * Method to set the replication factor the ECServer sent, it applies
+	 * from the next initKVServer() on.
+	 * @param replicationFactor
+	 * 			number of copies of every pair, on its coordinator and the replicas.
 	 */
-	public MetaData getMyReplica1MetaData();
+	public void setReplicationFactor(int replicationFactor);
 	
 	/**
-	 * Method to retrieve metaData of 2nd Replica of this KVServer.
+	 * Method to retrieve the replication factor of the cluster.
 	 * @return
-	 * 		metaData of 2nd Replica Server.
+	 * 		number of copies of every pair, on its coordinator and the replicas.
 	 */
-	public MetaData getMyReplica2MetaData();
+	public int getReplicationFactor();
 	
 	/**
-	 * Method to retrieve socket of 1st Replica of this KVServer.
+	 * Method to check if writes are replicated, which needs a replication
+	 * factor above 1 and at least as many servers.
 	 * @return
-	 * 		socket of 1st Replica Server.
-	 */
-	public Socket getMyReplica1Socket();
-	
-	/**
-	 * Method to retrieve socket of 2nd Replica of this KVServer.
-	 * @return
-	 * 		socket of 2nd Replica Server.
-	 */
-	public Socket getMyReplica2Socket();
-	
-	/**
-	 * Method to set socket of 1st Replica of this KVServer.
-	 * 
+	 * 		true if this KVServer has replicas.
 	 */
-	public void setMyReplica1Socket(Socket s);
+	public boolean isReplicating();
 	
 	/**
-	 * Method to set socket of 2nd Replica of this KVServer.
-	 * 
+	 * Method to retrieve metaData of the Replicas of this KVServer.
+	 * @return 
+	 * 		metaData of the Replica Servers, the successor first, empty if 
+	 * 		writes are not replicated.
 	 */
-	public void setMyReplica2Socket(Socket s);
+	public List<MetaData> getMyReplicasMetaData();
 	
 	/**
-	 * Method to retrieve metaData of 1st node whose Data is replicated in this KVServer.
+	 * Method to retrieve the channels to the Replicas of this KVServer,
+	 * shared by all connections.
 	 * @return
-	 * 		metaData of Coordinator Node.
+	 * 		channels in the order of getMyReplicasMetaData().
 	 */
-	public MetaData getReplica1MetaData();
+	public List<ReplicationChannel> getMyReplicaChannels();
 	
 	/**
-	 * Method to retrieve metaData of 2nd node whose Data is replicated in this KVServer.
+	 * Method to retrieve metaData of the nodes whose Data is replicated in this KVServer.
 	 * @return
-	 * 		metaData of Coordinator Node.
+	 * 		metaData of the Coordinator Nodes, the predecessor first, empty 
+	 * 		if writes are not replicated.
 	 */
-	public MetaData getReplica2MetaData();
+	public List<MetaData> getReplicasMetaData();
 	
 	/**
 	 * Method to replicate Data to another Server.
-	 * @param socket
-	 * 			Server's socket where to move the data.
+	 * @param channel
+	 * 			channel to the Server where to move the data.
 	 * @param range
 	 * 			range in the ring.
 	 */
-	void replicateDataToServer(Socket socket, String range);
+	void replicateDataToServer(ReplicationChannel channel, String range);
+
+	/**
+	 * Method to retrieve the log of the writes replicated asynchronously.
+	 * @return
+	 * 		The log, null if the writes are replicated synchronously.
+	 */
+	public ReplicationLog getReplicationLog();
+
+	/**
+	 * Method to retrieve the storage counters of this KVServer, 
+	 * including its memory usage.
+	 * @return
+	 * 		Counters by name.
+	 */
+	public Map<String, Long> getStorageStats();
 
 
 }
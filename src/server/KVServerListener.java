@@ -1,5 +1,11 @@
 package server;
 
+import java.util.List;
+import java.util.Map.Entry;
+
+import server.storage.ChunkManifest;
+import server.storage.StorageException;
+
 /**
  * This Class defines functions used for handling Client's request.
  *
@@ -15,8 +21,69 @@ public interface KVServerListener {
 	 * 			value to be inserted.
 	 * @return 
 	 * 			Returns previous value stored else return null.
+	 * @throws StorageException
+	 * 			if the storage could not store the pair.
 	 */
 	public String put(String key, String value);
+
+	/**
+	 * Method for put operation on KVServer, which runs an action once the
+	 * pair is stored, before any other write to the key.
+	 * 
+	 * @param key 
+	 * 			key to be inserted.
+	 * @param value
+	 * 			value to be inserted.
+	 * @param written
+	 * 			action run after the write, may be null.
+	 * @return 
+	 * 			Returns previous value stored else return null.
+	 * @throws StorageException
+	 * 			if the storage could not store the pair.
+	 */
+	public String put(String key, String value, Runnable written);
+
+	/**
+	 * Method for writing a batch of key-value pairs on KVServer as one unit.
+	 * 
+	 * @param entries 
+	 * 			pairs to be written, a null value deletes the key.
+	 * @return 
+	 * 			Returns previous values stored in the order of the entries,
+	 * 			null where there was none.
+	 * @throws StorageException
+	 * 			if the storage could not write a pair.
+	 */
+	public List<String> putAll(List<Entry<String, String>> entries);
+
+	/**
+	 * Method for writing a batch of key-value pairs on KVServer as one unit,
+	 * which runs an action once the batch is written, before any other 
+	 * write to its keys.
+	 * 
+	 * @param entries 
+	 * 			pairs to be written, a null value deletes the key.
+	 * @param written
+	 * 			action run after the batch, may be null.
+	 * @return 
+	 * 			Returns previous values stored in the order of the entries,
+	 * 			null where there was none.
+	 * @throws StorageException
+	 * 			if the storage could not write a pair.
+	 */
+	public List<String> putAll(List<Entry<String, String>> entries, Runnable written);
+
+	/**
+	 * Method to check whether a put fits into the memory budget of KVServer.
+	 * 
+	 * @param key 
+	 * 			key to be inserted.
+	 * @param value
+	 * 			value to be inserted.
+	 * @return 
+	 * 			Returns false if the put has to be rejected.
+	 */
+	public boolean admitPut(String key, String value);
 	
 	/**
 	 * Method for get operation on KVServer.
@@ -35,7 +102,41 @@ public interface KVServerListener {
 	 *			key which is to be deleted.
 	 * @return
 	 * 		Returns value stored under the key. If no entry exists, returns null.
+	 * @throws StorageException
+	 * 			if the storage could not delete the key.
 	 */
 	public String delete(String key);
 
+	/**
+	 * Method to delete key-value pair from KVServer, which runs an action 
+	 * once the key is deleted, before any other write to the key.
+	 * 
+	 * @param key
+	 *			key which is to be deleted.
+	 * @param written
+	 * 			action run after the delete, may be null.
+	 * @return
+	 * 		Returns value stored under the key. If no entry exists, returns null.
+	 * @throws StorageException
+	 * 			if the storage could not delete the key.
+	 */
+	public String delete(String key, Runnable written);
+
+	/**
+	 * Method to delete the chunks stored for an upload of a large value 
+	 * which was not completed.
+	 * 
+	 * @param key
+	 *			key of the value.
+	 * @param upload
+	 * 			manifest of the chunks stored so far.
+	 */
+	public void deleteChunks(String key, ChunkManifest upload);
+
+	/**
+	 * @return the limits on connections and requests in flight of the
+	 * 			KVServer, which also counts them.
+	 */
+	public LoadLimit getLoadLimit();
+
 }
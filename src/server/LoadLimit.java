@@ -0,0 +1,115 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on the load a KVServer takes: the client connections served and
+ * the requests handled or waiting for a worker at the same time.
+ *
+ * Client requests over a limit are answered with SERVER_BUSY right away
+ * instead of being queued, so the requests which are admitted keep their
+ * latency while the clients back off. A limit of zero means no limit, the
+ * load is counted anyway.
+ */
+public class LoadLimit {
+
+	private final int maxConnections;
+	private final int maxRequests;
+
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicLong shed = new AtomicLong();
+
+	/**
+	 * @param maxConnections
+	 * 			client connections served at the same time, 0 for no limit.
+	 * @param maxRequests
+	 * 			requests in flight at the same time, 0 for no limit.
+	 */
+	public LoadLimit(int maxConnections, int maxRequests) {
+		if (maxConnections < 0 || maxRequests < 0) {
+			throw new IllegalArgumentException("Load limits must not be negative: "
+					+ maxConnections + ", " + maxRequests);
+		}
+		this.maxConnections = maxConnections;
+		this.maxRequests = maxRequests;
+	}
+
+	/**
+	 * @return a LoadLimit which only counts.
+	 */
+	public static LoadLimit unlimited() {
+		return new LoadLimit(0, 0);
+	}
+
+	/**
+	 * Admits a client connection, which has to be released with
+	 * closeConnection().
+	 *
+	 * @return false if the server serves maxConnections already.
+	 */
+	public boolean openConnection() {
+		return acquire(connections, maxConnections);
+	}
+
+	public void closeConnection() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Admits a request, which has to be released with finishRequest().
+	 *
+	 * @return false if maxRequests are in flight already.
+	 */
+	public boolean startRequest() {
+		return acquire(requests, maxRequests);
+	}
+
+	public void finishRequest() {
+		requests.decrementAndGet();
+	}
+
+	/**
+	 * Counts a client request answered with SERVER_BUSY.
+	 */
+	public void shed() {
+		shed.incrementAndGet();
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public int getMaxRequests() {
+		return maxRequests;
+	}
+
+	/**
+	 * @return counters of the load, for the stats of the server.
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("connections", (long) connections.get());
+		stats.put("requestsInFlight", (long) requests.get());
+		stats.put("requestsShed", shed.get());
+		return stats;
+	}
+
+	private static boolean acquire(AtomicInteger count, int max) {
+		if (max == 0) {
+			count.incrementAndGet();
+			return true;
+		}
+		int current;
+		do {
+			current = count.get();
+			if (current >= max) {
+				return false;
+			}
+		} while (!count.compareAndSet(current, current + 1));
+		return true;
+	}
+}
@@ -0,0 +1,558 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import common.communication.CommunicationConfig;
+import common.communication.SocketCommunication;
+import common.messages.TextMessage;
+import common.security.cipher.aes.AESSession;
+
+/**
+ * Event driven connection handling for the KVServer. Instead of a thread
+ * per connection blocking in receiveMessage, a few I/O threads multiplex
+ * all connections with selectors and hand complete messages to a pool of
+ * worker threads, which run the handlers of a ClientConnection.
+ *
+ * The messages of one connection are handled one after the other, so the
+ * replies keep the order of the requests.
+ */
+public class NioServer {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	public static final int DEFAULT_IO_THREADS = 2;
+	public static final int DEFAULT_WORKER_THREADS = 32;
+
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	//a text message is collected in a buffer of this size, grown and shrunk back for larger ones
+	private static final int MESSAGE_BUFFER_SIZE = 1024;
+	//interval of the checks for refused connections idle for too long
+	private static final long IDLE_CHECK_INTERVAL = 1000;
+
+	private final int port;
+	private final KVServerListener kvServerListener;
+	private final ECServerListener ecServerListener;
+	private final PerformanceListener perfListener;
+	private final LoadLimit loadLimit;
+	private final int frameLimit = CommunicationConfig.getFrameLimit();
+
+	private ServerSocketChannel serverChannel;
+	private IoLoop[] loops;
+	private ExecutorService workers;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private volatile boolean running;
+
+	/**
+	 * @param port
+	 * 			port to listen on.
+	 * @param ioThreads
+	 * 			number of threads reading and writing the sockets.
+	 * @param workerThreads
+	 * 			number of threads handling messages.
+	 */
+	public NioServer(int port, int ioThreads, int workerThreads, KVServerListener kvServerListener,
+			ECServerListener ecServerListener, PerformanceListener perfListener) {
+		this.port = port;
+		this.kvServerListener = kvServerListener;
+		this.ecServerListener = ecServerListener;
+		this.perfListener = perfListener;
+		this.loadLimit = kvServerListener.getLoadLimit();
+		this.loops = new IoLoop[ioThreads];
+		this.workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "nio-worker-" + count.incrementAndGet());
+			}
+		});
+	}
+
+	/**
+	 * Binds the port and starts the I/O threads.
+	 *
+	 * @throws IOException
+	 * 			if the port cannot be bound.
+	 */
+	public void start() throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		running = true;
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new IoLoop(i);
+		}
+		// the first loop accepts the connections for all of them
+		serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		for (IoLoop loop : loops) {
+			loop.start();
+		}
+		logger.info("NioServer::start() + Listening on port " + getLocalPort() + " with "
+				+ loops.length + " I/O threads");
+	}
+
+	/**
+	 * @return the port the server listens on.
+	 */
+	public int getLocalPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Closes the server socket and all connections.
+	 */
+	public void stop() {
+		running = false;
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			logger.error("NioServer::stop() + Unable to close server socket: " + e);
+		}
+		for (IoLoop loop : loops) {
+			if (loop != null) {
+				loop.selector.wakeup();
+			}
+		}
+		workers.shutdown();
+	}
+
+	private void accept() {
+		SocketChannel channel;
+		try {
+			while ((channel = serverChannel.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				logger.info("NioServer::accept() + Connected to " + channel.socket().getRemoteSocketAddress());
+				IoLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+				loop.accepted.add(channel);
+				loop.selector.wakeup();
+			}
+		} catch (IOException e) {
+			if (running) {
+				logger.error("NioServer::accept() + Unable to establish connection: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Thread owning a selector and the connections registered with it.
+	 */
+	private class IoLoop extends Thread {
+		private final Selector selector;
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+		private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+
+		IoLoop(int number) throws IOException {
+			super("nio-io-" + number);
+			selector = Selector.open();
+		}
+
+		@Override
+		public void run() {
+			long nextIdleCheck = System.currentTimeMillis() + IDLE_CHECK_INTERVAL;
+			while (running) {
+				try {
+					selector.select(IDLE_CHECK_INTERVAL);
+					registerAccepted();
+					registerWritable();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						Connection connection = (Connection) key.attachment();
+						if (key.isReadable()) {
+							connection.read(readBuffer);
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					}
+					long now = System.currentTimeMillis();
+					if (now >= nextIdleCheck) {
+						closeRefusedIdle(now);
+						nextIdleCheck = now + IDLE_CHECK_INTERVAL;
+					}
+				} catch (IOException e) {
+					logger.error("NioServer::run() + Error in I/O loop: " + e);
+				}
+			}
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					((Connection) key.attachment()).close();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.error("NioServer::run() + Unable to close selector: " + e);
+			}
+		}
+
+		/**
+		 * Closes the connections refused under the connection limit whose 
+		 * client did not retry within the REFUSED_IDLE_TIMEOUT, like the 
+		 * read timeout does for a connection with a thread of its own.
+		 */
+		private void closeRefusedIdle(long now) {
+			for (SelectionKey key : selector.keys()) {
+				if (key.isValid() && key.attachment() instanceof Connection) {
+					Connection connection = (Connection) key.attachment();
+					if (now - connection.lastRead > ClientConnection.REFUSED_IDLE_TIMEOUT
+							&& connection.handler.isRefused()) {
+						logger.info("NioServer::run() + Closing refused idle connection");
+						connection.close();
+					}
+				}
+			}
+		}
+
+		private void registerAccepted() {
+			SocketChannel channel;
+			while ((channel = accepted.poll()) != null) {
+				try {
+					Connection connection = new Connection(channel, this);
+					connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				} catch (IOException e) {
+					logger.error("NioServer::run() + Unable to register connection: " + e);
+				}
+			}
+		}
+
+		private void registerWritable() {
+			Connection connection;
+			while ((connection = writable.poll()) != null) {
+				if (connection.key.isValid()) {
+					connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * State of one connection: the message being read, the messages waiting
+	 * for a worker and the replies waiting to be written.
+	 */
+	private class Connection implements Runnable {
+		private final SocketChannel channel;
+		private final IoLoop loop;
+		private final ClientConnection handler;
+		private final SocketCommunication communication = SocketCommunication.forServer();
+		private final AESSession session = communication.newSession();
+		private SelectionKey key;
+		//time of the last read, the I/O thread checks it for idle connections
+		private long lastRead = System.currentTimeMillis();
+
+		private byte[] frame = new byte[MESSAGE_BUFFER_SIZE];
+		private int length;
+		private boolean dropping;
+
+		/*
+		 * Header bytes read of a length framed message, its first byte, and
+		 * the length of its content once the header is complete, otherwise -1.
+		 * The content gets a buffer of its own, which grows with the bytes 
+		 * arriving and is handed to the worker.
+		 */
+		private int headerRead;
+		private byte headerStart;
+		private int expected = -1;
+		private byte[] content;
+
+		private final ConcurrentLinkedQueue<Received> inbox = new ConcurrentLinkedQueue<Received>();
+		private final ConcurrentLinkedQueue<ByteBuffer> outbox = new ConcurrentLinkedQueue<ByteBuffer>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		//set by the first close(), a worker may close while the I/O thread still reads
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		Connection(SocketChannel channel, IoLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+			this.handler = new ClientConnection(channel.socket());
+			handler.addKVServerListener(kvServerListener);
+			handler.addECServerListener(ecServerListener);
+			handler.addPerformanceListener(perfListener);
+		}
+
+		/**
+		 * Reads what is available and queues the complete messages. Like
+		 * SocketCommunication, a message starting with a zero byte, the
+		 * binary MAGIC or a session byte has a length header, any other ends with a carriage 
+		 * return and only its printable chars are kept.
+		 */
+		void read(ByteBuffer buffer) {
+			buffer.clear();
+			int read;
+			try {
+				read = channel.read(buffer);
+			} catch (IOException e) {
+				logger.error("NioServer::read() + Connection lost: " + e);
+				close();
+				return;
+			}
+			if (read < 0) {
+				close();
+				return;
+			}
+			lastRead = System.currentTimeMillis();
+			buffer.flip();
+			boolean received = false;
+			while (buffer.hasRemaining()) {
+				if (expected >= 0) {
+					if (length == content.length) {
+						content = Arrays.copyOf(content, Math.min(expected, 2 * length));
+					}
+					int count = Math.min(content.length - length, buffer.remaining());
+					buffer.get(content, length, count);
+					length += count;
+					if (length == expected) {
+						queue(new Received(content, headerStart));
+						received = true;
+						content = null;
+						length = 0;
+						expected = -1;
+					}
+					continue;
+				}
+				byte b = buffer.get();
+				if (headerRead > 0 || (length == 0 && !dropping && SocketCommunication.isFrameStart(b))) {
+					expected = readHeader(b);
+					if (expected > frameLimit) {
+						logger.error("NioServer::read() + Frame of " + expected + " bytes exceeds the limit of " 
+								+ frameLimit + ", closing connection");
+						close();
+						return;
+					}
+					if (expected > 0) {
+						content = new byte[Math.min(expected, READ_BUFFER_SIZE)];
+					} else if (expected == 0) {
+						queue(new Received(new byte[0], headerStart));
+						received = true;
+						expected = -1;
+					}
+					continue;
+				}
+				if (b == 13) {
+					if (!dropping) {
+						queue(new Received(Arrays.copyOf(frame, length)));
+						received = true;
+					}
+					if (frame.length > READ_BUFFER_SIZE) {
+						// an idle connection does not keep the buffer of its largest message
+						frame = new byte[MESSAGE_BUFFER_SIZE];
+					}
+					length = 0;
+					dropping = false;
+				} else if (b > 31 && b < 127 && !dropping) {
+					if (length == frame.length) {
+						frame = Arrays.copyOf(frame, 2 * length);
+					}
+					frame[length++] = b;
+					if (length >= SocketCommunication.DROP_SIZE) {
+						logger.error("NioServer::read() + DROP SIZE reached, dropping message");
+						dropping = true;
+					}
+				}
+			}
+			if (received && running && scheduled.compareAndSet(false, true)) {
+				workers.execute(this);
+			}
+		}
+
+		/**
+		 * Queues a message for a worker. A message of a client counts as a
+		 * request in flight until it is handled, once the limit is reached
+		 * it is only answered with SERVER_BUSY. The messages of another
+		 * KVServer are not counted, the handler counts a client request
+		 * which comes on its connection anyway.
+		 */
+		private void queue(Received received) {
+			if (!handler.isServerPeer()) {
+				received.counted = true;
+				received.admitted = loadLimit.startRequest();
+			}
+			inbox.add(received);
+			if (closed.get()) {
+				// closed by a worker after it emptied the inbox
+				releaseQueued();
+			}
+		}
+
+		/**
+		 * Drops the messages not handled yet, they are no longer in flight.
+		 */
+		private void releaseQueued() {
+			Received dropped;
+			while ((dropped = inbox.poll()) != null) {
+				if (dropped.admitted) {
+					loadLimit.finishRequest();
+				}
+			}
+		}
+
+		/**
+		 * Collects the bytes of a length header.
+		 * 
+		 * @return the length of the content once the header is complete, 
+		 *         otherwise -1.
+		 */
+		private int readHeader(byte b) {
+			if (headerRead == 0) {
+				headerStart = b;
+			} else {
+				length = (length << 8) | (b & 0xff);
+			}
+			if (++headerRead < SocketCommunication.HEADER_SIZE) {
+				return -1;
+			}
+			int contentLength = length;
+			headerRead = 0;
+			length = 0;
+			return contentLength;
+		}
+
+		/**
+		 * Handles the queued messages on a worker thread.
+		 */
+		@Override
+		public void run() {
+			Received received;
+			while ((received = inbox.poll()) != null) {
+				TextMessage reply;
+				try {
+					TextMessage request = received.lengthFramed
+							? communication.decodeFrame(received.headerStart, received.bytes, received.bytes.length, session)
+							: communication.decode(received.bytes);
+					if (request == null) {
+						// the peer started its session, it gets the start of this side in reply
+						byte[] start = communication.acceptSession(session);
+						if (start != null) {
+							outbox.add(ByteBuffer.wrap(start));
+							loop.writable.add(this);
+							loop.selector.wakeup();
+						}
+						continue;
+					}
+					reply = received.counted
+							? handler.handleMessage(request, communication.getReceivedEncryption(), !received.admitted)
+							: handler.handleMessage(request, communication.getReceivedEncryption());
+				} catch (RuntimeException e) {
+					logger.error("NioServer::run() + Error while handling message: " + e);
+					reply = null;
+				} finally {
+					if (received.admitted) {
+						loadLimit.finishRequest();
+					}
+				}
+				if (reply == null) {
+					close();
+					return;
+				}
+				// the reply is framed like the request
+				outbox.add(ByteBuffer.wrap(communication.encode(reply, received.lengthFramed, session)));
+				loop.writable.add(this);
+				loop.selector.wakeup();
+			}
+			scheduled.set(false);
+			// a message may have arrived after the queue was found empty
+			if (!inbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+				workers.execute(this);
+			}
+		}
+
+		/**
+		 * Writes the queued replies as far as the socket takes them.
+		 */
+		void write() {
+			try {
+				ByteBuffer buffer;
+				while ((buffer = outbox.peek()) != null) {
+					channel.write(buffer);
+					if (buffer.hasRemaining()) {
+						return;
+					}
+					outbox.poll();
+				}
+				key.interestOps(SelectionKey.OP_READ);
+				// a reply may have been queued after the queue was found empty
+				if (!outbox.isEmpty()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				logger.error("NioServer::write() + Connection lost: " + e);
+				close();
+			}
+		}
+
+		void close() {
+			if (!closed.compareAndSet(false, true)) {
+				return;
+			}
+			if (key != null) {
+				key.cancel();
+			}
+			handler.releaseConnection();
+			releaseQueued();
+			if (handler.hasUploads() && running) {
+				// not on the I/O thread, the chunks are deleted from storage
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						handler.abortUploads();
+					}
+				});
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("NioServer::close() + Unable to close connection: " + e);
+			}
+		}
+	}
+
+	/**
+	 * A message read from a connection, before it is decoded.
+	 */
+	private static class Received {
+		private final byte[] bytes;
+		private final boolean lengthFramed;
+		private final byte headerStart;
+		private boolean counted;
+		private boolean admitted;
+
+		Received(byte[] bytes) {
+			this.bytes = bytes;
+			this.lengthFramed = false;
+			this.headerStart = 0;
+		}
+
+		Received(byte[] bytes, byte headerStart) {
+			this.bytes = bytes;
+			this.lengthFramed = true;
+			this.headerStart = headerStart;
+		}
+	}
+}
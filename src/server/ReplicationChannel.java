@@ -0,0 +1,356 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import metadata.MetaData;
+
+import org.apache.log4j.Logger;
+
+import common.communication.CommunicationConfig;
+import common.communication.CommunicationConfig.Link;
+import common.communication.SocketCommunication;
+import common.messages.KVMessageImpl;
+import common.messages.MessageCodec;
+import common.messages.TextMessage;
+import common.security.cipher.aes.AESSession;
+
+/**
+ * Connection of a KVServer to one of its replicas, shared by all threads
+ * handling requests.
+ *
+ * Every request gets an id which the replica sends back with the reply.
+ * A sender thread writes the queued requests, as many as are waiting with
+ * one flush, and a receiver thread hands each reply to the request with
+ * its id. So any number of requests can be in flight, and the writes of
+ * concurrent threads never interleave.
+ *
+ * The connection is opened on the first request and opened again on the
+ * next request after it was lost. The requests in flight on a lost
+ * connection fail, so does every request without a reply in time, also
+ * those nobody waits for.
+ */
+public class ReplicationChannel {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	//time a replica may take to reply before the request counts as failed
+	static final long REPLY_TIMEOUT = 30000;
+	private static final int CONNECT_TIMEOUT = 3000;
+	//after a failed connect requests fail at once for this long
+	private static final long RECONNECT_DELAY = 1000;
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, 
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "replication-timeout");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	static {
+		timeouts.setRemoveOnCancelPolicy(true);
+	}
+
+	private final String ip;
+	private final int port;
+
+	private final SocketCommunication communication = new SocketCommunication(Link.REPLICATION);
+	private final MessageCodec codec = CommunicationConfig.getCodec();
+	private final AtomicLong nextId = new AtomicLong();
+
+	private Connection connection;
+	private long lastConnectFailure;
+	private boolean closed;
+
+	/**
+	 * @param replica
+	 * 			the server the requests are sent to.
+	 */
+	public ReplicationChannel(MetaData replica) {
+		this(replica.getIP(), Integer.parseInt(replica.getPort()));
+	}
+
+	public ReplicationChannel(String ip, int port) {
+		this.ip = ip;
+		this.port = port;
+	}
+
+	/**
+	 * Opens the connection now instead of on the first request.
+	 *
+	 * @throws IOException
+	 *             if the replica cannot be reached.
+	 */
+	public void connect() throws IOException {
+		connection();
+	}
+
+	/**
+	 * @return true if the channel leads to the given server.
+	 */
+	public boolean isTo(MetaData replica) {
+		return ip.equals(replica.getIP()) && String.valueOf(port).equals(replica.getPort());
+	}
+
+	/**
+	 * Queues a request for the replica without waiting for its reply.
+	 *
+	 * @return the reply once it has arrived, it fails if the request cannot
+	 *         be sent, the connection is lost or the replica does not reply
+	 *         in time.
+	 */
+	public CompletableFuture<KVMessageImpl> send(KVMessageImpl request) {
+		// a copy, the same request may be sent to several replicas at once
+		KVMessageImpl message = new KVMessageImpl(request.getKey(), request.getValue(), request.getStatus());
+		message.setBatch(request.getBatch());
+		message.setId(nextId.incrementAndGet());
+
+		final CompletableFuture<KVMessageImpl> reply = new CompletableFuture<KVMessageImpl>();
+		try {
+			connection().send(message, reply);
+		} catch (IOException e) {
+			reply.completeExceptionally(e);
+			return reply;
+		}
+		final ScheduledFuture<?> timeout = timeouts.schedule(new Runnable() {
+			@Override
+			public void run() {
+				reply.completeExceptionally(new SocketTimeoutException(
+						"No reply from replica within " + REPLY_TIMEOUT + " ms"));
+			}
+		}, REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+		reply.whenComplete(new BiConsumer<KVMessageImpl, Throwable>() {
+			@Override
+			public void accept(KVMessageImpl replyMsg, Throwable cause) {
+				timeout.cancel(false);
+			}
+		});
+		return reply;
+	}
+
+	/**
+	 * Sends a request to the replica and waits for its reply.
+	 *
+	 * @throws IOException
+	 *             if the request cannot be sent, the connection is lost or
+	 *             the replica does not reply in time.
+	 */
+	public KVMessageImpl exchange(KVMessageImpl request) throws IOException {
+		return await(send(request));
+	}
+
+	/**
+	 * Waits for the reply of a request sent with send().
+	 *
+	 * @throws IOException
+	 *             if the request failed or the replica does not reply in time.
+	 */
+	public static KVMessageImpl await(Future<KVMessageImpl> reply) throws IOException {
+		try {
+			return reply.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for replica");
+		}
+	}
+
+	/**
+	 * Closes the connection, the requests in flight fail.
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (connection != null) {
+			connection.close(new IOException("Replication channel closed"));
+			connection = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ReplicationChannel(" + ip + ":" + port + ")";
+	}
+
+	private synchronized Connection connection() throws IOException {
+		if (closed) {
+			throw new IOException(this + " is closed");
+		}
+		if (connection != null && !connection.closed) {
+			return connection;
+		}
+		if (System.currentTimeMillis() - lastConnectFailure < RECONNECT_DELAY) {
+			throw new IOException(this + " unable to connect");
+		}
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT);
+		} catch (IOException e) {
+			lastConnectFailure = System.currentTimeMillis();
+			socket.close();
+			logger.error(this + " unable to connect: " + e);
+			throw e;
+		}
+		logger.info(this + " connected");
+		try {
+			// before the threads of the connection write and read it
+			communication.startSession(socket);
+		} catch (IOException e) {
+			lastConnectFailure = System.currentTimeMillis();
+			socket.close();
+			logger.error(this + " unable to start session: " + e);
+			throw e;
+		}
+		connection = new Connection(socket);
+		return connection;
+	}
+
+	/**
+	 * One connection to the replica with its requests in flight.
+	 */
+	private class Connection {
+		private final Socket socket;
+		private final AESSession session;
+		private final LinkedBlockingQueue<KVMessageImpl> outbox = new LinkedBlockingQueue<KVMessageImpl>();
+		private final Map<Long, CompletableFuture<KVMessageImpl>> pending =
+				new ConcurrentHashMap<Long, CompletableFuture<KVMessageImpl>>();
+		private final Thread sender;
+		private final Thread receiver;
+		private volatile boolean closed;
+
+		Connection(Socket socket) {
+			this.socket = socket;
+			// shared with the replies read by receiveMessage
+			this.session = communication.getSession(socket);
+			sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeRequests();
+				}
+			}, "replication-send-" + port);
+			receiver = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					readReplies();
+				}
+			}, "replication-receive-" + port);
+			sender.setDaemon(true);
+			receiver.setDaemon(true);
+			sender.start();
+			receiver.start();
+		}
+
+		void send(final KVMessageImpl message, CompletableFuture<KVMessageImpl> reply) {
+			pending.put(message.getId(), reply);
+			reply.whenComplete(new BiConsumer<KVMessageImpl, Throwable>() {
+				@Override
+				public void accept(KVMessageImpl replyMsg, Throwable cause) {
+					// a request timed out does not wait any more
+					pending.remove(message.getId());
+				}
+			});
+			outbox.add(message);
+			if (closed && pending.remove(message.getId()) != null) {
+				// the connection was closed after it was taken
+				reply.completeExceptionally(new IOException(ReplicationChannel.this + " connection lost"));
+			}
+		}
+
+		private void writeRequests() {
+			try {
+				OutputStream output = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+				while (!closed) {
+					KVMessageImpl message = outbox.take();
+					do {
+						byte[] bytes;
+						try {
+							bytes = communication.encode(codec.marshal(message), session);
+						} catch (RuntimeException e) {
+							fail(message, e);
+							continue;
+						}
+						output.write(bytes);
+					} while ((message = outbox.poll()) != null);
+					output.flush();
+				}
+			} catch (InterruptedException e) {
+				// closed
+			} catch (IOException e) {
+				lost(e);
+			}
+		}
+
+		private void readReplies() {
+			try {
+				while (!closed) {
+					TextMessage reply = communication.receiveMessage(socket);
+					KVMessageImpl replyMsg = MessageCodec.unMarshal(reply);
+					CompletableFuture<KVMessageImpl> request = pending.remove(replyMsg.getId());
+					if (request != null) {
+						request.complete(replyMsg);
+					} else {
+						logger.warn(ReplicationChannel.this + " reply for unknown request id=" + replyMsg.getId());
+					}
+				}
+			} catch (IOException e) {
+				lost(e);
+			} catch (RuntimeException e) {
+				lost(new IOException(e));
+			}
+		}
+
+		private void fail(KVMessageImpl message, Exception cause) {
+			logger.error(ReplicationChannel.this + " unable to send " + message.getStatus() + ": " + cause);
+			CompletableFuture<KVMessageImpl> request = pending.remove(message.getId());
+			if (request != null) {
+				request.completeExceptionally(cause);
+			}
+		}
+
+		private void lost(IOException cause) {
+			if (!closed) {
+				logger.error(ReplicationChannel.this + " connection lost: " + cause);
+				close(cause);
+			}
+		}
+
+		void close(IOException cause) {
+			closed = true;
+			sender.interrupt();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				logger.error(ReplicationChannel.this + " unable to close connection: " + e);
+			}
+			for (Long id : pending.keySet()) {
+				CompletableFuture<KVMessageImpl> request = pending.remove(id);
+				if (request != null) {
+					request.completeExceptionally(cause);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,459 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import server.storage.MemoryBudget;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageImpl;
+
+/**
+ * Log of the writes a KVServer replicates asynchronously, kept in memory.
+ *
+ * A write is appended with the next offset and its client is answered
+ * right away. A shipper thread per replica sends the writes after the
+ * offset the replica acknowledged last as one REPLICA_BATCH_PUT, all that
+ * are waiting up to MAX_BATCH_SIZE pairs or MAX_BATCH_CHARS chars. A key
+ * written several times is sent once with its last value. While a batch
+ * is in flight the next writes collect for the next batch, so the busier
+ * the server the larger the batches. Writes acknowledged by all replicas
+ * are dropped from the log.
+ *
+ * A batch which fails, or of which the replica rejects a pair, is sent 
+ * again after RETRY_DELAY. Pairs the replica rejects MAX_REJECTIONS times
+ * in a row are skipped and count as missed. The log holds writes of at most a given size,
+ * estimated like the stored pairs by MemoryBudget, DEFAULT_MAX_SIZE 
+ * unless set. A replica falling further behind misses the oldest writes,
+ * which the ECServer restores when it replicates the data again.
+ *
+ * When the replicas change the log is replaced by one which takes over
+ * the writes not shipped yet with their offsets. A replica kept resumes
+ * after the offset it acknowledged, a new one gets all of them. Writes
+ * and waits which reach the replaced log are passed on to its successor.
+ */
+public class ReplicationLog {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private static final int MAX_BATCH_SIZE = 1000;
+	//a batch fits into a text message as well as under the frame limit
+	private static final long MAX_BATCH_CHARS = 64 * 1024;
+	public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+	private static final long RETRY_DELAY = 1000;
+	private static final int MAX_REJECTIONS = 3;
+
+	private final List<ReplicationChannel> channels;
+	private final int replicas;
+
+	// a lock instead of a monitor, a virtual thread waiting for the 
+	// replicas does not pin its carrier thread
+	private final Lock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	//writes not acknowledged by all replicas, the first one at firstOffset
+	private final ArrayDeque<KVMessage> entries = new ArrayDeque<KVMessage>();
+	private long firstOffset;
+	//estimated bytes of the entries, at most maxSize
+	private long size;
+	private final long maxSize;
+	//offset up to which each replica acknowledged the writes
+	private final long[] acked;
+	//true while the last batch sent to the replica failed
+	private final boolean[] failing;
+	private final long[] missed;
+	private final Thread[] shippers;
+	private boolean closed;
+	//the log which took over the writes, null if there is none
+	private ReplicationLog successor;
+
+	private long batches;
+	private long shipped;
+	private long coalesced;
+	private long missedTotal;
+
+	/**
+	 * Starts the shipper threads, the log holds DEFAULT_MAX_SIZE at most.
+	 *
+	 * @param channels
+	 * 			the channels to the replicas the writes are shipped to.
+	 * @param previous
+	 * 			the log used for the replicas before, it is closed and 
+	 * 			its writes not shipped yet are taken over, null if there
+	 * 			is none.
+	 */
+	public ReplicationLog(List<ReplicationChannel> channels, ReplicationLog previous) {
+		this(channels, previous, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Starts the shipper threads.
+	 *
+	 * @param channels
+	 * 			the channels to the replicas the writes are shipped to.
+	 * @param previous
+	 * 			the log used for the replicas before, it is closed and 
+	 * 			its writes not shipped yet are taken over, null if there
+	 * 			is none.
+	 * @param maxSize
+	 * 			estimated bytes of the writes the log holds at most.
+	 * @throws IllegalArgumentException
+	 * 			if the size is not positive.
+	 */
+	public ReplicationLog(List<ReplicationChannel> channels, ReplicationLog previous, long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Replication log size must be positive");
+		}
+		this.maxSize = maxSize;
+		this.channels = new ArrayList<ReplicationChannel>(channels);
+		this.replicas = channels.size();
+		acked = new long[replicas];
+		failing = new boolean[replicas];
+		missed = new long[replicas];
+		shippers = new Thread[replicas];
+		if (previous != null) {
+			previous.handOver(this);
+		}
+		for (int i = 0; i < replicas; i++) {
+			final int replica = i;
+			shippers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ship(replica);
+				}
+			}, "replication-log-" + (i + 1));
+			shippers[i].setDaemon(true);
+			shippers[i].start();
+		}
+	}
+
+	/**
+	 * Appends a REPLICA_PUT or the pairs of a REPLICA_BATCH_PUT, an empty
+	 * value deletes the key.
+	 *
+	 * @return the offset the replicas have to acknowledge for the write.
+	 */
+	public long append(KVMessageImpl replicaMsg) {
+		ReplicationLog next;
+		lock.lock();
+		try {
+			next = successor;
+			if (next == null) {
+				if (replicaMsg.getBatch() != null) {
+					for (KVMessage entry : replicaMsg.getBatch()) {
+						add(entry);
+					}
+				} else {
+					add(replicaMsg);
+				}
+				// the last write is kept, even if it is larger on its own
+				while (size > maxSize && entries.size() > 1) {
+					removeFirst();
+					for (int i = 0; i < replicas; i++) {
+						if (acked[i] < firstOffset) {
+							missedTotal++;
+							if (missed[i]++ == 0) {
+								logger.error("ReplicationLog::append() + Log full, replica " + (i + 1) + " misses writes");
+							}
+							acked[i] = firstOffset;
+						}
+					}
+				}
+				changed.signalAll();
+				return firstOffset + entries.size();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return next.append(replicaMsg);
+	}
+
+	private void add(KVMessage write) {
+		entries.add(new KVMessageImpl(write.getKey(), write.getValue(), StatusType.REPLICA_PUT));
+		size += MemoryBudget.sizeOf(write.getKey(), write.getValue());
+	}
+
+	private void removeFirst() {
+		KVMessage write = entries.removeFirst();
+		size -= MemoryBudget.sizeOf(write.getKey(), write.getValue());
+		firstOffset++;
+	}
+
+	/**
+	 * @return the number of replicas the writes are shipped to.
+	 */
+	public int getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * @return the offset after the last write appended.
+	 */
+	public long end() {
+		ReplicationLog next;
+		lock.lock();
+		try {
+			next = successor;
+			if (next == null) {
+				return firstOffset + entries.size();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return next.end();
+	}
+
+	/**
+	 * Waits until the given number of replicas acknowledged the writes up
+	 * to an offset, at most for the reply timeout of a ReplicationChannel.
+	 *
+	 * @return false if they did not, also at once if too many replicas fail.
+	 */
+	public boolean await(long offset, int required) {
+		long deadline = System.currentTimeMillis() + ReplicationChannel.REPLY_TIMEOUT;
+		ReplicationLog next;
+		lock.lock();
+		try {
+			while (!closed) {
+				int done = 0;
+				int possible = 0;
+				for (int i = 0; i < replicas; i++) {
+					if (acked[i] >= offset) {
+						done++;
+					} else if (!failing[i]) {
+						possible++;
+					}
+				}
+				if (done >= required) {
+					return true;
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (done + possible < required || remaining <= 0) {
+					return false;
+				}
+				changed.await(remaining, TimeUnit.MILLISECONDS);
+			}
+			next = successor;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+		return next != null && next.await(offset, required);
+	}
+
+	/**
+	 * Stops the shippers, the writes not shipped yet are lost.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (Thread shipper : shippers) {
+			shipper.interrupt();
+		}
+	}
+
+	/**
+	 * @return counters of the log, for the stats of the server.
+	 */
+	public Map<String, Long> getStats() {
+		lock.lock();
+		try {
+			Map<String, Long> stats = new LinkedHashMap<String, Long>();
+			stats.put("replicationLogEntries", (long) entries.size());
+			stats.put("replicationLogSize", size);
+			stats.put("replicationBatches", batches);
+			stats.put("replicationShipped", shipped);
+			stats.put("replicationCoalesced", coalesced);
+			stats.put("replicationMissed", missedTotal);
+			return stats;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes this log and passes its writes not shipped yet, its offsets 
+	 * and counters to the log replacing it. A replica of both keeps the
+	 * offset it acknowledged, a new replica starts at the oldest write.
+	 */
+	private void handOver(ReplicationLog next) {
+		lock.lock();
+		try {
+			next.entries.addAll(entries);
+			next.firstOffset = firstOffset;
+			next.size = size;
+			for (int i = 0; i < next.replicas; i++) {
+				int replica = channels.indexOf(next.channels.get(i));
+				next.acked[i] = replica >= 0 ? acked[replica] : firstOffset;
+			}
+			next.batches = batches;
+			next.shipped = shipped;
+			next.coalesced = coalesced;
+			next.missedTotal = missedTotal;
+			entries.clear();
+			size = 0;
+			successor = next;
+		} finally {
+			lock.unlock();
+		}
+		close();
+	}
+
+	/**
+	 * Sends the writes to a replica until the log is closed.
+	 */
+	private void ship(int replica) {
+		//times in a row the replica rejected pairs of the batch
+		int rejections = 0;
+		while (true) {
+			long from;
+			long to;
+			boolean wasFailing;
+			Map<String, String> batch = new LinkedHashMap<String, String>();
+			lock.lock();
+			try {
+				while (!closed && acked[replica] >= firstOffset + entries.size()) {
+					changed.await();
+				}
+				if (closed) {
+					return;
+				}
+				wasFailing = failing[replica];
+				from = acked[replica];
+				to = from;
+				long chars = 0;
+				Iterator<KVMessage> iterator = entries.iterator();
+				for (long skip = from - firstOffset; skip > 0; skip--) {
+					iterator.next();
+				}
+				while (iterator.hasNext() && batch.size() < MAX_BATCH_SIZE && chars < MAX_BATCH_CHARS) {
+					KVMessage entry = iterator.next();
+					// a key written again is sent with the last value only
+					if (batch.put(entry.getKey(), entry.getValue()) != null) {
+						coalesced++;
+					}
+					chars += entry.getKey().length() + entry.getValue().length();
+					to++;
+				}
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+
+			int rejected = send(replica, batch, wasFailing);
+			boolean skipped = rejected > 0 && ++rejections >= MAX_REJECTIONS;
+			boolean stored = rejected == 0 || skipped;
+			if (stored) {
+				rejections = 0;
+			}
+			lock.lock();
+			try {
+				if (closed) {
+					return;
+				}
+				if (skipped) {
+					logger.error("ReplicationLog::ship() + Replica " + (replica + 1) + " rejected " + rejected 
+							+ " writes " + MAX_REJECTIONS + " times, they are skipped");
+					missed[replica] += rejected;
+					missedTotal += rejected;
+				}
+				if (stored) {
+					if (failing[replica] || missed[replica] > 0) {
+						logger.info("ReplicationLog::ship() + Replica " + (replica + 1) + " is back, it missed "
+								+ missed[replica] + " writes");
+					}
+					failing[replica] = false;
+					missed[replica] = 0;
+					acked[replica] = Math.max(acked[replica], to);
+					batches++;
+					shipped += batch.size() - (skipped ? rejected : 0);
+					trim();
+				} else {
+					failing[replica] = true;
+				}
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (!stored) {
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param failing
+	 * 			true if the last batch failed, which was logged already.
+	 * @return the number of pairs the replica rejected, -1 if the batch 
+	 * 			failed.
+	 */
+	private int send(int replica, Map<String, String> batch, boolean failing) {
+		ReplicationChannel channel = channels.get(replica);
+		List<KVMessage> pairs = new ArrayList<KVMessage>(batch.size());
+		for (Map.Entry<String, String> pair : batch.entrySet()) {
+			pairs.add(new KVMessageImpl(pair.getKey(), pair.getValue(), StatusType.REPLICA_PUT));
+		}
+		KVMessageImpl request = new KVMessageImpl("", "", StatusType.REPLICA_BATCH_PUT);
+		request.setBatch(pairs);
+		try {
+			KVMessageImpl reply = channel.exchange(request);
+			if (reply.getBatch() == null) {
+				logger.error("ReplicationLog::send() + Replica " + (replica + 1) + " replied " + reply.getStatus());
+				return -1;
+			}
+			int rejected = 0;
+			for (KVMessage entry : reply.getBatch()) {
+				if (entry.getStatus().equals(StatusType.REPLICA_PUT_ERROR)) {
+					rejected++;
+				}
+			}
+			if (rejected > 0 && !failing) {
+				// the batch is sent again, the pairs the replica stored are written once more
+				logger.error("ReplicationLog::send() + Replica " + (replica + 1) + " rejected " + rejected + " writes");
+			}
+			return rejected;
+		} catch (IOException e) {
+			if (!failing) {
+				logger.error("ReplicationLog::send() + Unable to ship to replica " + (replica + 1) + ": " + e);
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Drops the writes all replicas acknowledged.
+	 */
+	private void trim() {
+		long min = Long.MAX_VALUE;
+		for (long offset : acked) {
+			min = Math.min(min, offset);
+		}
+		while (firstOffset < min) {
+			removeFirst();
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package server;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import metadata.MetaData;
@@ -44,24 +45,24 @@ public class Server {
 	private MetaData nodeMetaData;
 	
 	/**
-	 * Replica 1 meta data
+	 * Number of copies of every pair, on its coordinator and the replicas
 	 */
-	private MetaData replica1MetaData;
+	private int replicationFactor = DEFAULT_REPLICATION_FACTOR;
 	
 	/**
-	 * Replica 2 meta data
+	 * Meta data of the nodes whose data is replicated here, the predecessor first
 	 */
-	private MetaData replica2MetaData;
+	private List<MetaData> replicasMetaData = new ArrayList<MetaData>();
 	
 	/**
-	 * This server's Replica 1 node meta data
+	 * This server's Replica nodes meta data, the successor first
 	 */
-	private MetaData myReplica1MetaData;
+	private List<MetaData> myReplicasMetaData = new ArrayList<MetaData>();
 	
 	/**
-	 * This server's Replica 1 node meta data
+	 * Replication factor until the ECServer sends one
 	 */
-	private MetaData myReplica2MetaData;
+	public static final int DEFAULT_REPLICATION_FACTOR = 3;
 	
 
 	public boolean isLockWrite() {
@@ -93,39 +94,31 @@ public class Server {
 		return nodeMetaData;
 	}
 
-	public MetaData getReplica1MetaData() {
-		return replica1MetaData;
+	public int getReplicationFactor() {
+		return replicationFactor;
 	}
 	
-	public MetaData getReplica2MetaData() {
-		return replica2MetaData;
+	public List<MetaData> getReplicasMetaData() {
+		return replicasMetaData;
 	}
 	
-	public MetaData getMyReplica1MetaData() {
-		return myReplica1MetaData;
-	}
-	
-	public MetaData getMyReplica2MetaData() {
-		return myReplica2MetaData;
+	public List<MetaData> getMyReplicasMetaData() {
+		return myReplicasMetaData;
 	}
 	
 	public void setNodeMetaData(MetaData nodeMetaData) {
 		this.nodeMetaData = nodeMetaData;
 	}
 
-	public void setReplica1MetaData(MetaData replica1MetaData) {
-		this.replica1MetaData = replica1MetaData;
-	}
-	
-	public void setReplica2MetaData(MetaData replica2MetaData) {
-		this.replica2MetaData = replica2MetaData;
+	public void setReplicationFactor(int replicationFactor) {
+		this.replicationFactor = replicationFactor;
 	}
 	
-	public void setMyReplica1MetaData(MetaData myReplica1MetaData) {
-		this.myReplica1MetaData = myReplica1MetaData;
+	public void setReplicasMetaData(List<MetaData> replicasMetaData) {
+		this.replicasMetaData = replicasMetaData;
 	}
 	
-	public void setMyReplica2MetaData(MetaData myReplica2MetaData) {
-		this.myReplica2MetaData = myReplica2MetaData;
+	public void setMyReplicasMetaData(List<MetaData> myReplicasMetaData) {
+		this.myReplicasMetaData = myReplicasMetaData;
 	}
 }
@@ -0,0 +1,59 @@
+package server.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Part of the data of a MemoryEngine: the keys whose ring positions start
+ * with the same bits. A bucket keeps its own counters, so a range covering
+ * it can drop or count it as a whole without visiting its keys.
+ */
+public class Bucket {
+
+	final ConcurrentHashMap<String, String> data = new ConcurrentHashMap<String, String>();
+
+	/*
+	 * Keys of the bucket sorted by their position on the ring.
+	 */
+	final ConcurrentSkipListSet<RingKey> index = new ConcurrentSkipListSet<RingKey>();
+
+	/*
+	 * Chars of all keys and values stored in the bucket.
+	 */
+	private final AtomicLong chars = new AtomicLong();
+
+	/**
+	 * @return number of keys in the bucket.
+	 */
+	public long size() {
+		return data.size();
+	}
+
+	/**
+	 * @return chars of the keys and values in the bucket.
+	 */
+	public long getChars() {
+		return chars.get();
+	}
+
+	String put(RingKey key, String value) {
+		// index first, range readers skip keys which have no data yet.
+		index.add(key);
+		String previous = data.put(key.getKey(), value);
+		chars.addAndGet(previous != null
+				? value.length() - previous.length()
+				: key.getKey().length() + value.length());
+		return previous;
+	}
+
+	String remove(RingKey key) {
+		// data first, so the index never misses a key that has data.
+		String previous = data.remove(key.getKey());
+		index.remove(key);
+		if (previous != null) {
+			chars.addAndGet(-(key.getKey().length() + previous.length()));
+		}
+		return previous;
+	}
+}
@@ -0,0 +1,23 @@
+package server.storage;
+
+import java.util.List;
+
+import common.hashing.RingPosition;
+
+/**
+ * Storage engine splitting the ring into a fixed number of buckets, so the
+ * part of a range covering whole buckets can be removed by dropping them
+ * instead of deleting key by key.
+ */
+public interface BucketedEngine extends StorageEngine {
+
+	/**
+	 * Drops the buckets lying completely in the range (start, end] of the
+	 * ring. The keys of the range in the buckets at its ends are left for
+	 * the caller to delete. Writes to a dropped bucket running concurrently
+	 * may be lost.
+	 *
+	 * @return the buckets dropped.
+	 */
+	public List<Bucket> dropBuckets(RingPosition start, RingPosition end);
+}
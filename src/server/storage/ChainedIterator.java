@@ -0,0 +1,40 @@
+package server.storage;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator returning the elements of two iterators one after the other,
+ * used for ranges wrapping around the end of the ring.
+ */
+public class ChainedIterator<T> implements Iterator<T> {
+
+	private final Iterator<T> first;
+	private final Iterator<T> second;
+
+	public ChainedIterator(Iterator<T> first, Iterator<T> second) {
+		this.first = first;
+		this.second = second;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return first.hasNext() || second.hasNext();
+	}
+
+	@Override
+	public T next() {
+		if (first.hasNext()) {
+			return first.next();
+		}
+		if (second.hasNext()) {
+			return second.next();
+		}
+		throw new NoSuchElementException();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
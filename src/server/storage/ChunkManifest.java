@@ -0,0 +1,114 @@
+package server.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.hashing.RingPosition;
+
+/**
+ * Description of a value stored in chunks, so a large value is never held
+ * as one String by the server.
+ *
+ * The manifest is stored as the value of the key, starting with a char no
+ * client value starts with, and each chunk as a record of its own under
+ * key + SEPARATOR + upload + SEPARATOR + index. These records lie at the
+ * ring position of the key, so they are moved and replicated together with
+ * it. Every upload has its own id, so its chunks never mix with those of
+ * the value it replaces.
+ */
+public final class ChunkManifest {
+
+	public static final char SEPARATOR = RingPosition.SUFFIX_SEPARATOR;
+
+	private static final String PREFIX = SEPARATOR + "chunks:";
+
+	private static final AtomicLong uploads = new AtomicLong(System.currentTimeMillis() << 16);
+
+	private final String upload;
+	private final int count;
+	private final long length;
+
+	private ChunkManifest(String upload, int count, long length) {
+		this.upload = upload;
+		this.count = count;
+		this.length = length;
+	}
+
+	/**
+	 * @return the manifest of a new upload without chunks.
+	 */
+	public static ChunkManifest start() {
+		return new ChunkManifest(Long.toString(uploads.incrementAndGet(), 36), 0, 0);
+	}
+
+	/**
+	 * @return true if the stored value is a manifest.
+	 */
+	public static boolean isManifest(String value) {
+		return value != null && value.startsWith(PREFIX);
+	}
+
+	/**
+	 * @return true if the key or value may not be written by a client, as
+	 *         it would be taken for a chunk or a manifest.
+	 */
+	public static boolean isReserved(String key, String value) {
+		return key.indexOf(SEPARATOR) >= 0 || (value != null && !value.isEmpty() && value.charAt(0) == SEPARATOR);
+	}
+
+	/**
+	 * Parses a stored manifest.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the value is no manifest.
+	 */
+	public static ChunkManifest parse(String value) {
+		if (!isManifest(value)) {
+			throw new IllegalArgumentException("Not a chunk manifest");
+		}
+		String[] fields = value.substring(PREFIX.length()).split(":");
+		if (fields.length != 3) {
+			throw new IllegalArgumentException("Malformed chunk manifest " + value.substring(1));
+		}
+		return new ChunkManifest(fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+	}
+
+	/**
+	 * @return the manifest with one more chunk of the given length.
+	 */
+	public ChunkManifest append(int chars) {
+		return new ChunkManifest(upload, count + 1, length + chars);
+	}
+
+	/**
+	 * @return the key of the record holding a chunk of the value of key.
+	 */
+	public String chunkKey(String key, int index) {
+		return key + SEPARATOR + upload + SEPARATOR + index;
+	}
+
+	public String getUpload() {
+		return upload;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return "upload:count:length" as sent to clients.
+	 */
+	public String getDescriptor() {
+		return upload + ":" + count + ":" + length;
+	}
+
+	/**
+	 * @return the manifest as stored under the key.
+	 */
+	public String toValue() {
+		return PREFIX + getDescriptor();
+	}
+}
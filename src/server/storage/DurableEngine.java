@@ -0,0 +1,85 @@
+package server.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import common.hashing.RingPosition;
+
+/**
+ * Storage engine keeping the data on the heap like the MemoryEngine and
+ * appending every put and delete to a WriteAheadLog, so the content
+ * survives a restart of the KVServer. A write is logged and applied under
+ * the lock of the log, so a snapshot never misses a write of a log it
+ * replaces.
+ */
+public class DurableEngine implements StorageEngine {
+
+	private final MemoryEngine memory = new MemoryEngine();
+	private final WriteAheadLog wal;
+
+	/**
+	 * Opens the engine and replays the data already present in dataDir.
+	 *
+	 * @param dataDir
+	 * 			directory for log and snapshot files.
+	 * @param syncWrites
+	 * 			true to sync every write to disk before returning.
+	 * @param snapshotInterval
+	 * 			number of writes after which a new snapshot is taken.
+	 * @throws IOException
+	 * 			if the stored data cannot be recovered.
+	 */
+	public DurableEngine(File dataDir, boolean syncWrites, int snapshotInterval) throws IOException {
+		wal = new WriteAheadLog(dataDir, memory.getData(), syncWrites, snapshotInterval);
+		wal.recover();
+	}
+
+	@Override
+	public String getName() {
+		return "durable";
+	}
+
+	@Override
+	public String get(String key) {
+		return memory.get(key);
+	}
+
+	@Override
+	public String put(String key, String value) throws IOException {
+		synchronized (wal) {
+			wal.logPut(key, value);
+			return memory.put(key, value);
+		}
+	}
+
+	@Override
+	public String delete(String key) throws IOException {
+		synchronized (wal) {
+			wal.logDelete(key);
+			return memory.delete(key);
+		}
+	}
+
+	@Override
+	public Iterator<Entry<String, String>> range(RingPosition start, RingPosition end) {
+		return memory.range(start, end);
+	}
+
+	@Override
+	public long size() {
+		return memory.size();
+	}
+
+	@Override
+	public Map<String, Long> getStats() {
+		return memory.getStats();
+	}
+
+	@Override
+	public void close() {
+		wal.close();
+	}
+}
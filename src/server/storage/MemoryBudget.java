@@ -0,0 +1,99 @@
+package server.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit on the memory the data of a KVServer may use, estimated from the
+ * sizes of the keys and values stored.
+ *
+ * The limit is soft: writes running concurrently are admitted against the
+ * same usage, so it can be exceeded by the size of these writes.
+ */
+public class MemoryBudget {
+
+	/**
+	 * What the storage does with a write when the budget is used up.
+	 */
+	public enum Policy {
+		REJECT,		/* refuse writes which grow the data */
+		EVICT		/* accept the write and delete other keys to make room */
+	}
+
+	/*
+	 * Estimated bytes used per pair besides the chars of key and value:
+	 * the two String objects with their arrays and the entry of the map.
+	 */
+	static final int ENTRY_OVERHEAD = 96;
+
+	private final long limit;
+	private final Policy policy;
+	private final AtomicLong used = new AtomicLong();
+
+	/**
+	 * @param limit
+	 * 			bytes the data may use.
+	 * @param policy
+	 * 			what to do with writes once the limit is reached.
+	 */
+	public MemoryBudget(long limit, Policy policy) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("Memory budget must be positive: " + limit);
+		}
+		this.limit = limit;
+		this.policy = policy;
+	}
+
+	/**
+	 * Estimates the memory used by a key value pair, chars count two bytes
+	 * as that is what the heap engines keep.
+	 */
+	public static long sizeOf(String key, String value) {
+		return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+	}
+
+	/**
+	 * Estimates the memory used by a number of pairs with the given chars
+	 * of keys and values in total.
+	 */
+	public static long sizeOf(long pairs, long chars) {
+		return ENTRY_OVERHEAD * pairs + 2L * chars;
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return estimated bytes used by the data.
+	 */
+	public long getUsed() {
+		return used.get();
+	}
+
+	/**
+	 * @return bytes used over the limit, zero or negative if within it.
+	 */
+	public long getExcess() {
+		return used.get() - limit;
+	}
+
+	/**
+	 * @return true if bytes more can be stored without exceeding the limit.
+	 */
+	boolean fits(long bytes) {
+		return used.get() + bytes <= limit;
+	}
+
+	void add(long bytes) {
+		used.addAndGet(bytes);
+	}
+
+	@Override
+	public String toString() {
+		return used.get() + "/" + limit + " bytes (" + policy + ")";
+	}
+}
@@ -0,0 +1,295 @@
+package server.storage;
+
+import java.util.AbstractMap;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import common.hashing.RingPosition;
+
+/**
+ * Storage engine keeping all data on the heap. The ring is split into
+ * BUCKETS buckets by the first bits of the key positions, each holding a
+ * ConcurrentHashMap with a sorted index of its keys for range operations.
+ *
+ * A range only visits the buckets it overlaps, and the buckets lying
+ * completely in a range which is deleted are dropped as a whole.
+ */
+public class MemoryEngine implements BucketedEngine {
+
+	/*
+	 * Number of leading position bits selecting the bucket of a key.
+	 */
+	public static final int BUCKET_BITS = 12;
+	public static final int BUCKETS = 1 << BUCKET_BITS;
+
+	/*
+	 * In Memory Storage with all operations being thread-safe and retrieval operations
+	 * do not entail locking, resulting in faster access.
+	 */
+	private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<Bucket>(BUCKETS);
+
+	/*
+	 * View of all buckets as one map, for the recovery and snapshots of a
+	 * DurableEngine.
+	 */
+	private final Map<String, String> data = new BucketMap();
+
+	public MemoryEngine() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, new Bucket());
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "memory";
+	}
+
+	@Override
+	public String get(String key) {
+		return bucketOf(RingPosition.of(key)).data.get(key);
+	}
+
+	@Override
+	public String put(String key, String value) {
+		RingKey ringKey = new RingKey(key);
+		return bucketOf(ringKey.getPosition()).put(ringKey, value);
+	}
+
+	@Override
+	public String delete(String key) {
+		RingKey ringKey = new RingKey(key);
+		return bucketOf(ringKey.getPosition()).remove(ringKey);
+	}
+
+	@Override
+	public Iterator<Entry<String, String>> range(RingPosition start, RingPosition end) {
+		return new RangeIterator(start, end);
+	}
+
+	@Override
+	public List<Bucket> dropBuckets(RingPosition start, RingPosition end) {
+		List<Bucket> dropped = new ArrayList<Bucket>();
+		int first = bucketIndex(start);
+		int steps = bucketSteps(start, end);
+		// the first and last bucket are only partly in the range
+		for (int step = 1; step < steps - 1; step++) {
+			dropped.add(buckets.getAndSet((first + step) & (BUCKETS - 1), new Bucket()));
+		}
+		return dropped;
+	}
+
+	@Override
+	public long size() {
+		long size = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			size += buckets.get(i).size();
+		}
+		return size;
+	}
+
+	@Override
+	public Map<String, Long> getStats() {
+		long keys = 0;
+		long used = 0;
+		long largest = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long size = buckets.get(i).size();
+			keys += size;
+			if (size > 0) {
+				used++;
+			}
+			largest = Math.max(largest, size);
+		}
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("keys", keys);
+		stats.put("bucketsUsed", used);
+		stats.put("largestBucket", largest);
+		return stats;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * @return the data as one map, written directly by the recovery of a
+	 *         DurableEngine.
+	 */
+	Map<String, String> getData() {
+		return data;
+	}
+
+	private Bucket bucketOf(RingPosition position) {
+		return buckets.get(bucketIndex(position));
+	}
+
+	private static int bucketIndex(RingPosition position) {
+		return (int) (position.getHigh() >>> (64 - BUCKET_BITS));
+	}
+
+	/**
+	 * @return number of buckets the range (start, end] touches in ring order
+	 *         from the bucket of start. A wrapping range starting and ending
+	 *         in the same bucket visits it twice.
+	 */
+	private static int bucketSteps(RingPosition start, RingPosition end) {
+		int first = bucketIndex(start);
+		int last = bucketIndex(end);
+		if (start.compareTo(end) < 0) {
+			return last - first + 1;
+		}
+		return BUCKETS - first + last + 1;
+	}
+
+	/**
+	 * Visits the buckets of a range one after the other, in ring order.
+	 */
+	private class RangeIterator implements Iterator<Entry<String, String>> {
+		private final RingPosition start;
+		private final RingPosition end;
+		private final int first;
+		private final int steps;
+		private int step;
+		private DataIterator current;
+
+		RangeIterator(RingPosition start, RingPosition end) {
+			this.start = start;
+			this.end = end;
+			this.first = bucketIndex(start);
+			this.steps = bucketSteps(start, end);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while ((current == null || !current.hasNext()) && step < steps) {
+				Bucket bucket = buckets.get((first + step) & (BUCKETS - 1));
+				NavigableSet<RingKey> keys;
+				if (step == 0 && steps == 1) {
+					keys = bucket.index.subSet(RingKey.after(start), false, RingKey.after(end), false);
+				} else if (step == 0) {
+					keys = bucket.index.tailSet(RingKey.after(start), false);
+				} else if (step == steps - 1) {
+					keys = bucket.index.headSet(RingKey.after(end), false);
+				} else {
+					keys = bucket.index;
+				}
+				current = new DataIterator(bucket, keys);
+				step++;
+			}
+			return current != null && current.hasNext();
+		}
+
+		@Override
+		public Entry<String, String> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Looks up the data of the keys of a part of the index of a bucket.
+	 */
+	private static class DataIterator implements Iterator<Entry<String, String>> {
+		private final Bucket bucket;
+		private final Iterator<RingKey> keys;
+		private Entry<String, String> next;
+
+		DataIterator(Bucket bucket, NavigableSet<RingKey> keys) {
+			this.bucket = bucket;
+			this.keys = keys.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && keys.hasNext()) {
+				String key = keys.next().getKey();
+				String value = bucket.data.get(key);
+				if (value != null) {
+					next = new SimpleImmutableEntry<String, String>(key, value);
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, String> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Entry<String, String> result = next;
+			next = null;
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * All buckets as one map, not ordered.
+	 */
+	private class BucketMap extends AbstractMap<String, String> {
+
+		@Override
+		public String get(Object key) {
+			return MemoryEngine.this.get((String) key);
+		}
+
+		@Override
+		public String put(String key, String value) {
+			return MemoryEngine.this.put(key, value);
+		}
+
+		@Override
+		public String remove(Object key) {
+			return delete((String) key);
+		}
+
+		@Override
+		public void clear() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets.set(i, new Bucket());
+			}
+		}
+
+		@Override
+		public int size() {
+			return (int) Math.min(MemoryEngine.this.size(), Integer.MAX_VALUE);
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet() {
+			return new AbstractSet<Entry<String, String>>() {
+				@Override
+				public Iterator<Entry<String, String>> iterator() {
+					return range(RingPosition.MIN, RingPosition.MIN);
+				}
+
+				@Override
+				public int size() {
+					return BucketMap.this.size();
+				}
+			};
+		}
+	}
+}
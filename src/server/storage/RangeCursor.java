@@ -0,0 +1,113 @@
+package server.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.log4j.Logger;
+
+import common.hashing.RingPosition;
+
+/**
+ * Cursor over the key-value pairs of a range of the ring, returning them in
+ * bounded batches so a range can be moved or deleted without copying it
+ * into memory at once.
+ *
+ * If the engine fails while iterating, for example because an LSM compaction
+ * removed a segment file, the cursor reopens the range after the last pair it
+ * returned. Engines iterate in RingKey order, so the pairs sharing the ring
+ * position of that pair are read again up to it and skipped.
+ */
+public class RangeCursor {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private static final int MAX_REOPEN = 3;
+
+	private final StorageEngine engine;
+	private final RingPosition start;
+	private final RingPosition end;
+	private Iterator<Entry<String, String>> entries;
+	private RingKey last;
+	//after a reopen, the pairs up to this one were returned already
+	private RingKey skipTo;
+	private int reopened;
+
+	RangeCursor(StorageEngine engine, RingPosition start, RingPosition end) throws IOException {
+		this.engine = engine;
+		this.start = start;
+		this.end = end;
+		this.entries = engine.range(start, end);
+	}
+
+	/**
+	 * @return an empty cursor.
+	 */
+	static RangeCursor empty() {
+		return new RangeCursor();
+	}
+
+	private RangeCursor() {
+		this.engine = null;
+		this.start = null;
+		this.end = null;
+		this.entries = Collections.<Entry<String, String>>emptyList().iterator();
+	}
+
+	/**
+	 * Returns the next pairs of the range.
+	 *
+	 * @param maxEntries
+	 * 			maximum number of pairs in the batch.
+	 * @param maxChars
+	 * 			the batch is closed once keys and values reach this many chars.
+	 * @return the pairs, an empty list at the end of the range.
+	 * @throws IOException
+	 * 			if the engine cannot read the range.
+	 */
+	public List<Entry<String, String>> nextBatch(int maxEntries, long maxChars) throws IOException {
+		List<Entry<String, String>> batch = new ArrayList<Entry<String, String>>();
+		long chars = 0;
+		while (batch.size() < maxEntries && chars < maxChars) {
+			Entry<String, String> entry;
+			try {
+				if (!entries.hasNext()) {
+					break;
+				}
+				entry = entries.next();
+			} catch (StorageException e) {
+				reopen(e);
+				continue;
+			}
+			RingKey key = new RingKey(entry.getKey());
+			if (skipTo != null) {
+				if (key.getPosition().equals(skipTo.getPosition()) && key.compareTo(skipTo) <= 0) {
+					continue;
+				}
+				skipTo = null;
+			}
+			batch.add(entry);
+			chars += entry.getKey().length() + entry.getValue().length();
+			last = key;
+		}
+		return batch;
+	}
+
+	private void reopen(StorageException e) throws IOException {
+		if (++reopened > MAX_REOPEN) {
+			throw e.getCause();
+		}
+		if (last == null) {
+			logger.warn("RangeCursor::nextBatch() + Reopening range: " + e.getCause());
+			entries = engine.range(start, end);
+		} else {
+			logger.warn("RangeCursor::nextBatch() + Reopening range after key " + last.getKey() + ": " + e.getCause());
+			// (previous, end] starts with the position of the last pair
+			entries = engine.range(last.getPosition().previous(), end);
+			skipTo = last;
+		}
+	}
+}
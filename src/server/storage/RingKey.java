@@ -0,0 +1,92 @@
+package server.storage;
+
+import common.hashing.RingPosition;
+
+/**
+ * Sort key of the storage engines: keys are ordered by their position on the
+ * ring first and by the key itself second, so a range of the ring is a
+ * contiguous part of the buckets of the in-memory engines, of the off-heap
+ * index and of the memtables and segments of the LSM storage.
+ *
+ * Besides real keys there are bounds sorting before or after all keys at a
+ * position, which are used to describe ranges.
+ */
+public final class RingKey implements Comparable<RingKey> {
+
+	private static final int BEFORE = -1;
+	private static final int KEY = 0;
+	private static final int AFTER = 1;
+
+	private final RingPosition position;
+	private final String key;
+	private final int bound;
+
+	public RingKey(String key) {
+		this(RingPosition.of(key), key);
+	}
+
+	public RingKey(RingPosition position, String key) {
+		this(position, key, KEY);
+	}
+
+	private RingKey(RingPosition position, String key, int bound) {
+		this.position = position;
+		this.key = key;
+		this.bound = bound;
+	}
+
+	/**
+	 * @return a bound sorting before all keys at the given position.
+	 */
+	public static RingKey before(RingPosition position) {
+		return new RingKey(position, null, BEFORE);
+	}
+
+	/**
+	 * @return a bound sorting after all keys at the given position.
+	 */
+	public static RingKey after(RingPosition position) {
+		return new RingKey(position, null, AFTER);
+	}
+
+	public RingPosition getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return the key, null for a bound.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	public int compareTo(RingKey other) {
+		int result = position.compareTo(other.position);
+		if (result != 0) {
+			return result;
+		}
+		if (bound != KEY || other.bound != KEY) {
+			return bound < other.bound ? -1 : (bound == other.bound ? 0 : 1);
+		}
+		return key.compareTo(other.key);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof RingKey)) {
+			return false;
+		}
+		return compareTo((RingKey) obj) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return position.hashCode() * 31 + (key != null ? key.hashCode() : bound);
+	}
+
+	@Override
+	public String toString() {
+		return position + "/" + (key != null ? key : (bound == BEFORE ? "<" : ">"));
+	}
+}
@@ -1,18 +1,35 @@
 package server.storage;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
+import common.hashing.RingPosition;
+
+import server.storage.lsm.LsmEngine;
+import server.storage.offheap.OffHeapEngine;
+
 
 /**
- * Storage Module that uses ConcurrentHashMap as data structure.
+ * Storage Module of the KVServer. The data is kept by a StorageEngine which
+ * is chosen at startup: on the heap (memory), on the heap with a write-ahead
+ * log (durable), in sorted segment files on disk (lsm) or with the values in
+ * direct buffers outside of the heap (offheap).
+ * 
+ * Large values are stored in chunks, as records next to a manifest under 
+ * their key, see ChunkManifest. The chunks of a manifest replaced or 
+ * deleted are deleted with it.
  *  
  */
 public class Storage {
@@ -20,15 +37,43 @@ public class Storage {
 	private static Logger logger = Logger.getRootLogger();
 
 	/*
-	 * In Memory Storage with all operations being thread-safe and retrieval operations
-	 * do not entail locking, resulting in faster access.
+	 * Names of the engines accepted by createEngine.
+	 */
+	public static final String[] ENGINES = {"memory", "durable", "lsm", "offheap"};
+
+	/*
+	 * Engine holding the data.
+	 */
+	private final StorageEngine engine;
+
+	/*
+	 * Number of locks writes are striped over.
+	 */
+	private static final int LOCK_STRIPES = 64;
+
+	/*
+	 * Number of pairs read at once when a whole range is copied or deleted.
+	 */
+	private static final int RANGE_BATCH_SIZE = 1000;
+
+	/*
+	 * Writes to the same key are serialized on one of these locks, so the 
+	 * engine always sees them in the same order. Reads take no lock.
 	 */
-	ConcurrentHashMap<String, String> data;
+	private final Object[] locks;
 
 	/*
-	 * Map of Hash(key) and key of data stored.
+	 * Limit on the memory used by the data, null for none.
 	 */
-	HashMap<String, String> keyHash;
+	private volatile MemoryBudget budget;
+
+	/*
+	 * Position on the ring after which the next key is evicted, so 
+	 * evictions walk around the ring instead of always hitting one range.
+	 */
+	private RingPosition evictFrom = RingPosition.MIN;
+	private final Object evictLock = new Object();
+	private final AtomicLong evicted = new AtomicLong();
 
 	/**
 	 * Initializes the storage
@@ -41,12 +86,170 @@ public class Storage {
 		return s;
 	}
 
+	/**
+	 * Initializes the storage with the given engine.
+	 * 
+	 * @param engine
+	 * 			engine holding the data.
+	 */
+	public static Storage init(StorageEngine engine) {
+		if (s == null) {
+			s = new Storage(engine);
+			logger.debug("Storage class created with engine " + engine.getName());
+		}
+		return s;
+	}
+
+	/**
+	 * Creates a storage engine by name.
+	 * 
+	 * @param name
+	 * 			one of ENGINES.
+	 * @param dataDir
+	 * 			directory for the files of the engine, null for none.
+	 * @param syncWrites
+	 * 			true to sync every write to disk before returning.
+	 * @return the engine, recovered from dataDir.
+	 * @throws IOException
+	 * 			if the stored data cannot be recovered.
+	 * @throws IllegalArgumentException
+	 * 			if the name is unknown or the engine needs a dataDir.
+	 */
+	public static StorageEngine createEngine(String name, File dataDir, boolean syncWrites) throws IOException {
+		if (name.equals("memory")) {
+			return new MemoryEngine();
+		}
+		if (name.equals("offheap")) {
+			return new OffHeapEngine(OffHeapEngine.DEFAULT_SLAB_SIZE);
+		}
+		if (dataDir == null) {
+			throw new IllegalArgumentException("The " + name + " engine needs a data directory");
+		}
+		if (name.equals("durable")) {
+			return new DurableEngine(dataDir, syncWrites, WriteAheadLog.DEFAULT_SNAPSHOT_INTERVAL);
+		}
+		if (name.equals("lsm")) {
+			return new LsmEngine(dataDir, syncWrites, LsmEngine.DEFAULT_MEMTABLE_SIZE);
+		}
+		throw new IllegalArgumentException("Unknown storage engine " + name);
+	}
+
 	/**
 	 * Constructor for Storage class.
 	 */
 	public Storage() {
-		data = new ConcurrentHashMap<String, String>();
-		keyHash = new HashMap<String, String>();
+		this(new MemoryEngine());
+	}
+
+	/**
+	 * Constructor for Storage class with the given engine.
+	 * 
+	 * @param engine
+	 * 			engine holding the data.
+	 */
+	public Storage(StorageEngine engine) {
+		this.engine = engine;
+		locks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return the engine holding the data.
+	 */
+	public StorageEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @return number of keys stored, may be approximate.
+	 */
+	public long size() {
+		return engine.size();
+	}
+
+	/**
+	 * @return counters of the engine and of the memory budget.
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>(engine.getStats());
+		MemoryBudget current = budget;
+		if (current != null) {
+			stats.put("memoryUsed", current.getUsed());
+			stats.put("memoryLimit", current.getLimit());
+			stats.put("evicted", evicted.get());
+		}
+		return stats;
+	}
+
+	/**
+	 * @return the memory budget of the data, null if there is none.
+	 */
+	public MemoryBudget getMemoryBudget() {
+		return budget;
+	}
+
+	/**
+	 * Limits the memory used by the data. The usage of the data already 
+	 * stored, for example recovered from disk, is counted first.
+	 * 
+	 * @param budget
+	 * 			the budget, null to remove it.
+	 */
+	public void setMemoryBudget(MemoryBudget budget) {
+		if (budget != null) {
+			RingPosition all = RingPosition.MIN;
+			try {
+				RangeCursor cursor = new RangeCursor(engine, all, all);
+				List<Entry<String, String>> batch;
+				while (!(batch = cursor.nextBatch(RANGE_BATCH_SIZE, Long.MAX_VALUE)).isEmpty()) {
+					for (Entry<String, String> entry : batch) {
+						budget.add(MemoryBudget.sizeOf(entry.getKey(), entry.getValue()));
+					}
+				}
+			} catch (IOException e) {
+				logger.error("Storage::setMemoryBudget() + Unable to count stored data: " + e);
+			}
+			logger.info("Storage::setMemoryBudget() + Memory budget " + budget);
+		}
+		this.budget = budget;
+		evictOverBudget(null);
+	}
+
+	/**
+	 * Checks whether a put fits into the memory budget. Puts which do not
+	 * grow the data, and all puts when the budget evicts, are admitted.
+	 * 
+	 * @param key 
+	 * 			key to be inserted.
+	 * @param value
+	 * 			value to be inserted.
+	 * @return false if the put has to be rejected.
+	 */
+	public boolean admit(String key, String value) {
+		MemoryBudget current = budget;
+		if (current == null || current.getPolicy() == MemoryBudget.Policy.EVICT) {
+			return true;
+		}
+		long size = MemoryBudget.sizeOf(key, value);
+		if (current.fits(size)) {
+			return true;
+		}
+		String previous = get(key);
+		if (previous != null && MemoryBudget.sizeOf(key, previous) >= size) {
+			return true;
+		}
+		logger.warn("Storage::admit() + Rejecting key " + key + ", memory budget " + current);
+		return false;
+	}
+
+	/**
+	 * Closes the files used by the engine.
+	 */
+	public synchronized void close() {
+		logger.info("Storage::close() + Closing " + engine.getName() + " engine, stats=" + engine.getStats());
+		engine.close();
 	}
 
 	/**
@@ -58,13 +261,57 @@ public class Storage {
 	 * 			value to be inserted.
 	 * @return 
 	 * 			Returns previous value stored else return null.
+	 * @throws StorageException
+	 * 			if the engine could not store the pair.
 	 */
-	public synchronized String put(String key, String value) {
+	public String put(String key, String value) {
+		return put(key, value, null);
+	}
+
+	/**
+	 * Method for put operation on KVServer, which runs an action once the
+	 * pair is stored, while the lock of the key is still held. So the 
+	 * actions of the writes to a key run in the order the writes were 
+	 * stored.
+	 * 
+	 * @param key 
+	 * 			key to be inserted.
+	 * @param value
+	 * 			value to be inserted.
+	 * @param written
+	 * 			action run after the write, may be null.
+	 * @return 
+	 * 			Returns previous value stored else return null.
+	 * @throws StorageException
+	 * 			if the engine could not store the pair, the action does 
+	 * 			not run.
+	 */
+	public String put(String key, String value, Runnable written) {
 		logger.debug("Storage::put() + Storing kvpair: " + key + "," + value);
-		//calculate hash of key and store it in keyHash map.
-		String md5 = getMD5(key);
-		keyHash.put(md5, key);
-		return data.put(key, value);
+		String previous;
+		MemoryBudget current = budget;
+		synchronized (lockFor(key)) {
+			try {
+				previous = engine.put(key, value);
+			} catch (IOException e) {
+				logger.error("Storage::put() + Unable to store key " + key + ": " + e);
+				throw new StorageException("Unable to store key " + key, e);
+			}
+			if (current != null) {
+				current.add(MemoryBudget.sizeOf(key, value)
+						- (previous != null ? MemoryBudget.sizeOf(key, previous) : 0));
+			}
+			if (written != null) {
+				written.run();
+			}
+		}
+		if (ChunkManifest.isManifest(previous) && !previous.equals(value)) {
+			dropChunks(key, previous);
+		}
+		if (current != null && current.getExcess() > 0) {
+			evictOverBudget(key);
+		}
+		return previous;
 	}
 
 	/**
@@ -75,8 +322,14 @@ public class Storage {
 	 * @return
 	 * 			Returns value associated with the key.
 	 */
-	public synchronized String get(String key) {
-		String result = data.get(key);
+	public String get(String key) {
+		String result;
+		try {
+			result = engine.get(key);
+		} catch (IOException e) {
+			logger.error("Storage::get() + Unable to read key " + key + ": " + e);
+			return null;
+		}
 		logger.debug("Storage ("+""+" ::get() + Retrieved kvpair:" + key + "," + result);
 		return result;
 	}
@@ -88,80 +341,340 @@ public class Storage {
 	 *			key which is to be deleted.
 	 * @return
 	 * 		Returns value stored under the key. If no entry exists, returns null.
+	 * @throws StorageException
+	 * 			if the engine could not delete the key.
 	 */
-	public synchronized String delete(String key) {
-		String result = data.remove(key);
-		String md5 = getMD5(key);
-		keyHash.remove(md5);
+	public String delete(String key) {
+		return delete(key, null);
+	}
+
+	/**
+	 * Method to delete key-value pair from KVServer, which runs an action 
+	 * once the key is deleted, while its lock is still held, like put.
+	 * 
+	 * @param key
+	 *			key which is to be deleted.
+	 * @param written
+	 * 			action run after the delete, may be null.
+	 * @return
+	 * 		Returns value stored under the key. If no entry exists, returns null.
+	 * @throws StorageException
+	 * 			if the engine could not delete the key, the action does 
+	 * 			not run.
+	 */
+	public String delete(String key, Runnable written) {
+		String result;
+		synchronized (lockFor(key)) {
+			try {
+				result = engine.delete(key);
+			} catch (IOException e) {
+				logger.error("Storage::delete() + Unable to delete key " + key + ": " + e);
+				throw new StorageException("Unable to delete key " + key, e);
+			}
+			MemoryBudget current = budget;
+			if (current != null && result != null) {
+				current.add(-MemoryBudget.sizeOf(key, result));
+			}
+			if (written != null) {
+				written.run();
+			}
+		}
 		logger.debug("Storage::delete() + Removed kvpair:" + key + "," + result);
+		if (ChunkManifest.isManifest(result)) {
+			dropChunks(key, result);
+		}
 		return result;
 	}
 
 	/**
-	 * Retrieve a list of key value pairs present between the given range.
+	 * Deletes the chunks of a value replaced or deleted, or of an upload 
+	 * which was not completed.
 	 * 
-	 * @param range
-	 *            The range between which all values we need to return.
-	 * @return HashMap of key-value pairs stored between this range. If no entry exists, null
+	 * @param key
+	 * 			key of the value.
+	 * @param manifest
+	 * 			the manifest stored under the key, or that of the upload.
 	 */
-	public synchronized HashMap<String, String> getDataBetweenRange(String range) {
-		String startEnd[] = range.split(":");
+	public void deleteChunks(String key, ChunkManifest manifest) {
+		for (int i = 0; i < manifest.getCount(); i++) {
+			try {
+				delete(manifest.chunkKey(key, i));
+			} catch (StorageException e) {
+				// a chunk left behind is unreachable and only takes space
+				logger.error("Storage::deleteChunks() + Unable to delete chunk " + i + " of key " + key);
+			}
+		}
+		logger.debug("Storage::deleteChunks() + Removed " + manifest.getCount() + " chunks of key " + key);
+	}
 
-		BigInteger start = new BigInteger(startEnd[0],16);
-		BigInteger end = new BigInteger(startEnd[1],16);
+	private void dropChunks(String key, String manifest) {
+		try {
+			deleteChunks(key, ChunkManifest.parse(manifest));
+		} catch (IllegalArgumentException e) {
+			logger.error("Storage::dropChunks() + Unable to delete chunks of key " + key + ": " + e);
+		}
+	}
 
-		BigInteger maximum = new BigInteger("ffffffffffffffffffffffffffffffff",16);
-		BigInteger minimum = new BigInteger("00000000000000000000000000000000",16);
+	/**
+	 * Writes a batch of key value pairs as one unit: the locks of all its
+	 * keys are held while it is applied, so no other write interleaves with
+	 * it, and the memory budget is checked once at the end.
+	 * 
+	 * @param entries
+	 * 			pairs to be written, a null value deletes the key.
+	 * @return 
+	 * 			previous values in the order of the entries, null where a key
+	 * 			was not present.
+	 * @throws StorageException
+	 * 			if the engine could not write a pair, the pairs before it are
+	 * 			written.
+	 */
+	public List<String> putAll(List<Entry<String, String>> entries) {
+		return putAll(entries, null);
+	}
 
-		HashMap<String, String> dataToBeMoved = new HashMap<String, String>();
+	/**
+	 * Writes a batch of key value pairs as one unit, and runs an action 
+	 * once it is written, while the locks of its keys are still held, like
+	 * put.
+	 * 
+	 * @param entries
+	 * 			pairs to be written, a null value deletes the key.
+	 * @param written
+	 * 			action run after the batch, may be null.
+	 * @return 
+	 * 			previous values in the order of the entries, null where a key
+	 * 			was not present.
+	 * @throws StorageException
+	 * 			if the engine could not write a pair, the pairs before it are
+	 * 			written and the action does not run.
+	 */
+	public List<String> putAll(List<Entry<String, String>> entries, Runnable written) {
+		boolean[] stripes = new boolean[LOCK_STRIPES];
+		for (Entry<String, String> entry : entries) {
+			stripes[stripeOf(entry.getKey())] = true;
+		}
+		List<String> previous = new ArrayList<String>(entries.size());
+		MemoryBudget current = budget;
+		putAllLocked(0, stripes, entries, previous, current, written);
+		logger.debug("Storage::putAll() + Stored batch of " + entries.size() + " kvpairs");
+		for (int i = 0; i < entries.size(); i++) {
+			String result = previous.get(i);
+			if (ChunkManifest.isManifest(result) && !result.equals(entries.get(i).getValue())) {
+				dropChunks(entries.get(i).getKey(), result);
+			}
+		}
+		if (current != null && current.getExcess() > 0 && !entries.isEmpty()) {
+			evictOverBudget(entries.get(entries.size() - 1).getKey());
+		}
+		return previous;
+	}
 
-		logger.info("Storage::getDataBetweenRange()"
-				+", new Server's start="+start
-				+", new Server's end="+end
-				+", Maximum ="+maximum
-				+", Minimum ="+minimum);
+	/**
+	 * Takes the locks needed from the given stripe on in ascending order, so
+	 * concurrent batches cannot deadlock, then applies the batch.
+	 */
+	private void putAllLocked(int stripe, boolean[] stripes, List<Entry<String, String>> entries,
+			List<String> previous, MemoryBudget current, Runnable written) {
+		while (stripe < LOCK_STRIPES && !stripes[stripe]) {
+			stripe++;
+		}
+		if (stripe < LOCK_STRIPES) {
+			synchronized (locks[stripe]) {
+				putAllLocked(stripe + 1, stripes, entries, previous, current, written);
+			}
+			return;
+		}
+		for (Entry<String, String> entry : entries) {
+			String key = entry.getKey();
+			String value = entry.getValue();
+			String result;
+			try {
+				result = value != null ? engine.put(key, value) : engine.delete(key);
+			} catch (IOException e) {
+				logger.error("Storage::putAll() + Unable to write key " + key + ": " + e);
+				throw new StorageException("Unable to write key " + key, e);
+			}
+			if (current != null) {
+				current.add((value != null ? MemoryBudget.sizeOf(key, value) : 0)
+						- (result != null ? MemoryBudget.sizeOf(key, result) : 0));
+			}
+			previous.add(result);
+		}
+		if (written != null) {
+			written.run();
+		}
+	}
 
+	/**
+	 * Deletes keys until the data fits into the memory budget again, if the
+	 * budget evicts. Keys are taken in ring order after the last key evicted.
+	 * 
+	 * @param keep
+	 * 			key just written which is not evicted, may be null.
+	 */
+	private void evictOverBudget(String keep) {
+		MemoryBudget current = budget;
+		if (current == null || current.getPolicy() != MemoryBudget.Policy.EVICT) {
+			return;
+		}
+		synchronized (evictLock) {
+			if (current.getExcess() <= 0) {
+				return;
+			}
+			long count = 0;
+			try {
+				RangeCursor cursor = new RangeCursor(engine, evictFrom, evictFrom);
+				List<Entry<String, String>> batch;
+				while (current.getExcess() > 0
+						&& !(batch = cursor.nextBatch(RANGE_BATCH_SIZE, Long.MAX_VALUE)).isEmpty()) {
+					for (Entry<String, String> entry : batch) {
+						if (current.getExcess() <= 0) {
+							break;
+						}
+						// chunks go with the manifest of their value
+						if (entry.getKey().equals(keep) 
+								|| entry.getKey().indexOf(ChunkManifest.SEPARATOR) >= 0) {
+							continue;
+						}
+						if (delete(entry.getKey()) != null) {
+							count++;
+						}
+						evictFrom = RingPosition.of(entry.getKey());
+					}
+				}
+			} catch (IOException e) {
+				logger.error("Storage::evictOverBudget() + Unable to read keys to evict: " + e);
+			} catch (StorageException e) {
+				logger.error("Storage::evictOverBudget() + Unable to evict: " + e);
+			}
+			evicted.addAndGet(count);
+			logger.warn("Storage::evictOverBudget() + Evicted " + count + " keys, memory budget " + current);
+		}
+	}
 
-		logger.info("Storage::getDataBetweenRange() + Data present currently on this server, size="+data.size());
+	/**
+	 * Returns the lock guarding writes to the given key.
+	 */
+	private Object lockFor(String key) {
+		return locks[stripeOf(key)];
+	}
 
-		for(Iterator<Entry<String, String>>it=data.entrySet().iterator();it.hasNext();){
-			Entry<String, String> entry = it.next();
-			logger.info("Storage::getDataBetweenRange() + data: "+entry.getKey());
+	private static int stripeOf(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return h & (LOCK_STRIPES - 1);
+	}
+
+	/**
+	 * Opens a cursor over the key value pairs present between the given range.
+	 * Writes running concurrently may or may not be included.
+	 * 
+	 * @param range
+	 *            The range "start:end" of the ring in hex.
+	 * @return cursor returning the pairs in batches, empty if the range 
+	 *            cannot be read.
+	 */
+	public RangeCursor openRange(String range) {
+		String startEnd[] = range.split(":");
+		try {
+			return new RangeCursor(engine, RingPosition.fromHex(startEnd[0]), RingPosition.fromHex(startEnd[1]));
+		} catch (IOException e) {
+			logger.error("Storage::openRange() + Unable to read range " + range + ": " + e);
+			return RangeCursor.empty();
 		}
+	}
 
-		logger.info("Storage::getDataBetweenRange() + keyHash present currently on this server, size="+keyHash.size());
+	/**
+	 * Retrieve a list of key value pairs present between the given range.
+	 * The whole range is copied, data movement uses openRange instead.
+	 * 
+	 * @param range
+	 *            The range between which all values we need to return.
+	 * @return HashMap of key-value pairs stored between this range. If no entry exists, null
+	 */
+	public HashMap<String, String> getDataBetweenRange(String range) {
+		HashMap<String, String> dataToBeMoved = new HashMap<String, String>();
+		RangeCursor cursor = openRange(range);
+		try {
+			List<Entry<String, String>> batch;
+			while (!(batch = cursor.nextBatch(RANGE_BATCH_SIZE, Long.MAX_VALUE)).isEmpty()) {
+				for (Entry<String, String> entry : batch) {
+					dataToBeMoved.put(entry.getKey(), entry.getValue());
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Storage::getDataBetweenRange() + Unable to read range " + range + ": " + e);
+		}
 
-		for(Iterator<Entry<String, String>>it=keyHash.entrySet().iterator();it.hasNext();){
-			Entry<String, String> entry = it.next();
-			logger.info("Storage::getDataBetweenRange() + keyHash: "+entry.getValue());
-		}	
-		
-		for(Iterator<Entry<String, String>>it=keyHash.entrySet().iterator();it.hasNext();){
-			Entry<String, String> entry = it.next();
-			BigInteger keyHash = new BigInteger(entry.getKey(),16);
-			logger.info("Storage::getDataBetweenRange()+ Checking for keyHash="+keyHash+", value="+entry.getValue());
+		logger.info("Storage::getDataBetweenRange() + range="+range
+				+", keys in range="+dataToBeMoved.size()
+				+", keys on this server="+engine.size());
+		return dataToBeMoved;
+	}
+
+	/**
+	 * Delete all key value pairs present between the given range.
+	 * 
+	 * @param range
+	 *            The range "start:end" of the ring in hex.
+	 * @return true if the whole range could be read and deleted.
+	 */
+	public boolean deleteDataBetweenRange(String range) {
+		return deleteDataBetweenRange(range, Collections.<String>emptySet());
+	}
 
-			if(start.compareTo(end)<0){
-				logger.info("Storage::getDataBetweenRange()+ start<end case");
-				if (keyHash.compareTo(start) > 0 && 
-						keyHash.compareTo(end) <= 0){
+	/**
+	 * Delete the key value pairs present between the given range except 
+	 * the given keys. If no key is kept and the engine is bucketed, the 
+	 * buckets lying completely in the range are dropped as a whole, the 
+	 * rest of the range is read in batches and deleted key by key.
+	 * 
+	 * @param range
+	 *            The range "start:end" of the ring in hex.
+	 * @param keep
+	 *            keys of the range which are not deleted.
+	 * @return true if the whole range could be read and deleted.
+	 */
+	public boolean deleteDataBetweenRange(String range, Set<String> keep) {
+		long deleted = 0;
+		if (keep.isEmpty() && engine instanceof BucketedEngine) {
+			String startEnd[] = range.split(":");
+			List<Bucket> dropped = ((BucketedEngine) engine).dropBuckets(
+					RingPosition.fromHex(startEnd[0]), RingPosition.fromHex(startEnd[1]));
+			long chars = 0;
+			for (Bucket bucket : dropped) {
+				deleted += bucket.size();
+				chars += bucket.getChars();
+			}
+			MemoryBudget current = budget;
+			if (current != null) {
+				current.add(-MemoryBudget.sizeOf(deleted, chars));
+			}
+			logger.info("Storage::deleteDataBetweenRange() + range="+range+", dropped buckets="
+					+dropped.size()+" with keys="+deleted);
+		}
 
-					dataToBeMoved.put(entry.getValue(), data.get(entry.getValue()));
-					logger.info("Storage::getDataBetweenRange(start<end) + dataToBeMoved="+entry.getValue()+", "+data.get(entry.getValue()));
-				}
-			}else{
-				logger.info("Storage::getDataBetweenRange()+ start>end case");
-				//startServer > endServer
-				// keycheck1:: (startServer to MaximumRange) && keycheck2:: (0 to end)
-				if((keyHash.compareTo(start) > 0 && keyHash.compareTo(maximum) <= 0 )
-						|| (keyHash.compareTo(minimum) >= 0 && keyHash.compareTo(end) <= 0 )){
-
-					dataToBeMoved.put(entry.getValue(), data.get(entry.getValue()));
-					logger.info("Storage::getDataBetweenRange(start>end) + dataToBeMoved="+entry.getValue()+", "+data.get(entry.getValue()));
+		RangeCursor cursor = openRange(range);
+		try {
+			List<Entry<String, String>> batch;
+			while (!(batch = cursor.nextBatch(RANGE_BATCH_SIZE, Long.MAX_VALUE)).isEmpty()) {
+				for (Entry<String, String> entry : batch) {
+					if (!keep.contains(entry.getKey()) && delete(entry.getKey()) != null) {
+						deleted++;
+					}
 				}
 			}
+		} catch (IOException e) {
+			logger.error("Storage::deleteDataBetweenRange() + Unable to read range " + range + ": " + e);
+			return false;
+		} catch (StorageException e) {
+			logger.error("Storage::deleteDataBetweenRange() + Unable to delete range " + range + ": " + e);
+			return false;
 		}
-		return dataToBeMoved;
+		logger.info("Storage::deleteDataBetweenRange() + range="+range+", deleted keys="+deleted
+				+", kept keys="+keep.size());
+		return true;
 	}
 
 	/**
@@ -169,43 +682,20 @@ public class Storage {
 	 * 
 	 * @param 	dataToBeDeleted
 	 *        	The HashMap of key value pairs to be deleted from Storage.
-	 * @return 	true
+	 * @return 	true if all keys could be deleted.
 	 */
 	public boolean deleteDataBetweenRange(HashMap<String, String> dataToBeDeleted) {
 		logger.info("Storage:: deleteDataBetweenRange()");
+		boolean deleted = true;
 		for(Iterator<Entry<String, String>>it=dataToBeDeleted.entrySet().iterator();it.hasNext();){
 			Entry<String, String> entry = it.next();
-			logger.info("Storage:: deleteDataBetweenRange() + deleting key,value="+entry.getKey()+","+entry.getValue());
-			data.remove(entry.getKey());
-			String md5 = getMD5(entry.getKey());
-			keyHash.remove(md5);
-		}
-		return true;
-	}
-
-	/**
-	 * Method to compute MD5
-	 * 
-	 * @param msg Value to be hashed
-	 * @return hash value of msg
-	 */
-	private String getMD5(String msg){
-		MessageDigest messageDigest = null;
-		try {
-			messageDigest = MessageDigest.getInstance("MD5");
-		} catch(NoSuchAlgorithmException ex){
-			logger.error("Storage::getMD5() + Error while computing MD5 for msg.");
-			return null;
-		}
-		messageDigest.reset();
-		messageDigest.update(msg.getBytes());
-		byte[] hashValue = messageDigest.digest();
-		BigInteger bigInt = new BigInteger(1,hashValue);
-		String hashHex = bigInt.toString(16);
-		// Now we need to zero pad it if you actually want the full 32 chars.
-		while(hashHex.length() < 32 ){
-			hashHex = "0"+hashHex;
+			logger.debug("Storage:: deleteDataBetweenRange() + deleting key,value="+entry.getKey()+","+entry.getValue());
+			try {
+				delete(entry.getKey());
+			} catch (StorageException e) {
+				deleted = false;
+			}
 		}
-		return hashHex;
+		return deleted;
 	}
 }
@@ -0,0 +1,63 @@
+package server.storage;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import common.hashing.RingPosition;
+
+/**
+ * Interface of the engines keeping the key-value pairs of a KVServer.
+ * Storage is the facade used by the server, it serializes writes to the
+ * same key, so engines only have to allow concurrent access to different keys.
+ */
+public interface StorageEngine {
+
+	/**
+	 * @return name of the engine as given on the command line.
+	 */
+	public String getName();
+
+	/**
+	 * @return value stored under the key, null if there is none.
+	 */
+	public String get(String key) throws IOException;
+
+	/**
+	 * Stores a key-value pair.
+	 *
+	 * @return previous value stored under the key, null if there was none.
+	 */
+	public String put(String key, String value) throws IOException;
+
+	/**
+	 * Deletes a key.
+	 *
+	 * @return value stored under the key, null if there was none.
+	 */
+	public String delete(String key) throws IOException;
+
+	/**
+	 * Iterates over the key-value pairs whose key lies in the range
+	 * (start, end] of the ring, in ring order. A range with start >= end
+	 * wraps around. Writes running concurrently may or may not be seen.
+	 * The iterator throws a StorageException if the data cannot be read.
+	 */
+	public Iterator<Entry<String, String>> range(RingPosition start, RingPosition end) throws IOException;
+
+	/**
+	 * @return number of keys stored, may be approximate.
+	 */
+	public long size();
+
+	/**
+	 * @return engine specific counters for monitoring and benchmarks.
+	 */
+	public Map<String, Long> getStats();
+
+	/**
+	 * Releases the files and threads of the engine.
+	 */
+	public void close();
+}
@@ -0,0 +1,22 @@
+package server.storage;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the range iterators of a StorageEngine when the data cannot be
+ * read, as an Iterator cannot throw an IOException, and by the writes of
+ * Storage when the engine could not apply them.
+ */
+public class StorageException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public StorageException(String message, IOException cause) {
+		super(message, cause);
+	}
+
+	@Override
+	public IOException getCause() {
+		return (IOException) super.getCause();
+	}
+}
@@ -0,0 +1,428 @@
+package server.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log of put and delete operations plus periodic snapshots,
+ * used by Storage in durable mode.
+ *
+ * Files are organised in generations: every snapshot closes the current
+ * log file (wal-N.log) and starts a new one (wal-N+1.log), then writes the
+ * map to snapshot-N+1.dat in the background. Recovery loads the newest
+ * complete snapshot and replays every log of the same or a later generation.
+ * Put and delete are blind writes, so replaying operations which are already
+ * part of the snapshot leaves the same result.
+ *
+ * The caller applies an operation to the source map while it holds the lock
+ * of the log, synchronized on it from logging to applying. The log is rotated
+ * before the next record is written, so when a snapshot starts every record of
+ * the logs it replaces is in the map already, and deleting them loses nothing.
+ */
+public class WriteAheadLog {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	public static final int DEFAULT_SNAPSHOT_INTERVAL = 100000;
+
+	private static final String LOG_PREFIX = "wal-";
+	private static final String LOG_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".dat";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final byte OP_PUT = 'P';
+	private static final byte OP_DELETE = 'D';
+	private static final int SNAPSHOT_MAGIC = 0x4b56534e;
+	private static final int SNAPSHOT_END = -1;
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	private File dir;
+	private boolean syncWrites;
+	private int snapshotInterval;
+
+	/*
+	 * Map which is written to disk on every snapshot.
+	 */
+	private Map<String, String> source;
+
+	private long generation;
+	private FileOutputStream fileOut;
+	private DataOutputStream out;
+	private int recordsSinceSnapshot;
+	private boolean snapshotRunning;
+	private CRC32 crc = new CRC32();
+
+	/**
+	 * Constructor for WriteAheadLog class.
+	 *
+	 * @param dir
+	 * 			directory holding the log and snapshot files.
+	 * @param source
+	 * 			map whose content is written on every snapshot.
+	 * @param syncWrites
+	 * 			true to force every record to the disk, otherwise records are
+	 * 			only handed to the operating system.
+	 * @param snapshotInterval
+	 * 			number of logged operations after which a snapshot is taken.
+	 * @throws IOException
+	 * 			if the directory cannot be created.
+	 */
+	public WriteAheadLog(File dir, Map<String, String> source, boolean syncWrites,
+			int snapshotInterval) throws IOException {
+		this.dir = dir;
+		this.source = source;
+		this.syncWrites = syncWrites;
+		this.snapshotInterval = snapshotInterval;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create storage directory " + dir.getPath());
+		}
+	}
+
+	/**
+	 * Loads the last snapshot and replays the logs written after it into the
+	 * source map, then opens a new log file for appending.
+	 *
+	 * @throws IOException
+	 * 			if a snapshot or log file cannot be read.
+	 */
+	public synchronized void recover() throws IOException {
+		long snapshotGeneration = 0;
+		List<Long> snapshots = listGenerations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		for (int i = snapshots.size() - 1; i >= 0; i--) {
+			File file = snapshotFile(snapshots.get(i));
+			if (readSnapshot(file)) {
+				snapshotGeneration = snapshots.get(i);
+				break;
+			}
+			logger.error("WriteAheadLog::recover() + Ignoring incomplete snapshot " + file.getName());
+			source.clear();
+		}
+
+		long replayed = 0;
+		List<Long> logs = listGenerations(LOG_PREFIX, LOG_SUFFIX);
+		for (int i = 0; i < logs.size(); i++) {
+			if (logs.get(i) < snapshotGeneration) {
+				continue;
+			}
+			replayed += replay(logFile(logs.get(i)), i == logs.size() - 1);
+		}
+
+		generation = Math.max(snapshotGeneration, logs.isEmpty() ? 0 : logs.get(logs.size() - 1));
+		if (generation == 0) {
+			generation = 1;
+		}
+		deleteOlderThan(snapshotGeneration);
+		openLog();
+		recordsSinceSnapshot = (int) Math.min(replayed, Integer.MAX_VALUE);
+		logger.info("WriteAheadLog::recover() + Recovered " + source.size() + " keys from "
+				+ dir.getPath() + ", snapshot generation=" + snapshotGeneration
+				+ ", replayed records=" + replayed);
+	}
+
+	/**
+	 * Appends a put operation to the log.
+	 *
+	 * @param key
+	 * 			key which is stored.
+	 * @param value
+	 * 			value which is stored.
+	 * @throws IOException
+	 * 			if the record cannot be written.
+	 */
+	public synchronized void logPut(String key, String value) throws IOException {
+		append(OP_PUT, key, value);
+	}
+
+	/**
+	 * Appends a delete operation to the log.
+	 *
+	 * @param key
+	 * 			key which is deleted.
+	 * @throws IOException
+	 * 			if the record cannot be written.
+	 */
+	public synchronized void logDelete(String key) throws IOException {
+		append(OP_DELETE, key, null);
+	}
+
+	/**
+	 * Waits for a running snapshot and closes the current log file.
+	 */
+	public synchronized void close() {
+		try {
+			while (snapshotRunning) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		} catch (IOException e) {
+			logger.error("WriteAheadLog::close() + Error while closing log file: " + e);
+		}
+	}
+
+	private void append(byte op, String key, String value) throws IOException {
+		// rotate before writing, the records logged so far are applied to the map
+		if (recordsSinceSnapshot >= snapshotInterval && !snapshotRunning) {
+			startSnapshot();
+		}
+
+		byte[] keyBytes = key.getBytes("UTF-8");
+		byte[] valueBytes = value != null ? value.getBytes("UTF-8") : null;
+
+		crc.reset();
+		crc.update(op);
+		crc.update(keyBytes);
+		if (valueBytes != null) {
+			crc.update(valueBytes);
+		}
+
+		out.writeByte(op);
+		out.writeInt(keyBytes.length);
+		out.write(keyBytes);
+		if (valueBytes != null) {
+			out.writeInt(valueBytes.length);
+			out.write(valueBytes);
+		}
+		out.writeInt((int) crc.getValue());
+		out.flush();
+		if (syncWrites) {
+			fileOut.getFD().sync();
+		}
+
+		recordsSinceSnapshot++;
+	}
+
+	/**
+	 * Rotates the log and writes a snapshot of the source map in a
+	 * background thread.
+	 */
+	private void startSnapshot() throws IOException {
+		out.close();
+		generation++;
+		openLog();
+		recordsSinceSnapshot = 0;
+		snapshotRunning = true;
+
+		final long snapshotGeneration = generation;
+		Thread snapshotThread = new Thread("storage-snapshot-" + snapshotGeneration) {
+			@Override
+			public void run() {
+				try {
+					writeSnapshot(snapshotGeneration);
+					synchronized (WriteAheadLog.this) {
+						deleteOlderThan(snapshotGeneration);
+					}
+					logger.info("WriteAheadLog::snapshot() + Snapshot " + snapshotGeneration + " written");
+				} catch (IOException e) {
+					logger.error("WriteAheadLog::snapshot() + Error while writing snapshot "
+							+ snapshotGeneration + ": " + e);
+				} finally {
+					synchronized (WriteAheadLog.this) {
+						snapshotRunning = false;
+						WriteAheadLog.this.notifyAll();
+					}
+				}
+			}
+		};
+		snapshotThread.setDaemon(true);
+		snapshotThread.start();
+	}
+
+	private void writeSnapshot(long snapshotGeneration) throws IOException {
+		File tmp = new File(dir, SNAPSHOT_PREFIX + snapshotGeneration + SNAPSHOT_SUFFIX + TMP_SUFFIX);
+		FileOutputStream snapshotFileOut = new FileOutputStream(tmp);
+		DataOutputStream snapshotOut = new DataOutputStream(new BufferedOutputStream(snapshotFileOut));
+		try {
+			snapshotOut.writeInt(SNAPSHOT_MAGIC);
+			for (Iterator<Entry<String, String>> it = source.entrySet().iterator(); it.hasNext();) {
+				Entry<String, String> entry = it.next();
+				writeBytes(snapshotOut, entry.getKey().getBytes("UTF-8"));
+				writeBytes(snapshotOut, entry.getValue().getBytes("UTF-8"));
+			}
+			snapshotOut.writeInt(SNAPSHOT_END);
+			snapshotOut.flush();
+			snapshotFileOut.getFD().sync();
+		} finally {
+			snapshotOut.close();
+		}
+		if (!tmp.renameTo(snapshotFile(snapshotGeneration))) {
+			throw new IOException("Unable to rename " + tmp.getName());
+		}
+	}
+
+	private boolean readSnapshot(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				return false;
+			}
+			while (true) {
+				byte[] key = readBytes(in);
+				if (key == null) {
+					return true;
+				}
+				byte[] value = readBytes(in);
+				if (value == null) {
+					return false;
+				}
+				source.put(new String(key, "UTF-8"), new String(value, "UTF-8"));
+			}
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replays a log file into the source map. A torn record at the end of
+	 * the newest log is the result of a crash during append and is cut off.
+	 *
+	 * @return number of replayed records.
+	 */
+	private long replay(File file, boolean newest) throws IOException {
+		long records = 0;
+		long validLength = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				int op = in.read();
+				if (op == -1) {
+					break;
+				}
+				byte[] key = readBytes(in);
+				byte[] value = op == OP_PUT ? readBytes(in) : null;
+				if (key == null || (op == OP_PUT && value == null)) {
+					logger.error("WriteAheadLog::replay() + Corrupt record in " + file.getName()
+							+ " at offset " + validLength);
+					break;
+				}
+				int checksum = in.readInt();
+
+				crc.reset();
+				crc.update(op);
+				crc.update(key);
+				if (value != null) {
+					crc.update(value);
+				}
+				if ((op != OP_PUT && op != OP_DELETE) || checksum != (int) crc.getValue()) {
+					logger.error("WriteAheadLog::replay() + Corrupt record in " + file.getName()
+							+ " at offset " + validLength);
+					break;
+				}
+
+				if (op == OP_PUT) {
+					source.put(new String(key, "UTF-8"), new String(value, "UTF-8"));
+					validLength += 13 + key.length + value.length;
+				} else {
+					source.remove(new String(key, "UTF-8"));
+					validLength += 9 + key.length;
+				}
+				records++;
+			}
+		} catch (EOFException e) {
+			logger.warn("WriteAheadLog::replay() + Incomplete record at end of " + file.getName());
+		} finally {
+			in.close();
+		}
+
+		if (newest && validLength < file.length()) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(validLength);
+			} finally {
+				raf.close();
+			}
+		}
+		return records;
+	}
+
+	private void openLog() throws IOException {
+		fileOut = new FileOutputStream(logFile(generation), true);
+		out = new DataOutputStream(new BufferedOutputStream(fileOut));
+	}
+
+	private void deleteOlderThan(long oldestKept) {
+		List<Long> logs = listGenerations(LOG_PREFIX, LOG_SUFFIX);
+		for (Long log : logs) {
+			if (log < oldestKept) {
+				logFile(log).delete();
+			}
+		}
+		List<Long> snapshots = listGenerations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		for (Long snapshot : snapshots) {
+			if (snapshot < oldestKept) {
+				snapshotFile(snapshot).delete();
+			}
+		}
+	}
+
+	private List<Long> listGenerations(String prefix, String suffix) {
+		List<Long> generations = new ArrayList<Long>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(prefix) && name.endsWith(suffix)) {
+					try {
+						generations.add(Long.parseLong(name.substring(prefix.length(),
+								name.length() - suffix.length())));
+					} catch (NumberFormatException e) {
+						logger.warn("WriteAheadLog::listGenerations() + Ignoring file " + name);
+					}
+				}
+			}
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+
+	private File logFile(long logGeneration) {
+		return new File(dir, LOG_PREFIX + logGeneration + LOG_SUFFIX);
+	}
+
+	private File snapshotFile(long snapshotGeneration) {
+		return new File(dir, SNAPSHOT_PREFIX + snapshotGeneration + SNAPSHOT_SUFFIX);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == SNAPSHOT_END) {
+			return null;
+		}
+		if (length < 0 || length > MAX_RECORD_SIZE) {
+			throw new EOFException("Invalid record length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,86 @@
+package server.storage.lsm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import common.hashing.RingPosition;
+
+/**
+ * Bloom filter over the ring positions of the keys in a segment. The MD5
+ * position is already a good hash, so its two halves are combined to get
+ * the bit indexes instead of hashing the key again.
+ */
+class BloomFilter {
+
+	private static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+
+	private final long[] bits;
+	private final int hashes;
+	private final long numBits;
+
+	private BloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.hashes = hashes;
+		this.numBits = (long) bits.length * 64;
+	}
+
+	/**
+	 * Creates an empty filter with a false positive rate of about 1% for
+	 * the given number of keys.
+	 */
+	static BloomFilter create(long expectedKeys) {
+		long wanted = Math.max(expectedKeys, 1) * BITS_PER_KEY;
+		int words = (int) Math.min((wanted + 63) / 64, Integer.MAX_VALUE - 8);
+		return new BloomFilter(new long[words], HASHES);
+	}
+
+	void add(RingPosition position) {
+		long h = position.getLow();
+		long step = position.getHigh() | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = (h & Long.MAX_VALUE) % numBits;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+			h += step;
+		}
+	}
+
+	/**
+	 * @return false if no key at this position was added, true if it may
+	 *         have been.
+	 */
+	boolean mightContain(RingPosition position) {
+		long h = position.getLow();
+		long step = position.getHigh() | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = (h & Long.MAX_VALUE) % numBits;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+			h += step;
+		}
+		return true;
+	}
+
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(hashes);
+		out.writeInt(bits.length);
+		for (long word : bits) {
+			out.writeLong(word);
+		}
+	}
+
+	static BloomFilter readFrom(DataInputStream in) throws IOException {
+		int hashes = in.readInt();
+		int words = in.readInt();
+		if (hashes <= 0 || words <= 0) {
+			throw new IOException("Invalid bloom filter");
+		}
+		long[] bits = new long[words];
+		for (int i = 0; i < words; i++) {
+			bits[i] = in.readLong();
+		}
+		return new BloomFilter(bits, hashes);
+	}
+}
@@ -0,0 +1,632 @@
+package server.storage.lsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import common.hashing.RingPosition;
+
+import server.storage.ChainedIterator;
+import server.storage.RingKey;
+import server.storage.StorageEngine;
+import server.storage.StorageException;
+
+/**
+ * Log-structured merge tree storage for data sets larger than the heap.
+ *
+ * Writes go to a log and a sorted in-memory memtable. A full memtable is
+ * flushed to an immutable Segment file in the background. Compaction is size
+ * tiered: a run of COMPACTION_THRESHOLD or more adjacent segments, each no
+ * larger than the newer ones of the run together, is merged into one,
+ * dropping overwritten records. A merged segment is rewritten only once the
+ * newer segments have grown as large, so a record is rewritten about once per
+ * doubling of the store and not on every compaction. Deleted keys are dropped
+ * when the oldest segment is merged. Reads check the memtables first and then
+ * the segments from newest to oldest; each segment has a Bloom filter, so a
+ * GET of a missing key normally does not touch the disk.
+ *
+ * Every memtable has a sequence number and every segment records the range
+ * of memtables it contains, which decides which segments are newer and which
+ * logs still have to be replayed after a restart.
+ *
+ * The store does not serialize writes to the same key, the caller does.
+ */
+public class LsmEngine implements StorageEngine {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	public static final long DEFAULT_MEMTABLE_SIZE = 8 * 1024 * 1024;
+	private static final int COMPACTION_THRESHOLD = 4;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".sst";
+	private static final String LOG_PREFIX = "memtable-";
+	private static final String LOG_SUFFIX = ".log";
+
+	/*
+	 * Value marking a deleted key in memtables and segment iterators,
+	 * compared by identity.
+	 */
+	static final String TOMBSTONE = new String("<deleted>");
+
+	private final File dir;
+	private final boolean syncWrites;
+	private final long memtableSize;
+
+	/*
+	 * Writers hold the read lock, switching to a new memtable takes the
+	 * write lock so no write can go to a memtable which is being flushed.
+	 */
+	private final ReentrantReadWriteLock rotateLock = new ReentrantReadWriteLock();
+	private volatile Memtable active;
+	private volatile Memtable flushing;
+
+	/*
+	 * Segments newest first, replaced as a whole when it changes.
+	 */
+	private volatile List<Segment> segments;
+	private long nextFileNumber;
+	private boolean compactionPending;
+	//bytes written to segments by flushes and by compactions, compared they give the write amplification
+	private final AtomicLong flushedBytes = new AtomicLong();
+	private final AtomicLong compactedBytes = new AtomicLong();
+
+	private final ExecutorService background;
+
+	/**
+	 * Opens the store in the given directory and recovers its content.
+	 *
+	 * @param dir
+	 * 			directory holding segments and memtable logs.
+	 * @param syncWrites
+	 * 			true to sync every write to disk before returning.
+	 * @param memtableSize
+	 * 			approximate memtable size in bytes at which it is flushed.
+	 * @throws IOException
+	 * 			if the stored data cannot be recovered.
+	 */
+	public LsmEngine(File dir, boolean syncWrites, long memtableSize) throws IOException {
+		this.dir = dir;
+		this.syncWrites = syncWrites;
+		this.memtableSize = memtableSize;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create storage directory " + dir.getPath());
+		}
+		this.background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "lsm-background");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		recover();
+	}
+
+	@Override
+	public String get(String key) throws IOException {
+		return get(new RingKey(key));
+	}
+
+	@Override
+	public String put(String key, String value) throws IOException {
+		RingKey ringKey = new RingKey(key);
+		String previous = get(ringKey);
+		write(ringKey, value);
+		return previous;
+	}
+
+	@Override
+	public String delete(String key) throws IOException {
+		RingKey ringKey = new RingKey(key);
+		String previous = get(ringKey);
+		if (previous != null) {
+			write(ringKey, TOMBSTONE);
+		}
+		return previous;
+	}
+
+	@Override
+	public String getName() {
+		return "lsm";
+	}
+
+	@Override
+	public Iterator<Entry<String, String>> range(RingPosition start, RingPosition end) throws IOException {
+		if (start.compareTo(end) < 0) {
+			return range(RingKey.after(start), RingKey.after(end));
+		}
+		return new ChainedIterator<Entry<String, String>>(range(RingKey.after(start), null),
+				range(RingKey.before(RingPosition.MIN), RingKey.after(end)));
+	}
+
+	/**
+	 * Counts every record of the memtables and segments, so keys which are
+	 * overwritten or deleted but not yet compacted are counted more than once.
+	 */
+	@Override
+	public long size() {
+		long size = active.map.size();
+		Memtable immutable = flushing;
+		if (immutable != null) {
+			size += immutable.map.size();
+		}
+		for (Segment segment : segments) {
+			size += segment.getRecords();
+		}
+		return size;
+	}
+
+	@Override
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		List<Segment> current = segments;
+		long records = 0;
+		long bytes = 0;
+		for (Segment segment : current) {
+			records += segment.getRecords();
+			bytes += segment.getSize();
+		}
+		stats.put("memtableRecords", (long) active.map.size());
+		stats.put("memtableBytes", active.bytes.get());
+		stats.put("segments", (long) current.size());
+		stats.put("segmentRecords", records);
+		stats.put("segmentBytes", bytes);
+		stats.put("flushedBytes", flushedBytes.get());
+		stats.put("compactedBytes", compactedBytes.get());
+		return stats;
+	}
+
+	/**
+	 * Waits for running flushes and compactions and closes all files.
+	 * The active memtable stays in its log.
+	 */
+	@Override
+	public void close() {
+		background.shutdown();
+		try {
+			background.awaitTermination(60, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		rotateLock.writeLock().lock();
+		try {
+			active.log.close();
+			for (Segment segment : segments) {
+				segment.close();
+			}
+		} finally {
+			rotateLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of segment files.
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	private String get(RingKey key) throws IOException {
+		while (true) {
+			String value = active.map.get(key);
+			if (value == null) {
+				Memtable immutable = flushing;
+				if (immutable != null) {
+					value = immutable.map.get(key);
+				}
+			}
+			if (value != null) {
+				return value == TOMBSTONE ? null : value;
+			}
+			List<Segment> current = segments;
+			try {
+				for (Segment segment : current) {
+					value = segment.get(key);
+					if (value != null) {
+						return value == TOMBSTONE ? null : value;
+					}
+				}
+				return null;
+			} catch (StorageException e) {
+				if (!replacedByCompaction(current)) {
+					throw e.getCause();
+				}
+			} catch (IOException e) {
+				if (!replacedByCompaction(current)) {
+					throw e;
+				}
+			}
+			logger.debug("LsmEngine::get() + Repeating read of " + key.getKey() + " after compaction");
+		}
+	}
+
+	/**
+	 * A compaction may close a segment while it is read. The read is then
+	 * repeated with the new segments.
+	 */
+	private boolean replacedByCompaction(List<Segment> read) {
+		for (Segment segment : read) {
+			if (segment.isObsolete()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void write(RingKey key, String value) throws IOException {
+		boolean full;
+		rotateLock.readLock().lock();
+		try {
+			Memtable memtable = active;
+			memtable.log.append(key.getKey(), value == TOMBSTONE ? null : value);
+			memtable.map.put(key, value);
+			long size = memtable.bytes.addAndGet(2L * (key.getKey().length() + value.length()) + 64);
+			full = size >= memtableSize;
+		} finally {
+			rotateLock.readLock().unlock();
+		}
+		if (full) {
+			rotate();
+		}
+	}
+
+	/**
+	 * Replaces a full memtable by an empty one and flushes it in the
+	 * background. While a flush runs the active memtable keeps growing.
+	 */
+	private void rotate() throws IOException {
+		rotateLock.writeLock().lock();
+		try {
+			if (flushing != null || active.bytes.get() < memtableSize) {
+				return;
+			}
+			Memtable full = active;
+			Memtable next = new Memtable(full.seq + 1);
+			flushing = full;
+			active = next;
+			full.log.close();
+		} finally {
+			rotateLock.writeLock().unlock();
+		}
+		background.execute(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	private void flush() {
+		Memtable memtable = flushing;
+		try {
+			Segment segment = Segment.write(nextSegmentFile(), memtable.map.entrySet().iterator(),
+					memtable.map.size(), memtable.seq, memtable.seq);
+			synchronized (this) {
+				if (segment != null) {
+					flushedBytes.addAndGet(segment.getSize());
+					List<Segment> updated = new ArrayList<Segment>(segments.size() + 1);
+					updated.add(segment);
+					updated.addAll(segments);
+					segments = updated;
+				}
+			}
+			flushing = null;
+			memtable.log.getFile().delete();
+			logger.info("LsmEngine::flush() + Flushed memtable " + memtable.seq + " with "
+					+ memtable.map.size() + " records");
+		} catch (IOException e) {
+			// the records go back to the active memtable, the next rotation retries.
+			logger.error("LsmEngine::flush() + Error while flushing memtable " + memtable.seq + ": " + e);
+			restoreUnflushed(memtable);
+			flushing = null;
+			return;
+		}
+		scheduleCompaction();
+	}
+
+	/**
+	 * Puts the records of a memtable which could not be flushed back into
+	 * the active memtable, unless they have been overwritten there.
+	 */
+	private void restoreUnflushed(Memtable memtable) {
+		rotateLock.writeLock().lock();
+		try {
+			for (Entry<RingKey, String> entry : memtable.map.entrySet()) {
+				if (!active.map.containsKey(entry.getKey())) {
+					try {
+						active.log.append(entry.getKey().getKey(),
+								entry.getValue() == TOMBSTONE ? null : entry.getValue());
+					} catch (IOException e) {
+						logger.error("LsmEngine::flush() + Unable to log unflushed record: " + e);
+						return;
+					}
+					active.map.put(entry.getKey(), entry.getValue());
+					active.bytes.addAndGet(2L * (entry.getKey().getKey().length()
+							+ entry.getValue().length()) + 64);
+				}
+			}
+			memtable.log.getFile().delete();
+		} finally {
+			rotateLock.writeLock().unlock();
+		}
+	}
+
+	private synchronized void scheduleCompaction() {
+		// a flush finishing while the engine closes must not start a compaction
+		if (compactionPending || background.isShutdown()) {
+			return;
+		}
+		final List<Segment> inputs = pickTier(segments);
+		if (inputs == null) {
+			return;
+		}
+		compactionPending = true;
+		background.execute(new Runnable() {
+			@Override
+			public void run() {
+				compact(inputs);
+			}
+		});
+	}
+
+	/**
+	 * Finds COMPACTION_THRESHOLD or more adjacent segments to merge, from the
+	 * newest on. A run takes the next older segment while it is no larger
+	 * than the segments already in the run together. Only adjacent segments
+	 * are merged, the merged segment has to hold the memtables between its
+	 * oldest and its newest one.
+	 *
+	 * @return the segments to merge, newest first, or null if there are none.
+	 */
+	private List<Segment> pickTier(List<Segment> current) {
+		for (int start = 0; start + COMPACTION_THRESHOLD <= current.size(); start++) {
+			long total = current.get(start).getSize();
+			int end = start + 1;
+			while (end < current.size() && current.get(end).getSize() <= total) {
+				total += current.get(end).getSize();
+				end++;
+			}
+			if (end - start >= COMPACTION_THRESHOLD) {
+				return new ArrayList<Segment>(current.subList(start, end));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Merges adjacent segments into one, which takes their place. Deleted
+	 * keys are dropped if nothing is older than the merged segments.
+	 */
+	private void compact(List<Segment> inputs) {
+		try {
+			List<Iterator<Entry<RingKey, String>>> sources = new ArrayList<Iterator<Entry<RingKey, String>>>();
+			long records = 0;
+			long minSeq = Long.MAX_VALUE;
+			long maxSeq = Long.MIN_VALUE;
+			for (Segment segment : inputs) {
+				sources.add(segment.scanAll());
+				records += segment.getRecords();
+				minSeq = Math.min(minSeq, segment.getMinSeq());
+				maxSeq = Math.max(maxSeq, segment.getMaxSeq());
+			}
+			boolean oldest = inputs.contains(segments.get(segments.size() - 1));
+			Segment merged = Segment.write(nextSegmentFile(),
+					new MergeIterator(sources, null, oldest), records, minSeq, maxSeq);
+
+			synchronized (this) {
+				List<Segment> updated = new ArrayList<Segment>();
+				for (Segment segment : segments) {
+					if (!inputs.contains(segment)) {
+						updated.add(segment);
+					} else if (segment == inputs.get(0) && merged != null) {
+						updated.add(merged);
+					}
+				}
+				if (merged != null) {
+					compactedBytes.addAndGet(merged.getSize());
+				}
+				segments = updated;
+				compactionPending = false;
+			}
+			for (Segment segment : inputs) {
+				segment.delete();
+			}
+			logger.info("LsmEngine::compact() + Compacted " + inputs.size() + " segments, "
+					+ records + " records into " + (merged != null ? merged.getRecords() : 0));
+		} catch (Exception e) {
+			logger.error("LsmEngine::compact() + Error while compacting segments: " + e);
+			synchronized (this) {
+				compactionPending = false;
+			}
+			return;
+		}
+		// merging may have completed a run of larger segments
+		scheduleCompaction();
+	}
+
+	/**
+	 * Merges the records of the memtables and segments after from and
+	 * before to, null for the end of the ring.
+	 */
+	private Iterator<Entry<String, String>> range(RingKey from, RingKey to) throws IOException {
+		List<Iterator<Entry<RingKey, String>>> sources = new ArrayList<Iterator<Entry<RingKey, String>>>();
+		sources.add(active.map.tailMap(from, false).entrySet().iterator());
+		Memtable immutable = flushing;
+		if (immutable != null) {
+			sources.add(immutable.map.tailMap(from, false).entrySet().iterator());
+		}
+		for (Segment segment : segments) {
+			sources.add(segment.scan(from));
+		}
+		try {
+			return new KeyIterator(new MergeIterator(sources, to, true));
+		} catch (StorageException e) {
+			throw e.getCause();
+		}
+	}
+
+	private synchronized File nextSegmentFile() {
+		return new File(dir, SEGMENT_PREFIX + (nextFileNumber++) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Opens the segments, removes segments which were already merged by a
+	 * compaction and flushes the logs of memtables which were not flushed.
+	 */
+	private void recover() throws IOException {
+		List<Segment> found = new ArrayList<Segment>();
+		List<Long> logs = new ArrayList<Long>();
+		String[] names = dir.list();
+		if (names == null) {
+			names = new String[0];
+		}
+		for (String name : names) {
+			File file = new File(dir, name);
+			if (name.endsWith(".tmp")) {
+				file.delete();
+			} else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				Long number = parseNumber(name, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+				if (number == null) {
+					continue;
+				}
+				nextFileNumber = Math.max(nextFileNumber, number + 1);
+				try {
+					found.add(Segment.open(file));
+				} catch (IOException e) {
+					logger.error("LsmEngine::recover() + Ignoring invalid segment " + name + ": " + e);
+				}
+			} else if (name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX)) {
+				Long seq = parseNumber(name, LOG_PREFIX, LOG_SUFFIX);
+				if (seq != null) {
+					logs.add(seq);
+				}
+			}
+		}
+
+		// newest first, a compacted segment before the segments it contains
+		Collections.sort(found, new Comparator<Segment>() {
+			@Override
+			public int compare(Segment a, Segment b) {
+				if (a.getMaxSeq() != b.getMaxSeq()) {
+					return a.getMaxSeq() > b.getMaxSeq() ? -1 : 1;
+				}
+				return a.getMinSeq() < b.getMinSeq() ? -1 : (a.getMinSeq() == b.getMinSeq() ? 0 : 1);
+			}
+		});
+		List<Segment> kept = new ArrayList<Segment>();
+		long flushedSeq = 0;
+		for (Segment segment : found) {
+			boolean merged = false;
+			for (Segment newer : kept) {
+				if (newer.getMinSeq() <= segment.getMinSeq() && segment.getMaxSeq() <= newer.getMaxSeq()) {
+					merged = true;
+					break;
+				}
+			}
+			if (merged) {
+				segment.delete();
+			} else {
+				kept.add(segment);
+				flushedSeq = Math.max(flushedSeq, segment.getMaxSeq());
+			}
+		}
+		segments = kept;
+
+		Collections.sort(logs);
+		ConcurrentSkipListMap<RingKey, String> unflushed = new ConcurrentSkipListMap<RingKey, String>();
+		long minSeq = Long.MAX_VALUE;
+		long maxSeq = flushedSeq;
+		for (Long seq : logs) {
+			File log = new File(dir, LOG_PREFIX + seq + LOG_SUFFIX);
+			if (seq > flushedSeq) {
+				MemtableLog.replay(log, unflushed);
+				minSeq = Math.min(minSeq, seq);
+				maxSeq = Math.max(maxSeq, seq);
+			}
+		}
+		if (!unflushed.isEmpty()) {
+			Segment segment = Segment.write(nextSegmentFile(), unflushed.entrySet().iterator(),
+					unflushed.size(), minSeq, maxSeq);
+			List<Segment> updated = new ArrayList<Segment>();
+			updated.add(segment);
+			updated.addAll(segments);
+			segments = updated;
+		}
+		for (Long seq : logs) {
+			new File(dir, LOG_PREFIX + seq + LOG_SUFFIX).delete();
+		}
+		active = new Memtable(maxSeq + 1);
+		logger.info("LsmEngine::recover() + Opened " + segments.size() + " segments in "
+				+ dir.getPath() + ", replayed " + unflushed.size() + " unflushed records");
+		scheduleCompaction();
+	}
+
+	private static Long parseNumber(String name, String prefix, String suffix) {
+		try {
+			return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+		} catch (NumberFormatException e) {
+			logger.warn("LsmEngine::recover() + Ignoring file " + name);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the merged records as key-value pairs.
+	 */
+	private static class KeyIterator implements Iterator<Entry<String, String>> {
+		private final Iterator<Entry<RingKey, String>> records;
+
+		KeyIterator(Iterator<Entry<RingKey, String>> records) {
+			this.records = records;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return records.hasNext();
+		}
+
+		@Override
+		public Entry<String, String> next() {
+			Entry<RingKey, String> record = records.next();
+			return new SimpleImmutableEntry<String, String>(record.getKey().getKey(), record.getValue());
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Sorted in-memory table of recent writes and its log.
+	 */
+	private class Memtable {
+		final long seq;
+		final ConcurrentSkipListMap<RingKey, String> map = new ConcurrentSkipListMap<RingKey, String>();
+		final AtomicLong bytes = new AtomicLong();
+		final MemtableLog log;
+
+		Memtable(long seq) throws IOException {
+			this.seq = seq;
+			this.log = new MemtableLog(new File(dir, LOG_PREFIX + seq + LOG_SUFFIX), syncWrites);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package server.storage.lsm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import server.storage.RingKey;
+
+/**
+ * Log of the writes held by one memtable, so they survive a restart until
+ * the memtable is flushed to a segment. Uses the record format of the
+ * WriteAheadLog: op, key, value (puts only) and a CRC32 of the three.
+ */
+class MemtableLog {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private static final byte OP_PUT = 'P';
+	private static final byte OP_DELETE = 'D';
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	private final File file;
+	private final boolean syncWrites;
+	private final FileOutputStream fileOut;
+	private final DataOutputStream out;
+	private final CRC32 crc = new CRC32();
+
+	MemtableLog(File file, boolean syncWrites) throws IOException {
+		this.file = file;
+		this.syncWrites = syncWrites;
+		this.fileOut = new FileOutputStream(file, true);
+		this.out = new DataOutputStream(new BufferedOutputStream(fileOut));
+	}
+
+	/**
+	 * Appends a write to the log.
+	 *
+	 * @param key
+	 * 			key which is written.
+	 * @param value
+	 * 			value which is stored, null for a delete.
+	 */
+	synchronized void append(String key, String value) throws IOException {
+		byte op = value != null ? OP_PUT : OP_DELETE;
+		byte[] keyBytes = key.getBytes("UTF-8");
+		byte[] valueBytes = value != null ? value.getBytes("UTF-8") : null;
+
+		crc.reset();
+		crc.update(op);
+		crc.update(keyBytes);
+		if (valueBytes != null) {
+			crc.update(valueBytes);
+		}
+		out.writeByte(op);
+		out.writeInt(keyBytes.length);
+		out.write(keyBytes);
+		if (valueBytes != null) {
+			out.writeInt(valueBytes.length);
+			out.write(valueBytes);
+		}
+		out.writeInt((int) crc.getValue());
+		out.flush();
+		if (syncWrites) {
+			fileOut.getFD().sync();
+		}
+	}
+
+	synchronized void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			logger.error("MemtableLog::close() + Error while closing " + file.getName() + ": " + e);
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Replays a log into a memtable, deletes become tombstones. Replay
+	 * stops at the first incomplete or corrupt record.
+	 *
+	 * @return number of replayed records.
+	 */
+	static long replay(File file, Map<RingKey, String> memtable) throws IOException {
+		long records = 0;
+		CRC32 crc = new CRC32();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				int op = in.read();
+				if (op == -1) {
+					break;
+				}
+				byte[] key = readBytes(in);
+				byte[] value = op == OP_PUT ? readBytes(in) : null;
+				int checksum = in.readInt();
+
+				crc.reset();
+				crc.update(op);
+				crc.update(key);
+				if (value != null) {
+					crc.update(value);
+				}
+				if ((op != OP_PUT && op != OP_DELETE) || checksum != (int) crc.getValue()) {
+					logger.error("MemtableLog::replay() + Corrupt record in " + file.getName());
+					break;
+				}
+				String keyString = new String(key, "UTF-8");
+				memtable.put(new RingKey(keyString),
+						value != null ? new String(value, "UTF-8") : LsmEngine.TOMBSTONE);
+				records++;
+			}
+		} catch (EOFException e) {
+			logger.warn("MemtableLog::replay() + Incomplete record at end of " + file.getName());
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_RECORD_SIZE) {
+			throw new EOFException("Invalid record length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
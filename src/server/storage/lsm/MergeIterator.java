@@ -0,0 +1,106 @@
+package server.storage.lsm;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import server.storage.RingKey;
+
+/**
+ * Merges several iterators sorted by RingKey into one. When a key is
+ * present in more than one source the record of the newest source wins.
+ */
+class MergeIterator implements Iterator<Entry<RingKey, String>> {
+
+	private final PriorityQueue<Source> queue = new PriorityQueue<Source>();
+	private final RingKey end;
+	private final boolean dropTombstones;
+	private Entry<RingKey, String> next;
+
+	/**
+	 * @param sources
+	 * 			sorted iterators, newest first.
+	 * @param end
+	 * 			exclusive upper bound, null to merge the sources completely.
+	 * @param dropTombstones
+	 * 			true to leave out deleted keys.
+	 */
+	MergeIterator(List<Iterator<Entry<RingKey, String>>> sources, RingKey end, boolean dropTombstones) {
+		this.end = end;
+		this.dropTombstones = dropTombstones;
+		for (int i = 0; i < sources.size(); i++) {
+			Source source = new Source(sources.get(i), i);
+			if (source.advance()) {
+				queue.add(source);
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null && !queue.isEmpty()) {
+			Source newest = queue.poll();
+			Entry<RingKey, String> candidate = newest.current;
+			if (end != null && candidate.getKey().compareTo(end) >= 0) {
+				queue.clear();
+				break;
+			}
+			// older records of the same key are shadowed
+			while (!queue.isEmpty() && queue.peek().current.getKey().equals(candidate.getKey())) {
+				Source older = queue.poll();
+				if (older.advance()) {
+					queue.add(older);
+				}
+			}
+			if (newest.advance()) {
+				queue.add(newest);
+			}
+			if (!dropTombstones || candidate.getValue() != LsmEngine.TOMBSTONE) {
+				next = candidate;
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public Entry<RingKey, String> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Entry<RingKey, String> result = next;
+		next = null;
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	private static class Source implements Comparable<Source> {
+		private final Iterator<Entry<RingKey, String>> iterator;
+		private final int age;
+		private Entry<RingKey, String> current;
+
+		Source(Iterator<Entry<RingKey, String>> iterator, int age) {
+			this.iterator = iterator;
+			this.age = age;
+		}
+
+		boolean advance() {
+			current = iterator.hasNext() ? iterator.next() : null;
+			return current != null;
+		}
+
+		@Override
+		public int compareTo(Source other) {
+			int result = current.getKey().compareTo(other.current.getKey());
+			if (result != 0) {
+				return result;
+			}
+			return age < other.age ? -1 : (age == other.age ? 0 : 1);
+		}
+	}
+}
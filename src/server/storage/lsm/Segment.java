@@ -0,0 +1,433 @@
+package server.storage.lsm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import common.hashing.RingPosition;
+
+import server.storage.RingKey;
+import server.storage.StorageException;
+
+/**
+ * Immutable file of key-value records sorted by RingKey, written when a
+ * memtable is flushed or segments are compacted.
+ *
+ * Layout: the records, a sparse index holding every INDEX_INTERVAL-th key
+ * with its file offset, the Bloom filter and a fixed size footer. Records
+ * are (op, position, key, value) where deletes have no value. The index and
+ * the filter are kept in memory, the records are read with positional reads
+ * so lookups from several threads do not interfere.
+ */
+class Segment {
+
+	private static final byte OP_PUT = 'P';
+	private static final byte OP_DELETE = 'D';
+	private static final int MAGIC = 0x4b56534c;
+	private static final int FOOTER_SIZE = 5 * 8 + 4;
+	private static final int INDEX_INTERVAL = 32;
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+	private static final int READ_BUFFER = 4096;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long dataEnd;
+	private final long minSeq;
+	private final long maxSeq;
+	private final long records;
+	private final RingKey[] indexKeys;
+	private final long[] indexOffsets;
+	private final BloomFilter bloom;
+	private volatile boolean obsolete;
+
+	private Segment(File file, RandomAccessFile raf, long dataEnd, long minSeq, long maxSeq,
+			long records, RingKey[] indexKeys, long[] indexOffsets, BloomFilter bloom) {
+		this.file = file;
+		this.raf = raf;
+		this.channel = raf.getChannel();
+		this.dataEnd = dataEnd;
+		this.minSeq = minSeq;
+		this.maxSeq = maxSeq;
+		this.records = records;
+		this.indexKeys = indexKeys;
+		this.indexOffsets = indexOffsets;
+		this.bloom = bloom;
+	}
+
+	/**
+	 * Writes a new segment and opens it. The file is written under a
+	 * temporary name and renamed once it is complete and synced.
+	 *
+	 * @param file
+	 * 			name of the segment.
+	 * @param entries
+	 * 			records in RingKey order, tombstones are LsmEngine.TOMBSTONE.
+	 * @param expectedKeys
+	 * 			estimated number of records, used to size the Bloom filter.
+	 * @param minSeq
+	 * 			sequence number of the oldest memtable in the segment.
+	 * @param maxSeq
+	 * 			sequence number of the newest memtable in the segment.
+	 * @return the segment, or null if there was no record to write.
+	 */
+	static Segment write(File file, Iterator<Entry<RingKey, String>> entries, long expectedKeys,
+			long minSeq, long maxSeq) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fileOut, 65536));
+		DataOutputStream out = new DataOutputStream(counter);
+		BloomFilter bloom = BloomFilter.create(expectedKeys);
+		List<RingKey> indexKeys = new ArrayList<RingKey>();
+		List<Long> indexOffsets = new ArrayList<Long>();
+		long records = 0;
+		try {
+			while (entries.hasNext()) {
+				Entry<RingKey, String> entry = entries.next();
+				RingKey key = entry.getKey();
+				if (records % INDEX_INTERVAL == 0) {
+					indexKeys.add(key);
+					indexOffsets.add(counter.count);
+				}
+				bloom.add(key.getPosition());
+				boolean delete = entry.getValue() == LsmEngine.TOMBSTONE;
+				out.writeByte(delete ? OP_DELETE : OP_PUT);
+				out.writeLong(key.getPosition().getHigh());
+				out.writeLong(key.getPosition().getLow());
+				writeBytes(out, key.getKey().getBytes("UTF-8"));
+				if (!delete) {
+					writeBytes(out, entry.getValue().getBytes("UTF-8"));
+				}
+				records++;
+			}
+
+			long indexOffset = counter.count;
+			out.writeInt(indexKeys.size());
+			for (int i = 0; i < indexKeys.size(); i++) {
+				RingKey key = indexKeys.get(i);
+				out.writeLong(key.getPosition().getHigh());
+				out.writeLong(key.getPosition().getLow());
+				writeBytes(out, key.getKey().getBytes("UTF-8"));
+				out.writeLong(indexOffsets.get(i));
+			}
+			long bloomOffset = counter.count;
+			bloom.writeTo(out);
+
+			out.writeLong(indexOffset);
+			out.writeLong(bloomOffset);
+			out.writeLong(minSeq);
+			out.writeLong(maxSeq);
+			out.writeLong(records);
+			out.writeInt(MAGIC);
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (records == 0) {
+			tmp.delete();
+			return null;
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Unable to rename " + tmp.getName());
+		}
+		return open(file);
+	}
+
+	/**
+	 * Opens an existing segment and loads its index and Bloom filter.
+	 *
+	 * @throws IOException
+	 * 			if the file is not a complete segment.
+	 */
+	static Segment open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length < FOOTER_SIZE) {
+				throw new IOException("Segment " + file.getName() + " is truncated");
+			}
+			raf.seek(length - FOOTER_SIZE);
+			long indexOffset = raf.readLong();
+			long bloomOffset = raf.readLong();
+			long minSeq = raf.readLong();
+			long maxSeq = raf.readLong();
+			long records = raf.readLong();
+			if (raf.readInt() != MAGIC || indexOffset < 0 || bloomOffset < indexOffset
+					|| bloomOffset > length - FOOTER_SIZE) {
+				throw new IOException("Segment " + file.getName() + " has no valid footer");
+			}
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new PositionalInputStream(raf.getChannel(), indexOffset), READ_BUFFER));
+			int count = in.readInt();
+			if (count < 0 || count > records) {
+				throw new IOException("Segment " + file.getName() + " has an invalid index");
+			}
+			RingKey[] indexKeys = new RingKey[count];
+			long[] indexOffsets = new long[count];
+			for (int i = 0; i < count; i++) {
+				RingPosition position = new RingPosition(in.readLong(), in.readLong());
+				indexKeys[i] = new RingKey(position, new String(readBytes(in), "UTF-8"));
+				indexOffsets[i] = in.readLong();
+			}
+			BloomFilter bloom = BloomFilter.readFrom(in);
+			return new Segment(file, raf, indexOffset, minSeq, maxSeq, records,
+					indexKeys, indexOffsets, bloom);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Looks up a key.
+	 *
+	 * @return the value, LsmEngine.TOMBSTONE if the key is deleted in this
+	 *         segment or null if the segment has no record of the key.
+	 */
+	String get(RingKey key) throws IOException {
+		if (!bloom.mightContain(key.getPosition())) {
+			return null;
+		}
+		int block = floorIndex(key);
+		if (block < 0) {
+			return null;
+		}
+		RecordReader reader = new RecordReader(indexOffsets[block]);
+		for (int i = 0; i < INDEX_INTERVAL && reader.hasNext(); i++) {
+			Entry<RingKey, String> record = reader.next();
+			int cmp = record.getKey().compareTo(key);
+			if (cmp == 0) {
+				return record.getValue();
+			}
+			if (cmp > 0) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Iterates over the records following the given key in RingKey order.
+	 *
+	 * @param from
+	 * 			exclusive lower bound, usually a RingKey.after() bound.
+	 */
+	Iterator<Entry<RingKey, String>> scan(RingKey from) throws IOException {
+		int block = floorIndex(from);
+		RecordReader reader = new RecordReader(block < 0 ? 0 : indexOffsets[block]);
+		reader.skipTo(from);
+		return reader;
+	}
+
+	/**
+	 * @return iterator over all records of the segment.
+	 */
+	Iterator<Entry<RingKey, String>> scanAll() throws IOException {
+		return new RecordReader(0);
+	}
+
+	/**
+	 * @return index of the last index entry which is less than or equal to key,
+	 *         -1 if key is before the first record.
+	 */
+	private int floorIndex(RingKey key) {
+		int found = Arrays.binarySearch(indexKeys, key);
+		return found >= 0 ? found : -found - 2;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long getMinSeq() {
+		return minSeq;
+	}
+
+	long getMaxSeq() {
+		return maxSeq;
+	}
+
+	long getRecords() {
+		return records;
+	}
+
+	long getSize() {
+		return file.length();
+	}
+
+	boolean isObsolete() {
+		return obsolete;
+	}
+
+	/**
+	 * Marks the segment as replaced by a compaction and removes its file.
+	 */
+	void delete() {
+		obsolete = true;
+		close();
+		file.delete();
+	}
+
+	void close() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+			// nothing left to release
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_RECORD_SIZE) {
+			throw new IOException("Invalid record length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Sequential reader over the records, starting at a record boundary.
+	 */
+	private class RecordReader implements Iterator<Entry<RingKey, String>> {
+		private final DataInputStream in;
+		private long offset;
+		private Entry<RingKey, String> next;
+
+		RecordReader(long offset) {
+			this.offset = offset;
+			this.in = new DataInputStream(new BufferedInputStream(
+					new PositionalInputStream(channel, offset), READ_BUFFER));
+		}
+
+		void skipTo(RingKey from) {
+			while (hasNext() && next.getKey().compareTo(from) <= 0) {
+				next = null;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null && offset < dataEnd) {
+				try {
+					next = readRecord();
+				} catch (IOException e) {
+					throw new StorageException("Error while reading segment " + file.getName(), e);
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Entry<RingKey, String> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Entry<RingKey, String> result = next;
+			next = null;
+			return result;
+		}
+
+		private Entry<RingKey, String> readRecord() throws IOException {
+			int op = in.read();
+			if (op != OP_PUT && op != OP_DELETE) {
+				throw new EOFException("Invalid record at offset " + offset);
+			}
+			RingPosition position = new RingPosition(in.readLong(), in.readLong());
+			byte[] key = readBytes(in);
+			offset += 1 + 16 + 4 + key.length;
+			String value = LsmEngine.TOMBSTONE;
+			if (op == OP_PUT) {
+				byte[] valueBytes = readBytes(in);
+				offset += 4 + valueBytes.length;
+				value = new String(valueBytes, "UTF-8");
+			}
+			return new SimpleImmutableEntry<RingKey, String>(
+					new RingKey(position, new String(key, "UTF-8")), value);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * InputStream reading a FileChannel at its own position, so several
+	 * readers can share the channel.
+	 */
+	private static class PositionalInputStream extends InputStream {
+		private final FileChannel channel;
+		private long position;
+
+		PositionalInputStream(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+			if (read > 0) {
+				position += read;
+			}
+			return read;
+		}
+	}
+
+	/**
+	 * OutputStream keeping track of the number of bytes written.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
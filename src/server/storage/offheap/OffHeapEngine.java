@@ -0,0 +1,189 @@
+package server.storage.offheap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import common.hashing.RingPosition;
+
+import server.storage.ChainedIterator;
+import server.storage.RingKey;
+import server.storage.StorageEngine;
+
+/**
+ * Storage engine keeping the values UTF-8 encoded in direct ByteBuffer slabs
+ * outside of the heap. The heap only holds the keys, a small ValueRef per
+ * key and the ring index, so large values like email bodies do not add to
+ * the old generation and to full GC pauses.
+ *
+ * Reads take no lock: a value is read from its block and the key is looked
+ * up again afterwards. A block is only freed after its ValueRef has been
+ * replaced in the map, so if the ValueRef is still there the bytes read
+ * were not overwritten.
+ */
+public class OffHeapEngine implements StorageEngine {
+
+	public static final int DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+
+	private final SlabAllocator allocator;
+	private final ConcurrentHashMap<String, ValueRef> refs = new ConcurrentHashMap<String, ValueRef>();
+
+	/*
+	 * Keys of the data stored, sorted by their position on the ring.
+	 */
+	private final ConcurrentSkipListSet<RingKey> keyHash = new ConcurrentSkipListSet<RingKey>();
+
+	/**
+	 * @param slabSize
+	 * 			size of the direct buffers values are allocated from.
+	 */
+	public OffHeapEngine(int slabSize) {
+		allocator = new SlabAllocator(slabSize);
+	}
+
+	@Override
+	public String getName() {
+		return "offheap";
+	}
+
+	@Override
+	public String get(String key) {
+		while (true) {
+			ValueRef ref = refs.get(key);
+			if (ref == null) {
+				return null;
+			}
+			String value = read(ref);
+			if (refs.get(key) == ref) {
+				return value;
+			}
+		}
+	}
+
+	@Override
+	public String put(String key, String value) {
+		ValueRef ref = allocator.store(encode(value));
+		// index first, range readers skip keys which have no data yet.
+		keyHash.add(new RingKey(key));
+		ValueRef previous = refs.put(key, ref);
+		if (previous == null) {
+			return null;
+		}
+		String result = read(previous);
+		allocator.free(previous);
+		return result;
+	}
+
+	@Override
+	public String delete(String key) {
+		// data first, so the index never misses a key that has data.
+		ValueRef previous = refs.remove(key);
+		keyHash.remove(new RingKey(key));
+		if (previous == null) {
+			return null;
+		}
+		String result = read(previous);
+		allocator.free(previous);
+		return result;
+	}
+
+	@Override
+	public Iterator<Entry<String, String>> range(RingPosition start, RingPosition end) {
+		if (start.compareTo(end) < 0) {
+			return new DataIterator(keyHash.subSet(RingKey.after(start), false, RingKey.after(end), false));
+		}
+		return new ChainedIterator<Entry<String, String>>(
+				new DataIterator(keyHash.tailSet(RingKey.after(start), false)),
+				new DataIterator(keyHash.headSet(RingKey.after(end), false)));
+	}
+
+	@Override
+	public long size() {
+		return refs.size();
+	}
+
+	@Override
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("keys", (long) refs.size());
+		stats.put("valueBytes", allocator.getUsedBytes());
+		stats.put("offHeapBytes", allocator.getReservedBytes());
+		stats.put("slabs", (long) allocator.getSlabCount());
+		return stats;
+	}
+
+	/**
+	 * The slabs are released by the garbage collector with the engine.
+	 */
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Reads a value. A block freed during the read may belong to another
+	 * value or slab by now, the caller detects this and reads again.
+	 */
+	private String read(ValueRef ref) {
+		try {
+			return new String(allocator.load(ref), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static byte[] encode(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Looks up the data of the keys of a part of the index.
+	 */
+	private class DataIterator implements Iterator<Entry<String, String>> {
+		private final Iterator<RingKey> keys;
+		private Entry<String, String> next;
+
+		DataIterator(NavigableSet<RingKey> keys) {
+			this.keys = keys.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && keys.hasNext()) {
+				String key = keys.next().getKey();
+				String value = get(key);
+				if (value != null) {
+					next = new SimpleImmutableEntry<String, String>(key, value);
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, String> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Entry<String, String> result = next;
+			next = null;
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
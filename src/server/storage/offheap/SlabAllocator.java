@@ -0,0 +1,173 @@
+package server.storage.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates blocks for values in direct ByteBuffer slabs outside of the heap.
+ *
+ * Blocks are rounded up to a power of two and freed blocks are kept in a
+ * free list per size, so a block is always reused for values of the same
+ * size class and slabs never fragment into unusable holes. Values larger
+ * than a slab get a direct buffer of their own, which is released on free.
+ */
+class SlabAllocator {
+
+	private static final int MIN_CLASS = 5;
+
+	private final int slabSize;
+	private final int maxClass;
+
+	/*
+	 * Slabs by number, replaced by a larger copy when full, so readers can
+	 * use it without locking.
+	 */
+	private volatile ByteBuffer[] slabs = new ByteBuffer[16];
+	private int slabCount;
+	private final List<Integer> freeSlots = new ArrayList<Integer>();
+	private int currentSlab = -1;
+	private int currentOffset;
+
+	private final List<ConcurrentLinkedQueue<Long>> freeBlocks;
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicLong reservedBytes = new AtomicLong();
+
+	/**
+	 * @param slabSize
+	 * 			size of a slab in bytes, rounded up to a power of two.
+	 */
+	SlabAllocator(int slabSize) {
+		this.maxClass = Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(slabSize, 2) - 1));
+		this.slabSize = 1 << maxClass;
+		this.freeBlocks = new ArrayList<ConcurrentLinkedQueue<Long>>();
+		for (int i = 0; i <= maxClass; i++) {
+			freeBlocks.add(new ConcurrentLinkedQueue<Long>());
+		}
+	}
+
+	/**
+	 * Allocates a block and copies the bytes into it.
+	 *
+	 * @return reference to the stored bytes.
+	 */
+	ValueRef store(byte[] bytes) {
+		ValueRef ref = allocate(bytes.length);
+		ByteBuffer buffer = slabs[ref.slab].duplicate();
+		buffer.position(ref.offset);
+		buffer.put(bytes);
+		usedBytes.addAndGet(bytes.length);
+		return ref;
+	}
+
+	/**
+	 * Copies the bytes of a block to the heap. The block may have been freed
+	 * and reused meanwhile, so the caller has to check the reference is still
+	 * valid afterwards.
+	 *
+	 * @throws RuntimeException
+	 * 			if the block was freed and its slab is gone.
+	 */
+	byte[] load(ValueRef ref) {
+		ByteBuffer slab = slabs[ref.slab];
+		byte[] bytes = new byte[ref.length];
+		ByteBuffer buffer = slab.duplicate();
+		buffer.position(ref.offset);
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Returns a block for reuse.
+	 */
+	void free(ValueRef ref) {
+		usedBytes.addAndGet(-ref.length);
+		int sizeClass = sizeClass(ref.length);
+		if (sizeClass > maxClass) {
+			synchronized (this) {
+				reservedBytes.addAndGet(-slabs[ref.slab].capacity());
+				slabs[ref.slab] = null;
+				freeSlots.add(ref.slab);
+			}
+			return;
+		}
+		freeBlocks.get(sizeClass).add(((long) ref.slab << 32) | ref.offset);
+	}
+
+	/**
+	 * @return bytes of the values stored.
+	 */
+	long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	/**
+	 * @return bytes reserved outside the heap by the slabs.
+	 */
+	long getReservedBytes() {
+		return reservedBytes.get();
+	}
+
+	synchronized int getSlabCount() {
+		return slabCount - freeSlots.size();
+	}
+
+	private ValueRef allocate(int length) {
+		int sizeClass = sizeClass(length);
+		if (sizeClass > maxClass) {
+			synchronized (this) {
+				int slab = addSlab(ByteBuffer.allocateDirect(length));
+				return new ValueRef(slab, 0, length);
+			}
+		}
+		Long free = freeBlocks.get(sizeClass).poll();
+		if (free != null) {
+			return new ValueRef((int) (free >>> 32), (int) (long) free, length);
+		}
+		int blockSize = 1 << sizeClass;
+		synchronized (this) {
+			if (currentSlab < 0 || currentOffset + blockSize > slabSize) {
+				// the rest of the current slab is handed out as smaller blocks
+				while (currentSlab >= 0 && currentOffset < slabSize) {
+					int rest = Integer.highestOneBit(slabSize - currentOffset);
+					int restClass = Integer.numberOfTrailingZeros(rest);
+					if (rest < (1 << MIN_CLASS)) {
+						break;
+					}
+					freeBlocks.get(restClass).add(((long) currentSlab << 32) | currentOffset);
+					currentOffset += rest;
+				}
+				currentSlab = addSlab(ByteBuffer.allocateDirect(slabSize));
+				currentOffset = 0;
+			}
+			ValueRef ref = new ValueRef(currentSlab, currentOffset, length);
+			currentOffset += blockSize;
+			return ref;
+		}
+	}
+
+	private int addSlab(ByteBuffer slab) {
+		reservedBytes.addAndGet(slab.capacity());
+		if (!freeSlots.isEmpty()) {
+			int slot = freeSlots.remove(freeSlots.size() - 1);
+			slabs[slot] = slab;
+			return slot;
+		}
+		if (slabCount == slabs.length) {
+			ByteBuffer[] larger = new ByteBuffer[slabs.length * 2];
+			System.arraycopy(slabs, 0, larger, 0, slabCount);
+			slabs = larger;
+		}
+		slabs[slabCount] = slab;
+		return slabCount++;
+	}
+
+	private static int sizeClass(int length) {
+		if (length <= (1 << MIN_CLASS)) {
+			return MIN_CLASS;
+		}
+		return 32 - Integer.numberOfLeadingZeros(length - 1);
+	}
+}
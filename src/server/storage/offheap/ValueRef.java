@@ -0,0 +1,20 @@
+package server.storage.offheap;
+
+/**
+ * Heap entry of a value stored outside the heap: the slab, the offset of
+ * the block in the slab and the length of the UTF-8 encoded value.
+ *
+ * Every write creates a new ValueRef, so a reader can tell by identity
+ * whether the value it read has been replaced meanwhile.
+ */
+final class ValueRef {
+	final int slab;
+	final int offset;
+	final int length;
+
+	ValueRef(int slab, int offset, int length) {
+		this.slab = slab;
+		this.offset = offset;
+		this.length = length;
+	}
+}
@@ -28,6 +28,10 @@ public class AllTests {
 		clientSuite.addTestSuite(MarshallingTest.class);
 		clientSuite.addTestSuite(ServerTest.class);
 		clientSuite.addTestSuite(CipherTest.class);
+		clientSuite.addTestSuite(RingPositionTest.class);
+		clientSuite.addTestSuite(NioServerTest.class);
+		clientSuite.addTestSuite(ReplicationTest.class);
+		clientSuite.addTestSuite(ReplicationLogTest.class);
 		clientSuite.addTestSuite(PerformanceTest.class);		
 		return clientSuite;
 	}
@@ -1,9 +1,13 @@
 package testing;
 
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 import org.junit.Test;
 import common.security.cipher.Cipher;
 import common.security.cipher.aes.AES;
+import common.security.cipher.aes.AESSession;
 
 public class CipherTest extends TestCase {
 
@@ -23,6 +27,61 @@ public class CipherTest extends TestCase {
 
 		
 	}
+
+	@Test
+	public void testSession() throws Exception {
+		AESSession sender = new AES().newSession();
+		AESSession receiver = new AES().newSession();
+		byte[] salt = sender.startSealing();
+		assertNull(sender.startSealing());
+		receiver.startOpening(salt);
+		sender.startOpening(receiver.startSealing());
+
+		byte[] first = sender.seal("first".getBytes("UTF-8"));
+		byte[] second = sender.seal("first".getBytes("UTF-8"));
+		// same message, different nonce
+		assertFalse(Arrays.equals(first, second));
+		assertEquals("first", new String(receiver.open(first, 0, first.length), "UTF-8"));
+		assertEquals("first", new String(receiver.open(second, 0, second.length), "UTF-8"));
+
+		byte[] third = sender.seal("third".getBytes("UTF-8"));
+		third[0] ^= 1;
+		try {
+			receiver.open(third, 0, third.length);
+			fail("Changed message opened");
+		} catch (GeneralSecurityException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSessionReplay() throws Exception {
+		AESSession sender = new AES().newSession();
+		AESSession receiver = new AES().newSession();
+		byte[] salt = sender.startSealing();
+		receiver.startOpening(salt);
+		sender.startOpening(receiver.startSealing());
+		byte[] recorded = sender.seal("put".getBytes("UTF-8"));
+
+		// a second start on the same connection is rejected
+		try {
+			receiver.startOpening(salt);
+			fail("Second session start accepted");
+		} catch (GeneralSecurityException e) {
+			// expected
+		}
+
+		// the recorded session replayed on a new connection does not open
+		AESSession replayed = new AES().newSession();
+		replayed.startOpening(salt);
+		assertNotNull(replayed.startSealing());
+		try {
+			replayed.open(recorded, 0, recorded.length);
+			fail("Replayed message opened");
+		} catch (GeneralSecurityException e) {
+			// expected
+		}
+	}
 	
 
 }
\ No newline at end of file
@@ -4,6 +4,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import client.KVStore;
+import common.messages.KVMessage.StatusType;
 import ecs.ECServer;
 import junit.framework.TestCase;
 
@@ -66,6 +68,40 @@ public class ECServerTest extends TestCase {
 		assertTrue(result && result2 && result3 && newNodeCount == oldNodeCount-1);
 	}
 
+	/**
+	 * Test that values too large for one message, which are stored in 
+	 * chunks, are moved with their chunks when a node joins and leaves.
+	 */
+	@Test
+	public void testMoveChunkedValues() throws Exception {
+		// without replicas, the moved values are only on the node now responsible
+		boolean result = mECServer.initService(2, 1);
+		boolean result2 = mECServer.start();
+		assertTrue(result && result2);
+
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 40000) {
+			large.append("chunked value ").append(large.length()).append(' ');
+		}
+		KVStore kvClient = new KVStore("localhost", 50000);
+		kvClient.connect();
+		// enough keys that some of them move whichever node joins
+		for (int i = 0; i < 8; i++) {
+			StatusType status = kvClient.put("large" + i, large + "-" + i).getStatus();
+			assertTrue(status == StatusType.PUT_SUCCESS || status == StatusType.PUT_UPDATE);
+		}
+
+		assertTrue(mECServer.addNode());
+		for (int i = 0; i < 8; i++) {
+			assertEquals(large + "-" + i, kvClient.get("large" + i).getValue());
+		}
+		assertTrue(mECServer.removeNode());
+		for (int i = 0; i < 8; i++) {
+			assertEquals(large + "-" + i, kvClient.get("large" + i).getValue());
+		}
+		kvClient.disconnect();
+	}
+
 	@Test
 	public void testShutdown(){
 		int oldNodeCount = 4;
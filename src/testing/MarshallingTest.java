@@ -1,17 +1,36 @@
 package testing;
 
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import junit.framework.TestCase;
 import logger.LogSetup;
+import metadata.MetaData;
 
 import org.apache.log4j.Level;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import common.communication.CommunicationConfig;
+import common.communication.CommunicationConfig.Encryption;
+import common.communication.CommunicationConfig.Link;
+import common.communication.SocketCommunication;
+import common.messages.BinarySerializer;
 import common.messages.JSONSerializer;
+import common.messages.KVAdminMessage;
+import common.messages.KVAdminMessage.Commands;
+import common.messages.KVAdminMessageImpl;
+import common.messages.KVMessage;
+import common.messages.KVMessage.Consistency;
 import common.messages.KVMessage.StatusType;
 import common.messages.KVMessageImpl;
+import common.messages.MessageCodec;
 import common.messages.TextMessage;
 
 public class MarshallingTest extends TestCase {
@@ -72,6 +91,7 @@ public class MarshallingTest extends TestCase {
 		KVMessageImpl msg5 = new KVMessageImpl(key, value, StatusType.GET_SUCCESS);
 		KVMessageImpl msg6 = new KVMessageImpl(key, value, StatusType.PUT);
 		KVMessageImpl msg7 = new KVMessageImpl(key, value, StatusType.PUT_ERROR);
+		KVMessageImpl msg8 = new KVMessageImpl(key, "", StatusType.SERVER_BUSY);
 		
 		TextMessage txtMsg1 = JSONSerializer.marshal(msg1.getKey(),msg1.getValue(),msg1.getStatus());
 		TextMessage txtMsg2 = JSONSerializer.marshal(msg2.getKey(),msg2.getValue(),msg2.getStatus());
@@ -80,6 +100,7 @@ public class MarshallingTest extends TestCase {
 		TextMessage txtMsg5 = JSONSerializer.marshal(msg5.getKey(),msg5.getValue(),msg5.getStatus());
 		TextMessage txtMsg6 = JSONSerializer.marshal(msg6.getKey(),msg6.getValue(),msg6.getStatus());
 		TextMessage txtMsg7 = JSONSerializer.marshal(msg7.getKey(),msg7.getValue(),msg7.getStatus());
+		TextMessage txtMsg8 = JSONSerializer.marshal(msg8.getKey(),msg8.getValue(),msg8.getStatus());
 		
 		try {
 			KVMessageImpl kv1 = JSONSerializer.unMarshal(txtMsg1);
@@ -102,6 +123,9 @@ public class MarshallingTest extends TestCase {
 
 			KVMessageImpl kv7 = JSONSerializer.unMarshal(txtMsg7);
 			assertTrue(msg7.getStatus().equals(kv7.getStatus()));
+
+			KVMessageImpl kv8 = JSONSerializer.unMarshal(txtMsg8);
+			assertTrue(msg8.getStatus().equals(kv8.getStatus()));
 			
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -109,4 +133,309 @@ public class MarshallingTest extends TestCase {
 		
 	}
 
+	@Test
+	public void testEchoStats() {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("keys", 12L);
+		stats.put("memoryUsed", 5000000000L);
+
+		KVAdminMessage echo = JSONSerializer.unmarshalKVAdminMsgForCommand(
+				JSONSerializer.marshalKVAdminMsg(Commands.ECHO, stats));
+		assertEquals(Commands.ECHO, echo.getCommand());
+		assertEquals(stats, echo.getStats());
+
+		KVAdminMessage plain = JSONSerializer.unmarshalKVAdminMsgForCommand(
+				JSONSerializer.marshalKVAdminMsg(Commands.ECHO));
+		assertNull(plain.getStats());
+	}
+
+	/**
+	 * Testing if messages with and without length header are both received
+	 * and the reply on each socket is framed like the last message received
+	 * on that socket.
+	 */
+	@Test
+	public void testFraming() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		Socket client = new Socket("127.0.0.1", server.getLocalPort());
+		Socket accepted = server.accept();
+		Socket framedClient = new Socket("127.0.0.1", server.getLocalPort());
+		Socket framedAccepted = server.accept();
+		try {
+			SocketCommunication sender = new SocketCommunication();
+			SocketCommunication receiver = new SocketCommunication();
+			TextMessage msg = JSONSerializer.marshal("host", "localhost", StatusType.PUT);
+
+			byte[] text = sender.encode(msg, false);
+			byte[] framed = sender.encode(msg, true);
+			assertEquals(13, text[text.length - 1]);
+			assertEquals(0, framed[0]);
+			client.getOutputStream().write(text);
+			framedClient.getOutputStream().write(framed);
+
+			assertEquals(msg.getMsg(), receiver.receiveMessage(accepted).getMsg());
+			assertEquals(msg.getMsg(), receiver.receiveMessage(framedAccepted).getMsg());
+			receiver.sendMessage(accepted, msg);
+			receiver.sendMessage(framedAccepted, msg);
+			assertFalse(SocketCommunication.isFrameStart((byte) client.getInputStream().read()));
+			assertEquals(0, framedClient.getInputStream().read());
+		} finally {
+			client.close();
+			accepted.close();
+			framedClient.close();
+			framedAccepted.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * Testing if a frame announcing more than the frame limit is refused 
+	 * before its content arrives, while a large frame under the limit is 
+	 * received completely.
+	 */
+	@Test
+	public void testFrameLimit() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		Socket client = new Socket("127.0.0.1", server.getLocalPort());
+		Socket accepted = server.accept();
+		try {
+			SocketCommunication sender = new SocketCommunication();
+			SocketCommunication receiver = new SocketCommunication();
+			StringBuilder value = new StringBuilder();
+			while (value.length() < 300 * 1024) {
+				value.append("0123456789");
+			}
+			TextMessage msg = JSONSerializer.marshal("host", value.toString(), StatusType.PUT);
+			client.getOutputStream().write(sender.encode(msg, true));
+			assertEquals(msg.getMsg(), receiver.receiveMessage(accepted).getMsg());
+
+			int length = CommunicationConfig.getFrameLimit() + 1;
+			client.getOutputStream().write(new byte[] {0, (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+			try {
+				receiver.receiveMessage(accepted);
+				fail("frame over the limit accepted");
+			} catch (IOException e) {
+				// expected, without waiting for the content
+			}
+		} finally {
+			client.close();
+			accepted.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * Testing if a link configured without encryption sends plain messages,
+	 * which a server receives like encrypted ones and answers in kind.
+	 */
+	@Test
+	public void testPlainLink() {
+		String property = "communication." + CommunicationConfig.ENCRYPTION + ".replication";
+		System.setProperty(property, "none");
+		SocketCommunication sender;
+		try {
+			sender = new SocketCommunication(Link.REPLICATION);
+		} finally {
+			System.clearProperty(property);
+		}
+		SocketCommunication receiver = SocketCommunication.forServer();
+		TextMessage msg = JSONSerializer.marshal("host", "localhost", StatusType.PUT);
+
+		byte[] text = sender.encode(msg, false);
+		assertEquals('{', text[0]);
+		assertEquals(msg.getMsg(), receiver.decode(Arrays.copyOf(text, text.length - 2)).getMsg());
+		assertEquals('{', receiver.encode(msg, false)[0]);
+
+		TextMessage binary = MessageCodec.BINARY.marshal(new KVMessageImpl("host", "localhost", StatusType.PUT));
+		byte[] frame = sender.encode(binary, true);
+		assertEquals(SocketCommunication.PLAIN_BINARY, frame[0]);
+		TextMessage received = receiver.decodeFrame(frame[0], 
+				Arrays.copyOfRange(frame, SocketCommunication.HEADER_SIZE, frame.length), 
+				frame.length - SocketCommunication.HEADER_SIZE);
+		assertEquals("localhost", MessageCodec.unMarshal(received).getValue());
+
+		// an encrypted request gets an encrypted reply
+		byte[] encrypted = new SocketCommunication().encode(msg, false);
+		assertEquals(msg.getMsg(), receiver.decode(Arrays.copyOf(encrypted, encrypted.length - 2)).getMsg());
+		assertFalse('{' == receiver.encode(msg, false)[0]);
+	}
+
+	/**
+	 * Testing if a link configured with encryption rejects plain messages 
+	 * and frames, while a server accepts both and reports their encryption.
+	 */
+	@Test
+	public void testRequiredEncryption() {
+		String property = "communication." + CommunicationConfig.ENCRYPTION + ".replication";
+		System.setProperty(property, "none");
+		SocketCommunication sender;
+		try {
+			sender = new SocketCommunication(Link.REPLICATION);
+		} finally {
+			System.clearProperty(property);
+		}
+		SocketCommunication receiver = new SocketCommunication(Link.REPLICATION);
+		TextMessage msg = JSONSerializer.marshal("host", "localhost", StatusType.PUT);
+
+		byte[] text = sender.encode(msg, false);
+		byte[] plain = Arrays.copyOf(text, text.length - 2);
+		try {
+			receiver.decode(plain);
+			fail("plain message accepted on an encrypted link");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		byte[] frame = sender.encode(MessageCodec.BINARY.marshal(
+				new KVMessageImpl("host", "localhost", StatusType.PUT)), true);
+		try {
+			receiver.decodeFrame(frame[0], 
+					Arrays.copyOfRange(frame, SocketCommunication.HEADER_SIZE, frame.length), 
+					frame.length - SocketCommunication.HEADER_SIZE);
+			fail("plain frame accepted on an encrypted link");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		byte[] encrypted = new SocketCommunication().encode(msg, false);
+		assertEquals(msg.getMsg(), receiver.decode(Arrays.copyOf(encrypted, encrypted.length - 2)).getMsg());
+
+		SocketCommunication server = SocketCommunication.forServer();
+		server.decode(plain);
+		assertEquals(Encryption.NONE, server.getReceivedEncryption());
+		server.decode(Arrays.copyOf(encrypted, encrypted.length - 2));
+		assertEquals(Encryption.SHARED, server.getReceivedEncryption());
+	}
+
+	/**
+	 * Testing if binary marshalling keeps all fields of a message
+	 */
+	@Test
+	public void testBinary() {
+		List<MetaData> metaDatas = new ArrayList<MetaData>();
+		metaDatas.add(new MetaData("127.0.0.1", "50000", "00", "ff"));
+		KVMessageImpl msg = new KVMessageImpl("k\u00e9y", "", StatusType.SERVER_NOT_RESPONSIBLE, metaDatas);
+
+		TextMessage txtMsg = MessageCodec.BINARY.marshal(msg);
+		assertTrue(txtMsg.isBinary());
+		assertFalse(BinarySerializer.isAdminMsg(txtMsg));
+		KVMessageImpl kv = MessageCodec.unMarshal(txtMsg);
+		assertEquals(msg.getKey(), kv.getKey());
+		assertEquals("", kv.getValue());
+		assertEquals(StatusType.SERVER_NOT_RESPONSIBLE, kv.getStatus());
+		assertEquals(1, kv.getMetaData().size());
+		assertTrue(metaDatas.get(0).equals(kv.getMetaData().get(0)));
+
+		KVMessageImpl json = MessageCodec.unMarshal(MessageCodec.JSON.marshal("host", "localhost", StatusType.PUT));
+		assertEquals("localhost", json.getValue());
+
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("memoryUsed", 5000000000L);
+		KVAdminMessageImpl admin = new KVAdminMessageImpl(metaDatas, Commands.MOVE_DATA, "00:ff", "127.0.0.1:50001");
+		admin.setStats(stats);
+		TextMessage adminTxt = BinarySerializer.marshalKVAdminMsg(admin);
+		assertTrue(BinarySerializer.isAdminMsg(adminTxt));
+		KVAdminMessage decoded = BinarySerializer.unmarshalKVAdminMsg(adminTxt);
+		assertEquals(Commands.MOVE_DATA, decoded.getCommand());
+		assertEquals("00:ff", decoded.getRange());
+		assertEquals("127.0.0.1:50001", decoded.getDestinationAddress());
+		assertEquals(1, decoded.getMetaDatas().size());
+		assertEquals(stats, decoded.getStats());
+
+		SocketCommunication communication = new SocketCommunication();
+		byte[] frame = communication.encode(txtMsg, false);
+		assertEquals(BinarySerializer.MAGIC, frame[0]);
+		TextMessage received = communication.decodeFrame(frame[0], 
+				Arrays.copyOfRange(frame, SocketCommunication.HEADER_SIZE, frame.length), 
+				frame.length - SocketCommunication.HEADER_SIZE);
+		assertTrue(received.isBinary());
+		assertEquals(msg.getKey(), MessageCodec.unMarshal(received).getKey());
+	}
+
+	/**
+	 * Testing if the correlation id is kept in both encodings and left out
+	 * of JSON when not set
+	 */
+	@Test
+	public void testCorrelationId() {
+		KVMessageImpl msg = new KVMessageImpl("host", "localhost", StatusType.PUT);
+		assertEquals("{\"key\":\"host\",\"value\":\"localhost\",\"status\":3}",
+				MessageCodec.JSON.marshal(msg).getMsg());
+		assertEquals(0, MessageCodec.unMarshal(MessageCodec.BINARY.marshal(msg)).getId());
+
+		msg.setId(300000000000L);
+		assertEquals(300000000000L, MessageCodec.unMarshal(MessageCodec.JSON.marshal(msg)).getId());
+		assertEquals(300000000000L, MessageCodec.unMarshal(MessageCodec.BINARY.marshal(msg)).getId());
+	}
+
+	/**
+	 * Testing if the consistency level is kept in both encodings and the
+	 * number of copies it requires
+	 */
+	@Test
+	public void testConsistency() {
+		KVMessageImpl msg = new KVMessageImpl("host", "localhost", StatusType.GET);
+		for (MessageCodec codec : MessageCodec.values()) {
+			assertNull(MessageCodec.unMarshal(codec.marshal(msg)).getConsistency());
+		}
+		for (Consistency level : Consistency.values()) {
+			msg.setConsistency(level);
+			for (MessageCodec codec : MessageCodec.values()) {
+				KVMessageImpl kv = MessageCodec.unMarshal(codec.marshal(msg));
+				assertEquals(level, kv.getConsistency());
+				assertEquals("localhost", kv.getValue());
+			}
+		}
+
+		assertEquals(1, Consistency.ONE.required(3));
+		assertEquals(2, Consistency.QUORUM.required(3));
+		assertEquals(3, Consistency.ALL.required(3));
+		assertEquals(3, Consistency.QUORUM.required(5));
+	}
+
+	/**
+	 * Testing if the replication factor the ECS sends with the metadata is
+	 * kept in both encodings and left out when not set
+	 */
+	@Test
+	public void testReplicationFactor() {
+		List<MetaData> metaDatas = new ArrayList<MetaData>();
+		metaDatas.add(new MetaData("127.0.0.1", "50000", "00", "ff"));
+
+		KVAdminMessage plain = JSONSerializer.unmarshalKVAdminMsg(
+				JSONSerializer.marshalKVAdminMsg(metaDatas, Commands.UPDATE, "", ""));
+		assertEquals(0, plain.getReplicationFactor());
+		KVAdminMessage json = JSONSerializer.unmarshalKVAdminMsg(
+				JSONSerializer.marshalKVAdminMsg(metaDatas, Commands.INIT, "", "", 5));
+		assertEquals(Commands.INIT, json.getCommand());
+		assertEquals(5, json.getReplicationFactor());
+		assertEquals(1, json.getMetaDatas().size());
+
+		KVAdminMessageImpl admin = new KVAdminMessageImpl(metaDatas, Commands.UPDATE, "", "");
+		admin.setReplicationFactor(1);
+		KVAdminMessage binary = BinarySerializer.unmarshalKVAdminMsg(BinarySerializer.marshalKVAdminMsg(admin));
+		assertEquals(1, binary.getReplicationFactor());
+	}
+
+	/**
+	 * Testing if the entries of a batch are kept in both encodings
+	 */
+	@Test
+	public void testBatch() {
+		List<KVMessage> entries = new ArrayList<KVMessage>();
+		entries.add(new KVMessageImpl("a", "1", StatusType.PUT));
+		entries.add(new KVMessageImpl("b", "", StatusType.PUT));
+		KVMessageImpl msg = new KVMessageImpl("", "", StatusType.BATCH_PUT);
+		msg.setBatch(entries);
+
+		for (MessageCodec codec : MessageCodec.values()) {
+			KVMessageImpl batch = MessageCodec.unMarshal(codec.marshal(msg));
+			assertEquals(StatusType.BATCH_PUT, batch.getStatus());
+			assertEquals(2, batch.getBatch().size());
+			assertEquals("a", batch.getBatch().get(0).getKey());
+			assertEquals("1", batch.getBatch().get(0).getValue());
+			assertEquals("", batch.getBatch().get(1).getValue());
+			assertEquals(StatusType.PUT, batch.getBatch().get(1).getStatus());
+		}
+		assertNull(MessageCodec.unMarshal(MessageCodec.JSON.marshal("a", "1", StatusType.PUT)).getBatch());
+	}
+
 }
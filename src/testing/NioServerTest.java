@@ -0,0 +1,185 @@
+package testing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import logger.LogSetup;
+import metadata.MetaData;
+
+import org.apache.log4j.Level;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import server.LoadLimit;
+import app_kvServer.KVServer;
+import common.communication.CommunicationConfig.Link;
+import common.communication.SocketCommunication;
+import common.messages.JSONSerializer;
+import common.messages.KVAdminMessage.Commands;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageImpl;
+import common.messages.TextMessage;
+
+/**
+ * Tests of a KVServer handling its connections with a NioServer, run in 
+ * this process.
+ */
+public class NioServerTest extends TestCase {
+
+	private static final int PORT = 50190;
+
+	private KVServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		new LogSetup("logs/testing/NioServerTest.log", Level.ERROR);
+		server = new KVServer(PORT, 2, 4);
+		server.setLoadLimit(LoadLimit.unlimited());
+		server.start();
+
+		List<MetaData> meta = new ArrayList<MetaData>();
+		meta.add(new MetaData("127.0.0.1", String.valueOf(PORT), "0", "0"));
+		SocketCommunication admin = new SocketCommunication(Link.ADMIN);
+		Socket socket = connect();
+		try {
+			admin.sendMessage(socket, JSONSerializer.marshalKVAdminMsg(meta, Commands.INIT, "", ""));
+			assertEquals(Commands.INIT_SUCCESS, 
+					JSONSerializer.unmarshalKVAdminMsgForCommand(admin.receiveMessage(socket)).getCommand());
+			admin.sendMessage(socket, JSONSerializer.marshalKVAdminMsg(null, Commands.START, "", ""));
+			assertEquals(Commands.START_SUCCESS, 
+					JSONSerializer.unmarshalKVAdminMsgForCommand(admin.receiveMessage(socket)).getCommand());
+		} finally {
+			socket.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		server.stopServer();
+	}
+
+	/**
+	 * Testing if requests with and without length header are answered in
+	 * the framing of the request.
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		SocketCommunication client = new SocketCommunication();
+		Socket socket = connect();
+		try {
+			for (boolean lengthFramed : new boolean[] {false, true}) {
+				String key = "key" + lengthFramed;
+				socket.getOutputStream().write(client.encode(
+						JSONSerializer.marshal(key, "value", StatusType.PUT), lengthFramed));
+				assertEquals(StatusType.PUT_SUCCESS, JSONSerializer.unMarshal(client.receiveMessage(socket)).getStatus());
+
+				socket.getOutputStream().write(client.encode(
+						JSONSerializer.marshal(key, "", StatusType.GET), lengthFramed));
+				int first = socket.getInputStream().read();
+				assertEquals(lengthFramed, SocketCommunication.isFrameStart((byte) first));
+				KVMessageImpl reply = JSONSerializer.unMarshal(lengthFramed 
+						? decodeFrame(client, (byte) first, socket)
+						: client.decode(readText(socket, first)));
+				assertEquals(StatusType.GET_SUCCESS, reply.getStatus());
+				assertEquals("value", reply.getValue());
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Testing if the requests queued on a connection which a worker closes,
+	 * here after a message not encrypted as its link requires, no longer
+	 * count as requests in flight, whenever the I/O thread read them.
+	 */
+	@Test
+	public void testWorkerCloseReleasesRequests() throws Exception {
+		SocketCommunication client = new SocketCommunication();
+		byte[] rejected = client.encode(JSONSerializer.marshal("key", "value", StatusType.PUT), true);
+		// the same request in plain JSON, which the client link does not take
+		byte[] plain = JSONSerializer.marshal("key", "value", StatusType.PUT).getMsg().getBytes(StandardCharsets.US_ASCII);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(new byte[] {0, (byte) (plain.length >>> 16), (byte) (plain.length >>> 8), (byte) plain.length});
+		stream.write(plain);
+		for (int i = 0; i < 2000; i++) {
+			stream.write(rejected);
+		}
+		byte[] requests = stream.toByteArray();
+
+		for (int i = 0; i < 50; i++) {
+			Socket socket = connect();
+			try {
+				// in parts, so the I/O thread may still be reading when the worker closes
+				int half = requests.length / 2;
+				socket.getOutputStream().write(requests, 0, half);
+				socket.getOutputStream().write(requests, half, requests.length - half);
+				socket.setSoTimeout(5000);
+				while (socket.getInputStream().read() >= 0) {
+					// replies to requests handled before the close
+				}
+			} catch (IOException e) {
+				// the connection was reset
+			} finally {
+				socket.close();
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < deadline 
+				&& (server.getLoadLimit().getStats().get("requestsInFlight") != 0
+						|| server.getLoadLimit().getStats().get("connections") != 0)) {
+			Thread.sleep(50);
+		}
+		assertEquals(0L, (long) server.getLoadLimit().getStats().get("requestsInFlight"));
+		assertEquals(0L, (long) server.getLoadLimit().getStats().get("connections"));
+	}
+
+	private static TextMessage decodeFrame(SocketCommunication client, byte first, Socket socket) throws IOException {
+		byte[] header = new byte[SocketCommunication.HEADER_SIZE - 1];
+		readFully(socket, header);
+		byte[] content = new byte[((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff)];
+		readFully(socket, content);
+		return client.decodeFrame(first, content, content.length);
+	}
+
+	private static byte[] readText(Socket socket, int first) throws IOException {
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		for (int b = first; b != 13; b = socket.getInputStream().read()) {
+			assertTrue(b >= 0);
+			if (b > 31 && b < 127) {
+				text.write(b);
+			}
+		}
+		return text.toByteArray();
+	}
+
+	private static void readFully(Socket socket, byte[] buffer) throws IOException {
+		int offset = 0;
+		while (offset < buffer.length) {
+			int read = socket.getInputStream().read(buffer, offset, buffer.length - offset);
+			assertTrue(read >= 0);
+			offset += read;
+		}
+	}
+
+	private static Socket connect() throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				return new Socket("127.0.0.1", PORT);
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package testing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import server.ReplicationChannel;
+import server.ReplicationLog;
+import common.messages.KVMessage;
+import common.messages.KVMessage.Consistency;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageImpl;
+
+/**
+ * Tests of the ReplicationLog, with replicas which only record the batches
+ * shipped to them.
+ */
+public class ReplicationLogTest extends TestCase {
+
+	/**
+	 * Testing if a key written several times while a batch is in flight is
+	 * sent once with its last value in the next batch.
+	 */
+	@Test
+	public void testCoalescing() throws Exception {
+		FakeReplica replica = new FakeReplica(1);
+		ReplicationLog log = new ReplicationLog(Arrays.<ReplicationChannel>asList(replica), null);
+		try {
+			replica.hold();
+			log.append(put("first", "value"));
+			replica.awaitHeld();
+			log.append(put("key", "v1"));
+			log.append(put("other", "value"));
+			long offset = log.append(put("key", "v2"));
+			replica.release();
+
+			assertTrue(log.await(offset, 1));
+			assertEquals(2, replica.batches.size());
+			Map<String, String> expected = new LinkedHashMap<String, String>();
+			expected.put("key", "v2");
+			expected.put("other", "value");
+			assertEquals(expected, replica.batches.get(1));
+			assertEquals(1L, (long) log.getStats().get("replicationCoalesced"));
+		} finally {
+			log.close();
+		}
+	}
+
+	/**
+	 * Testing if the writes stay in the log until all replicas acknowledged
+	 * them.
+	 */
+	@Test
+	public void testTrim() throws Exception {
+		FakeReplica up = new FakeReplica(1);
+		FakeReplica down = new FakeReplica(2);
+		down.down = true;
+		ReplicationLog log = new ReplicationLog(Arrays.<ReplicationChannel>asList(up, down), null);
+		try {
+			long offset = 0;
+			for (int i = 0; i < 10; i++) {
+				offset = log.append(put("key" + i, "value"));
+			}
+			assertTrue(log.await(offset, 1));
+			assertEquals(10L, (long) log.getStats().get("replicationLogEntries"));
+
+			// the failing replica gets them once it is back
+			down.down = false;
+			awaitEntries(log, 0);
+			assertTrue(log.await(offset, 2));
+			assertEquals(0L, (long) log.getStats().get("replicationLogSize"));
+		} finally {
+			log.close();
+		}
+	}
+
+	/**
+	 * Testing if a log replacing another one resumes a replica of both after
+	 * the writes it acknowledged, ships all writes not acknowledged by all
+	 * to a new replica, and takes the writes which reach the old log.
+	 */
+	@Test
+	public void testHandOver() throws Exception {
+		FakeReplica kept = new FakeReplica(1);
+		FakeReplica dropped = new FakeReplica(2);
+		FakeReplica added = new FakeReplica(3);
+		dropped.hold();
+		ReplicationLog log = new ReplicationLog(Arrays.<ReplicationChannel>asList(kept, dropped), null);
+		ReplicationLog next = null;
+		try {
+			long offset = 0;
+			for (int i = 0; i < 5; i++) {
+				offset = log.append(put("key" + i, "value"));
+			}
+			assertTrue(log.await(offset, 1));
+			assertEquals(5, kept.keys().size());
+
+			next = new ReplicationLog(Arrays.<ReplicationChannel>asList(kept, added), log);
+			// appended to the old log, passed on to the new one
+			offset = log.append(put("late", "value"));
+			assertTrue(log.await(offset, 2));
+
+			assertEquals(Arrays.asList("key0", "key1", "key2", "key3", "key4", "late"), kept.keys());
+			assertEquals(Arrays.asList("key0", "key1", "key2", "key3", "key4", "late"), added.keys());
+		} finally {
+			dropped.release();
+			log.close();
+			if (next != null) {
+				next.close();
+			}
+		}
+	}
+
+	/**
+	 * Testing if await waits for as many replicas as ONE, QUORUM and ALL
+	 * require, and fails at once if too many replicas fail.
+	 */
+	@Test
+	public void testAwait() throws Exception {
+		FakeReplica up = new FakeReplica(1);
+		final FakeReplica slow = new FakeReplica(2);
+		FakeReplica down = new FakeReplica(3);
+		slow.hold();
+		down.down = true;
+		ReplicationLog log = new ReplicationLog(Arrays.<ReplicationChannel>asList(up, slow, down), null);
+		try {
+			long offset = log.append(put("key", "value"));
+			int copies = log.getReplicas() + 1;
+			assertTrue(log.await(offset, Consistency.ONE.required(copies) - 1));
+
+			long start = System.currentTimeMillis();
+			assertFalse(log.await(offset, Consistency.ALL.required(copies) - 1));
+			assertTrue(System.currentTimeMillis() - start < 5000);
+
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+						return;
+					}
+					slow.release();
+				}
+			}).start();
+			assertTrue(log.await(offset, Consistency.QUORUM.required(copies) - 1));
+			assertEquals(Arrays.asList("key"), slow.keys());
+		} finally {
+			slow.release();
+			log.close();
+		}
+	}
+
+	/**
+	 * Testing if pairs a replica keeps rejecting are skipped and counted as
+	 * missed, while the other pairs of the batch are acknowledged.
+	 */
+	@Test
+	public void testRejectedPairsSkipped() throws Exception {
+		FakeReplica replica = new FakeReplica(1);
+		replica.rejected = "bad";
+		ReplicationLog log = new ReplicationLog(Arrays.<ReplicationChannel>asList(replica), null);
+		try {
+			log.append(put("bad", "value"));
+			long offset = log.append(put("good", "value"));
+			awaitEntries(log, 0);
+			assertTrue(log.await(offset, 1));
+			assertEquals(1L, (long) log.getStats().get("replicationMissed"));
+		} finally {
+			log.close();
+		}
+	}
+
+	/**
+	 * Waits until the log holds the given number of writes, as the retries
+	 * after RETRY_DELAY take a while.
+	 */
+	private static void awaitEntries(ReplicationLog log, long entries) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < deadline 
+				&& log.getStats().get("replicationLogEntries") != entries) {
+			Thread.sleep(50);
+		}
+		assertEquals(entries, (long) log.getStats().get("replicationLogEntries"));
+	}
+
+	private static KVMessageImpl put(String key, String value) {
+		return new KVMessageImpl(key, value, StatusType.REPLICA_PUT);
+	}
+
+	/**
+	 * A replica which records the batches it gets and stores all pairs but
+	 * the rejected key, without a connection.
+	 */
+	private static class FakeReplica extends ReplicationChannel {
+		private final List<Map<String, String>> batches =
+				Collections.synchronizedList(new ArrayList<Map<String, String>>());
+		private volatile boolean down;
+		private volatile String rejected;
+		private boolean held;
+		private boolean waiting;
+
+		FakeReplica(int n) {
+			super("127.0.0.1", n);
+		}
+
+		@Override
+		public KVMessageImpl exchange(KVMessageImpl request) throws IOException {
+			synchronized (this) {
+				waiting = true;
+				notifyAll();
+				while (held) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted");
+					}
+				}
+				waiting = false;
+			}
+			if (down) {
+				throw new IOException("Replica down");
+			}
+			Map<String, String> batch = new LinkedHashMap<String, String>();
+			List<KVMessage> results = new ArrayList<KVMessage>();
+			for (KVMessage pair : request.getBatch()) {
+				batch.put(pair.getKey(), pair.getValue());
+				results.add(new KVMessageImpl(pair.getKey(), "", pair.getKey().equals(rejected)
+						? StatusType.REPLICA_PUT_ERROR : StatusType.REPLICA_PUT_SUCCESS));
+			}
+			batches.add(batch);
+			KVMessageImpl reply = new KVMessageImpl("", "", StatusType.BATCH_RESULT);
+			reply.setBatch(results);
+			return reply;
+		}
+
+		synchronized void hold() {
+			held = true;
+		}
+
+		synchronized void release() {
+			held = false;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until a batch is held.
+		 */
+		synchronized void awaitHeld() throws InterruptedException {
+			while (!waiting) {
+				wait();
+			}
+		}
+
+		/**
+		 * @return the keys of all batches in the order they were received.
+		 */
+		List<String> keys() {
+			List<String> keys = new ArrayList<String>();
+			synchronized (batches) {
+				for (Map<String, String> batch : batches) {
+					keys.addAll(batch.keySet());
+				}
+			}
+			return keys;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package testing;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import logger.LogSetup;
+import metadata.MetaData;
+
+import org.apache.log4j.Level;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import common.communication.CommunicationConfig.Link;
+import common.communication.SocketCommunication;
+import common.hashing.RingPosition;
+import common.messages.JSONSerializer;
+import common.messages.KVAdminMessage.Commands;
+import common.messages.KVMessage;
+import common.messages.KVMessage.Consistency;
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Tests of the replication of the writes of a KVServer, run in this
+ * process. Its replicas are not running, so no replica confirms a write.
+ */
+public class ReplicationTest extends TestCase {
+
+	private static final int PORT = 50191;
+	//ports of the replicas, nothing listens on them
+	private static final int REPLICA_PORT_1 = 50192;
+	private static final int REPLICA_PORT_2 = 50193;
+
+	private KVServer server;
+	private MetaData coordinator;
+	private KVStore kvStore;
+
+	@Before
+	public void setUp() throws Exception {
+		new LogSetup("logs/testing/ReplicationTest.log", Level.ERROR);
+		server = new KVServer(PORT, 2, 4);
+		server.start();
+
+		List<MetaData> meta = new ArrayList<MetaData>();
+		coordinator = new MetaData("127.0.0.1", String.valueOf(PORT),
+				"00000000000000000000000000000000", "55555555555555555555555555555555");
+		meta.add(coordinator);
+		meta.add(new MetaData("127.0.0.1", String.valueOf(REPLICA_PORT_1),
+				"55555555555555555555555555555555", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"));
+		meta.add(new MetaData("127.0.0.1", String.valueOf(REPLICA_PORT_2),
+				"aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", "00000000000000000000000000000000"));
+		SocketCommunication admin = new SocketCommunication(Link.ADMIN);
+		Socket socket = connect();
+		try {
+			admin.sendMessage(socket, JSONSerializer.marshalKVAdminMsg(meta, Commands.INIT, "", "", 3));
+			assertEquals(Commands.INIT_SUCCESS,
+					JSONSerializer.unmarshalKVAdminMsgForCommand(admin.receiveMessage(socket)).getCommand());
+			admin.sendMessage(socket, JSONSerializer.marshalKVAdminMsg(null, Commands.START, "", ""));
+			assertEquals(Commands.START_SUCCESS,
+					JSONSerializer.unmarshalKVAdminMsgForCommand(admin.receiveMessage(socket)).getCommand());
+		} finally {
+			socket.close();
+		}
+		kvStore = new KVStore("localhost", PORT);
+		kvStore.connect();
+	}
+
+	@After
+	public void tearDown() {
+		kvStore.disconnect();
+		server.stopServer();
+	}
+
+	/**
+	 * Testing if a put and a delete which too few replicas confirm are
+	 * answered with WRITE_UNCONFIRMED, and stay applied on the coordinator.
+	 */
+	@Test
+	public void testUnconfirmedWrite() throws Exception {
+		String key = keyOfCoordinator(0);
+		kvStore.setConsistency(Consistency.ONE);
+		assertEquals(StatusType.PUT_SUCCESS, kvStore.put(key, "first").getStatus());
+
+		kvStore.setConsistency(Consistency.ALL);
+		assertEquals(StatusType.WRITE_UNCONFIRMED, kvStore.put(key, "second").getStatus());
+		kvStore.setConsistency(Consistency.ONE);
+		assertEquals("second", kvStore.get(key).getValue());
+
+		kvStore.setConsistency(Consistency.QUORUM);
+		assertEquals(StatusType.WRITE_UNCONFIRMED, kvStore.put(key, "").getStatus());
+		kvStore.setConsistency(Consistency.ONE);
+		assertEquals(StatusType.GET_ERROR, kvStore.get(key).getStatus());
+	}
+
+	/**
+	 * Testing if the pairs of a batch which too few replicas confirm are
+	 * answered with WRITE_UNCONFIRMED, and stay applied on the coordinator.
+	 */
+	@Test
+	public void testUnconfirmedBatch() throws Exception {
+		Map<String, String> batch = new LinkedHashMap<String, String>();
+		for (int i = 0; i < 10; i++) {
+			batch.put(keyOfCoordinator(i), "value" + i);
+		}
+		kvStore.setConsistency(Consistency.ALL);
+		Map<String, KVMessage> results = kvStore.putAll(batch);
+		kvStore.setConsistency(Consistency.ONE);
+		for (Map.Entry<String, String> pair : batch.entrySet()) {
+			assertEquals(StatusType.WRITE_UNCONFIRMED, results.get(pair.getKey()).getStatus());
+			assertEquals(pair.getValue(), kvStore.get(pair.getKey()).getValue());
+		}
+	}
+
+	private static Socket connect() throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				return new Socket("127.0.0.1", PORT);
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * @return the n-th key the coordinator is responsible for.
+	 */
+	private String keyOfCoordinator(int n) {
+		for (int i = 0; ; i++) {
+			String key = "key" + i;
+			if (coordinator.isResponsible(RingPosition.of(key)) && n-- == 0) {
+				return key;
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package testing;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import common.hashing.RingPosition;
+
+public class RingPositionTest extends TestCase {
+
+	/**
+	 * Test that the position of a key matches its MD5 hash.
+	 */
+	@Test
+	public void testHashMatchesMD5() throws Exception {
+		String keys[] = {"key", "127.0.0.1:50000", "", "k\u00e9y"};
+		for (String key : keys) {
+			BigInteger md5 = new BigInteger(1, MessageDigest.getInstance("MD5").digest(key.getBytes()));
+			RingPosition position = RingPosition.of(key);
+			assertEquals(md5, new BigInteger(position.toHex(), 16));
+			assertEquals(position, RingPosition.fromHex(md5.toString(16)));
+		}
+	}
+
+	/**
+	 * Test that positions compare as unsigned 128 bit numbers.
+	 */
+	@Test
+	public void testCompare() {
+		RingPosition small = RingPosition.fromHex("7fffffffffffffff");
+		RingPosition large = RingPosition.fromHex("80000000000000000000000000000000");
+		assertTrue(small.compareTo(large) < 0);
+		assertTrue(RingPosition.MAX.compareTo(large) > 0);
+		assertTrue(RingPosition.MIN.compareTo(small) < 0);
+		assertEquals(RingPosition.MIN, RingPosition.MAX.next());
+		assertEquals(RingPosition.fromHex("10000000000000000"), RingPosition.fromHex("ffffffffffffffff").next());
+		assertEquals(RingPosition.MAX, RingPosition.MIN.previous());
+		assertEquals(RingPosition.fromHex("ffffffffffffffff"), RingPosition.fromHex("10000000000000000").previous());
+	}
+
+	/**
+	 * Test the range (start, end], with and without wrap around.
+	 */
+	@Test
+	public void testInRange() {
+		RingPosition start = RingPosition.fromHex("10");
+		RingPosition end = RingPosition.fromHex("f0000000000000000000000000000000");
+		assertFalse(start.inRange(start, end));
+		assertTrue(end.inRange(start, end));
+		assertTrue(start.next().inRange(start, end));
+		assertFalse(RingPosition.MAX.inRange(start, end));
+
+		assertTrue(RingPosition.MAX.inRange(end, start));
+		assertTrue(RingPosition.MIN.inRange(end, start));
+		assertTrue(start.inRange(end, start));
+		assertFalse(end.inRange(end, start));
+	}
+}
@@ -1,6 +1,17 @@
 package testing;
 
+import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import junit.framework.TestCase;
 import logger.LogSetup;
@@ -9,7 +20,17 @@ import org.apache.log4j.Level;
 import org.junit.Before;
 import org.junit.Test;
 
+import server.storage.ChunkManifest;
+import server.storage.DurableEngine;
+import server.storage.MemoryBudget;
+import server.storage.MemoryEngine;
+import server.storage.RangeCursor;
 import server.storage.Storage;
+import server.storage.StorageException;
+import server.storage.lsm.LsmEngine;
+import server.storage.offheap.OffHeapEngine;
+
+import common.hashing.RingPosition;
 
 public class StorageTest extends TestCase {
 	Storage storage;
@@ -57,4 +78,532 @@ public class StorageTest extends TestCase {
 		assertTrue(s.equals("abc"));
 	}
 
+	/**
+	 * Test that getDataBetweenRange returns exactly the keys of a range, 
+	 * for a normal range as well as one wrapping around the ring.
+	 */
+	@Test
+	public void testDataBetweenRange() throws Exception {
+		Storage ranged = new Storage();
+		String keys[] = {"a", "b", "c", "d", "e"};
+		for (String key : keys) {
+			ranged.put(key, "v" + key);
+		}
+		for (String key : keys) {
+			BigInteger hash = new BigInteger(1, MessageDigest.getInstance("MD5").digest(key.getBytes()));
+			String before = hash.subtract(BigInteger.ONE).toString(16);
+			String at = hash.toString(16);
+
+			HashMap<String, String> inRange = ranged.getDataBetweenRange(before + ":" + at);
+			assertEquals(1, inRange.size());
+			assertEquals("v" + key, inRange.get(key));
+
+			HashMap<String, String> wrapped = ranged.getDataBetweenRange(at + ":" + before);
+			assertEquals(keys.length - 1, wrapped.size());
+			assertFalse(wrapped.containsKey(key));
+		}
+		assertEquals(keys.length, ranged.getDataBetweenRange("0:0").size());
+	}
+
+	@Test
+	public void testRangeCursor() throws Exception {
+		Storage ranged = new Storage();
+		for (int i = 0; i < 250; i++) {
+			ranged.put("key" + i, "value" + i);
+		}
+		RangeCursor cursor = ranged.openRange("0:0");
+		HashSet<String> seen = new HashSet<String>();
+		List<Entry<String, String>> batch;
+		while (!(batch = cursor.nextBatch(100, Long.MAX_VALUE)).isEmpty()) {
+			assertTrue(batch.size() <= 100);
+			for (Entry<String, String> entry : batch) {
+				assertTrue(seen.add(entry.getKey()));
+			}
+		}
+		assertEquals(250, seen.size());
+
+		// a batch is closed once it reaches the char limit
+		assertEquals(1, ranged.openRange("0:0").nextBatch(100, 1).size());
+
+		assertTrue(ranged.deleteDataBetweenRange("0:0"));
+		assertEquals(0, ranged.size());
+		assertTrue(ranged.openRange("0:0").nextBatch(100, Long.MAX_VALUE).isEmpty());
+	}
+
+	/**
+	 * Test that a cursor reopened after a failure in the middle of keys
+	 * sharing one ring position returns each of them exactly once.
+	 */
+	@Test
+	public void testRangeCursorReopen() throws Exception {
+		Storage shared = new Storage(new MemoryEngine() {
+			private boolean failed;
+
+			@Override
+			public Iterator<Entry<String, String>> range(RingPosition start, RingPosition end) {
+				final Iterator<Entry<String, String>> entries = super.range(start, end);
+				if (failed) {
+					return entries;
+				}
+				failed = true;
+				// fails like an LSM range whose segment was compacted away
+				return new Iterator<Entry<String, String>>() {
+					private int returned;
+
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					public Entry<String, String> next() {
+						if (++returned > 4) {
+							throw new StorageException("Segment removed", new IOException("gone"));
+						}
+						return entries.next();
+					}
+				};
+			}
+		});
+		// chunk records lie at the ring position of their key
+		ChunkManifest manifest = ChunkManifest.start();
+		for (int i = 0; i < 10; i++) {
+			shared.put(manifest.chunkKey("big", i), "chunk" + i);
+			manifest = manifest.append(6);
+		}
+		shared.put("big", manifest.toValue());
+
+		RangeCursor cursor = shared.openRange("0:0");
+		HashSet<String> seen = new HashSet<String>();
+		List<Entry<String, String>> batch;
+		while (!(batch = cursor.nextBatch(3, Long.MAX_VALUE)).isEmpty()) {
+			for (Entry<String, String> entry : batch) {
+				assertTrue(entry.getKey(), seen.add(entry.getKey()));
+			}
+		}
+		assertEquals(11, seen.size());
+	}
+
+	/**
+	 * Test that deleting a range drops the buckets inside it and deletes the
+	 * keys of the partly covered buckets one by one, unless keys are kept.
+	 */
+	@Test
+	public void testDeleteBuckets() {
+		Storage bucketed = new Storage();
+		bucketed.setMemoryBudget(new MemoryBudget(Long.MAX_VALUE, MemoryBudget.Policy.REJECT));
+		for (int i = 0; i < 5000; i++) {
+			bucketed.put("key" + i, "value" + i);
+		}
+		long used = bucketed.getMemoryBudget().getUsed();
+
+		String ranges[] = {"40000000000000000000000000000000:c0000000000000000000000000000123",
+				"f0000000000000000000000000000000:1", "12345:12345"};
+		for (String range : ranges) {
+			RingPosition start = RingPosition.fromHex(range.split(":")[0]);
+			RingPosition end = RingPosition.fromHex(range.split(":")[1]);
+			HashSet<String> remaining = new HashSet<String>();
+			HashSet<String> keep = new HashSet<String>();
+			for (int i = 0; i < 5000; i++) {
+				if (bucketed.get("key" + i) == null) {
+					continue;
+				}
+				if (!RingPosition.of("key" + i).inRange(start, end)) {
+					remaining.add("key" + i);
+				} else if (keep.isEmpty()) {
+					keep.add("key" + i);
+				}
+			}
+			// keys which are kept stop the range from being dropped by bucket
+			assertTrue(bucketed.deleteDataBetweenRange(range, keep));
+			assertEquals(remaining.size() + keep.size(), bucketed.size());
+
+			assertTrue(bucketed.deleteDataBetweenRange(range));
+			assertEquals(remaining.size(), bucketed.size());
+			for (String key : remaining) {
+				assertNotNull(bucketed.get(key));
+			}
+			assertTrue(bucketed.getMemoryBudget().getUsed() < used);
+			used = bucketed.getMemoryBudget().getUsed();
+		}
+		assertEquals(0, bucketed.size());
+		assertEquals(0, used);
+	}
+
+	/**
+	 * Test that the chunks of a value lie at the ring position of its key
+	 * and are dropped once the value is replaced.
+	 */
+	@Test
+	public void testChunks() {
+		Storage chunked = new Storage();
+		ChunkManifest manifest = ChunkManifest.start();
+		for (int i = 0; i < 3; i++) {
+			String chunkKey = manifest.chunkKey("big", manifest.getCount());
+			assertTrue(ChunkManifest.isReserved(chunkKey, "chunk" + i));
+			assertEquals(RingPosition.of("big"), RingPosition.of(chunkKey));
+			chunked.put(chunkKey, "chunk" + i);
+			manifest = manifest.append(6);
+		}
+		chunked.put("big", manifest.toValue());
+		assertEquals(4, chunked.size());
+
+		ChunkManifest stored = ChunkManifest.parse(chunked.get("big"));
+		assertEquals(manifest.getDescriptor(), stored.getDescriptor());
+		assertEquals(18, stored.getLength());
+		assertEquals("chunk2", chunked.get(stored.chunkKey("big", 2)));
+
+		chunked.put("big", "small");
+		assertEquals(1, chunked.size());
+		assertFalse(ChunkManifest.isReserved("big", "small"));
+	}
+
+	@Test
+	public void testMemoryBudget() {
+		long pair = MemoryBudget.sizeOf("key0", "value0");
+
+		Storage rejecting = new Storage();
+		rejecting.put("key0", "value0");
+		rejecting.setMemoryBudget(new MemoryBudget(3 * pair, MemoryBudget.Policy.REJECT));
+		assertEquals(pair, rejecting.getMemoryBudget().getUsed());
+		for (int i = 1; i < 3; i++) {
+			assertTrue(rejecting.admit("key" + i, "value" + i));
+			rejecting.put("key" + i, "value" + i);
+		}
+		assertFalse(rejecting.admit("key3", "value3"));
+		// updates which do not grow the data are still accepted
+		assertTrue(rejecting.admit("key1", "other1"));
+		assertFalse(rejecting.admit("key1", "a longer value"));
+		rejecting.delete("key2");
+		assertEquals(2 * pair, rejecting.getMemoryBudget().getUsed());
+		assertTrue(rejecting.admit("key3", "value3"));
+
+		// pairs of the same size, ten of them fit
+		pair = MemoryBudget.sizeOf("key10", "value10");
+		Storage evicting = new Storage();
+		evicting.setMemoryBudget(new MemoryBudget(10 * pair, MemoryBudget.Policy.EVICT));
+		for (int i = 10; i < 100; i++) {
+			assertTrue(evicting.admit("key" + i, "value" + i));
+			evicting.put("key" + i, "value" + i);
+			assertEquals("value" + i, evicting.get("key" + i));
+		}
+		assertTrue(evicting.getMemoryBudget().getExcess() <= 0);
+		assertEquals(10, evicting.size());
+		assertEquals(Long.valueOf(80), evicting.getStats().get("evicted"));
+	}
+
+	@Test
+	public void testPutAll() throws Exception {
+		final Storage batched = new Storage();
+		batched.setMemoryBudget(new MemoryBudget(Long.MAX_VALUE, MemoryBudget.Policy.REJECT));
+		batched.put("a", "old");
+		batched.put("b", "old");
+
+		List<Entry<String, String>> batch = new ArrayList<Entry<String, String>>();
+		batch.add(new SimpleImmutableEntry<String, String>("a", "new"));
+		batch.add(new SimpleImmutableEntry<String, String>("b", null));
+		batch.add(new SimpleImmutableEntry<String, String>("c", "new"));
+		batch.add(new SimpleImmutableEntry<String, String>("d", null));
+		List<String> previous = batched.putAll(batch);
+		assertEquals("old", previous.get(0));
+		assertEquals("old", previous.get(1));
+		assertNull(previous.get(2));
+		assertNull(previous.get(3));
+		assertEquals("new", batched.get("a"));
+		assertNull(batched.get("b"));
+		assertEquals(2, batched.size());
+		assertEquals(MemoryBudget.sizeOf("a", "new") + MemoryBudget.sizeOf("c", "new"),
+				batched.getMemoryBudget().getUsed());
+
+		// overlapping batches take their locks in the same order
+		Thread writers[] = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			final int id = t;
+			writers[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 200; i++) {
+						List<Entry<String, String>> batch = new ArrayList<Entry<String, String>>();
+						for (int k = 0; k < 50; k++) {
+							batch.add(new SimpleImmutableEntry<String, String>("k" + ((k * 7 + id) % 100), "v" + id));
+						}
+						batched.putAll(batch);
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join(10000);
+			assertFalse(writer.isAlive());
+		}
+		assertEquals(102, batched.size());
+	}
+
+	/**
+	 * Test that concurrent writers on distinct keys all succeed and leave 
+	 * the range index consistent with the stored data.
+	 */
+	@Test
+	public void testConcurrentWrites() throws Exception {
+		final Storage concurrent = new Storage();
+		Thread writers[] = new Thread[8];
+		for (int t = 0; t < writers.length; t++) {
+			final int id = t;
+			writers[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 500; i++) {
+						concurrent.put("k" + id + "-" + i, "v" + i);
+						if (i % 2 == 1) {
+							concurrent.delete("k" + id + "-" + i);
+						}
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		HashMap<String, String> all = concurrent.getDataBetweenRange("0:0");
+		assertEquals(writers.length * 250, all.size());
+		assertEquals("v10", all.get("k3-10"));
+		assertNull(concurrent.get("k3-11"));
+	}
+
+	/**
+	 * Test the LSM storage with a memtable small enough to be flushed and
+	 * compacted several times, before and after a restart.
+	 */
+	@Test
+	public void testLsmStorage() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "storage-lsm-test-" + System.nanoTime());
+		try {
+			Storage lsm = new Storage(new LsmEngine(dir, false, 2048));
+			for (int i = 0; i < 2000; i++) {
+				lsm.put("k" + i, "v" + i);
+			}
+			for (int i = 0; i < 2000; i += 2) {
+				assertEquals("v" + i, lsm.delete("k" + i));
+			}
+			assertEquals("v1", lsm.put("k1", "x"));
+			assertNull(lsm.get("k2"));
+			assertNull(lsm.get("missing"));
+			assertNull(lsm.delete("k4"));
+			lsm.close();
+
+			lsm = new Storage(new LsmEngine(dir, false, 2048));
+			assertEquals("x", lsm.get("k1"));
+			assertEquals("v3", lsm.get("k3"));
+			assertNull(lsm.get("k2"));
+			HashMap<String, String> all = lsm.getDataBetweenRange("0:0");
+			assertEquals(1000, all.size());
+			assertEquals("v1999", all.get("k1999"));
+			assertFalse(all.containsKey("k1998"));
+
+			BigInteger hash = new BigInteger(RingPosition.of("k5").toHex(), 16);
+			String before = hash.subtract(BigInteger.ONE).toString(16);
+			HashMap<String, String> one = lsm.getDataBetweenRange(before + ":" + hash.toString(16));
+			assertEquals(1, one.size());
+			assertEquals("v5", one.get("k5"));
+			assertEquals(999, lsm.getDataBetweenRange(hash.toString(16) + ":" + before).size());
+			lsm.close();
+		} finally {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Test that compaction does not rewrite the large segments on every
+	 * flush, and that the data is complete afterwards.
+	 */
+	@Test
+	public void testLsmTieredCompaction() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "storage-lsm-tier-test-" + System.nanoTime());
+		try {
+			LsmEngine engine = new LsmEngine(dir, false, 2048);
+			for (int i = 0; i < 40000; i++) {
+				engine.put("k" + i, "v" + i);
+				if (i % 50 == 0) {
+					// let the flushes keep up, so each memtable stays about the configured size
+					Thread.sleep(1);
+				}
+			}
+			engine.close();
+			Map<String, Long> stats = engine.getStats();
+			assertTrue(stats.get("flushedBytes") > 0);
+			assertTrue(stats.get("compactedBytes") > 0);
+			// merging all segments every time writes about ten times the flushed bytes here
+			assertTrue(stats.get("compactedBytes") < 6 * stats.get("flushedBytes"));
+
+			Storage lsm = new Storage(new LsmEngine(dir, false, 2048));
+			HashMap<String, String> all = lsm.getDataBetweenRange("0:0");
+			assertEquals(40000, all.size());
+			assertEquals("v4999", all.get("k4999"));
+			lsm.close();
+		} finally {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Test the off-heap storage with slabs small enough that values are
+	 * spread over several slabs and large values get buffers of their own.
+	 */
+	@Test
+	public void testOffHeapStorage() throws Exception {
+		Storage offHeap = new Storage(new OffHeapEngine(1024));
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			large.append("line ").append(i).append('\n');
+		}
+		for (int i = 0; i < 500; i++) {
+			assertNull(offHeap.put("k" + i, i % 50 == 0 ? large.toString() + i : "v" + i));
+		}
+		for (int i = 0; i < 500; i += 2) {
+			assertEquals(i % 50 == 0 ? large.toString() + i : "v" + i, offHeap.delete("k" + i));
+		}
+		assertEquals("v1", offHeap.put("k1", "w\u00e91"));
+		assertEquals("w\u00e91", offHeap.get("k1"));
+		assertEquals("v3", offHeap.get("k3"));
+		assertNull(offHeap.get("k2"));
+		HashMap<String, String> all = offHeap.getDataBetweenRange("0:0");
+		assertEquals(250, all.size());
+		assertEquals("v499", all.get("k499"));
+		assertEquals(250L, offHeap.size());
+	}
+
+	/**
+	 * Test that a durable storage recovers puts and deletes after a restart,
+	 * with a snapshot interval small enough to rotate the log.
+	 */
+	@Test
+	public void testDurableRecovery() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "storage-test-" + System.nanoTime());
+		try {
+			Storage durable = new Storage(new DurableEngine(dir, false, 2));
+			durable.put("k1", "v1");
+			durable.put("k2", "v2");
+			durable.put("k3", "v3");
+			durable.delete("k1");
+			durable.put("k2", "v22");
+			durable.close();
+
+			Storage recovered = new Storage(new DurableEngine(dir, false, 2));
+			assertNull(recovered.get("k1"));
+			assertEquals("v22", recovered.get("k2"));
+			assertEquals("v3", recovered.get("k3"));
+			recovered.close();
+		} finally {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Test that concurrent writers lose nothing while snapshots replace the
+	 * logs, every put and delete is there after a restart.
+	 */
+	@Test
+	public void testDurableSnapshotWhileWriting() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "storage-snapshot-test-" + System.nanoTime());
+		try {
+			final Storage durable = new Storage(new DurableEngine(dir, false, 50));
+			Thread writers[] = new Thread[8];
+			for (int t = 0; t < writers.length; t++) {
+				final int id = t;
+				writers[t] = new Thread() {
+					public void run() {
+						for (int i = 0; i < 1000; i++) {
+							durable.put("k" + id + "-" + i, "v" + i);
+							if (i % 2 == 1) {
+								durable.delete("k" + id + "-" + i);
+							}
+						}
+					}
+				};
+				writers[t].start();
+			}
+			for (Thread writer : writers) {
+				writer.join();
+			}
+			durable.close();
+
+			Storage recovered = new Storage(new DurableEngine(dir, false, 50));
+			HashMap<String, String> all = recovered.getDataBetweenRange("0:0");
+			assertEquals(writers.length * 500, all.size());
+			for (int t = 0; t < writers.length; t++) {
+				for (int i = 0; i < 1000; i++) {
+					assertEquals(i % 2 == 1 ? null : "v" + i, all.get("k" + t + "-" + i));
+				}
+			}
+			recovered.close();
+		} finally {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Test that a write the engine fails is reported to the caller and not
+	 * mistaken for a put of a new key or a delete of a missing one.
+	 */
+	@Test
+	public void testEngineWriteFailure() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "storage-failure-test-" + System.nanoTime());
+		try {
+			Storage failing = new Storage(new LsmEngine(dir, false, 2048));
+			failing.put("k1", "v1");
+			// a closed engine cannot write its log anymore
+			failing.close();
+			try {
+				failing.put("k2", "v2");
+				fail("put on a failed engine succeeded");
+			} catch (StorageException e) {
+				assertNotNull(e.getCause());
+			}
+			try {
+				failing.delete("k1");
+				fail("delete on a failed engine succeeded");
+			} catch (StorageException e) {
+				assertNotNull(e.getCause());
+			}
+			List<Entry<String, String>> batch = new ArrayList<Entry<String, String>>();
+			batch.add(new SimpleImmutableEntry<String, String>("k3", "v3"));
+			try {
+				failing.putAll(batch);
+				fail("batch on a failed engine succeeded");
+			} catch (StorageException e) {
+				assertNotNull(e.getCause());
+			}
+		} finally {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+
 }